@@ -0,0 +1,287 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Times the hot paths of the chat, from encoding packets to drawing the chat log, so a change which slows
+ * one of them down shows up before it ships.
+ *
+ * It works the way JMH does, but needs nothing outside the JDK. Every Case is set up once, then run for
+ * a few warmup iterations so the JIT has compiled it, then for the measured iterations. An iteration runs
+ * the case in batches until it has taken ITERATION_MILLIS, and the time per operation of each iteration is
+ * reported as a mean and a standard deviation. What the case returns is added to a sink which is printed
+ * at the end, so the JIT cannot throw the work away. Like JMH's gc profiler, the bytes allocated per
+ * operation over the measured iterations are reported too. Only what the thread running the case
+ * allocates is counted, so work a case hands to other threads does not show up in it.
+ *
+ * Build and run every benchmark from the project directory with
+ *     javac -d out/bench src/*.java bench/*.java
+ *     java -cp out/bench Bench
+ * or only the ones whose names match a regular expression, such as
+ *     java -cp out/bench Bench "codec\..*"
+ * The mychatapp.bench.warmup, mychatapp.bench.iterations and mychatapp.bench.millis system properties
+ * change how long each one runs. Sending and receiving are not rate limited unless the mychatapp.send.rate
+ * or mychatapp.receive.rate system property is set, since the benchmarks measure how fast the chat can go.
+ */
+public class Bench
+{
+    //system properties for the number of warmup and measured iterations, and how long each one takes
+    public static final String WARMUP_PROPERTY = "mychatapp.bench.warmup";
+    public static final String ITERATIONS_PROPERTY = "mychatapp.bench.iterations";
+    public static final String MILLIS_PROPERTY = "mychatapp.bench.millis";
+    public static final int WARMUP = 3;
+    public static final int ITERATIONS = 5;
+    public static final int ITERATION_MILLIS = 1000;
+    //a batch is grown until it takes at least this long, so reading the clock does not add to the cost
+    private static final long BATCH_NANOS = 1000000;
+
+    //results of every case, so none of the work can be optimised away
+    private static long sink = 0;
+    //counts the bytes each thread allocates, or null if this JVM cannot
+    private static final com.sun.management.ThreadMXBean allocations = allocationCounter();
+
+    /**
+     * One benchmark. The time of a call to run(), divided by the number of operations it was asked to do,
+     * is what is measured. Setting up and tearing down are not timed.
+     */
+    public static abstract class Case
+    {
+        private final String name;
+
+        /**
+         * Constructor
+         * @param name- names the case in the results, such as "codec.encode.SEND_MESSAGE"
+         */
+        protected Case(String name)
+        {
+            this.name = name;
+        }
+
+        /**
+         * Getter for the name of the case
+         * @return name
+         */
+        public String getName()
+        {
+            return name;
+        }
+
+        /**
+         * Called once before the case is run
+         * @throws Exception- if the case cannot be set up, in which case it is skipped
+         */
+        public void setup() throws Exception
+        {
+        }
+
+        /**
+         * Does the operation being measured a number of times
+         * @param operations- how many times
+         * @return anything which depends on the work done, which is added to the sink
+         * @throws Exception- if the operation fails, which ends the case
+         */
+        public abstract long run(int operations) throws Exception;
+
+        /**
+         * Called once after the case has run, even if it failed
+         * @throws Exception- if the case cannot be torn down
+         */
+        public void teardown() throws Exception
+        {
+        }
+    }
+
+    /**
+     * Runs the benchmarks
+     * @param args- regular expressions for the names of the cases to run, or none to run them all
+     */
+    public static void main(String[] args)
+    {
+        unlimited(ChatProxy.SEND_RATE_PROPERTY);
+        unlimited(AdmissionControl.RATE_PROPERTY);
+        List<Case> cases = new ArrayList<Case>();
+        CodecBench.addCases(cases);
+        CodecFuzzBench.addCases(cases);
+        ModelBench.addCases(cases);
+        SearchBench.addCases(cases);
+        CompressBench.addCases(cases);
+        HistoryBench.addCases(cases);
+        RosterBench.addCases(cases);
+        ViewBench.addCases(cases);
+        UiBench.addCases(cases);
+        LoopbackBench.addCases(cases);
+        EngineBench.addCases(cases);
+        BusBench.addCases(cases);
+        FloodBench.addCases(cases);
+        RelayBench.addCases(cases);
+
+        int warmup = Integer.getInteger(WARMUP_PROPERTY,WARMUP);
+        int iterations = Integer.getInteger(ITERATIONS_PROPERTY,ITERATIONS);
+        long millis = Long.getLong(MILLIS_PROPERTY,ITERATION_MILLIS);
+        System.out.println("# "+System.getProperty("java.vm.name")+" "+System.getProperty("java.version")
+                +", "+Runtime.getRuntime().availableProcessors()+" cpus, "+warmup+" warmup and "+iterations
+                +" measured iterations of "+millis+" ms");
+        System.out.println(String.format("%-44s %14s %10s %14s %10s","Benchmark","ns/op","error","ops/s","B/op"));
+        for(Case benchmark : cases)
+        {
+            if(matches(benchmark.getName(),args))
+            {
+                run(benchmark,warmup,iterations,millis*1000000);
+            }
+        }
+        System.out.println("# sink "+sink);
+        System.exit(0);
+    }
+
+    private static com.sun.management.ThreadMXBean allocationCounter()
+    {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if(!(threads instanceof com.sun.management.ThreadMXBean))
+        {
+            return null;
+        }
+        com.sun.management.ThreadMXBean counter = (com.sun.management.ThreadMXBean)threads;
+        if(!counter.isThreadAllocatedMemorySupported())
+        {
+            return null;
+        }
+        counter.setThreadAllocatedMemoryEnabled(true);
+        return counter;
+    }
+
+    /**
+     * Getter for the bytes the current thread has allocated so far
+     * @return the bytes, or -1 if they are not counted
+     */
+    private static long allocated()
+    {
+        return allocations==null ? -1 : allocations.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static void unlimited(String rateProperty)
+    {
+        if(System.getProperty(rateProperty)==null)
+        {
+            System.setProperty(rateProperty,"0");
+        }
+    }
+
+    private static boolean matches(String name,String[] patterns)
+    {
+        if(patterns.length==0)
+        {
+            return true;
+        }
+        for(String pattern : patterns)
+        {
+            if(Pattern.matches(pattern,name))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Sets up, warms up, measures and tears down one case, then prints its result
+     */
+    private static void run(Case benchmark,int warmup,int iterations,long iterationNanos)
+    {
+        try
+        {
+            benchmark.setup();
+            int batch = grow(benchmark,1);
+            for(int i=0;i<warmup;i++)
+            {
+                iterate(benchmark,batch,iterationNanos);
+                //the case gets faster as it is compiled, so the batch may need to grow too
+                batch = grow(benchmark,batch);
+            }
+            double[] results = new double[iterations];
+            long operations = 0;
+            long allocatedBefore = allocated();
+            for(int i=0;i<iterations;i++)
+            {
+                long[] done = iterate(benchmark,batch,iterationNanos);
+                results[i] = (double)done[0]/done[1];
+                operations += done[1];
+            }
+            long allocatedAfter = allocated();
+            double bytes = allocatedBefore<0 ? Double.NaN : (double)(allocatedAfter-allocatedBefore)/operations;
+            report(benchmark.getName(),results,bytes);
+        }
+        catch(Exception e)
+        {
+            System.out.println(String.format("%-44s %s",benchmark.getName(),"failed: "+e));
+            e.printStackTrace();
+        }
+        finally
+        {
+            try
+            {
+                benchmark.teardown();
+            }
+            catch(Exception e)
+            {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Runs a case in batches until an iteration's time is up
+     * @return the time taken and the number of operations done
+     */
+    private static long[] iterate(Case benchmark,int batch,long iterationNanos) throws Exception
+    {
+        long operations = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do
+        {
+            sink += benchmark.run(batch);
+            operations += batch;
+            elapsed = System.nanoTime()-start;
+        }
+        while(elapsed<iterationNanos);
+        return new long[]{elapsed,operations};
+    }
+
+    /**
+     * Doubles a batch until one takes at least BATCH_NANOS
+     * @return the new batch size
+     */
+    private static int grow(Case benchmark,int batch) throws Exception
+    {
+        while(batch<(1<<24))
+        {
+            long start = System.nanoTime();
+            sink += benchmark.run(batch);
+            if(System.nanoTime()-start>=BATCH_NANOS)
+            {
+                break;
+            }
+            batch *= 2;
+        }
+        return batch;
+    }
+
+    private static void report(String name,double[] results,double bytesPerOperation)
+    {
+        double mean = 0;
+        for(double result : results)
+        {
+            mean += result;
+        }
+        mean /= results.length;
+        double variance = 0;
+        for(double result : results)
+        {
+            variance += (result-mean)*(result-mean);
+        }
+        double deviation = results.length>1 ? Math.sqrt(variance/(results.length-1)) : 0;
+        System.out.println(String.format("%-44s %14.1f %10.1f %14.0f %10s",name,mean,deviation,1e9/mean,
+                Double.isNaN(bytesPerOperation) ? "-" : String.format("%.1f",bytesPerOperation)));
+    }
+}
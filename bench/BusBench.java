@@ -0,0 +1,284 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Events a second through a ChatEventBus, against the designs it replaced. One operation is one event
+ * published and handed to every consumer, and each consumer times every event from being published to
+ * reaching it. When a case is torn down it prints the median, 99th and 99.9th percentile of those times.
+ *
+ * The bus cases publish from one thread to one or three consumers, on a bus made for a single producer
+ * and on one any thread may publish to. The queue cases hand each consumer a copy of the event through
+ * an ArrayBlockingQueue of the same size, which is how the work would be passed between threads with
+ * locks. The synchronized cases call every consumer straight from the publisher while holding one lock,
+ * the way the proxy used to call the model's synchronized methods, which called the view. Nothing waits
+ * between threads there, so their latency is only the lock, but the publisher pays for every consumer's work.
+ *
+ * The publisher never waits for an event to arrive before publishing the next, so the latencies include
+ * the time spent queued behind the events before it, as they would when the network is saturated.
+ */
+public class BusBench
+{
+    //slots in the ring, and in each queue
+    private static final int SIZE = ChatEventBus.DEFAULT_SIZE;
+    private static final int[] CONSUMERS = {1,3};
+    private static final long PEER = 0x2545F4914F6CDD1DL;
+    private static final long TIMEOUT_MILLIS = 30000;
+
+    /**
+     * Adds the bus, queue and synchronized cases for every number of consumers
+     * @param cases- where the cases are added
+     */
+    static void addCases(List<Bench.Case> cases)
+    {
+        for(int consumers : CONSUMERS)
+        {
+            cases.add(new Ring("bus.ring.singleProducer.consumers"+consumers,consumers,true));
+            cases.add(new Ring("bus.ring.multiProducer.consumers"+consumers,consumers,false));
+            cases.add(new Queue("bus.queue.locked.consumers"+consumers,consumers));
+            cases.add(new Direct("bus.synchronized.consumers"+consumers,consumers));
+        }
+    }
+
+    /**
+     * What every consumer does with an event: a little work, and timing how long it took to arrive
+     */
+    private static class Sink
+    {
+        final LatencyHistogram latency;
+        final AtomicLong taken = new AtomicLong();
+        long work = 0;
+
+        Sink(LatencyHistogram latency)
+        {
+            this.latency = latency;
+        }
+
+        void take(long senderId,String text,long publishedNanos)
+        {
+            latency.record(System.nanoTime()-publishedNanos);
+            work += senderId+text.length();
+            taken.lazySet(taken.get()+1);
+        }
+    }
+
+    /**
+     * Publishes events to a number of consumers, and waits for them to catch up when torn down
+     */
+    private static abstract class Events extends Bench.Case
+    {
+        final int consumers;
+        final LatencyHistogram latency = new LatencyHistogram();
+        final List<Sink> sinks = new ArrayList<Sink>();
+        long published = 0;
+
+        Events(String name,int consumers)
+        {
+            super(name);
+            this.consumers = consumers;
+            for(int i=0;i<consumers;i++)
+            {
+                sinks.add(new Sink(latency));
+            }
+        }
+
+        /**
+         * Publishes one event
+         */
+        abstract void publish(long sequence) throws Exception;
+
+        @Override
+        public long run(int operations) throws Exception
+        {
+            for(int i=0;i<operations;i++)
+            {
+                publish(published++);
+            }
+            return published;
+        }
+
+        @Override
+        public void teardown() throws Exception
+        {
+            long deadline = System.currentTimeMillis()+TIMEOUT_MILLIS;
+            for(Sink sink : sinks)
+            {
+                while(sink.taken.get()<published)
+                {
+                    if(System.currentTimeMillis()>deadline)
+                    {
+                        throw new IllegalStateException((published-sink.taken.get())+" events never arrived");
+                    }
+                    Thread.sleep(1);
+                }
+            }
+            System.out.println("# "+getName()+" "+published+" events reached all "+consumers+" consumers, latency "
+                    +latency.toMicros()+" p99.9="+latency.getPercentile(99.9)/1000+"us");
+        }
+    }
+
+    /**
+     * Publishes on a ChatEventBus
+     */
+    private static class Ring extends Events
+    {
+        private final boolean singleProducer;
+        private ChatEventBus bus;
+
+        Ring(String name,int consumers,boolean singleProducer)
+        {
+            super(name,consumers);
+            this.singleProducer = singleProducer;
+        }
+
+        @Override
+        public void setup()
+        {
+            bus = new ChatEventBus(SIZE,singleProducer);
+            for(int i=0;i<consumers;i++)
+            {
+                final Sink sink = sinks.get(i);
+                bus.addConsumer("bench"+i,new ChatEventBus.Consumer()
+                {
+                    public void onEvent(ChatEvent event,boolean endOfBatch)
+                    {
+                        sink.take(event.getSenderId(),event.getText(),event.getReceivedNanos());
+                    }
+                });
+            }
+            bus.start();
+        }
+
+        void publish(long sequence)
+        {
+            bus.publish(ChatEvent.Type.MESSAGE_RECEIVED,PEER,sequence,0,CodecBench.MESSAGE,System.nanoTime());
+        }
+
+        @Override
+        public void teardown() throws Exception
+        {
+            try
+            {
+                super.teardown();
+            }
+            finally
+            {
+                bus.close();
+            }
+        }
+    }
+
+    /**
+     * An event copied into a queue, as the bus's slots cannot be
+     */
+    private static class QueuedEvent
+    {
+        final long senderId;
+        final String text;
+        final long publishedNanos;
+
+        QueuedEvent(long senderId,String text,long publishedNanos)
+        {
+            this.senderId = senderId;
+            this.text = text;
+            this.publishedNanos = publishedNanos;
+        }
+    }
+
+    /**
+     * Hands each consumer the event through an ArrayBlockingQueue of its own
+     */
+    private static class Queue extends Events
+    {
+        private final List<ArrayBlockingQueue<QueuedEvent>> queues = new ArrayList<ArrayBlockingQueue<QueuedEvent>>();
+        private final List<Thread> threads = new ArrayList<Thread>();
+
+        Queue(String name,int consumers)
+        {
+            super(name,consumers);
+        }
+
+        @Override
+        public void setup()
+        {
+            for(int i=0;i<consumers;i++)
+            {
+                final Sink sink = sinks.get(i);
+                final ArrayBlockingQueue<QueuedEvent> queue = new ArrayBlockingQueue<QueuedEvent>(SIZE);
+                queues.add(queue);
+                Thread thread = new Thread(new Runnable()
+                {
+                    public void run()
+                    {
+                        try
+                        {
+                            while(true)
+                            {
+                                QueuedEvent event = queue.take();
+                                sink.take(event.senderId,event.text,event.publishedNanos);
+                            }
+                        }
+                        catch(InterruptedException e)
+                        {
+                            //torn down
+                        }
+                    }
+                },"BusBench-queue"+i);
+                thread.setDaemon(true);
+                thread.start();
+                threads.add(thread);
+            }
+        }
+
+        void publish(long sequence) throws InterruptedException
+        {
+            QueuedEvent event = new QueuedEvent(PEER,CodecBench.MESSAGE,System.nanoTime());
+            for(ArrayBlockingQueue<QueuedEvent> queue : queues)
+            {
+                queue.put(event);
+            }
+        }
+
+        @Override
+        public void teardown() throws Exception
+        {
+            try
+            {
+                super.teardown();
+            }
+            finally
+            {
+                for(Thread thread : threads)
+                {
+                    thread.interrupt();
+                }
+            }
+        }
+    }
+
+    /**
+     * Calls every consumer from the publisher, holding one lock
+     */
+    private static class Direct extends Events
+    {
+        private final Object lock = new Object();
+
+        Direct(String name,int consumers)
+        {
+            super(name,consumers);
+        }
+
+        void publish(long sequence)
+        {
+            long now = System.nanoTime();
+            synchronized(lock)
+            {
+                for(Sink sink : sinks)
+                {
+                    sink.take(PEER,CodecBench.MESSAGE,now);
+                }
+            }
+        }
+    }
+}
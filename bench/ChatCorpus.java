@@ -0,0 +1,179 @@
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+
+/**
+ * Makes up chat lines which look like a real chatroom's, for the benchmarks which depend on what the
+ * messages say, such as searching and compressing them.
+ *
+ * Every line starts with its sender's name, as ChatView writes it. Words are picked with a Zipf
+ * distribution, the way word use is spread in real text: the common words of chat come first, then a
+ * long tail of made up words, so a few words are in almost every line and most are rare. Lines are 1 to
+ * 30 words long, mostly short, and now and then hold a number, a link or an emoji. The same seed always
+ * makes the same lines.
+ */
+public class ChatCorpus
+{
+    //the words chat is mostly made of, most used first
+    private static final String[] COMMON = ("i you the to a and it is that what lol ok in of for it's "
+            +"so do we have on be this just are not no yeah me my can but was with like at yes get if "
+            +"going there know think now what's about they all out up one when how he she time will "
+            +"today tomorrow meeting call later thanks thx sure good great nice cool haha anyone here "
+            +"guys hey hi morning night see you're i'm don't can't did got need want let's go back home "
+            +"work office lunch coffee build test deploy branch merge review bug fix release server down "
+            +"again still right sorry wait done check link file doc sent send email chat room why where "
+            +"who should would could maybe probably really very much more some any new old first last "
+            +"next week day hour minute soon already never always everyone someone something nothing").split(" ");
+    private static final String[] SYLLABLES = {"ka","lo","mi","ra","ten","sul","dor","ve","an","tik","pra",
+            "no","sen","qua","bel","rin","mo","tu","gar","phi","el","zon","ish","cro","da"};
+    private static final String[] EMOJI = {"\uD83D\uDE00","\uD83D\uDC4D","\uD83C\uDF89","\uD83D\uDE02",
+            "\uD83D\uDE4F","\uD83D\uDD25"};
+    //size of the vocabulary, and how steeply word use falls off
+    private static final int WORDS = 20000;
+    private static final double ZIPF = 1.07;
+    private static final int USERS = 40;
+
+    private final Random random;
+    private final String[] words = new String[WORDS];
+    //the chance of picking each word or one before it
+    private final double[] cumulative = new double[WORDS];
+    private final String[] names = new String[USERS];
+    private final StringBuilder line = new StringBuilder();
+
+    /**
+     * Constructor
+     * @param seed- picks the lines made
+     */
+    public ChatCorpus(long seed)
+    {
+        random = new Random(seed);
+        Random made = new Random(0);
+        HashSet<String> used = new HashSet<String>(Arrays.asList(COMMON));
+        for(int i=0;i<WORDS;i++)
+        {
+            if(i<COMMON.length)
+            {
+                words[i] = COMMON[i];
+            }
+            else
+            {
+                //every made up word is different, so each keeps its own place in the distribution
+                String word;
+                do
+                {
+                    StringBuilder syllables = new StringBuilder();
+                    for(int s=2+made.nextInt(3);s>0;s--)
+                    {
+                        syllables.append(SYLLABLES[made.nextInt(SYLLABLES.length)]);
+                    }
+                    word = syllables.toString();
+                }
+                while(!used.add(word));
+                words[i] = word;
+            }
+        }
+        double sum = 0;
+        for(int i=0;i<WORDS;i++)
+        {
+            sum += 1/Math.pow(i+1,ZIPF);
+            cumulative[i] = sum;
+        }
+        for(int i=0;i<WORDS;i++)
+        {
+            cumulative[i] /= sum;
+        }
+        for(int i=0;i<USERS;i++)
+        {
+            names[i] = "user"+i;
+        }
+    }
+
+    /**
+     * Getter for a word of the vocabulary
+     * @param rank- how often it is used, 0 for the most used
+     * @return the word
+     */
+    public String getWord(int rank)
+    {
+        return words[rank];
+    }
+
+    /**
+     * Getter for the number of users lines are made for
+     * @return users
+     */
+    public int getUsers()
+    {
+        return USERS;
+    }
+
+    /**
+     * Picks who says the next line
+     * @return a user's number, from 0 to getUsers()-1
+     */
+    public int nextUser()
+    {
+        //a few users do most of the talking
+        return (int)(USERS*Math.pow(random.nextDouble(),2));
+    }
+
+    /**
+     * Makes a line
+     * @param user- who says it, from nextUser()
+     * @return the line, with the user's name in front
+     */
+    public String nextLine(int user)
+    {
+        line.setLength(0);
+        line.append(names[user]).append(": ");
+        int length = 1+(int)(29*Math.pow(random.nextDouble(),3));
+        for(int i=0;i<length;i++)
+        {
+            if(i>0)
+            {
+                line.append(' ');
+            }
+            int kind = random.nextInt(100);
+            if(kind<2)
+            {
+                line.append(random.nextInt(1000));
+            }
+            else if(kind<3)
+            {
+                line.append("https://example.com/").append(words[pick()]).append('/').append(random.nextInt(100000));
+            }
+            else if(kind<5)
+            {
+                line.append(EMOJI[random.nextInt(EMOJI.length)]);
+            }
+            else
+            {
+                line.append(words[pick()]);
+            }
+        }
+        if(random.nextInt(4)==0)
+        {
+            line.append(random.nextBoolean() ? '?' : '!');
+        }
+        return line.toString();
+    }
+
+    /**
+     * Makes a line from whoever speaks next
+     * @return the line
+     */
+    public String nextLine()
+    {
+        return nextLine(nextUser());
+    }
+
+    /**
+     * Picks a word by how often it is used
+     * @return its rank
+     */
+    private int pick()
+    {
+        int rank = Arrays.binarySearch(cumulative,random.nextDouble());
+        return Math.min(rank<0 ? -rank-1 : rank,WORDS-1);
+    }
+}
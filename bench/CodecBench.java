@@ -0,0 +1,279 @@
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Benchmarks for encoding and decoding a packet of every kind of frame with PacketCodec, the way the
+ * proxy and its batcher do. One operation is one packet. Decoding reads every field of the frame and
+ * makes the String the proxy would publish, so the cost of each opcode is comparable. Those Strings are
+ * the only thing the codec should allocate, which the B/op column shows.
+ */
+public class CodecBench
+{
+    private static final long SENDER = 0x5DEECE66DL*0x9E3779B97F4A7C15L;
+    private static final long PEER = 0x2545F4914F6CDD1DL;
+    private static final String NAME = "austin";
+    static final String MESSAGE = "hey everyone, is anyone going to the meeting this afternoon? "
+            +"I think it got moved to 3";
+    //members in a ROSTER frame, and frames packed into a deflated packet
+    private static final int MEMBERS = 16;
+    private static final int PACKED = 8;
+    //size of a HISTORY chunk which still fits in one packet
+    private static final int CHUNK = 1200;
+
+    /**
+     * Adds an encoding and a decoding case for every opcode
+     * @param cases- where the cases are added
+     */
+    static void addCases(List<Bench.Case> cases)
+    {
+        final StringBuilder longMessage = new StringBuilder();
+        while(longMessage.length()<4*PacketCodec.FRAGMENT_PAYLOAD)
+        {
+            longMessage.append(MESSAGE).append(' ');
+        }
+        final byte[] chunk = new byte[CHUNK];
+        new Random(1).nextBytes(chunk);
+
+        Encoder[] encoders = {
+            new Encoder("USER_JOIN")
+            {
+                ByteBuffer encode(PacketCodec codec,long sequence)
+                {
+                    return codec.encode(ChatProxy.USER_JOIN_CODE,SENDER,sequence,System.currentTimeMillis(),0,NAME);
+                }
+            },
+            new Encoder("SEND_NAME")
+            {
+                ByteBuffer encode(PacketCodec codec,long sequence)
+                {
+                    return codec.encode(ChatProxy.SEND_NAME_CODE,SENDER,sequence,System.currentTimeMillis(),PEER,NAME);
+                }
+            },
+            new Encoder("SEND_MESSAGE")
+            {
+                ByteBuffer encode(PacketCodec codec,long sequence)
+                {
+                    return codec.encode(ChatProxy.SEND_MESSAGE_CODE,SENDER,sequence,System.currentTimeMillis(),0,
+                            MESSAGE);
+                }
+            },
+            new Encoder("USER_EXIT")
+            {
+                ByteBuffer encode(PacketCodec codec,long sequence)
+                {
+                    return codec.encode(ChatProxy.USER_EXIT_CODE,SENDER,sequence,System.currentTimeMillis(),0,NAME);
+                }
+            },
+            new Encoder("FRAGMENT")
+            {
+                //the long message is encoded once, only its first fragment is measured
+                private ByteBuffer frame;
+
+                ByteBuffer encode(PacketCodec codec,long sequence)
+                {
+                    if(frame==null)
+                    {
+                        ByteBuffer encoded = new PacketCodec(PacketCodec.MTU_PAYLOAD).encodeFrame(
+                                ChatProxy.SEND_MESSAGE_CODE,SENDER,1,System.currentTimeMillis(),0,longMessage);
+                        frame = ByteBuffer.allocate(encoded.remaining());
+                        frame.put(encoded).flip();
+                    }
+                    int count = (frame.limit()+PacketCodec.FRAGMENT_PAYLOAD-1)/PacketCodec.FRAGMENT_PAYLOAD;
+                    codec.beginPacket();
+                    codec.putFragment(SENDER,sequence,System.currentTimeMillis(),0,count,frame,0,
+                            PacketCodec.FRAGMENT_PAYLOAD);
+                    return codec.finishPacket();
+                }
+            },
+            new Encoder("NAK")
+            {
+                ByteBuffer encode(PacketCodec codec,long sequence)
+                {
+                    codec.beginPacket();
+                    codec.putNak(SENDER,System.currentTimeMillis(),PEER,sequence,4);
+                    return codec.finishPacket();
+                }
+            },
+            new Encoder("ROSTER")
+            {
+                //made once, so only the codec's allocations are counted
+                private final String[] names = memberNames();
+
+                ByteBuffer encode(PacketCodec codec,long sequence)
+                {
+                    codec.beginRoster(SENDER,sequence,System.currentTimeMillis(),PEER);
+                    for(int i=0;i<MEMBERS;i++)
+                    {
+                        codec.putMember(PEER*(i+1),sequence,names[i]);
+                    }
+                    ByteBuffer frame = codec.finishRoster();
+                    codec.beginPacket();
+                    codec.putEncodedFrame(frame);
+                    return codec.finishPacket();
+                }
+            },
+            new Encoder("DIGEST")
+            {
+                ByteBuffer encode(PacketCodec codec,long sequence)
+                {
+                    codec.beginPacket();
+                    codec.putDigest(SENDER,System.currentTimeMillis(),MEMBERS,PEER*sequence,sequence);
+                    return codec.finishPacket();
+                }
+            },
+            new Encoder("HISTORY")
+            {
+                ByteBuffer encode(PacketCodec codec,long sequence)
+                {
+                    ByteBuffer frame = codec.encodeHistory(SENDER,sequence,System.currentTimeMillis(),PEER,0,true,
+                            chunk,CHUNK);
+                    codec.beginPacket();
+                    codec.putEncodedFrame(frame);
+                    return codec.finishPacket();
+                }
+            },
+            new Encoder("SEND_MESSAGE_DEFLATED")
+            {
+                //packed and deflated the way a SendBatcher with compression turned on sends them
+                private final PacketCompressor compressor = new PacketCompressor();
+
+                ByteBuffer encode(PacketCodec codec,long sequence)
+                {
+                    codec.beginPacket();
+                    for(int i=0;i<PACKED;i++)
+                    {
+                        codec.putFrame(ChatProxy.SEND_MESSAGE_CODE,SENDER,sequence+i,System.currentTimeMillis(),0,
+                                MESSAGE);
+                    }
+                    return compressor.compress(codec.finishPacket());
+                }
+            }
+        };
+        for(Encoder encoder : encoders)
+        {
+            cases.add(encoder);
+        }
+        for(Encoder encoder : encoders)
+        {
+            cases.add(new Decode(encoder));
+        }
+    }
+
+    private static String[] memberNames()
+    {
+        String[] names = new String[MEMBERS];
+        for(int i=0;i<MEMBERS;i++)
+        {
+            names[i] = NAME+i;
+        }
+        return names;
+    }
+
+    /**
+     * Encodes one kind of packet
+     */
+    private static abstract class Encoder extends Bench.Case
+    {
+        private final PacketCodec codec = new PacketCodec(PacketCodec.MTU_PAYLOAD);
+        final String opcode;
+
+        Encoder(String opcode)
+        {
+            super("codec.encode."+opcode);
+            this.opcode = opcode;
+        }
+
+        /**
+         * Encodes the packet
+         * @param codec- the codec to use
+         * @param sequence- the sequence number of the frame
+         * @return the packet, which is reused by the next call
+         */
+        abstract ByteBuffer encode(PacketCodec codec,long sequence);
+
+        @Override
+        public long run(int operations)
+        {
+            long bytes = 0;
+            for(int i=0;i<operations;i++)
+            {
+                bytes += encode(codec,i+1).remaining();
+            }
+            return bytes;
+        }
+
+        /**
+         * Encodes the packet once, into a buffer of its own
+         * @return the packet
+         */
+        ByteBuffer packet()
+        {
+            ByteBuffer encoded = encode(new PacketCodec(PacketCodec.MTU_PAYLOAD),1);
+            byte[] copy = new byte[encoded.remaining()];
+            encoded.get(copy);
+            return ByteBuffer.wrap(copy);
+        }
+    }
+
+    /**
+     * Decodes the packet an Encoder makes
+     */
+    private static class Decode extends Bench.Case
+    {
+        private final Encoder encoder;
+        private final PacketCodec codec = new PacketCodec(PacketCodec.MTU_PAYLOAD);
+        private final byte[] payload = new byte[PacketCodec.MTU_PAYLOAD];
+        private ByteBuffer packet;
+
+        Decode(Encoder encoder)
+        {
+            super("codec.decode."+encoder.opcode);
+            this.encoder = encoder;
+        }
+
+        @Override
+        public void setup()
+        {
+            packet = encoder.packet();
+        }
+
+        @Override
+        public long run(int operations) throws Exception
+        {
+            long read = 0;
+            for(int i=0;i<operations;i++)
+            {
+                packet.clear();
+                codec.beginDecode(packet);
+                while(codec.nextFrame())
+                {
+                    read += codec.getSenderId()+codec.getSequence()+codec.getTimestamp();
+                    switch(codec.getOpcode())
+                    {
+                        case ChatProxy.FRAGMENT_CODE:
+                        case ChatProxy.HISTORY_CODE:
+                            codec.copyPayload(payload,0);
+                            read += codec.getPayloadLength();
+                            break;
+                        case ChatProxy.NAK_CODE:
+                            read += codec.getRangeStart()+codec.getRangeCount();
+                            break;
+                        case ChatProxy.ROSTER_CODE:
+                            while(codec.nextMember())
+                            {
+                                read += codec.getMemberId()+codec.getText().length();
+                            }
+                            break;
+                        case ChatProxy.DIGEST_CODE:
+                            read += codec.getDigest()+codec.getLastSequence();
+                            break;
+                        default:
+                            read += codec.getDestination()+codec.getText().length();
+                    }
+                }
+            }
+            return read;
+        }
+    }
+}
@@ -0,0 +1,485 @@
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks that PacketCodec gives back exactly what it was given, and never fails on a packet it was not,
+ * while timing both.
+ *
+ * codec.roundTrip encodes a frame of a random opcode with random ids, sequence numbers, timestamps and text,
+ * including newlines, characters outside the BMP and text too long for one packet, then decodes it and
+ * compares every field. codec.fuzz takes valid packets, plain and deflated, flips, cuts off or adds random
+ * bytes, and decodes what is left the way the proxy does. A packet the codec cannot make sense of must be
+ * turned away with a ProtocolException, so anything else thrown fails the case. One operation is one packet.
+ * Both cases use a fixed seed, so a failure can be run again.
+ *
+ * The round trip case also prints how big each kind of frame is compared to the format before version 1,
+ * which sent an opcode, the sender's id as 8 bytes, the destination's id as 8 more for SEND_NAME, then the
+ * text, one frame to a packet.
+ */
+public class CodecFuzzBench
+{
+    private static final long SEED = 6;
+    //characters the random text is made from, a mix of one, two, three and four UTF-8 bytes
+    private static final String[] PIECES = {"a","Z"," ","\n","\r\n","\t","\u00E9","\u00DF","\u03A9","\u20AC",
+            "\u4E2D","\u3042","\uD83D\uDE00","\uD834\uDD1E"};
+    //most characters of random text which is sent in one packet, and of text which is split into fragments
+    private static final int SHORT_TEXT = 300;
+    private static final int LONG_TEXT = 20000;
+
+    /**
+     * Adds the round trip and fuzz cases
+     * @param cases- where the cases are added
+     */
+    static void addCases(List<Bench.Case> cases)
+    {
+        cases.add(new RoundTrip());
+        cases.add(new Fuzz());
+    }
+
+    /**
+     * Makes random text
+     * @param random- where the randomness comes from
+     * @param pieces- how many characters, or pairs of surrogates, to make it from
+     */
+    static String randomText(Random random,int pieces)
+    {
+        StringBuilder text = new StringBuilder();
+        for(int i=0;i<pieces;i++)
+        {
+            text.append(PIECES[random.nextInt(PIECES.length)]);
+        }
+        return text.toString();
+    }
+
+    /**
+     * Makes a random id or counter, from one byte as a varint up to all 64 bits
+     */
+    static long randomVarint(Random random)
+    {
+        return random.nextLong()>>>random.nextInt(64);
+    }
+
+    private static void check(boolean matches,String what)
+    {
+        if(!matches)
+        {
+            throw new IllegalStateException("round trip changed the "+what);
+        }
+    }
+
+    /**
+     * Encodes and decodes random frames
+     */
+    private static class RoundTrip extends Bench.Case
+    {
+        private final Random random = new Random(SEED);
+        private final PacketCodec encoder = new PacketCodec(PacketCodec.MTU_PAYLOAD);
+        private final PacketCodec decoder = new PacketCodec(PacketCodec.RECEIVE_SIZE);
+        private final FragmentReassembler reassembler = new FragmentReassembler();
+        private final PacketCompressor compressor = new PacketCompressor();
+        //random texts, made once so that making them is not measured
+        private final String[] texts = new String[256];
+        private long frames = 0;
+
+        RoundTrip()
+        {
+            super("codec.roundTrip");
+        }
+
+        @Override
+        public void setup()
+        {
+            for(int i=0;i<texts.length;i++)
+            {
+                texts[i] = randomText(random,i%16==0 ? random.nextInt(LONG_TEXT) : random.nextInt(SHORT_TEXT));
+            }
+            compareSizes();
+        }
+
+        /**
+         * Prints the size of each kind of frame against the format before version 1
+         */
+        private void compareSizes()
+        {
+            long sender = new Random(SEED).nextLong();
+            long time = System.currentTimeMillis();
+            String[] kinds = {"USER_JOIN","SEND_NAME","SEND_MESSAGE","USER_EXIT"};
+            int[] opcodes = {ChatProxy.USER_JOIN_CODE,ChatProxy.SEND_NAME_CODE,ChatProxy.SEND_MESSAGE_CODE,
+                    ChatProxy.USER_EXIT_CODE};
+            String[] bodies = {"austin","austin",CodecBench.MESSAGE,"austin"};
+            for(int i=0;i<kinds.length;i++)
+            {
+                int text = bodies[i].getBytes(StandardCharsets.UTF_8).length;
+                int old = 1+8+(opcodes[i]==ChatProxy.SEND_NAME_CODE ? 8 : 0)+text;
+                int size = encoder.encode(opcodes[i],sender,1000,time,sender+1,bodies[i]).remaining();
+                System.out.println(String.format("# %-13s %3d bytes of text: %3d bytes before version 1, %3d now "
+                        +"with a sequence number and timestamp",kinds[i],text,old,size));
+            }
+            //packed frames share a header, and can be deflated together
+            encoder.beginPacket();
+            int packed = 0;
+            while(encoder.putFrame(ChatProxy.SEND_MESSAGE_CODE,sender,1000+packed,time,0,CodecBench.MESSAGE))
+            {
+                packed++;
+            }
+            ByteBuffer packet = encoder.finishPacket();
+            int size = packet.remaining();
+            int deflated = compressor.compress(packet).remaining();
+            int old = 1+8+CodecBench.MESSAGE.length();
+            System.out.println(String.format("# SEND_MESSAGE  %d packed in one packet: %d bytes each before "
+                    +"version 1, %.1f now, %.1f deflated",packed,old,(double)size/packed,(double)deflated/packed));
+        }
+
+        @Override
+        public long run(int operations) throws Exception
+        {
+            for(int i=0;i<operations;i++)
+            {
+                roundTrip();
+            }
+            return frames;
+        }
+
+        private void roundTrip() throws ProtocolException
+        {
+            int opcode = random.nextInt(ChatProxy.HISTORY_CODE+1);
+            long sender = randomVarint(random);
+            long sequence = randomVarint(random);
+            long timestamp = randomVarint(random);
+            long destination = randomVarint(random);
+            switch(opcode)
+            {
+                case ChatProxy.NAK_CODE:
+                    int count = random.nextInt(Integer.MAX_VALUE);
+                    encoder.beginPacket();
+                    encoder.putNak(sender,timestamp,destination,sequence,count);
+                    decode(encoder.finishPacket(),opcode,sender,0,timestamp);
+                    check(decoder.getDestination()==destination,"NAK target");
+                    check(decoder.getRangeStart()==sequence,"NAK start");
+                    check(decoder.getRangeCount()==count,"NAK count");
+                    break;
+                case ChatProxy.DIGEST_CODE:
+                    int members = random.nextInt(Integer.MAX_VALUE);
+                    encoder.beginPacket();
+                    encoder.putDigest(sender,timestamp,members,destination,sequence);
+                    decode(encoder.finishPacket(),opcode,sender,0,timestamp);
+                    check(decoder.getMemberCount()==members,"DIGEST member count");
+                    check(decoder.getDigest()==destination,"DIGEST hash");
+                    check(decoder.getLastSequence()==sequence,"DIGEST last sequence");
+                    break;
+                case ChatProxy.ROSTER_CODE:
+                    roundTripRoster(sender,sequence,timestamp,destination);
+                    break;
+                case ChatProxy.HISTORY_CODE:
+                    byte[] data = new byte[random.nextInt(PacketCodec.MAX_PACKED_FRAME-64)];
+                    random.nextBytes(data);
+                    int index = random.nextInt(Integer.MAX_VALUE);
+                    boolean last = random.nextBoolean();
+                    ByteBuffer frame = encoder.encodeHistory(sender,sequence,timestamp,destination,index,last,data,
+                            data.length);
+                    encoder.beginPacket();
+                    encoder.putEncodedFrame(frame);
+                    decode(encoder.finishPacket(),opcode,sender,sequence,timestamp);
+                    check(decoder.getDestination()==destination,"HISTORY destination");
+                    check(decoder.getChunkIndex()==index,"HISTORY chunk index");
+                    check(decoder.isLastChunk()==last,"HISTORY last chunk");
+                    byte[] payload = new byte[decoder.getPayloadLength()];
+                    decoder.copyPayload(payload,0);
+                    check(Arrays.equals(payload,data),"HISTORY payload");
+                    break;
+                default:
+                    //FRAGMENT is not encoded on its own, but any text too long for one packet is split up
+                    roundTripText(opcode==ChatProxy.FRAGMENT_CODE ? ChatProxy.SEND_MESSAGE_CODE : opcode,
+                            sender,sequence,timestamp,destination);
+                    break;
+            }
+            frames++;
+        }
+
+        private void roundTripText(int opcode,long sender,long sequence,long timestamp,long destination)
+                throws ProtocolException
+        {
+            String text = texts[random.nextInt(texts.length)];
+            ByteBuffer packet = encoder.encode(opcode,sender,sequence,timestamp,destination,text);
+            if(packet!=null)
+            {
+                if(random.nextBoolean())
+                {
+                    packet = compressor.compress(packet);
+                }
+                decode(packet,opcode,sender,sequence,timestamp);
+            }
+            else
+            {
+                //split it up and put it back together, the way the proxy sends long messages
+                ByteBuffer frame = encoder.encodeFrame(opcode,sender,sequence,timestamp,destination,text);
+                ByteBuffer whole = ByteBuffer.allocate(frame.remaining());
+                whole.put(frame).flip();
+                int count = (whole.limit()+PacketCodec.FRAGMENT_PAYLOAD-1)/PacketCodec.FRAGMENT_PAYLOAD;
+                ByteBuffer reassembled = null;
+                for(int i=count-1;i>=0;i--)
+                {
+                    int offset = i*PacketCodec.FRAGMENT_PAYLOAD;
+                    encoder.beginPacket();
+                    encoder.putFragment(sender,sequence,timestamp,i,count,whole,offset,
+                            Math.min(PacketCodec.FRAGMENT_PAYLOAD,whole.limit()-offset));
+                    decode(encoder.finishPacket(),ChatProxy.FRAGMENT_CODE,sender,sequence,timestamp);
+                    reassembled = reassembler.add(decoder);
+                }
+                check(reassembled!=null,"fragments");
+                decoder.beginFrames(reassembled);
+                check(decoder.nextFrame(),"reassembled frame");
+                checkHeader(opcode,sender,sequence,timestamp);
+            }
+            check(decoder.getDestination()==(opcode==ChatProxy.SEND_NAME_CODE ? destination : 0),"destination");
+            check(decoder.getText().equals(text),"text");
+        }
+
+        private void roundTripRoster(long sender,long sequence,long timestamp,long destination)
+                throws ProtocolException
+        {
+            int members = 1+random.nextInt(12);
+            long[] ids = new long[members];
+            long[] versions = new long[members];
+            String[] names = new String[members];
+            encoder.beginRoster(sender,sequence,timestamp,destination);
+            int added = 0;
+            while(added<members)
+            {
+                ids[added] = randomVarint(random);
+                versions[added] = randomVarint(random);
+                names[added] = randomText(random,random.nextInt(24));
+                if(!encoder.putMember(ids[added],versions[added],names[added]))
+                {
+                    break;
+                }
+                added++;
+            }
+            ByteBuffer frame = encoder.finishRoster();
+            encoder.beginPacket();
+            check(encoder.putEncodedFrame(frame),"ROSTER size");
+            decode(encoder.finishPacket(),ChatProxy.ROSTER_CODE,sender,sequence,timestamp);
+            check(decoder.getDestination()==destination,"ROSTER destination");
+            for(int i=0;i<added;i++)
+            {
+                check(decoder.nextMember(),"ROSTER member count");
+                check(decoder.getMemberId()==ids[i],"ROSTER member id");
+                check(decoder.getMemberVersion()==versions[i],"ROSTER member version");
+                check(decoder.getText().equals(names[i]),"ROSTER member name");
+            }
+            check(!decoder.nextMember(),"ROSTER member count");
+        }
+
+        /**
+         * Decodes a packet of one frame, and checks the fields every frame has
+         */
+        private void decode(ByteBuffer packet,int opcode,long sender,long sequence,long timestamp)
+                throws ProtocolException
+        {
+            decoder.beginDecode(packet);
+            check(decoder.nextFrame(),"frame count");
+            checkHeader(opcode,sender,sequence,timestamp);
+        }
+
+        private void checkHeader(int opcode,long sender,long sequence,long timestamp) throws ProtocolException
+        {
+            check(decoder.getOpcode()==opcode,"opcode");
+            check(decoder.getSenderId()==sender,"sender");
+            check(decoder.getSequence()==sequence,"sequence");
+            check(decoder.getTimestamp()==timestamp,"timestamp");
+        }
+
+        @Override
+        public void teardown()
+        {
+            System.out.println("# "+getName()+" "+frames+" frames came back the same");
+        }
+    }
+
+    /**
+     * Decodes damaged packets
+     */
+    private static class Fuzz extends Bench.Case
+    {
+        private final Random random = new Random(SEED);
+        private final PacketCodec decoder = new PacketCodec(PacketCodec.RECEIVE_SIZE);
+        private final FragmentReassembler reassembler = new FragmentReassembler();
+        //valid packets of every kind, which are damaged before they are decoded
+        private final List<byte[]> packets = new ArrayList<byte[]>();
+        private final ByteBuffer damaged = ByteBuffer.allocate(PacketCodec.RECEIVE_SIZE);
+        private long rejected = 0;
+        private long accepted = 0;
+
+        Fuzz()
+        {
+            super("codec.fuzz");
+        }
+
+        @Override
+        public void setup()
+        {
+            PacketCodec encoder = new PacketCodec(PacketCodec.MTU_PAYLOAD);
+            PacketCompressor compressor = new PacketCompressor();
+            for(int i=0;i<64;i++)
+            {
+                long sender = randomVarint(random);
+                long sequence = randomVarint(random);
+                long time = randomVarint(random);
+                String text = randomText(random,random.nextInt(SHORT_TEXT));
+                add(encoder.encode(i%4,sender,sequence,time,sender+1,text));
+
+                encoder.beginPacket();
+                for(int j=0;j<8;j++)
+                {
+                    encoder.putFrame(ChatProxy.SEND_MESSAGE_CODE,sender,sequence+j,time,0,CodecBench.MESSAGE);
+                }
+                ByteBuffer packed = encoder.finishPacket();
+                add(compressor.compress(packed));
+
+                encoder.beginPacket();
+                encoder.putNak(sender,time,sender+1,sequence,random.nextInt(64));
+                encoder.putDigest(sender,time,random.nextInt(64),sequence*31,sequence);
+                add(encoder.finishPacket());
+
+                encoder.beginRoster(sender,sequence,time,0);
+                for(int j=0;j<8;j++)
+                {
+                    encoder.putMember(randomVarint(random),j,randomText(random,8));
+                }
+                ByteBuffer roster = encoder.finishRoster();
+                encoder.beginPacket();
+                encoder.putEncodedFrame(roster);
+                add(encoder.finishPacket());
+
+                byte[] data = new byte[random.nextInt(1000)];
+                random.nextBytes(data);
+                ByteBuffer history = encoder.encodeHistory(sender,sequence,time,sender+1,i,i%2==0,data,data.length);
+                encoder.beginPacket();
+                encoder.putEncodedFrame(history);
+                add(encoder.finishPacket());
+
+                ByteBuffer frame = encoder.encodeFrame(ChatProxy.SEND_MESSAGE_CODE,sender,sequence,time,0,
+                        randomText(random,LONG_TEXT));
+                ByteBuffer whole = ByteBuffer.allocate(frame.remaining());
+                whole.put(frame).flip();
+                int count = (whole.limit()+PacketCodec.FRAGMENT_PAYLOAD-1)/PacketCodec.FRAGMENT_PAYLOAD;
+                int index = random.nextInt(count);
+                int offset = index*PacketCodec.FRAGMENT_PAYLOAD;
+                encoder.beginPacket();
+                encoder.putFragment(sender,sequence,time,index,count,whole,offset,
+                        Math.min(PacketCodec.FRAGMENT_PAYLOAD,whole.limit()-offset));
+                add(encoder.finishPacket());
+            }
+        }
+
+        private void add(ByteBuffer packet)
+        {
+            byte[] copy = new byte[packet.remaining()];
+            packet.get(copy);
+            packets.add(copy);
+        }
+
+        @Override
+        public long run(int operations)
+        {
+            for(int i=0;i<operations;i++)
+            {
+                damage(packets.get(random.nextInt(packets.size())));
+                try
+                {
+                    decodeAll();
+                    accepted++;
+                }
+                catch(ProtocolException e)
+                {
+                    rejected++;
+                }
+            }
+            return rejected;
+        }
+
+        /**
+         * Copies a packet into the damaged buffer, then flips, cuts off, adds or overwrites bytes
+         */
+        private void damage(byte[] packet)
+        {
+            damaged.clear();
+            damaged.put(packet);
+            int length = packet.length;
+            switch(random.nextInt(4))
+            {
+                case 0:
+                    for(int flips=1+random.nextInt(4);flips>0;flips--)
+                    {
+                        int at = random.nextInt(length);
+                        damaged.put(at,(byte)(damaged.get(at)^(1<<random.nextInt(8))));
+                    }
+                    break;
+                case 1:
+                    length = random.nextInt(length+1);
+                    break;
+                case 2:
+                    int extra = random.nextInt(damaged.capacity()-length+1);
+                    for(int i=0;i<extra;i++)
+                    {
+                        damaged.put(length+i,(byte)random.nextInt());
+                    }
+                    length += extra;
+                    break;
+                default:
+                    //keep the header, so the frames themselves are what gets decoded
+                    for(int i=PacketCodec.HEADER_SIZE+random.nextInt(Math.max(1,length-PacketCodec.HEADER_SIZE));
+                        i<length;i++)
+                    {
+                        damaged.put(i,(byte)random.nextInt());
+                    }
+                    break;
+            }
+            damaged.limit(length).position(0);
+        }
+
+        /**
+         * Reads every field of every frame, the way the proxy does
+         */
+        private void decodeAll() throws ProtocolException
+        {
+            decoder.beginDecode(damaged);
+            while(decoder.nextFrame())
+            {
+                switch(decoder.getOpcode())
+                {
+                    case ChatProxy.FRAGMENT_CODE:
+                        reassembler.add(decoder);
+                        break;
+                    case ChatProxy.ROSTER_CODE:
+                        while(decoder.nextMember())
+                        {
+                            decoder.getText();
+                        }
+                        break;
+                    case ChatProxy.HISTORY_CODE:
+                        decoder.copyPayload(new byte[decoder.getPayloadLength()],0);
+                        break;
+                    case ChatProxy.NAK_CODE:
+                    case ChatProxy.DIGEST_CODE:
+                        break;
+                    default:
+                        decoder.getText();
+                        break;
+                }
+            }
+        }
+
+        @Override
+        public void teardown()
+        {
+            System.out.println("# "+getName()+" "+rejected+" damaged packets turned away with a ProtocolException, "
+                    +accepted+" still decoded");
+        }
+    }
+}
@@ -0,0 +1,314 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * What compression saves and what it costs, on chat lines made up by ChatCorpus.
+ *
+ * The packet cases pack 1, 4 or 8 lines into a packet the way a SendBatcher does, and pass it through a
+ * PacketCompressor, so one operation is one packet. Lines are made before the case starts, so only packing
+ * and deflating are timed. The noDictionary case deflates the same packets without the preset dictionary,
+ * to show what the dictionary is worth, the bestSpeed case deflates them at the fastest level instead of
+ * the default one PacketCompressor uses, and the inflate case decodes deflated packets the way a receiver
+ * does. The history case writes lines into CHUNK_SIZE chunks and deflates each one the way HistoryCatchUp
+ * does, one chunk per operation.
+ *
+ * When a case is torn down it prints the ratio of bytes sent to bytes before deflating, how many packets
+ * were sent deflated, and the time and bytes saved per message. A packet holds its header and the frame
+ * header of every message as well as the text, so the ratio is for what goes on the wire.
+ */
+public class CompressBench
+{
+    private static final int[] PACKED = {1,4,8};
+    //lines made before a case starts, and used again and again
+    private static final int LINES = 4096;
+    private static final long START = 1500000000000L;
+
+    /**
+     * Adds the packet, dictionary, inflate and history cases
+     * @param cases- where the cases are added
+     */
+    static void addCases(List<Bench.Case> cases)
+    {
+        for(int packed : PACKED)
+        {
+            cases.add(new Packets("compress.packet.messages"+packed,packed,true,Deflater.DEFAULT_COMPRESSION));
+        }
+        cases.add(new Packets("compress.packet.noDictionary.messages8",8,false,Deflater.DEFAULT_COMPRESSION));
+        cases.add(new Packets("compress.packet.bestSpeed.messages8",8,true,Deflater.BEST_SPEED));
+        cases.add(new Packets("compress.packet.inflate.messages8",8,true,Deflater.DEFAULT_COMPRESSION)
+        {
+            private final PacketCodec decoder = new PacketCodec(PacketCodec.MTU_PAYLOAD);
+            private ByteBuffer[] deflated;
+            private int frames;
+
+            @Override
+            public void setup() throws Exception
+            {
+                super.setup();
+                //packets made once, and decoded again and again
+                deflated = new ByteBuffer[LINES/packed];
+                for(int i=0;i<deflated.length;i++)
+                {
+                    ByteBuffer packet = send();
+                    deflated[i] = ByteBuffer.allocate(packet.remaining());
+                    deflated[i].put(packet);
+                    deflated[i].flip();
+                }
+            }
+
+            @Override
+            public long run(int operations) throws Exception
+            {
+                for(int i=0;i<operations;i++)
+                {
+                    ByteBuffer packet = deflated[i%deflated.length];
+                    decoder.beginDecode(packet.duplicate());
+                    while(decoder.nextFrame())
+                    {
+                        frames++;
+                    }
+                }
+                return frames;
+            }
+
+            @Override
+            public void teardown()
+            {
+                System.out.println(String.format("# %s %d messages inflated",getName(),frames));
+            }
+        });
+        cases.add(new History());
+    }
+
+    /**
+     * Makes the lines a case sends
+     * @param seed- picks the lines
+     * @param senders- filled with the uniqueID of who said each line
+     * @return the lines
+     */
+    static String[] lines(long seed,long[] senders)
+    {
+        ChatCorpus corpus = new ChatCorpus(seed);
+        String[] lines = new String[LINES];
+        for(int i=0;i<LINES;i++)
+        {
+            int user = corpus.nextUser();
+            senders[i] = 0x2545F4914F6CDD1DL*(user+1);
+            lines[i] = corpus.nextLine(user);
+        }
+        return lines;
+    }
+
+    /**
+     * Packs lines into packets and deflates them
+     */
+    private static class Packets extends Bench.Case
+    {
+        final int packed;
+        private final boolean dictionary;
+        private final int level;
+        private final PacketCodec codec = new PacketCodec(PacketCodec.MTU_PAYLOAD);
+        private PacketCompressor compressor;
+        private final Deflater deflater;
+        private final byte[] input = new byte[PacketCodec.MTU_PAYLOAD];
+        private final byte[] output = new byte[PacketCodec.MTU_PAYLOAD];
+        private final ByteBuffer compressed = ByteBuffer.wrap(output);
+        private String[] lines;
+        private final long[] senders = new long[LINES];
+        private int next;
+        private long sequence;
+        //what was sent, for the ratio
+        private long messages;
+        private long packets;
+        private long deflatedPackets;
+        private long bytesIn;
+        private long bytesOut;
+        private long elapsed;
+
+        Packets(String name,int packed,boolean dictionary,int level)
+        {
+            super(name);
+            this.packed = packed;
+            this.dictionary = dictionary;
+            this.level = level;
+            deflater = new Deflater(level);
+        }
+
+        @Override
+        public void setup() throws Exception
+        {
+            lines = lines(packed,senders);
+            compressor = new PacketCompressor();
+        }
+
+        /**
+         * Packs the next lines into a packet and deflates it, as a SendBatcher with compression turned on does
+         * @return the packet to send
+         */
+        ByteBuffer send()
+        {
+            codec.beginPacket();
+            for(int i=0;i<packed;i++)
+            {
+                if(!codec.putFrame(ChatProxy.SEND_MESSAGE_CODE,senders[next],++sequence,START+sequence*1000,0,
+                        lines[next]))
+                {
+                    break;
+                }
+                next = (next+1)%LINES;
+                messages++;
+            }
+            ByteBuffer packet = codec.finishPacket();
+            int length = packet.remaining();
+            boolean asSent = dictionary&&level==Deflater.DEFAULT_COMPRESSION;
+            ByteBuffer sent = asSent ? compressor.compress(packet) : deflate(packet);
+            packets++;
+            bytesIn += length;
+            bytesOut += sent.remaining();
+            if(sent!=packet)
+            {
+                deflatedPackets++;
+            }
+            return sent;
+        }
+
+        /**
+         * The same as PacketCompressor.compress(), but with this case's level and dictionary
+         */
+        private ByteBuffer deflate(ByteBuffer packet)
+        {
+            int length = packet.remaining();
+            if(length-PacketCodec.HEADER_SIZE<PacketCompressor.MIN_SIZE)
+            {
+                return packet;
+            }
+            packet.duplicate().get(input,0,length);
+            deflater.reset();
+            if(dictionary)
+            {
+                deflater.setDictionary(PacketCompressor.DICTIONARY);
+            }
+            deflater.setInput(input,PacketCodec.HEADER_SIZE,length-PacketCodec.HEADER_SIZE);
+            deflater.finish();
+            int size = PacketCodec.HEADER_SIZE;
+            while(!deflater.finished()&&size<length)
+            {
+                size += deflater.deflate(output,size,length-size);
+            }
+            if(!deflater.finished())
+            {
+                return packet;
+            }
+            compressed.clear();
+            compressed.limit(size);
+            return compressed;
+        }
+
+        @Override
+        public long run(int operations) throws Exception
+        {
+            long start = System.nanoTime();
+            long bytes = 0;
+            for(int i=0;i<operations;i++)
+            {
+                bytes += send().remaining();
+            }
+            elapsed += System.nanoTime()-start;
+            return bytes;
+        }
+
+        @Override
+        public void teardown() throws Exception
+        {
+            if(messages==0)
+            {
+                return;
+            }
+            System.out.println(String.format("# %s %.3f of the bytes sent, %d%% of packets deflated, %.0f ns and "
+                    +"%.1f bytes saved per message",getName(),(double)bytesOut/bytesIn,deflatedPackets*100/packets,
+                    (double)elapsed/messages,(double)(bytesIn-bytesOut)/messages));
+        }
+    }
+
+    /**
+     * Deflates chunks of chat log the way HistoryCatchUp sends them to a client catching up
+     */
+    private static class History extends Bench.Case
+    {
+        private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        private final ByteBuffer raw = ByteBuffer.allocate(HistoryCatchUp.CHUNK_SIZE+64*1024);
+        private final byte[] deflated = new byte[HistoryCatchUp.CHUNK_SIZE*2];
+        private byte[][] texts;
+        private final long[] senders = new long[LINES];
+        private int next;
+        private long messages;
+        private long bytesIn;
+        private long bytesOut;
+        private long elapsed;
+
+        History()
+        {
+            super("compress.history.chunk");
+        }
+
+        @Override
+        public void setup()
+        {
+            String[] lines = lines(16,senders);
+            texts = new byte[LINES][];
+            for(int i=0;i<LINES;i++)
+            {
+                texts[i] = lines[i].getBytes(StandardCharsets.UTF_8);
+            }
+        }
+
+        @Override
+        public long run(int operations)
+        {
+            long start = System.nanoTime();
+            long bytes = 0;
+            for(int i=0;i<operations;i++)
+            {
+                raw.clear();
+                while(raw.position()<HistoryCatchUp.CHUNK_SIZE)
+                {
+                    PacketCodec.putVarint(raw,senders[next]);
+                    PacketCodec.putVarint(raw,messages+1);
+                    PacketCodec.putVarint(raw,START+messages*1000);
+                    PacketCodec.putVarint(raw,texts[next].length);
+                    raw.put(texts[next]);
+                    next = (next+1)%LINES;
+                    messages++;
+                }
+                deflater.reset();
+                deflater.setDictionary(PacketCompressor.DICTIONARY);
+                deflater.setInput(raw.array(),0,raw.position());
+                deflater.finish();
+                int length = 0;
+                while(!deflater.finished())
+                {
+                    length += deflater.deflate(deflated,length,deflated.length-length);
+                }
+                bytesIn += raw.position();
+                bytesOut += length;
+                bytes += length;
+            }
+            elapsed += System.nanoTime()-start;
+            return bytes;
+        }
+
+        @Override
+        public void teardown()
+        {
+            if(messages==0)
+            {
+                return;
+            }
+            System.out.println(String.format("# %s %.3f of the bytes sent, %.0f ns and %.1f bytes saved per message, "
+                    +"%.0f MB/s",getName(),(double)bytesOut/bytesIn,(double)elapsed/messages,
+                    (double)(bytesIn-bytesOut)/messages,bytesIn*1000.0/elapsed));
+        }
+    }
+}
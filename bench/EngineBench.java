@@ -0,0 +1,176 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Many chatrooms in one process. Two ChatEngines each join the same ROOMS rooms, over multicast on the
+ * loopback interface, and one operation is a message sent by one engine in the next room in turn and
+ * received by the other. Messages are counted as they arrive by a listener on the receiving engine.
+ *
+ * When the case is set up it prints how long joining every room took, how much heap each room of the
+ * receiving engine holds once joined, and how many threads the process has before and after.
+ */
+public class EngineBench
+{
+    public static final int ROOMS = 500;
+    public static final String GROUP = "239.255.42.100";
+    public static final int FIRST_PORT = 47500;
+    //most messages sent but not yet received, across every room
+    private static final int WINDOW = 2048;
+    private static final long TIMEOUT_MILLIS = 30000;
+
+    /**
+     * Adds the case
+     * @param cases- where the case is added
+     */
+    static void addCases(List<Bench.Case> cases)
+    {
+        cases.add(new Bench.Case("engine.rooms"+ROOMS+".throughput")
+        {
+            private ChatEngine senders;
+            private ChatEngine receivers;
+            private ChatModel[] rooms;
+            private final AtomicLong received = new AtomicLong();
+            private long sent = 0;
+
+            @Override
+            public void setup() throws Exception
+            {
+                final InetAddress group = InetAddress.getByName(GROUP);
+                final NetworkInterface loopback = NetworkInterface.getByInetAddress(InetAddress.getByName("127.0.0.1"));
+                ChatEngine.TransportFactory transports = new ChatEngine.TransportFactory()
+                {
+                    public ChatTransport open(InetAddress group,int port) throws IOException
+                    {
+                        return NioSelectorLoop.shared().join(group,port,loopback);
+                    }
+                };
+                senders = new ChatEngine(transports);
+                receivers = new ChatEngine(transports);
+                receivers.addListener(new ChatListener()
+                {
+                    public void messageAdded(ChatModel room,long index,ChatMessage message)
+                    {
+                        received.incrementAndGet();
+                    }
+
+                    public void userChanged(ChatModel room,ChatModel.UserChange change)
+                    {
+                    }
+
+                    public void chatLogRebuilt(ChatModel room)
+                    {
+                    }
+                });
+
+                //the senders join first, so every receiver hears from one other client who has no chat
+                rooms = new ChatModel[ROOMS];
+                for(int i=0;i<ROOMS;i++)
+                {
+                    rooms[i] = senders.join(group,FIRST_PORT+i,"sender"+i);
+                }
+                for(ChatModel room : rooms)
+                {
+                    while(room.getMetrics().getPacketsSent()==0)
+                    {
+                        Thread.sleep(10);
+                    }
+                }
+                Thread.sleep(100);
+
+                MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+                int threadsBefore = Thread.activeCount();
+                long heapBefore = usedHeap(memory);
+                long start = System.nanoTime();
+                ChatModel[] joined = new ChatModel[ROOMS];
+                for(int i=0;i<ROOMS;i++)
+                {
+                    joined[i] = receivers.join(group,FIRST_PORT+i,"receiver"+i);
+                }
+                long joinNanos = System.nanoTime()-start;
+                long deadline = System.currentTimeMillis()+TIMEOUT_MILLIS;
+                for(ChatModel room : joined)
+                {
+                    while(room.getAllNames().size()<2)
+                    {
+                        if(System.currentTimeMillis()>deadline)
+                        {
+                            throw new IllegalStateException("a receiver never saw its sender");
+                        }
+                        Thread.sleep(10);
+                    }
+                }
+                long heapAfter = usedHeap(memory);
+                System.out.println("# "+getName()+" joined "+ROOMS+" rooms in "+joinNanos/1000000+" ms, "
+                        +(heapAfter-heapBefore)/ROOMS/1024+" KB of heap per room, threads "+threadsBefore
+                        +" -> "+Thread.activeCount());
+            }
+
+            @Override
+            public long run(int operations) throws Exception
+            {
+                for(int i=0;i<operations;i++)
+                {
+                    if(sent-received.get()>=WINDOW)
+                    {
+                        waitFor(sent-WINDOW/2);
+                    }
+                    rooms[(int)(sent%ROOMS)].addMessage(CodecBench.MESSAGE);
+                    sent++;
+                }
+                return sent;
+            }
+
+            private void waitFor(long count)
+            {
+                long deadline = System.currentTimeMillis()+TIMEOUT_MILLIS;
+                while(received.get()<count)
+                {
+                    if(System.currentTimeMillis()>deadline)
+                    {
+                        throw new IllegalStateException((count-received.get())+" messages never arrived");
+                    }
+                    Thread.yield();
+                }
+            }
+
+            @Override
+            public void teardown()
+            {
+                if(receivers!=null)
+                {
+                    waitFor(sent);
+                    receivers.close();
+                }
+                if(senders!=null)
+                {
+                    senders.close();
+                }
+            }
+        });
+    }
+
+    /**
+     * Collects garbage until the heap stops shrinking, and measures what is left
+     */
+    private static long usedHeap(MemoryMXBean memory) throws InterruptedException
+    {
+        long used = Long.MAX_VALUE;
+        for(int i=0;i<5;i++)
+        {
+            System.gc();
+            Thread.sleep(50);
+            long now = memory.getHeapMemoryUsage().getUsed();
+            if(now>=used)
+            {
+                break;
+            }
+            used = now;
+        }
+        return used;
+    }
+}
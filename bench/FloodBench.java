@@ -0,0 +1,221 @@
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One client floods the chatroom while another says something every QUIET_INTERVAL milliseconds, and a
+ * third listens. One operation is a message from the flooding client reaching the listener's proxy, and
+ * alongside that the time each quiet message takes to reach the listener's chat log is recorded.
+ *
+ * The admission case lets the flooder's messages into the listener's model at AdmissionControl.RATE and
+ * sheds the rest, and checks that the quiet client's messages still arrive within BOUND_MILLIS at the
+ * 99th percentile. The unlimited case lets everything in, for comparison. The clients run over a
+ * LoopbackTransport.Hub, so only the proxies and models are measured.
+ */
+public class FloodBench
+{
+    //how often the quiet client says something
+    private static final long QUIET_INTERVAL = 50;
+    //the 99th percentile the quiet client's messages must arrive within while admission control is on
+    public static final long BOUND_MILLIS = 20;
+    //most flood messages sent but not yet received
+    private static final int WINDOW = 1024;
+    //flood messages sent before the quiet client starts, so the receive path is compiled by then
+    private static final int WARM_FLOOD = 200000;
+    private static final long TIMEOUT_MILLIS = 30000;
+    private static final int HISTORY = 1000;
+
+    /**
+     * Adds the admission and unlimited cases
+     * @param cases- where the cases are added
+     */
+    static void addCases(List<Bench.Case> cases)
+    {
+        cases.add(new Flood("flood.hub.admission",true));
+        cases.add(new Flood("flood.hub.unlimited",false));
+    }
+
+    /**
+     * Floods one listener while timing the quiet client's messages to it
+     */
+    private static class Flood extends Bench.Case
+    {
+        private final boolean admission;
+        private final LoopbackTransport.Hub hub = new LoopbackTransport.Hub();
+        private ChatModel flooder;
+        private ChatModel quiet;
+        private ChatModel listener;
+        private ChatProxy listenerProxy;
+        private Thread talker;
+        private volatile boolean talking = true;
+        private final AtomicLong quietSent = new AtomicLong();
+        //when each quiet message was sent, by its number
+        private final ConcurrentHashMap<Long,Long> sentAt = new ConcurrentHashMap<Long,Long>();
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private long floodSent = 0;
+
+        Flood(String name,boolean admission)
+        {
+            super(name);
+            this.admission = admission;
+        }
+
+        @Override
+        public void setup() throws Exception
+        {
+            flooder = client("flooder",new ChatProxy(hub.join()));
+            ChatProxy quietProxy = new ChatProxy(hub.join());
+            quiet = client("quiet",quietProxy);
+            listener = new ChatModel("listener",new MessageStore(HISTORY,HISTORY,null));
+            listenerProxy = new ChatProxy(hub.join());
+            if(admission)
+            {
+                listenerProxy.getAdmission().setRate(AdmissionControl.RATE,AdmissionControl.BURST);
+            }
+            final long quietId = quietProxy.getUniqueID();
+            listener.addListener(new ChatListener()
+            {
+                public void messageAdded(ChatModel room,long index,ChatMessage message)
+                {
+                    if(message.getSenderId()==quietId)
+                    {
+                        String text = message.getText();
+                        Long sent = sentAt.remove(Long.parseLong(text.substring(text.lastIndexOf(' ')+1)));
+                        if(sent!=null)
+                        {
+                            latency.record(System.nanoTime()-sent);
+                        }
+                    }
+                }
+
+                public void userChanged(ChatModel room,ChatModel.UserChange change)
+                {
+                }
+
+                public void chatLogRebuilt(ChatModel room)
+                {
+                }
+            });
+            listener.setProxy(listenerProxy);
+            listenerProxy.setModelListener(listener);
+            long deadline = System.currentTimeMillis()+TIMEOUT_MILLIS;
+            while(listener.getAllNames().size()<3)
+            {
+                if(System.currentTimeMillis()>deadline)
+                {
+                    throw new IllegalStateException("the clients never saw each other");
+                }
+                Thread.sleep(10);
+            }
+
+            run(WARM_FLOOD);
+            waitFor(floodSent);
+
+            talker = new Thread(new Runnable()
+            {
+                public void run()
+                {
+                    while(talking)
+                    {
+                        long n = quietSent.incrementAndGet();
+                        sentAt.put(n,System.nanoTime());
+                        try
+                        {
+                            quiet.addMessage("quiet "+n);
+                            Thread.sleep(QUIET_INTERVAL);
+                        }
+                        catch(IOException e)
+                        {
+                            e.printStackTrace();
+                        }
+                        catch(InterruptedException e)
+                        {
+                            return;
+                        }
+                    }
+                }
+            },"FloodBench-quiet");
+            talker.setDaemon(true);
+            talker.start();
+        }
+
+        private ChatModel client(String name,ChatProxy proxy)
+        {
+            ChatModel model = new ChatModel(name,new MessageStore(HISTORY,HISTORY,null));
+            if(admission)
+            {
+                proxy.getAdmission().setRate(AdmissionControl.RATE,AdmissionControl.BURST);
+            }
+            model.setProxy(proxy);
+            proxy.setModelListener(model);
+            return model;
+        }
+
+        /**
+         * Getter for the number of the flooder's messages which have reached the listener's proxy
+         */
+        private long floodReceived()
+        {
+            return listener.getMetrics().getFramesReceived(ChatProxy.SEND_MESSAGE_CODE)-quietSent.get();
+        }
+
+        @Override
+        public long run(int operations) throws Exception
+        {
+            for(int i=0;i<operations;i++)
+            {
+                if(floodSent-floodReceived()>=WINDOW)
+                {
+                    waitFor(floodSent-WINDOW/2);
+                }
+                flooder.addMessage(CodecBench.MESSAGE);
+                floodSent++;
+            }
+            return floodSent;
+        }
+
+        private void waitFor(long count)
+        {
+            long deadline = System.currentTimeMillis()+TIMEOUT_MILLIS;
+            while(floodReceived()<count)
+            {
+                if(System.currentTimeMillis()>deadline)
+                {
+                    throw new IllegalStateException((count-floodReceived())+" messages never arrived");
+                }
+                Thread.yield();
+            }
+        }
+
+        @Override
+        public void teardown() throws Exception
+        {
+            talking = false;
+            if(talker!=null)
+            {
+                talker.join();
+            }
+            if(listener!=null)
+            {
+                waitFor(floodSent);
+                System.out.println("# "+getName()+" quiet latency "+latency.toMicros()+", flood shed "
+                        +listener.getMetrics().getMessagesShed()+" of "+floodSent);
+                listener.leave();
+            }
+            if(quiet!=null)
+            {
+                quiet.leave();
+            }
+            if(flooder!=null)
+            {
+                flooder.leave();
+            }
+            long p99 = latency.getPercentile(99)/1000000;
+            if(admission&&p99>BOUND_MILLIS)
+            {
+                throw new IllegalStateException("the quiet client's p99 of "+p99+" ms is over "+BOUND_MILLIS+" ms");
+            }
+        }
+    }
+}
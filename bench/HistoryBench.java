@@ -0,0 +1,152 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+
+/**
+ * Appending to a HistoryLog and reading it back, with chat lines made up by ChatCorpus.
+ *
+ * The append case adds one message per operation to a log of small segments, so filling a segment,
+ * forcing it to disk and deleting the oldest once there are more than SEGMENTS are counted too. Lines are
+ * made before the case starts, so only the log is timed. The replay case reads back a log of REPLAYED
+ * messages in segments of the default size, built once when it starts, the way a client restores its chat
+ * log when it opens a chatroom. One operation is reading back the whole log. When torn down each case
+ * prints its messages a second, and the append case how many segments it filled and deleted.
+ */
+public class HistoryBench
+{
+    //small enough that the append case fills many of them
+    private static final int SEGMENT_SIZE = 4*1024*1024;
+    private static final int SEGMENTS = 4;
+    private static final int REPLAYED = 200000;
+    //lines made before a case starts, and used again and again
+    private static final int LINES = 4096;
+    private static final long START = 1500000000000L;
+
+    /**
+     * Adds the append and replay cases
+     * @param cases- where the cases are added
+     */
+    static void addCases(List<Bench.Case> cases)
+    {
+        cases.add(new Log("history.append",SEGMENT_SIZE,SEGMENTS)
+        {
+            @Override
+            public long run(int operations) throws Exception
+            {
+                long start = System.nanoTime();
+                for(int i=0;i<operations;i++)
+                {
+                    append();
+                }
+                elapsed += System.nanoTime()-start;
+                return log.getEndIndex();
+            }
+
+            @Override
+            public void teardown() throws Exception
+            {
+                System.out.println(String.format("# %s %.0f messages a second, %d segments filled and %d deleted",
+                        getName(),done*1e9/elapsed,log.getSyncs(),log.getPruned()));
+                super.teardown();
+            }
+        });
+        cases.add(new Log("history.replay",HistoryLog.DEFAULT_SEGMENT_SIZE,HistoryLog.DEFAULT_SEGMENTS)
+        {
+            private long characters = 0;
+            private final HistoryLog.Visitor visitor = new HistoryLog.Visitor()
+            {
+                public void message(long index,ChatMessage message)
+                {
+                    characters += message.getText().length();
+                }
+            };
+
+            @Override
+            public void setup() throws Exception
+            {
+                super.setup();
+                for(int i=0;i<REPLAYED;i++)
+                {
+                    append();
+                }
+                done = 0;
+            }
+
+            @Override
+            public long run(int operations) throws Exception
+            {
+                long start = System.nanoTime();
+                for(int i=0;i<operations;i++)
+                {
+                    done += log.replay(log.getFirstIndex(),visitor);
+                }
+                elapsed += System.nanoTime()-start;
+                return characters;
+            }
+
+            @Override
+            public void teardown() throws Exception
+            {
+                System.out.println(String.format("# %s %.0f messages a second",getName(),done*1e9/elapsed));
+                super.teardown();
+            }
+        });
+    }
+
+    /**
+     * A log in a directory of its own, deleted when the case is torn down
+     */
+    private static abstract class Log extends Bench.Case
+    {
+        private final int segmentSize;
+        private final int segments;
+        HistoryLog log;
+        private File directory;
+        private ChatMessage[] lines;
+        private long sequence = 0;
+        long done = 0;
+        long elapsed = 0;
+
+        Log(String name,int segmentSize,int segments)
+        {
+            super(name);
+            this.segmentSize = segmentSize;
+            this.segments = segments;
+        }
+
+        @Override
+        public void setup() throws Exception
+        {
+            ChatCorpus corpus = new ChatCorpus(15);
+            lines = new ChatMessage[LINES];
+            for(int i=0;i<LINES;i++)
+            {
+                int user = corpus.nextUser();
+                lines[i] = new ChatMessage(0x2545F4914F6CDD1DL*(user+1),i+1,START+i*1000,corpus.nextLine(user));
+            }
+            directory = Files.createTempDirectory("mychatapp-bench").toFile();
+            log = new HistoryLog(directory,segmentSize,segments);
+        }
+
+        /**
+         * Appends the next line
+         */
+        void append() throws IOException
+        {
+            log.append(lines[(int)(sequence++%LINES)]);
+            done++;
+        }
+
+        @Override
+        public void teardown() throws Exception
+        {
+            log.close();
+            for(File file : directory.listFiles())
+            {
+                file.delete();
+            }
+            directory.delete();
+        }
+    }
+}
@@ -0,0 +1,475 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Soak tests the chat without any windows. It starts a number of simulated peers in one chatroom, each a
+ * real ChatModel and ChatProxy, so they join, talk and leave with the same frames real clients send. Each
+ * peer says something at random times at a given average rate, with message sizes drawn from a range, and
+ * peers leave and are replaced by new ones at a given churn rate.
+ *
+ * Every message carries the number of the peer who sent it, its own number, and when it was sent, so each
+ * peer which receives it can work out how long it took and which ones never came. Every report interval a
+ * line is written with the peers in the room, messages sent and delivered a second, and the latency of the
+ * messages delivered in that interval. At the end the totals are written: messages sent and delivered,
+ * how many were lost, and latency percentiles over the whole run.
+ *
+ * A message counts as lost for a peer if it was sent after the first message that peer heard from its
+ * sender, and had not arrived by the end of the run. For a peer who left, only messages sent before the
+ * last one it heard count, since it left before the rest could arrive. Messages still held back by their
+ * sender's rate limit when the run ends count as lost too.
+ *
+ * Run it from the project directory with
+ *     javac -d out/bench src/*.java bench/*.java
+ *     java -cp out/bench LoadGenerator peers=20 rate=2 size=20-400 churn=0.2 seconds=300
+ * Every option has a default:
+ *     peers=10         peers in the chatroom at any time
+ *     rate=1           messages each peer sends a second, on average
+ *     size=20-200      length of each message in characters, drawn evenly from the range, or one length
+ *     churn=0          peers who leave a second, on average, each replaced by a new one straight away
+ *     seconds=60       how long the peers talk for
+ *     report=5         seconds between progress lines
+ *     drain=3          seconds to wait for the last messages once the peers stop talking
+ *     transport=hub    hub for a LoopbackTransport.Hub in memory, multicast for a MulticastTransport,
+ *                      nio for the shared NioSelectorLoop, or relay or relay-udp for a RelayTransport to
+ *                      a ChatRelay started in this process. All but the hub use the loopback interface.
+ *     loss=0           share of packets the hub drops on purpose, from 0 to 1
+ *     group=239.255.42.98 and port=47410, for the multicast and nio transports, and port for the relay
+ *     seed=1           seeds the random times, sizes and churn
+ * The mychatapp.send.rate and mychatapp.receive.rate system properties apply as they would in the app,
+ * so a rate over them shows up as delayed and shed messages, which are written with the totals.
+ */
+public class LoadGenerator
+{
+    //how often the peers are looked at to see who is due to send
+    private static final long TICK_MILLIS = 1;
+    //slots in each peer's event bus
+    private static final int EVENT_RING = 1024;
+    //messages each peer's chat log keeps
+    private static final int HISTORY = 1000;
+    //every message starts with this, then the sender's number, the message's number and when it was sent
+    private static final char MARK = '#';
+    private static final List<String> OPTIONS = Arrays.asList("peers","rate","size","churn","seconds","report",
+            "drain","transport","loss","group","port","seed");
+
+    private final Map<String,String> options;
+    private final int peerCount;
+    private final double rate;
+    private final int minSize;
+    private final int maxSize;
+    private final double churn;
+    private final long seconds;
+    private final long reportSeconds;
+    private final long drainSeconds;
+    private final String transportName;
+    private final Random random;
+
+    private LoopbackTransport.Hub hub;
+    private InetAddress group;
+    private int port;
+    private NetworkInterface loopback;
+    private ChatRelay relay;
+    //takes every peer's events, so the number of threads does not grow with the number of peers
+    private final ExecutorService consumers;
+
+    //the peers in the room now, and every peer who has been
+    private final List<Peer> present = new ArrayList<Peer>();
+    private final List<Peer> everyone = new ArrayList<Peer>();
+    private int nextPeer = 0;
+    private long joins = 0;
+    private long leaves = 0;
+
+    //latency over the whole run, and over the current report interval
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LatencyHistogram intervalLatency = new LatencyHistogram();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+
+    /**
+     * Runs a soak test
+     * @param args- options, each written as name=value
+     */
+    public static void main(String[] args)
+    {
+        try
+        {
+            new LoadGenerator(parse(args)).run();
+            System.exit(0);
+        }
+        catch(IllegalArgumentException e)
+        {
+            System.err.println(e.getMessage());
+            System.exit(2);
+        }
+        catch(Exception e)
+        {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    private static Map<String,String> parse(String[] args)
+    {
+        Map<String,String> options = new LinkedHashMap<String,String>();
+        for(String arg : args)
+        {
+            int equals = arg.indexOf('=');
+            if(equals<=0)
+            {
+                throw new IllegalArgumentException("options are written as name=value, not "+arg);
+            }
+            options.put(arg.substring(0,equals),arg.substring(equals+1));
+        }
+        return options;
+    }
+
+    /**
+     * Constructor
+     * @param options- the options by name, any of which may be missing
+     */
+    public LoadGenerator(Map<String,String> options)
+    {
+        this.options = options;
+        peerCount = Integer.parseInt(option("peers","10"));
+        rate = Double.parseDouble(option("rate","1"));
+        String size = option("size","20-200");
+        int dash = size.indexOf('-');
+        minSize = Integer.parseInt(dash<0 ? size : size.substring(0,dash));
+        maxSize = Integer.parseInt(dash<0 ? size : size.substring(dash+1));
+        churn = Double.parseDouble(option("churn","0"));
+        seconds = Long.parseLong(option("seconds","60"));
+        reportSeconds = Long.parseLong(option("report","5"));
+        drainSeconds = Long.parseLong(option("drain","3"));
+        transportName = option("transport","hub");
+        random = new Random(Long.parseLong(option("seed","1")));
+        if(peerCount<2||rate<=0||minSize<1||maxSize<minSize||churn<0||seconds<=0||reportSeconds<=0)
+        {
+            throw new IllegalArgumentException("need peers>=2, rate>0, 1<=size min<=size max, churn>=0, "
+                    +"seconds>0 and report>0");
+        }
+        for(String name : options.keySet())
+        {
+            if(!OPTIONS.contains(name))
+            {
+                throw new IllegalArgumentException("unknown option "+name);
+            }
+        }
+        final AtomicInteger count = new AtomicInteger();
+        consumers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),new ThreadFactory()
+        {
+            public Thread newThread(Runnable task)
+            {
+                Thread thread = new Thread(task,"LoadGenerator-"+count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    private String option(String name,String value)
+    {
+        return options.containsKey(name) ? options.get(name) : value;
+    }
+
+    /**
+     * Starts the peers, lets them talk and churn for the time asked for, then waits for the last messages
+     * and writes the totals
+     * @throws Exception- if the transport cannot be set up
+     */
+    public void run() throws Exception
+    {
+        if("hub".equals(transportName))
+        {
+            hub = new LoopbackTransport.Hub(Double.parseDouble(option("loss","0")),new Random(random.nextLong()));
+        }
+        else if("multicast".equals(transportName)||"nio".equals(transportName))
+        {
+            group = InetAddress.getByName(option("group","239.255.42.98"));
+            port = Integer.parseInt(option("port","47410"));
+            loopback = NetworkInterface.getByInetAddress(InetAddress.getByName("127.0.0.1"));
+        }
+        else if("relay".equals(transportName)||"relay-udp".equals(transportName))
+        {
+            port = Integer.parseInt(option("port","47410"));
+            relay = new ChatRelay(port);
+        }
+        else
+        {
+            throw new IllegalArgumentException("transport must be hub, multicast, nio, relay or relay-udp, not "
+                    +transportName);
+        }
+        System.out.println("# "+peerCount+" peers over "+transportName+", "+rate+" messages a second each of "
+                +minSize+"-"+maxSize+" characters, churn "+churn+" a second, for "+seconds+" s");
+        for(int i=0;i<peerCount;i++)
+        {
+            join();
+        }
+
+        long start = System.nanoTime();
+        long end = start+seconds*1000000000L;
+        long nextReport = start+reportSeconds*1000000000L;
+        long nextChurn = churn>0 ? start+interval(churn) : Long.MAX_VALUE;
+        long lastSent = 0;
+        long lastDelivered = 0;
+        long lastReport = start;
+        long now;
+        while((now = System.nanoTime())<end)
+        {
+            for(Peer peer : present)
+            {
+                while(peer.nextSend<=now)
+                {
+                    peer.send(now);
+                    peer.nextSend += interval(rate);
+                }
+            }
+            if(now>=nextChurn)
+            {
+                leave(present.get(random.nextInt(present.size())));
+                join();
+                nextChurn = now+interval(churn);
+            }
+            if(now>=nextReport)
+            {
+                long sentNow = sent.get();
+                long deliveredNow = delivered.get();
+                double elapsed = (now-lastReport)/1e9;
+                System.out.println(String.format("%6.0fs peers %d sent %.0f/s delivered %.0f/s latency %s",
+                        (now-start)/1e9,present.size(),(sentNow-lastSent)/elapsed,
+                        (deliveredNow-lastDelivered)/elapsed,intervalLatency.toMicros()));
+                intervalLatency.reset();
+                lastSent = sentNow;
+                lastDelivered = deliveredNow;
+                lastReport = now;
+                nextReport += reportSeconds*1000000000L;
+            }
+            Thread.sleep(TICK_MILLIS);
+        }
+        double elapsed = (System.nanoTime()-start)/1e9;
+        Thread.sleep(drainSeconds*1000);
+        report(elapsed);
+        for(Peer peer : new ArrayList<Peer>(present))
+        {
+            leave(peer);
+        }
+        consumers.shutdown();
+    }
+
+    /**
+     * Draws the time to the next of something which happens at random at an average rate
+     * @return nanoseconds
+     */
+    private long interval(double perSecond)
+    {
+        return (long)(-Math.log(1-random.nextDouble())/perSecond*1e9);
+    }
+
+    /**
+     * Starts a new peer, which joins the room
+     */
+    private void join() throws IOException
+    {
+        ChatTransport transport;
+        if(hub!=null)
+        {
+            transport = hub.join();
+        }
+        else if("nio".equals(transportName))
+        {
+            transport = NioSelectorLoop.shared().join(group,port,loopback);
+        }
+        else if(relay!=null)
+        {
+            transport = new RelayTransport(new InetSocketAddress("127.0.0.1",port),"relay".equals(transportName));
+        }
+        else
+        {
+            transport = new MulticastTransport(group,port,loopback);
+        }
+        Peer peer = new Peer(nextPeer++,transport);
+        present.add(peer);
+        everyone.add(peer);
+        joins++;
+    }
+
+    /**
+     * A peer leaves the room, telling the others
+     */
+    private void leave(Peer peer) throws IOException
+    {
+        present.remove(peer);
+        peer.left = true;
+        peer.model.leave();
+        leaves++;
+    }
+
+    /**
+     * Works out what was lost and writes the totals
+     */
+    private void report(double elapsed)
+    {
+        long expected = 0;
+        long received = 0;
+        for(Peer receiver : everyone)
+        {
+            synchronized(receiver)
+            {
+                for(Map.Entry<Integer,Heard> entry : receiver.heard.entrySet())
+                {
+                    Heard heard = entry.getValue();
+                    long last = receiver.left ? heard.last : everyone.get(entry.getKey()).sent;
+                    expected += last-heard.first+1;
+                    received += heard.count;
+                }
+            }
+        }
+        long shed = 0;
+        long delayed = 0;
+        long sendsShed = 0;
+        for(Peer peer : everyone)
+        {
+            shed += peer.model.getMetrics().getMessagesShed();
+            delayed += peer.model.getMetrics().getSendsDelayed();
+            sendsShed += peer.model.getMetrics().getSendsShed();
+        }
+        long lost = expected-received;
+        System.out.println("# "+String.format("%.1f",elapsed)+" s, "+joins+" joins, "+leaves+" leaves");
+        System.out.println("# sent "+sent.get()+" ("+String.format("%.1f",sent.get()/elapsed)+"/s), delivered "
+                +delivered.get()+" ("+String.format("%.1f",delivered.get()/elapsed)+"/s), lost "+lost+" of "
+                +expected+" ("+String.format("%.3f",expected==0 ? 0 : 100.0*lost/expected)+"%)");
+        System.out.println("# latency p50="+latency.getPercentile(50)/1000+"us p90="+latency.getPercentile(90)/1000
+                +"us p99="+latency.getPercentile(99)/1000+"us p99.9="+latency.getPercentile(99.9)/1000
+                +"us max="+latency.getMax()/1000+"us mean="+(long)(latency.getMean()/1000)+"us");
+        System.out.println("# sends delayed "+delayed+", sends shed "+sendsShed+", received shed "+shed
+                +(hub!=null ? ", hub dropped "+hub.getDropped()+" of "+hub.getSent()+" packets" : "")
+                +(relay!=null ? ", relay dropped "+relay.getPacketsDropped()+" of "+relay.getPacketsDelivered()
+                        +" deliveries" : ""));
+    }
+
+    /**
+     * What one peer heard from one sender
+     */
+    private static class Heard
+    {
+        //the numbers of the first and last message heard, and how many were heard
+        long first;
+        long last;
+        long count;
+    }
+
+    /**
+     * One simulated client
+     */
+    private class Peer implements ChatListener
+    {
+        final int number;
+        final ChatModel model;
+        //when it next says something, from System.nanoTime()
+        long nextSend;
+        //how many messages it has sent, which is also the number of the last one
+        volatile long sent = 0;
+        volatile boolean left = false;
+        //what it heard from each other peer, by their number. Locked on the peer.
+        final HashMap<Integer,Heard> heard = new HashMap<Integer,Heard>();
+        private final StringBuilder text = new StringBuilder();
+
+        Peer(int number,ChatTransport transport) throws IOException
+        {
+            this.number = number;
+            ChatProxy proxy;
+            try
+            {
+                proxy = new ChatProxy(transport);
+            }
+            catch(IOException e)
+            {
+                transport.close();
+                throw e;
+            }
+            model = new ChatModel("peer"+number,new MessageStore(HISTORY,HISTORY,null),null,
+                    new ChatEventBus(EVENT_RING,false,consumers));
+            model.addListener(this);
+            model.setProxy(proxy);
+            proxy.setModelListener(model);
+            nextSend = System.nanoTime()+interval(rate);
+        }
+
+        /**
+         * Says something of a random length
+         */
+        void send(long now) throws IOException
+        {
+            long number = sent+1;
+            text.setLength(0);
+            text.append(MARK).append(this.number).append(':').append(number).append(':').append(now).append(' ');
+            int size = minSize+random.nextInt(maxSize-minSize+1);
+            while(text.length()<size)
+            {
+                text.append((char)('a'+random.nextInt(26)));
+            }
+            model.addMessage(text.toString());
+            sent = number;
+            LoadGenerator.this.sent.incrementAndGet();
+        }
+
+        public void messageAdded(ChatModel room,long index,ChatMessage message)
+        {
+            long now = System.nanoTime();
+            String text = message.getText();
+            if(text.isEmpty()||text.charAt(0)!=MARK)
+            {
+                return;
+            }
+            int colon = text.indexOf(':');
+            int second = text.indexOf(':',colon+1);
+            int space = text.indexOf(' ',second+1);
+            if(colon<0||second<0||space<0)
+            {
+                return;
+            }
+            int sender = Integer.parseInt(text.substring(1,colon));
+            if(sender==number)
+            {
+                return;
+            }
+            long messageNumber = Long.parseLong(text.substring(colon+1,second));
+            long sentAt = Long.parseLong(text.substring(second+1,space));
+            latency.record(now-sentAt);
+            intervalLatency.record(now-sentAt);
+            delivered.incrementAndGet();
+            synchronized(this)
+            {
+                Heard from = heard.get(sender);
+                if(from==null)
+                {
+                    from = new Heard();
+                    from.first = messageNumber;
+                    heard.put(sender,from);
+                }
+                from.last = Math.max(from.last,messageNumber);
+                from.count++;
+            }
+        }
+
+        public void userChanged(ChatModel room,ChatModel.UserChange change)
+        {
+        }
+
+        public void chatLogRebuilt(ChatModel room)
+        {
+        }
+    }
+}
@@ -0,0 +1,197 @@
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * End to end throughput: messages typed into one client's model until they are in another client's chat
+ * log, through two real ChatProxies. One operation is one message delivered.
+ *
+ * The multicast case runs over a multicast group joined on the loopback interface, so the packets go
+ * through the kernel but never leave the machine. The hub case runs the same clients over a
+ * LoopbackTransport.Hub, which shows what the proxies cost without the sockets. The lossy cases run over a
+ * hub which drops 1 up to 20 percent of the packets on purpose, so the reliable receiver has to ask for
+ * them again, and check that every message still arrives, in order.
+ *
+ * When a case is torn down the receiver's metrics are printed, which shows how many packets were lost and
+ * sent again, along with the latency of every message from being typed to reaching the receiver's chat log.
+ */
+public class LoopbackBench
+{
+    //the group and port the multicast case uses
+    public static final String GROUP = "239.255.42.99";
+    public static final int PORT = 47420;
+    //how long a batch may take to arrive before the case gives up
+    private static final long TIMEOUT_MILLIS = 30000;
+    //messages the receiver's chat log keeps
+    private static final int HISTORY = 1000;
+    //most messages sent but not yet received
+    private static final int WINDOW = 256;
+    //shares of packets the lossy cases drop
+    private static final double[] LOSS_RATES = {0.01,0.05,0.10,0.20};
+
+    /**
+     * Makes the transports for one client
+     */
+    private interface Transports
+    {
+        ChatTransport make() throws Exception;
+    }
+
+    /**
+     * Adds the multicast and hub cases
+     * @param cases- where the cases are added
+     */
+    static void addCases(List<Bench.Case> cases)
+    {
+        cases.add(new Throughput("loopback.multicast.throughput",new Transports()
+        {
+            public ChatTransport make() throws Exception
+            {
+                InetAddress loopback = InetAddress.getByName("127.0.0.1");
+                return new MulticastTransport(InetAddress.getByName(GROUP),PORT,
+                        NetworkInterface.getByInetAddress(loopback));
+            }
+        }));
+        cases.add(new Throughput("loopback.hub.throughput",new Transports()
+        {
+            private final LoopbackTransport.Hub hub = new LoopbackTransport.Hub();
+
+            public ChatTransport make()
+            {
+                return hub.join();
+            }
+        }));
+        for(final double loss : LOSS_RATES)
+        {
+            cases.add(new Throughput("loopback.hub.loss"+Math.round(loss*100),new Transports()
+            {
+                private final LoopbackTransport.Hub hub = new LoopbackTransport.Hub(loss,new Random(1));
+
+                public ChatTransport make()
+                {
+                    return hub.join();
+                }
+            }));
+        }
+    }
+
+    /**
+     * Sends from one client to another and waits for every message to arrive
+     */
+    private static class Throughput extends Bench.Case implements ChatListener
+    {
+        private final Transports transports;
+        private ChatModel sender;
+        private ChatModel receiver;
+        private long sent = 0;
+        //messages which reached the receiver, in the order they were sent
+        private volatile long received = 0;
+        //when each message on its way was sent, by its number
+        private final long[] sentAt = new long[2*WINDOW];
+        private final LatencyHistogram latency = new LatencyHistogram();
+
+        Throughput(String name,Transports transports)
+        {
+            super(name);
+            this.transports = transports;
+        }
+
+        @Override
+        public void setup() throws Exception
+        {
+            //the sender joins first and has no chat to send the receiver, so no catch up runs alongside
+            sender = ModelBench.client("sender",1,transports.make());
+            //the sender's join is sent from its outbound queue, which must be done before the receiver joins
+            while(sender.getMetrics().getPacketsSent()==0)
+            {
+                Thread.sleep(10);
+            }
+            Thread.sleep(100);
+            receiver = ModelBench.client("receiver",HISTORY,transports.make());
+            receiver.addListener(this);
+            //wait until the receiver has heard the sender join, so nothing sent is skipped
+            long deadline = System.currentTimeMillis()+TIMEOUT_MILLIS;
+            while(receiver.getAllNames().size()<2)
+            {
+                if(System.currentTimeMillis()>deadline)
+                {
+                    throw new IllegalStateException("the clients never saw each other");
+                }
+                Thread.sleep(10);
+            }
+        }
+
+        @Override
+        public long run(int operations) throws Exception
+        {
+            for(int i=0;i<operations;i++)
+            {
+                //keep at most WINDOW messages on their way, so this measures how fast they can flow
+                //rather than how long one takes
+                if(sent-received>=WINDOW)
+                {
+                    waitFor(sent-WINDOW/2);
+                }
+                sentAt[(int)(sent%sentAt.length)] = System.nanoTime();
+                sender.addMessage(CodecBench.MESSAGE);
+                sent++;
+            }
+            return sent;
+        }
+
+        /**
+         * Waits for a number of messages to reach the receiver
+         */
+        private void waitFor(long count)
+        {
+            long deadline = System.currentTimeMillis()+TIMEOUT_MILLIS;
+            while(received<count)
+            {
+                if(System.currentTimeMillis()>deadline)
+                {
+                    throw new IllegalStateException((count-received)+" messages never arrived");
+                }
+                Thread.yield();
+            }
+        }
+
+        /**
+         * Called for every message which reaches the receiver. Messages arrive in the order they were sent,
+         * so the next one to arrive is always the oldest one on its way.
+         */
+        public void messageAdded(ChatModel room,long index,ChatMessage message)
+        {
+            if(message.getSenderId()!=ChatMessage.SYSTEM_ID&&message.getText().equals(CodecBench.MESSAGE))
+            {
+                latency.record(System.nanoTime()-sentAt[(int)(received%sentAt.length)]);
+                received++;
+            }
+        }
+
+        public void userChanged(ChatModel room,ChatModel.UserChange change)
+        {
+        }
+
+        public void chatLogRebuilt(ChatModel room)
+        {
+        }
+
+        @Override
+        public void teardown() throws Exception
+        {
+            if(receiver!=null)
+            {
+                waitFor(sent);
+                System.out.println("# "+getName()+" receiver "+receiver.getMetrics().getSummary());
+                System.out.println("# "+getName()+" "+sent+" messages arrived, latency "+latency.toMicros()
+                        +" p99.9="+latency.getPercentile(99.9)/1000+"us");
+                receiver.leave();
+            }
+            if(sender!=null)
+            {
+                sender.leave();
+            }
+        }
+    }
+}
@@ -0,0 +1,208 @@
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Benchmarks for the model: appending to a message store already holding up to a million messages, a
+ * message typed by this user, a message arriving from another user, and users joining and leaving. The
+ * message cases are run with chat logs of different sizes. The store keeps exactly that many messages in
+ * memory, evicting the oldest as new ones arrive, so the size stays the same however long the case runs. The models have no view, and send over a transport which drops every packet,
+ * so only the model and the proxy's queueing and encoding are measured.
+ */
+public class ModelBench
+{
+    //messages kept in the chat log
+    private static final int[] HISTORY_SIZES = {1000,10000,100000};
+    //messages added to a store before appending to it is timed. Past the retention cap they are spilled.
+    private static final int[] STORE_SIZES = {0,100000,1000000};
+    //users already in the chatroom when users start joining and leaving
+    static final int[] USER_COUNTS = {64,10000};
+    private static final long PEER = 0x2545F4914F6CDD1DL;
+
+    /**
+     * A transport which sends nowhere and never receives anything
+     */
+    static class NullTransport implements ChatTransport
+    {
+        @Override
+        public void start(Listener listener)
+        {
+        }
+
+        @Override
+        public void send(ByteBuffer packet)
+        {
+        }
+
+        @Override
+        public void close()
+        {
+        }
+    }
+
+    /**
+     * Makes a model, with a proxy over the given transport, the way LoginView does but without a view
+     * @param name- the name of the user
+     * @param history- how many messages the chat log keeps in memory, which it is filled with
+     * @param transport- the proxy's transport
+     * @return the model
+     * @throws Exception- if the proxy cannot be made
+     */
+    static ChatModel client(String name,int history,ChatTransport transport) throws Exception
+    {
+        int chunkSize = Math.min(MessageStore.DEFAULT_CHUNK_SIZE,history);
+        ChatModel model = new ChatModel(name,new MessageStore(chunkSize,history,null));
+        ChatProxy proxy = new ChatProxy(transport);
+        model.setProxy(proxy);
+        proxy.setModelListener(model);
+        for(int i=1;i<history;i++)
+        {
+            model.redrawChat(PEER,i,CodecBench.MESSAGE+" "+i);
+        }
+        return model;
+    }
+
+    /**
+     * Adds the cases for sending and receiving at every history size, and for users joining and leaving
+     * @param cases- where the cases are added
+     */
+    static void addCases(List<Bench.Case> cases)
+    {
+        //the cost of an append should not grow with the number of messages already added
+        for(final int filled : STORE_SIZES)
+        {
+            cases.add(new Bench.Case("store.append.filled"+filled)
+            {
+                private MessageStore store;
+                private final ChatMessage message = new ChatMessage(PEER,1,System.currentTimeMillis(),
+                        CodecBench.MESSAGE);
+
+                @Override
+                public void setup()
+                {
+                    store = new MessageStore();
+                    for(int i=0;i<filled;i++)
+                    {
+                        store.append(new ChatMessage(PEER,i,System.currentTimeMillis(),CodecBench.MESSAGE+" "+i));
+                    }
+                }
+
+                @Override
+                public long run(int operations)
+                {
+                    long index = 0;
+                    for(int i=0;i<operations;i++)
+                    {
+                        index = store.append(message);
+                    }
+                    return index;
+                }
+
+                @Override
+                public void teardown()
+                {
+                    store.close();
+                }
+            });
+        }
+        for(final int history : HISTORY_SIZES)
+        {
+            cases.add(new Bench.Case("model.addMessage.history"+history)
+            {
+                private ChatModel model;
+
+                @Override
+                public void setup() throws Exception
+                {
+                    model = client("sender",history,new NullTransport());
+                }
+
+                @Override
+                public long run(int operations) throws Exception
+                {
+                    for(int i=0;i<operations;i++)
+                    {
+                        model.addMessage(CodecBench.MESSAGE);
+                    }
+                    return model.getChatLogEnd();
+                }
+
+                @Override
+                public void teardown() throws Exception
+                {
+                    model.leave();
+                }
+            });
+            cases.add(new Bench.Case("model.redrawChat.history"+history)
+            {
+                private ChatModel model;
+                private long sequence = 0;
+
+                @Override
+                public void setup() throws Exception
+                {
+                    model = client("receiver",history,new NullTransport());
+                    sequence = history;
+                }
+
+                @Override
+                public long run(int operations)
+                {
+                    for(int i=0;i<operations;i++)
+                    {
+                        model.redrawChat(PEER,++sequence,CodecBench.MESSAGE);
+                    }
+                    return model.getChatLogEnd();
+                }
+
+                @Override
+                public void teardown() throws Exception
+                {
+                    model.leave();
+                }
+            });
+        }
+
+        //one operation is a user joining and the same user leaving, with the view's list following along.
+        //Both should cost the same however many users are already there.
+        for(final int count : USER_COUNTS)
+        {
+            cases.add(new Bench.Case("model.userChurn.users"+count)
+            {
+                private ChatModel model;
+                private UserListModel users;
+                private long next = 0;
+
+                @Override
+                public void setup() throws Exception
+                {
+                    model = client("watcher",1,new NullTransport());
+                    for(int i=0;i<count;i++)
+                    {
+                        model.addUser(PEER+i,"user"+i);
+                    }
+                    users = new UserListModel(model);
+                }
+
+                @Override
+                public long run(int operations)
+                {
+                    long changes = 0;
+                    for(int i=0;i<operations;i++)
+                    {
+                        long id = PEER+count+(next++%count);
+                        model.addUser(id,"joiner"+(id&0xFF));
+                        model.removeUser(id);
+                        changes += users.update();
+                    }
+                    return changes;
+                }
+
+                @Override
+                public void teardown() throws Exception
+                {
+                    model.leave();
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,267 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * How many packets a second a ChatRelay fans out over TCP on the loopback interface, with 10 up to 10000
+ * subscribers. One client publishes packets, and one operation is a packet reaching one subscriber, so the
+ * cases can be compared across subscriber counts.
+ *
+ * The relay runs in a JVM of its own, as it would in use, so the relay and the subscribers do not share
+ * one process's limit on open files. Every subscriber is read by one selector thread, which only counts
+ * the bytes. The publisher stays at most WINDOW packets ahead of the subscribers, well inside the relay's
+ * ChatRelay.QUEUE, so no packet is dropped, and the teardown checks that every one arrived.
+ */
+public class RelayBench
+{
+    //how big each packet published is, before the length the relay puts in front of it
+    private static final int PACKET = 128;
+    //most packets published but not yet read by every subscriber
+    private static final int WINDOW = 256;
+    private static final long TIMEOUT_MILLIS = 60000;
+
+    /**
+     * Adds a case for each number of subscribers
+     * @param cases- where the cases are added
+     */
+    static void addCases(List<Bench.Case> cases)
+    {
+        for(int subscribers : new int[]{10,100,1000,10000})
+        {
+            cases.add(new Fanout(subscribers));
+        }
+    }
+
+    /**
+     * Publishes to a relay with a number of subscribers
+     */
+    private static class Fanout extends Bench.Case implements Runnable
+    {
+        private final int subscribers;
+        private Process relay;
+        private SocketChannel publisher;
+        private final ByteBuffer packet = ByteBuffer.allocateDirect(ChatRelay.LENGTH_SIZE+PACKET);
+        private final List<SocketChannel> channels = new ArrayList<SocketChannel>();
+        private Selector selector;
+        private Thread reader;
+        private volatile boolean reading = true;
+
+        //only written by the reader thread
+        private volatile long bytesRead = 0;
+        private volatile int reached = 0;
+        //bytes read before the case started being measured
+        private long baseline;
+        private long published = 0;
+        //operations asked for which did not add up to a whole packet yet
+        private long owed = 0;
+
+        Fanout(int subscribers)
+        {
+            super("relay.fanout."+subscribers);
+            this.subscribers = subscribers;
+        }
+
+        @Override
+        public void setup() throws Exception
+        {
+            int port;
+            ServerSocket free = new ServerSocket(0);
+            try
+            {
+                port = free.getLocalPort();
+            }
+            finally
+            {
+                free.close();
+            }
+            relay = new ProcessBuilder(System.getProperty("java.home")+File.separator+"bin"+File.separator+"java",
+                    "-cp",System.getProperty("java.class.path"),"ChatRelay",Integer.toString(port))
+                    .redirectError(ProcessBuilder.Redirect.INHERIT).start();
+            //the relay says so once it is listening
+            String started = new BufferedReader(new InputStreamReader(relay.getInputStream())).readLine();
+            if(started==null)
+            {
+                throw new IllegalStateException("the relay did not start");
+            }
+
+            InetSocketAddress address = new InetSocketAddress("127.0.0.1",port);
+            selector = Selector.open();
+            for(int i=0;i<subscribers;i++)
+            {
+                SocketChannel channel = SocketChannel.open(address);
+                channel.configureBlocking(false);
+                channel.register(selector,SelectionKey.OP_READ,new long[1]);
+                channels.add(channel);
+            }
+            reader = new Thread(this,"RelayBench-subscribers");
+            reader.setDaemon(true);
+            reader.start();
+            publisher = SocketChannel.open(address);
+
+            //publish until the relay has taken every subscriber, then until everything published arrived
+            long deadline = System.currentTimeMillis()+TIMEOUT_MILLIS;
+            while(reached<subscribers)
+            {
+                if(System.currentTimeMillis()>deadline)
+                {
+                    throw new IllegalStateException((subscribers-reached)+" subscribers never got a packet");
+                }
+                publish();
+                Thread.sleep(10);
+            }
+            long read;
+            do
+            {
+                read = bytesRead;
+                Thread.sleep(200);
+            }
+            while(read!=bytesRead);
+            baseline = read;
+            published = 0;
+        }
+
+        private void publish() throws IOException
+        {
+            packet.clear();
+            packet.putShort((short)PACKET);
+            packet.put((byte)(0xC0|PacketCodec.VERSION));
+            packet.position(packet.limit());
+            packet.flip();
+            while(packet.hasRemaining())
+            {
+                publisher.write(packet);
+            }
+        }
+
+        /**
+         * Getter for the number of packets which have reached a subscriber since the case was set up
+         */
+        private long delivered()
+        {
+            return (bytesRead-baseline)/(ChatRelay.LENGTH_SIZE+PACKET);
+        }
+
+        @Override
+        public long run(int operations) throws Exception
+        {
+            owed += operations;
+            while(owed>=subscribers)
+            {
+                owed -= subscribers;
+                if((published-WINDOW)*subscribers>delivered())
+                {
+                    waitFor((published-WINDOW/2)*subscribers);
+                }
+                publish();
+                published++;
+            }
+            return published;
+        }
+
+        private void waitFor(long count)
+        {
+            long deadline = System.currentTimeMillis()+TIMEOUT_MILLIS;
+            while(delivered()<count)
+            {
+                if(System.currentTimeMillis()>deadline)
+                {
+                    throw new IllegalStateException((count-delivered())+" packets never arrived");
+                }
+                Thread.yield();
+            }
+        }
+
+        /**
+         * Reads from every subscriber, and counts what arrives
+         */
+        public void run()
+        {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(64*1024);
+            while(reading)
+            {
+                try
+                {
+                    selector.select();
+                    Iterator<SelectionKey> ready = selector.selectedKeys().iterator();
+                    while(ready.hasNext())
+                    {
+                        SelectionKey key = ready.next();
+                        ready.remove();
+                        long[] count = (long[])key.attachment();
+                        buffer.clear();
+                        int read = ((SocketChannel)key.channel()).read(buffer);
+                        if(read<0)
+                        {
+                            key.cancel();
+                            continue;
+                        }
+                        if(count[0]==0&&read>0)
+                        {
+                            reached++;
+                        }
+                        count[0] += read;
+                        bytesRead += read;
+                    }
+                }
+                catch(IOException e)
+                {
+                    if(reading)
+                    {
+                        e.printStackTrace();
+                    }
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public void teardown() throws Exception
+        {
+            try
+            {
+                if(publisher!=null)
+                {
+                    waitFor(published*subscribers);
+                    System.out.println("# "+getName()+" "+published+" packets reached all "+subscribers
+                            +" subscribers");
+                }
+            }
+            finally
+            {
+                reading = false;
+                if(reader!=null)
+                {
+                    selector.wakeup();
+                    reader.join();
+                }
+                if(selector!=null)
+                {
+                    selector.close();
+                }
+                for(SocketChannel channel : channels)
+                {
+                    channel.close();
+                }
+                if(publisher!=null)
+                {
+                    publisher.close();
+                }
+                if(relay!=null)
+                {
+                    relay.destroy();
+                    relay.waitFor();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,280 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Simulates a client joining chatrooms of 10 up to 5000 peers, to show how many packets a join costs and
+ * how long the newcomer takes to learn the whole roster. One operation is one join: the newcomer's
+ * USER_JOIN is sent, its roster fills up with every peer, then the case waits a little longer for anything
+ * still on its way. The same client joins again and again, each time with a newer version of its entry,
+ * as if it restarted, so the room stays the same size.
+ *
+ * Every peer is a real Roster, which takes its turn to answer on ChatTimers as it would in a client. The
+ * network is simulated: every packet arrives LATENCY milliseconds after it is sent, on a thread of its own.
+ * ROSTER frames are encoded and decoded with a PacketCodec, and the newcomer merges all of them. The other
+ * peers already know every member, so merging the frames would change nothing for them, and they are only
+ * told who the roster was for, which is what stops them answering too. That keeps the simulation linear in
+ * the size of the room. DIGESTs are not started, so only what a join costs is counted. With thousands of
+ * peers, handing one packet to all of them takes the simulation longer than REPLY_STEP, so a few more
+ * peers get to answer than would on a real network, where every peer hears it at once.
+ *
+ * When a case is torn down it prints the rosters and ROSTER frames sent per join, and the median and
+ * 99th percentile time from the USER_JOIN being sent until the newcomer knew every peer. Every peer keeps a
+ * copy of the whole roster, so the 5000 peer case needs a heap of about 3.5 GB, such as with -Xmx4g, and
+ * fails straight away with a smaller one.
+ */
+public class RosterBench
+{
+    private static final int[] ROOM_SIZES = {10,100,1000,5000};
+    //how long every simulated packet takes to arrive
+    public static final long LATENCY = 5;
+    //heap each peer's copy of each member takes, roughly, to check the case fits before building it
+    private static final long BYTES_PER_ENTRY = 100;
+    private static final long TIMEOUT_MILLIS = 30000;
+
+    /**
+     * Adds a case for every room size
+     * @param cases- where the cases are added
+     */
+    static void addCases(List<Bench.Case> cases)
+    {
+        for(int peers : ROOM_SIZES)
+        {
+            cases.add(new Join(peers));
+        }
+    }
+
+    /**
+     * A room of peers and the newcomer who keeps joining it
+     */
+    private static class Join extends Bench.Case
+    {
+        private final int size;
+        private final List<Roster> peers = new ArrayList<Roster>();
+        private long joinerId;
+        private volatile Roster joiner;
+        private long version = 0;
+        private ScheduledExecutorService network;
+        private final PacketCodec codec = new PacketCodec(PacketCodec.MTU_PAYLOAD);
+
+        //what the joins cost, counted by the handlers
+        private final AtomicLong rosters = new AtomicLong();
+        private final AtomicLong frames = new AtomicLong();
+        private final AtomicLong histories = new AtomicLong();
+        private long joins = 0;
+        private final LatencyHistogram convergence = new LatencyHistogram();
+
+        Join(int size)
+        {
+            super("roster.join.peers"+size);
+            this.size = size;
+        }
+
+        @Override
+        public void setup() throws Exception
+        {
+            long needed = BYTES_PER_ENTRY*size*size;
+            if(needed>Runtime.getRuntime().maxMemory()*3/4)
+            {
+                throw new IllegalStateException("needs a heap of at least "+(needed*4/3>>20)+" MB");
+            }
+            network = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+            {
+                public Thread newThread(Runnable task)
+                {
+                    Thread thread = new Thread(task,"RosterBench-network");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            Random random = new Random(size);
+            long[] ids = new long[size];
+            for(int i=0;i<size;i++)
+            {
+                ids[i] = random.nextLong();
+            }
+            joinerId = random.nextLong();
+            for(int i=0;i<size;i++)
+            {
+                Roster peer = new Roster(ids[i],1,"peer"+i,new Peer(ids[i]));
+                for(int j=0;j<size;j++)
+                {
+                    peer.merge(ids[j],1,"peer"+j);
+                }
+                peers.add(peer);
+            }
+        }
+
+        @Override
+        public long run(int operations) throws Exception
+        {
+            for(int i=0;i<operations;i++)
+            {
+                join();
+            }
+            return joins;
+        }
+
+        /**
+         * Joins the room once, and waits for the newcomer's roster to hold every peer
+         */
+        private void join() throws Exception
+        {
+            final long joined = ++version;
+            joiner = new Roster(joinerId,joined,"joiner",new Peer(joinerId));
+            long start = System.nanoTime();
+            network.schedule(new Runnable()
+            {
+                public void run()
+                {
+                    for(Roster peer : peers)
+                    {
+                        peer.joined(joinerId,joined,"joiner");
+                    }
+                }
+            },LATENCY,TimeUnit.MILLISECONDS);
+
+            long deadline = System.currentTimeMillis()+TIMEOUT_MILLIS;
+            while(joiner.size()<=size)
+            {
+                if(System.currentTimeMillis()>deadline)
+                {
+                    throw new IllegalStateException("the newcomer only learnt of "+(joiner.size()-1)+" of "+size
+                            +" peers");
+                }
+                Thread.sleep(0,100000);
+            }
+            convergence.record(System.nanoTime()-start);
+            joins++;
+            //let rosters already on their way arrive before the next join, so each join is counted apart
+            Thread.sleep(2*LATENCY);
+        }
+
+        @Override
+        public void teardown() throws Exception
+        {
+            if(joins>0)
+            {
+                System.out.println(String.format("# %s %d joins: %.2f rosters, %.2f ROSTER frames and %.2f "
+                        +"chat logs sent per join, converged in %s",getName(),joins,(double)rosters.get()/joins,
+                        (double)frames.get()/joins,(double)histories.get()/joins,convergence.toMicros()));
+            }
+            for(Roster peer : peers)
+            {
+                peer.close();
+            }
+            if(network!=null)
+            {
+                network.shutdownNow();
+            }
+        }
+
+        /**
+         * Sends what one peer's roster sends over the simulated network
+         */
+        private class Peer implements Roster.Handler
+        {
+            private final long id;
+
+            Peer(long id)
+            {
+                this.id = id;
+            }
+
+            public void memberAdded(long id,String name)
+            {
+            }
+
+            public void memberRemoved(long id,String name)
+            {
+            }
+
+            /**
+             * Encodes the roster into frames the way ChatProxy does, and delivers them
+             */
+            public void sendRoster(final long destination,List<Roster.Member> members)
+            {
+                rosters.incrementAndGet();
+                final List<byte[]> encoded = new ArrayList<byte[]>();
+                synchronized(codec)
+                {
+                    int next = 0;
+                    do
+                    {
+                        codec.beginRoster(id,0,System.currentTimeMillis(),destination);
+                        while(next<members.size())
+                        {
+                            Roster.Member member = members.get(next);
+                            if(!codec.putMember(member.getId(),member.getVersion(),member.getName()))
+                            {
+                                break;
+                            }
+                            next++;
+                        }
+                        ByteBuffer frame = codec.finishRoster();
+                        byte[] copy = new byte[frame.remaining()];
+                        frame.get(copy);
+                        encoded.add(copy);
+                    }
+                    while(next<members.size());
+                    //what the other peers are told: who the roster was for, without its members
+                    codec.beginRoster(id,0,System.currentTimeMillis(),destination);
+                    ByteBuffer frame = codec.finishRoster();
+                    final byte[] empty = new byte[frame.remaining()];
+                    frame.get(empty);
+                    frames.addAndGet(encoded.size());
+                    network.schedule(new Runnable()
+                    {
+                        public void run()
+                        {
+                            deliver(destination,encoded,empty);
+                        }
+                    },LATENCY,TimeUnit.MILLISECONDS);
+                }
+            }
+
+            private void deliver(long destination,List<byte[]> encoded,byte[] empty)
+            {
+                PacketCodec decoder = new PacketCodec(PacketCodec.MTU_PAYLOAD);
+                try
+                {
+                    Roster target = joiner;
+                    for(byte[] frame : encoded)
+                    {
+                        decoder.beginFrames(ByteBuffer.wrap(frame));
+                        decoder.nextFrame();
+                        if(destination==joinerId)
+                        {
+                            target.rosterReceived(decoder);
+                        }
+                    }
+                    for(Roster peer : peers)
+                    {
+                        decoder.beginFrames(ByteBuffer.wrap(empty));
+                        decoder.nextFrame();
+                        peer.rosterReceived(decoder);
+                    }
+                }
+                catch(Exception e)
+                {
+                    e.printStackTrace();
+                }
+            }
+
+            public void sendDigest(int count,long digest)
+            {
+            }
+
+            public void sendHistory(long destination)
+            {
+                histories.incrementAndGet();
+            }
+        }
+    }
+}
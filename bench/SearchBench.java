@@ -0,0 +1,156 @@
+import java.util.List;
+
+/**
+ * Building the search index and searching it, over a made up chat log from ChatCorpus.
+ *
+ * The index case adds one message to the index per operation, to an index which holds BUILT messages, so
+ * once it is full the cost of dropping the oldest is counted too. When torn down it prints how big the
+ * index grew for the messages it held.
+ *
+ * The query cases search an index of INDEXED messages, built once and shared by all of them. One operation
+ * is one search for the newest SEARCH_LIMIT matches, as the view asks for. The queries are a word used in
+ * almost every message, a rare word, two words of middling use together, a word from a single sender, a
+ * word within one hour in the middle of the log, and two rare words which are never used together, so both
+ * lists are walked back to their first message. When torn down every query case prints its matches and the
+ * median and 99th percentile time of a search.
+ */
+public class SearchBench
+{
+    //messages in the index searched
+    private static final int INDEXED = 1000000;
+    //the capacity of the index being built, small enough to fill in the first iteration
+    private static final int BUILT = 100000;
+    //as many as the view shows
+    private static final int SEARCH_LIMIT = 200;
+    //how far apart the messages' timestamps are, so INDEXED messages take about 11 days
+    private static final long MESSAGE_MILLIS = 1000;
+    private static final long START = 1500000000000L;
+    private static final long HOUR = 3600000;
+
+    private static SearchIndex index;
+
+    /**
+     * Adds the index case and the query cases
+     * @param cases- where the cases are added
+     */
+    static void addCases(List<Bench.Case> cases)
+    {
+        cases.add(new Bench.Case("search.index.add")
+        {
+            private SearchIndex building;
+            private ChatCorpus lines;
+            private long added;
+
+            @Override
+            public void setup()
+            {
+                lines = new ChatCorpus(2);
+                building = new SearchIndex(BUILT);
+                added = 0;
+            }
+
+            @Override
+            public long run(int operations)
+            {
+                for(int i=0;i<operations;i++)
+                {
+                    int user = lines.nextUser();
+                    building.add(added,new ChatMessage(user+1,START+added*MESSAGE_MILLIS,lines.nextLine(user)));
+                    added++;
+                }
+                return added;
+            }
+
+            @Override
+            public void teardown()
+            {
+                System.out.println(String.format("# %s %d messages added, %d dropped, the index held %d messages, "
+                        +"%d terms and %.1f posting bytes per message",getName(),added,building.getDropped(),
+                        building.getDocuments(),building.getTerms(),
+                        (double)building.getPostingBytes()/building.getDocuments()));
+            }
+        });
+
+        ChatCorpus words = new ChatCorpus(0);
+        cases.add(new Query("search.query.commonWord",words.getWord(1),0,Long.MIN_VALUE,Long.MAX_VALUE));
+        cases.add(new Query("search.query.rareWord",words.getWord(8000),0,Long.MIN_VALUE,Long.MAX_VALUE));
+        cases.add(new Query("search.query.twoWords",words.getWord(60)+" "+words.getWord(300),0,Long.MIN_VALUE,
+                Long.MAX_VALUE));
+        //the quietest user talks least, so most of their messages are far back
+        cases.add(new Query("search.query.sender",words.getWord(20),words.getUsers(),Long.MIN_VALUE,Long.MAX_VALUE));
+        long middle = START+INDEXED/2*MESSAGE_MILLIS;
+        cases.add(new Query("search.query.hour",words.getWord(20),0,middle,middle+HOUR));
+        cases.add(new Query("search.query.noMatch",words.getWord(5000)+" "+words.getWord(5001),0,Long.MIN_VALUE,
+                Long.MAX_VALUE));
+    }
+
+    /**
+     * Builds the index the query cases search, the first time one needs it
+     */
+    private static void buildIndex()
+    {
+        if(index!=null)
+        {
+            return;
+        }
+        long start = System.nanoTime();
+        ChatCorpus corpus = new ChatCorpus(1);
+        index = new SearchIndex();
+        for(int i=0;i<INDEXED;i++)
+        {
+            int user = corpus.nextUser();
+            index.add(i,new ChatMessage(user+1,START+i*MESSAGE_MILLIS,corpus.nextLine(user)));
+        }
+        System.out.println(String.format("# indexed %d messages in %d ms: %d terms, %.1f posting bytes per message",
+                INDEXED,(System.nanoTime()-start)/1000000,index.getTerms(),(double)index.getPostingBytes()/INDEXED));
+    }
+
+    /**
+     * Searches the shared index for the same thing again and again
+     */
+    private static class Query extends Bench.Case
+    {
+        private final String query;
+        private final long sender;
+        private final long from;
+        private final long to;
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private int found;
+
+        Query(String name,String query,long sender,long from,long to)
+        {
+            super(name);
+            this.query = query;
+            this.sender = sender;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public void setup()
+        {
+            buildIndex();
+        }
+
+        @Override
+        public long run(int operations)
+        {
+            long sum = 0;
+            for(int i=0;i<operations;i++)
+            {
+                long start = System.nanoTime();
+                long[] matches = index.search(query,sender,from,to,SEARCH_LIMIT);
+                latency.record(System.nanoTime()-start);
+                found = matches.length;
+                sum += found;
+            }
+            return sum;
+        }
+
+        @Override
+        public void teardown()
+        {
+            System.out.println("# "+getName()+" \""+query+"\" found "+found+", latency "+latency.toMicros());
+        }
+    }
+}
@@ -0,0 +1,314 @@
+import java.awt.Component;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.swing.DefaultListCellRenderer;
+import javax.swing.JList;
+import javax.swing.JScrollPane;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+
+/**
+ * How long the user waits after pressing Send, while the network is quiet and while it is saturated.
+ *
+ * A client joins a chatroom over a LoopbackTransport.Hub, with the same message list, list model and
+ * scroll pane as a ChatView, painted into an image as ViewBench does. One operation is one press of Send:
+ * the work ChatView.onMessageSend() does is handed to the event dispatch thread and waited for, so the time
+ * of an operation is what the user sees, including waiting for the event dispatch thread and the model's
+ * lock. Redraws for messages from others are coalesced and drawn at most RedrawScheduler.DEFAULT_FRAME_RATE
+ * times a second, the way RedrawScheduler does.
+ *
+ * In the flood case another client sends as fast as the hub carries messages, and the client under test
+ * takes every one of them into its model and chat log. Received messages reach the model through its event
+ * bus, and the proxy's timers never wait on a full bus, so the time of a send should stay close to the idle
+ * case. The flood's threads take turns with the event dispatch thread for the CPUs, so on a machine with
+ * few of them a send still waits longer, but it should stay well under a frame. When a case is torn down
+ * it prints the median, 99th percentile and slowest send, and how many flood messages a second the client
+ * took in meanwhile.
+ */
+public class UiBench
+{
+    private static final int HISTORY = 10000;
+    private static final int WIDTH = 500;
+    private static final int HEIGHT = 340;
+    //most flood messages sent but not yet received
+    private static final int WINDOW = 1024;
+    private static final long TIMEOUT_MILLIS = 30000;
+
+    /**
+     * Adds the idle and flood cases
+     * @param cases- where the cases are added
+     */
+    static void addCases(List<Bench.Case> cases)
+    {
+        //must be set before anything touches AWT
+        if(System.getProperty("java.awt.headless")==null)
+        {
+            System.setProperty("java.awt.headless","true");
+        }
+        cases.add(new Send("ui.send.idle",false));
+        cases.add(new Send("ui.send.flood",true));
+    }
+
+    /**
+     * Presses Send again and again, with or without another client flooding the chatroom
+     */
+    private static class Send extends Bench.Case implements ChatListener,ActionListener
+    {
+        private final boolean flood;
+        private ChatModel model;
+        private ChatModel flooder;
+        private Thread flooding;
+        private volatile boolean running;
+        private long floodStarted;
+        private ChatLogListModel messageLog;
+        private JList<ChatMessage> messageList;
+        private JScrollPane messageScroll;
+        private BufferedImage image;
+        private Graphics2D graphics;
+        private Exception failure;
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private long sent = 0;
+
+        //redraws for messages from others, as RedrawScheduler makes them
+        private final AtomicBoolean pending = new AtomicBoolean();
+        private Timer timer;
+        private final long frameMillis = 1000/RedrawScheduler.DEFAULT_FRAME_RATE;
+        private long lastBatch = 0;
+        private long batches = 0;
+
+        Send(String name,boolean flood)
+        {
+            super(name);
+            this.flood = flood;
+        }
+
+        @Override
+        public void setup() throws Exception
+        {
+            LoopbackTransport.Hub hub = new LoopbackTransport.Hub();
+            image = new BufferedImage(WIDTH,HEIGHT,BufferedImage.TYPE_INT_RGB);
+            graphics = image.createGraphics();
+            model = client("me",hub);
+            model.addListener(this);
+            SwingUtilities.invokeAndWait(new Runnable()
+            {
+                public void run()
+                {
+                    build();
+                }
+            });
+            if(!flood)
+            {
+                return;
+            }
+            flooder = client("flooder",hub);
+            long deadline = System.currentTimeMillis()+TIMEOUT_MILLIS;
+            while(model.getAllNames().size()<2)
+            {
+                if(System.currentTimeMillis()>deadline)
+                {
+                    throw new IllegalStateException("the clients never saw each other");
+                }
+                Thread.sleep(10);
+            }
+            running = true;
+            floodStarted = System.nanoTime();
+            flooding = new Thread(new Runnable()
+            {
+                public void run()
+                {
+                    long floodSent = 0;
+                    try
+                    {
+                        while(running)
+                        {
+                            //keep at most WINDOW messages on their way, so the flood goes as fast as they can flow
+                            if(floodSent-received()>=WINDOW)
+                            {
+                                Thread.yield();
+                                continue;
+                            }
+                            flooder.addMessage(CodecBench.MESSAGE);
+                            floodSent++;
+                        }
+                    }
+                    catch(IOException e)
+                    {
+                        e.printStackTrace();
+                    }
+                }
+            },"UiBench-flood");
+            flooding.setDaemon(true);
+            flooding.start();
+        }
+
+        /**
+         * Makes a client the way LoginView does, but without a window
+         */
+        private ChatModel client(String name,LoopbackTransport.Hub hub) throws IOException
+        {
+            ChatModel client = new ChatModel(name,new MessageStore(MessageStore.DEFAULT_CHUNK_SIZE,HISTORY,null));
+            ChatProxy proxy = new ChatProxy(hub.join());
+            client.setProxy(proxy);
+            proxy.setModelListener(client);
+            return client;
+        }
+
+        /**
+         * Getter for the number of the flooder's messages which have reached this client's proxy
+         */
+        private long received()
+        {
+            return model.getMetrics().getFramesReceived(ChatProxy.SEND_MESSAGE_CODE);
+        }
+
+        /**
+         * Builds the message list the way ChatView.buildMessageScreen() does
+         */
+        private void build()
+        {
+            messageLog = new ChatLogListModel(model);
+            messageList = new JList<ChatMessage>(messageLog);
+            messageList.setFont(new Font("Verdana",Font.PLAIN,12));
+            messageList.setCellRenderer(new DefaultListCellRenderer()
+            {
+                @Override
+                public Component getListCellRendererComponent(JList<?> list,Object value,int index,
+                                                              boolean isSelected,boolean cellHasFocus)
+                {
+                    return super.getListCellRendererComponent(list,value==null ? "" : value,index,false,false);
+                }
+            });
+            messageList.setFixedCellHeight(messageList.getFontMetrics(messageList.getFont()).getHeight()+2);
+            messageList.setFixedCellWidth(WIDTH);
+            messageScroll = new JScrollPane(messageList);
+            messageScroll.setSize(WIDTH,HEIGHT);
+            messageScroll.validate();
+            timer = new Timer(0,this);
+            timer.setRepeats(false);
+        }
+
+        /**
+         * What ChatView.redraw(0) does, then the repaint that follows it
+         */
+        private void redraw()
+        {
+            int added = messageLog.update();
+            if(added>0)
+            {
+                messageList.ensureIndexIsVisible(messageLog.getSize()-1);
+            }
+            messageScroll.validate();
+            messageScroll.paint(graphics);
+        }
+
+        @Override
+        public long run(int operations) throws Exception
+        {
+            Runnable press = new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        model.addMessage("me: "+CodecBench.MESSAGE);
+                        redraw();
+                    }
+                    catch(Exception e)
+                    {
+                        failure = e;
+                    }
+                }
+            };
+            for(int i=0;i<operations;i++)
+            {
+                long start = System.nanoTime();
+                SwingUtilities.invokeAndWait(press);
+                latency.record(System.nanoTime()-start);
+                if(failure!=null)
+                {
+                    throw failure;
+                }
+                sent++;
+            }
+            return sent+image.getRGB(WIDTH/2,HEIGHT/2);
+        }
+
+        @Override
+        public void teardown() throws Exception
+        {
+            running = false;
+            if(flooding!=null)
+            {
+                flooding.join();
+                double seconds = (System.nanoTime()-floodStarted)/1e9;
+                System.out.println(String.format("# %s took in %.0f flood messages a second",getName(),
+                        received()/seconds));
+            }
+            System.out.println("# "+getName()+" "+sent+" sends, "+batches+" redraw batches, latency "
+                    +latency.toMicros());
+            SwingUtilities.invokeAndWait(new Runnable()
+            {
+                public void run()
+                {
+                    timer.stop();
+                }
+            });
+            graphics.dispose();
+            model.leave();
+            if(flooder!=null)
+            {
+                flooder.leave();
+            }
+        }
+
+        /**
+         * Asks for a redraw the way RedrawScheduler.request() does, merging it into one already pending
+         */
+        @Override
+        public void messageAdded(ChatModel room,long index,ChatMessage message)
+        {
+            if(pending.compareAndSet(false,true))
+            {
+                SwingUtilities.invokeLater(new Runnable()
+                {
+                    public void run()
+                    {
+                        timer.setInitialDelay((int)Math.max(0,lastBatch+frameMillis-System.currentTimeMillis()));
+                        timer.restart();
+                    }
+                });
+            }
+        }
+
+        @Override
+        public void userChanged(ChatModel room,ChatModel.UserChange change)
+        {
+        }
+
+        @Override
+        public void chatLogRebuilt(ChatModel room)
+        {
+        }
+
+        /**
+         * Draws the pending redraw. Called by the timer on the event dispatch thread.
+         */
+        @Override
+        public void actionPerformed(ActionEvent e)
+        {
+            lastBatch = System.currentTimeMillis();
+            if(pending.getAndSet(false))
+            {
+                batches++;
+                redraw();
+            }
+        }
+    }
+}
@@ -0,0 +1,263 @@
+import java.awt.Component;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.List;
+import javax.swing.DefaultListCellRenderer;
+import javax.swing.JList;
+import javax.swing.JScrollBar;
+import javax.swing.JScrollPane;
+import javax.swing.SwingUtilities;
+
+/**
+ * Benchmarks for what ChatView.redraw() costs on the event dispatch thread, without a screen.
+ *
+ * A ChatView is a window, which cannot be made on a headless machine, so this builds the same lists,
+ * list models, renderers and scroll panes the view does, in a pane of the same size. Each operation adds
+ * what would have caused the redraw to the model, does the same work redraw() does for it, then paints
+ * the pane into an image the way the repaint that follows would. The work runs on the event dispatch
+ * thread, in one task per batch.
+ *
+ * A new message is redrawn with chat logs of a thousand up to a million messages, which should all take
+ * about as long. Each redraw is timed on its own too, and when a case is torn down the median, 99th
+ * percentile and slowest redraw are printed, warmup included.
+ */
+public class ViewBench
+{
+    private static final int[] HISTORY_SIZES = {1000,10000,100000,1000000};
+    private static final int USERS = 64;
+    private static final int WIDTH = 500;
+    private static final int HEIGHT = 340;
+    private static final long PEER = 0x2545F4914F6CDD1DL;
+
+    /**
+     * Adds the cases for a new message at every history size, the chat log being built again, and users
+     * joining and leaving
+     * @param cases- where the cases are added
+     */
+    static void addCases(List<Bench.Case> cases)
+    {
+        //must be set before anything touches AWT
+        if(System.getProperty("java.awt.headless")==null)
+        {
+            System.setProperty("java.awt.headless","true");
+        }
+        for(final int history : HISTORY_SIZES)
+        {
+            cases.add(new Redraw("view.redraw.message.history"+history,history)
+            {
+                void operation()
+                {
+                    model.redrawChat(PEER,++sequence,CodecBench.MESSAGE);
+                    JScrollBar bar = messageScroll.getVerticalScrollBar();
+                    boolean atBottom = bar.getValue()+bar.getVisibleAmount()>=bar.getMaximum();
+                    int added = messageLog.update();
+                    model.getMetrics().messagesRendered();
+                    if(added>0&&atBottom)
+                    {
+                        messageList.ensureIndexIsVisible(messageLog.getSize()-1);
+                    }
+                    paint(messageScroll);
+                }
+            });
+        }
+        cases.add(new Redraw("view.redraw.rebuild.history10000",10000)
+        {
+            void operation()
+            {
+                messageLog.reset();
+                model.getMetrics().messagesRendered();
+                messageList.ensureIndexIsVisible(messageLog.getSize()-1);
+                paint(messageScroll);
+            }
+        });
+        for(final int count : ModelBench.USER_COUNTS)
+        {
+            cases.add(new Redraw("view.redraw.users.users"+count,1,count)
+            {
+                void operation()
+                {
+                    long id = PEER+count+(sequence++%count);
+                    model.addUser(id,"joiner"+(id&0xFF));
+                    model.removeUser(id);
+                    users.update();
+                    paint(userScroll);
+                }
+            });
+        }
+    }
+
+    /**
+     * Sets up a model and the parts of a view, and runs one redraw per operation on the event dispatch
+     * thread
+     */
+    private static abstract class Redraw extends Bench.Case
+    {
+        private final int history;
+        private final int userCount;
+        private BufferedImage image;
+        private Graphics2D graphics;
+        private Exception failure;
+        //how long each redraw took, in nanoseconds
+        private final LatencyHistogram latencies = new LatencyHistogram();
+        ChatModel model;
+        long sequence;
+        ChatLogListModel messageLog;
+        JList<ChatMessage> messageList;
+        JScrollPane messageScroll;
+        UserListModel users;
+        JScrollPane userScroll;
+        private FontMetrics messageMetrics;
+        private int widestMessage = 0;
+
+        Redraw(String name,int history)
+        {
+            this(name,history,USERS);
+        }
+
+        Redraw(String name,int history,int userCount)
+        {
+            super(name);
+            this.history = history;
+            this.userCount = userCount;
+        }
+
+        /**
+         * Does one redraw
+         */
+        abstract void operation();
+
+        @Override
+        public void setup() throws Exception
+        {
+            image = new BufferedImage(WIDTH,HEIGHT,BufferedImage.TYPE_INT_RGB);
+            graphics = image.createGraphics();
+            model = ModelBench.client("viewer",history,new ModelBench.NullTransport());
+            sequence = history;
+            for(int i=0;i<userCount;i++)
+            {
+                model.addUser(PEER+i,"user"+i);
+            }
+            SwingUtilities.invokeAndWait(new Runnable()
+            {
+                public void run()
+                {
+                    build();
+                }
+            });
+        }
+
+        /**
+         * Builds the lists the way ChatView.buildUserList() and buildMessageScreen() do
+         */
+        private void build()
+        {
+            users = new UserListModel(model);
+            JList<String> userList = new JList<String>(users);
+            userList.setFont(new Font("Verdana",Font.BOLD,12));
+            userList.setCellRenderer(new DefaultListCellRenderer()
+            {
+                @Override
+                public Component getListCellRendererComponent(JList<?> list,Object value,int index,
+                                                              boolean isSelected,boolean cellHasFocus)
+                {
+                    return super.getListCellRendererComponent(list,value,index,false,false);
+                }
+            });
+            userList.setFixedCellHeight(userList.getFontMetrics(userList.getFont()).getHeight()+2);
+            userScroll = new JScrollPane(userList);
+            userScroll.setHorizontalScrollBarPolicy(JScrollPane.HORIZONTAL_SCROLLBAR_NEVER);
+            userScroll.setSize(100,HEIGHT);
+
+            messageLog = new ChatLogListModel(model);
+            messageList = new JList<ChatMessage>(messageLog);
+            messageList.setFont(new Font("Verdana",Font.PLAIN,12));
+            messageList.setCellRenderer(new DefaultListCellRenderer()
+            {
+                @Override
+                public Component getListCellRendererComponent(JList<?> list,Object value,int index,
+                                                              boolean isSelected,boolean cellHasFocus)
+                {
+                    if(value!=null)
+                    {
+                        measureMessage(((ChatMessage)value).getText());
+                    }
+                    return super.getListCellRendererComponent(list,value==null ? "" : value,index,false,false);
+                }
+            });
+            messageMetrics = messageList.getFontMetrics(messageList.getFont());
+            messageList.setFixedCellHeight(messageMetrics.getHeight()+2);
+            messageList.setFixedCellWidth(widestMessage+8);
+            messageScroll = new JScrollPane(messageList);
+            messageScroll.setSize(WIDTH,HEIGHT);
+            messageScroll.validate();
+            messageList.ensureIndexIsVisible(messageLog.getSize()-1);
+        }
+
+        /**
+         * The same as ChatView.measureMessage()
+         */
+        void measureMessage(String text)
+        {
+            int width = messageMetrics.stringWidth(text);
+            if(width>widestMessage)
+            {
+                widestMessage = width;
+                SwingUtilities.invokeLater(new Runnable()
+                {
+                    public void run()
+                    {
+                        messageList.setFixedCellWidth(widestMessage+8);
+                    }
+                });
+            }
+        }
+
+        /**
+         * Lays out and paints a pane into the image, as a repaint would
+         */
+        void paint(JScrollPane pane)
+        {
+            pane.validate();
+            pane.paint(graphics);
+        }
+
+        @Override
+        public long run(final int operations) throws Exception
+        {
+            SwingUtilities.invokeAndWait(new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        for(int i=0;i<operations;i++)
+                        {
+                            long start = System.nanoTime();
+                            operation();
+                            latencies.record(System.nanoTime()-start);
+                        }
+                    }
+                    catch(RuntimeException e)
+                    {
+                        failure = e;
+                    }
+                }
+            });
+            if(failure!=null)
+            {
+                throw failure;
+            }
+            return image.getRGB(WIDTH/2,HEIGHT/2)+messageLog.getSize();
+        }
+
+        @Override
+        public void teardown() throws Exception
+        {
+            System.out.println("# "+getName()+" redraws "+latencies.toMicros());
+            graphics.dispose();
+            model.leave();
+        }
+    }
+}
@@ -0,0 +1,21 @@
+#!/bin/sh
+# Builds out/mychatapp.jar, then a class data sharing archive of the classes loaded while starting up,
+# so that starting the app later does not have to load and check them again. Needs JDK 13 or newer and
+# a screen, since the archive is made by starting the app, joining a chatroom and sending one message.
+#
+#   ./build-cds.sh [group] [port]
+#   java -XX:SharedArchiveFile=out/mychatapp.jsa -jar out/mychatapp.jar
+set -e
+cd "$(dirname "$0")"
+GROUP=${1:-239.255.0.1}
+PORT=${2:-56789}
+
+rm -rf out/app
+mkdir -p out/app
+javac --release 8 -d out/app src/*.java
+jar cfe out/mychatapp.jar MyChatApp -C out/app .
+
+# log in as "cds" straight away, and end once the first message has been sent
+java -XX:ArchiveClassesAtExit=out/mychatapp.jsa -Dmychatapp.exitAfterStartup=true -Dmychatapp.startupLog=true \
+    -jar out/mychatapp.jar cds "$GROUP" "$PORT"
+echo "made out/mychatapp.jsa"
@@ -0,0 +1,319 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+/**
+ * Lets the messages of each other client into the model at no more than a fair rate, so that one client
+ * flooding the chatroom cannot hold up what everyone else says.
+ *
+ * Every sender has a TokenBucket of their own. A message which finds a token is let in straight away,
+ * which is all that happens while people are talking at a human pace. A message which finds the bucket
+ * empty waits in that sender's queue, and the queue is let in as tokens come in, from the proxy's timer.
+ * The queue is bounded, and when it is full the oldest message in it is shed, so what a flooding sender
+ * gets in is never more than about QUEUE/RATE seconds old, and every other sender's messages go straight
+ * past it. Messages are let in in the order each sender sent them.
+ *
+ * The handler may refuse a message when the model has no room for it. The message then stays at the head
+ * of its sender's queue, keeping the token it took, and is offered again on the next tick, so a model which
+ * falls behind delays messages instead of losing them. Only the QUEUE bound sheds anything.
+ *
+ * Every method is synchronized, and messages are only handed to the handler while holding the lock.
+ */
+public class AdmissionControl
+{
+    //system property for how many messages a second each sender may have let in, 0 for no limit
+    public static final String RATE_PROPERTY = "mychatapp.receive.rate";
+    public static final int RATE = 50;
+    //how many messages a sender may send at once before they have to wait
+    public static final int BURST = 100;
+    //the most messages of one sender waiting to be let in
+    public static final int QUEUE = 256;
+
+    /**
+     * Where messages go once they are let in, and where shed ones are counted
+     */
+    public interface Handler
+    {
+        /**
+         * Handles a message which has been let in
+         * @param senderId- the uniqueID of its sender
+         * @param sequence- its sequence number
+         * @param timestamp- when it was sent
+         * @param text- the message
+         * @param receivedNanos- when the packet it came in arrived, from System.nanoTime()
+         * @return true if the message was taken, false if there is no room for it yet
+         */
+        boolean admit(long senderId,long sequence,long timestamp,String text,long receivedNanos);
+
+        /**
+         * Counts a message which was shed
+         * @param senderId- the uniqueID of its sender
+         */
+        void shed(long senderId);
+    }
+
+    private final Handler handler;
+    private double rate;
+    private int burst;
+    private final LongMap<Sender> senders = new LongMap<Sender>();
+    //senders with messages waiting, so the timer does not have to look at everyone
+    private final ArrayList<Sender> waiting = new ArrayList<Sender>();
+
+    //counters
+    private long admitted = 0;
+    private long delayed = 0;
+    private long refused = 0;
+    private long shed = 0;
+
+    /**
+     * Constructor for admission control at the rate set by the mychatapp.receive.rate system property
+     * @param handler- where messages go once they are let in
+     */
+    public AdmissionControl(Handler handler)
+    {
+        this(handler,Integer.getInteger(RATE_PROPERTY,RATE),BURST);
+    }
+
+    /**
+     * Constructor
+     * @param handler- where messages go once they are let in
+     * @param rate- messages a second each sender may have let in, or 0 for no limit
+     * @param burst- how many a sender may send at once before they have to wait
+     */
+    public AdmissionControl(Handler handler,double rate,int burst)
+    {
+        this.handler = handler;
+        this.rate = rate;
+        this.burst = burst;
+    }
+
+    /**
+     * Changes the rate for every sender, including those already known
+     * @param rate- messages a second each sender may have let in, or 0 for no limit
+     * @param burst- how many a sender may send at once before they have to wait
+     */
+    public synchronized void setRate(double rate,int burst)
+    {
+        this.rate = rate;
+        this.burst = burst;
+        for(Sender sender : senders.values())
+        {
+            sender.tokens.setRate(rate,burst);
+        }
+        //with no limit messages no longer wait, so let in the ones which are, before any newer ones
+        if(rate<=0)
+        {
+            tick();
+        }
+    }
+
+    /**
+     * Takes a message from another client, and lets it in now, later or not at all
+     * @param senderId- the uniqueID of its sender
+     * @param sequence- its sequence number
+     * @param timestamp- when it was sent
+     * @param text- the message
+     * @param receivedNanos- when the packet it came in arrived, from System.nanoTime()
+     */
+    public synchronized void offer(long senderId,long sequence,long timestamp,String text,long receivedNanos)
+    {
+        Sender sender = senders.get(senderId);
+        if(rate<=0&&sender==null)
+        {
+            if(handler.admit(senderId,sequence,timestamp,text,receivedNanos))
+            {
+                admitted++;
+                return;
+            }
+            refused++;
+        }
+        if(sender==null)
+        {
+            sender = new Sender(senderId);
+            senders.put(senderId,sender);
+        }
+        if(sender.pending==null&&sender.tokens.tryTake(System.nanoTime()))
+        {
+            if(handler.admit(senderId,sequence,timestamp,text,receivedNanos))
+            {
+                admitted++;
+                return;
+            }
+            refused++;
+            //it keeps its token until the model has room
+            sender.paid = true;
+        }
+        if(sender.pending==null)
+        {
+            sender.pending = new ArrayDeque<Message>();
+            waiting.add(sender);
+        }
+        else if(sender.pending.size()>=QUEUE)
+        {
+            //the shed message's place is taken by the new one, so a flood does not allocate
+            Message oldest = sender.pending.poll();
+            sender.paid = false;
+            shed++;
+            handler.shed(senderId);
+            oldest.set(sequence,timestamp,text,receivedNanos);
+            sender.pending.add(oldest);
+            return;
+        }
+        delayed++;
+        sender.pending.add(new Message(sequence,timestamp,text,receivedNanos));
+    }
+
+    /**
+     * Lets in every waiting message of a sender, such as when they leave the chatroom, and forgets them.
+     * Those the model has no room for yet are let in by the next ticks, without waiting for tokens.
+     * @param senderId- the sender's uniqueID
+     */
+    public synchronized void flush(long senderId)
+    {
+        Sender sender = senders.remove(senderId);
+        if(sender!=null&&sender.pending!=null)
+        {
+            sender.flushed = true;
+            admit(sender,Long.MAX_VALUE);
+            if(sender.pending==null)
+            {
+                waiting.remove(sender);
+            }
+        }
+    }
+
+    /**
+     * Lets in the waiting messages whose tokens have come in, and those the model had no room for.
+     * Called regularly by the proxy's timer.
+     */
+    public synchronized void tick()
+    {
+        if(waiting.isEmpty())
+        {
+            return;
+        }
+        long now = System.nanoTime();
+        for(int i=waiting.size()-1;i>=0;i--)
+        {
+            Sender sender = waiting.get(i);
+            admit(sender,sender.flushed||rate<=0 ? Long.MAX_VALUE : now);
+            if(sender.pending==null)
+            {
+                waiting.remove(i);
+            }
+        }
+    }
+
+    /**
+     * Lets in a sender's waiting messages while there are tokens, or all of them if now is Long.MAX_VALUE,
+     * until the handler has no room for one
+     */
+    private void admit(Sender sender,long now)
+    {
+        Message message;
+        while((message = sender.pending.peek())!=null)
+        {
+            if(!sender.paid&&now!=Long.MAX_VALUE&&!sender.tokens.tryTake(now))
+            {
+                return;
+            }
+            sender.paid = true;
+            try
+            {
+                if(!handler.admit(sender.id,message.sequence,message.timestamp,message.text,message.receivedNanos))
+                {
+                    refused++;
+                    return;
+                }
+                admitted++;
+            }
+            catch(RuntimeException e)
+            {
+                //keep letting in the other messages
+                e.printStackTrace();
+            }
+            sender.pending.poll();
+            sender.paid = false;
+        }
+        sender.pending = null;
+    }
+
+    /**
+     * Getter for the number of messages let in
+     * @return admitted
+     */
+    public synchronized long getAdmitted()
+    {
+        return admitted;
+    }
+
+    /**
+     * Getter for the number of messages which had to wait for a token
+     * @return delayed
+     */
+    public synchronized long getDelayed()
+    {
+        return delayed;
+    }
+
+    /**
+     * Getter for the number of times the handler had no room for a message, which was kept to try again
+     * @return refused
+     */
+    public synchronized long getRefused()
+    {
+        return refused;
+    }
+
+    /**
+     * Getter for the number of messages shed
+     * @return shed
+     */
+    public synchronized long getShed()
+    {
+        return shed;
+    }
+
+    /**
+     * What admission control knows about one sender
+     */
+    private class Sender
+    {
+        final long id;
+        final TokenBucket tokens = new TokenBucket(rate,burst);
+        //messages waiting for a token or for room in the model, or null if there are none
+        ArrayDeque<Message> pending;
+        //whether the first pending message already took its token
+        boolean paid = false;
+        //whether the sender left, so what is pending goes in without tokens
+        boolean flushed = false;
+
+        Sender(long id)
+        {
+            this.id = id;
+        }
+    }
+
+    /**
+     * A message waiting to be let in
+     */
+    private static class Message
+    {
+        long sequence;
+        long timestamp;
+        String text;
+        long receivedNanos;
+
+        Message(long sequence,long timestamp,String text,long receivedNanos)
+        {
+            set(sequence,timestamp,text,receivedNanos);
+        }
+
+        void set(long sequence,long timestamp,String text,long receivedNanos)
+        {
+            this.sequence = sequence;
+            this.timestamp = timestamp;
+            this.text = text;
+            this.receivedNanos = receivedNanos;
+        }
+    }
+}
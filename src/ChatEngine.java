@@ -0,0 +1,241 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs any number of chatrooms in one process without a window, for bots, bridges and archivers, or
+ * anything else which hosts many rooms at once. Each room is a ChatModel and ChatProxy pair, found by its
+ * group and port.
+ *
+ * The rooms share everything which does not have to be their own. Packets are received for every room by
+ * one NioSelectorLoop and handled on the shared ChatWorkers, timers run on ChatTimers, and the events each
+ * proxy publishes are taken by the engine's own pool of threads rather than a thread for every room. So
+ * the number of threads stays the same however many rooms are joined.
+ *
+ * Listeners added to the engine are added to every room, those already joined and those joined later. A
+ * ChatView can still be set on any room's model, and is then just one more listener.
+ */
+public class ChatEngine
+{
+    //slots in each room's event bus. Events are taken as they come, so a room rarely has many waiting.
+    public static final int EVENT_RING = 256;
+
+    /**
+     * Opens the transport for a room
+     */
+    public interface TransportFactory
+    {
+        /**
+         * Joins a chatroom
+         * @param group- the multicast group
+         * @param port- the port of the group
+         * @return a transport which has joined the room, but not started receiving
+         * @throws IOException- if the room cannot be joined
+         */
+        ChatTransport open(InetAddress group,int port) throws IOException;
+    }
+
+    private final TransportFactory transports;
+    private final HashMap<InetSocketAddress,ChatModel> rooms = new HashMap<InetSocketAddress,ChatModel>();
+    private final CopyOnWriteArrayList<ChatListener> listeners = new CopyOnWriteArrayList<ChatListener>();
+    //takes the events of every room. Proxies publish from ChatWorkers, so these must be other threads.
+    private final ExecutorService consumers;
+    private boolean closed = false;
+
+    /**
+     * Constructor for an engine whose rooms are all received by the shared NioSelectorLoop
+     */
+    public ChatEngine()
+    {
+        this(new TransportFactory()
+        {
+            public ChatTransport open(InetAddress group,int port) throws IOException
+            {
+                return NioSelectorLoop.shared().join(group,port);
+            }
+        });
+    }
+
+    /**
+     * Constructor
+     * @param transports- opens the transport for each room
+     */
+    public ChatEngine(TransportFactory transports)
+    {
+        this.transports = transports;
+        final AtomicInteger count = new AtomicInteger();
+        int threads = Runtime.getRuntime().availableProcessors();
+        consumers = new ThreadPoolExecutor(threads,threads,0,TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(),new ThreadFactory()
+        {
+            public Thread newThread(Runnable task)
+            {
+                Thread thread = new Thread(task,"ChatEngine-"+count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Joins a chatroom with a chat log of the default size, which is not kept between runs
+     * @param group- the multicast group
+     * @param port- the port of the group
+     * @param name- the name of the user in this room
+     * @return the room's model, or the model of the room already joined at this group and port
+     * @throws IOException- if the room cannot be joined
+     */
+    public ChatModel join(InetAddress group,int port,String name) throws IOException
+    {
+        return join(group,port,name,new MessageStore(),null);
+    }
+
+    /**
+     * Joins a chatroom. The proxy starts receiving straight away and tells the room this user has joined.
+     * @param group- the multicast group
+     * @param port- the port of the group
+     * @param name- the name of the user in this room
+     * @param chatLog- the store the chat log is kept in
+     * @param history- where the chat log is kept between runs, or null to not keep it
+     * @return the room's model, or the model of the room already joined at this group and port
+     * @throws IOException- if the room cannot be joined
+     */
+    public synchronized ChatModel join(InetAddress group,int port,String name,MessageStore chatLog,
+                                       HistoryLog history) throws IOException
+    {
+        if(closed)
+        {
+            throw new IllegalStateException("engine is closed");
+        }
+        InetSocketAddress address = new InetSocketAddress(group,port);
+        ChatModel room = rooms.get(address);
+        if(room!=null)
+        {
+            return room;
+        }
+        ChatTransport transport = transports.open(group,port);
+        ChatProxy proxy;
+        try
+        {
+            proxy = new ChatProxy(transport);
+        }
+        catch(IOException e)
+        {
+            transport.close();
+            throw e;
+        }
+        room = new ChatModel(name,chatLog,history,new ChatEventBus(EVENT_RING,false,consumers));
+        for(ChatListener listener : listeners)
+        {
+            room.addListener(listener);
+        }
+        room.setProxy(proxy);
+        proxy.setModelListener(room);
+        rooms.put(address,room);
+        return room;
+    }
+
+    /**
+     * Getter for a room
+     * @param group- the multicast group
+     * @param port- the port of the group
+     * @return the room's model, or null if it has not been joined
+     */
+    public synchronized ChatModel getRoom(InetAddress group,int port)
+    {
+        return rooms.get(new InetSocketAddress(group,port));
+    }
+
+    /**
+     * Getter for every room joined
+     * @return a copy of the rooms' models
+     */
+    public synchronized List<ChatModel> getRooms()
+    {
+        return new ArrayList<ChatModel>(rooms.values());
+    }
+
+    /**
+     * Leaves a chatroom, telling the others this user left
+     * @param group- the multicast group
+     * @param port- the port of the group
+     * @return false if the room had not been joined
+     * @throws IOException- if the exit message fails to send
+     */
+    public boolean leave(InetAddress group,int port) throws IOException
+    {
+        ChatModel room;
+        synchronized(this)
+        {
+            room = rooms.remove(new InetSocketAddress(group,port));
+        }
+        if(room==null)
+        {
+            return false;
+        }
+        room.leave();
+        return true;
+    }
+
+    /**
+     * Adds a listener to every room, including those joined later
+     * @param listener- the listener
+     */
+    public synchronized void addListener(ChatListener listener)
+    {
+        listeners.add(listener);
+        for(ChatModel room : rooms.values())
+        {
+            room.addListener(listener);
+        }
+    }
+
+    /**
+     * Removes a listener from every room
+     * @param listener- the listener
+     */
+    public synchronized void removeListener(ChatListener listener)
+    {
+        listeners.remove(listener);
+        for(ChatModel room : rooms.values())
+        {
+            room.removeListener(listener);
+        }
+    }
+
+    /**
+     * Leaves every room and stops the engine's threads
+     */
+    public void close()
+    {
+        List<ChatModel> leaving;
+        synchronized(this)
+        {
+            closed = true;
+            leaving = new ArrayList<ChatModel>(rooms.values());
+            rooms.clear();
+        }
+        for(ChatModel room : leaving)
+        {
+            try
+            {
+                room.leave();
+            }
+            catch(IOException e)
+            {
+                e.printStackTrace();
+            }
+        }
+        consumers.shutdown();
+    }
+}
@@ -0,0 +1,116 @@
+/**
+ * Something that happened in a chatroom, as passed along a ChatEventBus.
+ *
+ * Events are slots of the bus's ring, made once and filled again for every lap around it, so publishing
+ * does not allocate. A consumer may only read an event while it is being handed the event, and must copy
+ * anything it wants to keep.
+ */
+public class ChatEvent
+{
+    /**
+     * The kinds of event
+     */
+    public enum Type
+    {
+        //a line for the chat log, from another user or about one, such as them leaving
+        MESSAGE_RECEIVED,
+        //a user joined the chatroom, or a newer version of their entry replaced the old one
+        USER_JOINED,
+        //a user left the chatroom, stopped responding, or is about to be replaced by a newer entry
+        USER_LEFT,
+        //a user this client learned of from another client's roster instead of from their own join
+        NAME_SYNC
+    }
+
+    private long sequence = -1;
+    private Type type;
+    private long senderId;
+    private long messageSequence;
+    private long timestamp;
+    private String text;
+    private long receivedNanos;
+
+    /**
+     * Fills the slot with a new event. Only called by the bus.
+     */
+    void set(long sequence,Type type,long senderId,long messageSequence,long timestamp,String text,
+             long receivedNanos)
+    {
+        this.sequence = sequence;
+        this.type = type;
+        this.senderId = senderId;
+        this.messageSequence = messageSequence;
+        this.timestamp = timestamp;
+        this.text = text;
+        this.receivedNanos = receivedNanos;
+    }
+
+    /**
+     * Getter for the event's place on the bus. Every event gets the next one, starting at 0.
+     * @return sequence
+     */
+    public long getSequence()
+    {
+        return sequence;
+    }
+
+    /**
+     * Getter for what kind of event this is
+     * @return type
+     */
+    public Type getType()
+    {
+        return type;
+    }
+
+    /**
+     * Getter for the uniqueID of the user the event is about
+     * @return senderId
+     */
+    public long getSenderId()
+    {
+        return senderId;
+    }
+
+    /**
+     * Getter for the sender's sequence number for the frame the event came from
+     * @return the sequence number, or 0 if the event did not come from a frame of theirs
+     */
+    public long getMessageSequence()
+    {
+        return messageSequence;
+    }
+
+    /**
+     * Getter for when the event happened
+     * @return timestamp- milliseconds since the epoch
+     */
+    public long getTimestamp()
+    {
+        return timestamp;
+    }
+
+    /**
+     * Getter for the message, or the user's name for the events about users
+     * @return text
+     */
+    public String getText()
+    {
+        return text;
+    }
+
+    /**
+     * Getter for when the packet the event came from arrived, for timing how long it takes to be shown
+     * @return the time from System.nanoTime()
+     */
+    public long getReceivedNanos()
+    {
+        return receivedNanos;
+    }
+
+    @Override
+    public String toString()
+    {
+        return type+" "+senderId+" "+text;
+    }
+}
@@ -0,0 +1,532 @@
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Passes ChatEvents from the proxy to any number of consumers, such as the model, a logger or a store,
+ * without locking.
+ *
+ * The events sit in a fixed ring of slots. A producer claims the next sequence number, fills the slot it
+ * maps to, then marks the slot with the lap of the ring it was filled on, which is what makes it visible.
+ * Every consumer runs on its own thread and keeps the sequence of the last event it finished with, taking
+ * every event that is ready in one batch. A producer only waits when the ring is full, until the slowest
+ * consumer has moved on. Nothing is allocated once the bus is made. A producer which must never wait, such
+ * as one running on threads shared with other chatrooms, can use tryPublish instead, which drops the event
+ * and counts it when the ring is full.
+ *
+ * A bus made for a single producer skips the atomic claim, and must only ever be published to from one
+ * thread at a time.
+ *
+ * A bus can instead run its consumers on an executor shared with other buses, so a process with hundreds
+ * of chatrooms does not need a thread for each of them. A consumer is then handed to the executor when
+ * an event is published for it, takes at most DRAIN_BUDGET events, and is handed back if more are ready.
+ * It still only ever runs on one thread at a time, so it sees the events in order. Producers wait for
+ * such consumers when the ring is full, so the executor must not be one that producers run on.
+ */
+public class ChatEventBus
+{
+    public static final int DEFAULT_SIZE = 4096;
+    //how many times a waiting thread spins, then yields, before it parks
+    private static final int SPINS = 100;
+    private static final int YIELDS = 100;
+    //how long a sleeping consumer parks before looking again. Producers unpark it when they publish, so
+    //this is long, and an idle bus only wakes its consumer ten times a second.
+    private static final long IDLE_PARK_NANOS = 100000000;
+    //how long a producer parks while the ring is full
+    private static final long FULL_PARK_NANOS = 10000;
+    //most events a consumer run by an executor takes before making way for other buses
+    public static final int DRAIN_BUDGET = 256;
+
+    /**
+     * Handed every event published on the bus, in order, on its own thread
+     */
+    public interface Consumer
+    {
+        /**
+         * Called for every event. The event must not be kept after this returns.
+         * @param event- the event
+         * @param endOfBatch- true if no more events are ready right now, so work can be flushed
+         */
+        void onEvent(ChatEvent event,boolean endOfBatch);
+    }
+
+    private final ChatEvent[] slots;
+    private final int mask;
+    private final int shift;
+    //the lap of the ring each slot was last published on
+    private final AtomicIntegerArray published;
+    private final boolean singleProducer;
+    //runs the consumers, or null if each has its own thread
+    private final Executor executor;
+    private final AtomicLong claimed = new AtomicLong(-1);
+    private long claimedSingle = -1;
+    //the last event every consumer finished with, when it was last looked at
+    private volatile long gatingCache = -1;
+    private volatile Processor[] processors = new Processor[0];
+    private volatile boolean started = false;
+    private volatile boolean closed = false;
+    private final AtomicLong fullWaits = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * Constructor for a bus any thread can publish to, with the default size
+     */
+    public ChatEventBus()
+    {
+        this(DEFAULT_SIZE,false);
+    }
+
+    /**
+     * Constructor
+     * @param size- the number of slots in the ring, a power of two
+     * @param singleProducer- true if only one thread at a time will publish
+     */
+    public ChatEventBus(int size,boolean singleProducer)
+    {
+        this(size,singleProducer,null);
+    }
+
+    /**
+     * Constructor
+     * @param size- the number of slots in the ring, a power of two
+     * @param singleProducer- true if only one thread at a time will publish
+     * @param executor- runs the consumers, or null to start a thread for each. Must not run producers.
+     */
+    public ChatEventBus(int size,boolean singleProducer,Executor executor)
+    {
+        if(Integer.bitCount(size)!=1)
+        {
+            throw new IllegalArgumentException("size must be a power of two");
+        }
+        this.slots = new ChatEvent[size];
+        this.mask = size-1;
+        this.shift = Integer.numberOfTrailingZeros(size);
+        this.published = new AtomicIntegerArray(size);
+        this.singleProducer = singleProducer;
+        this.executor = executor;
+        for(int i=0;i<size;i++)
+        {
+            slots[i] = new ChatEvent();
+            published.set(i,-1);
+        }
+    }
+
+    /**
+     * Adds a consumer. Consumers must all be added before the bus is started.
+     * @param name- names the consumer's thread
+     * @param consumer- the consumer
+     */
+    public synchronized void addConsumer(String name,Consumer consumer)
+    {
+        if(started)
+        {
+            throw new IllegalStateException("consumers must be added before the bus is started");
+        }
+        Processor[] grown = new Processor[processors.length+1];
+        System.arraycopy(processors,0,grown,0,processors.length);
+        grown[processors.length] = new Processor(name,consumer);
+        processors = grown;
+    }
+
+    /**
+     * Starts every consumer. Events published before now are waiting for them.
+     */
+    public synchronized void start()
+    {
+        if(started)
+        {
+            return;
+        }
+        started = true;
+        for(Processor processor : processors)
+        {
+            if(executor==null)
+            {
+                processor.thread.start();
+            }
+            else
+            {
+                processor.signal();
+            }
+        }
+    }
+
+    /**
+     * Stops the consumers once they have finished the events already published. Events published from
+     * now on are dropped.
+     */
+    public void close()
+    {
+        closed = true;
+        if(executor==null)
+        {
+            for(Processor processor : processors)
+            {
+                LockSupport.unpark(processor.thread);
+            }
+        }
+    }
+
+    /**
+     * Publishes an event which did not come from a frame of the user it is about. Waits if the ring is full.
+     * @param type- what kind of event it is
+     * @param senderId- the uniqueID of the user it is about
+     * @param timestamp- when it happened
+     * @param text- the message, or the user's name
+     */
+    public void publish(ChatEvent.Type type,long senderId,long timestamp,String text)
+    {
+        publish(type,senderId,0,timestamp,text);
+    }
+
+    /**
+     * Publishes an event to every consumer. Waits if the ring is full.
+     * @param type- what kind of event it is
+     * @param senderId- the uniqueID of the user it is about
+     * @param messageSequence- the user's sequence number for the frame it came from
+     * @param timestamp- when it happened
+     * @param text- the message, or the user's name
+     */
+    public void publish(ChatEvent.Type type,long senderId,long messageSequence,long timestamp,String text)
+    {
+        publish(type,senderId,messageSequence,timestamp,text,System.nanoTime());
+    }
+
+    /**
+     * Publishes an event to every consumer. Waits if the ring is full.
+     * @param type- what kind of event it is
+     * @param senderId- the uniqueID of the user it is about
+     * @param messageSequence- the user's sequence number for the frame it came from
+     * @param timestamp- when it happened
+     * @param text- the message, or the user's name
+     * @param receivedNanos- when the packet it came from arrived, from System.nanoTime()
+     */
+    public void publish(ChatEvent.Type type,long senderId,long messageSequence,long timestamp,String text,
+                        long receivedNanos)
+    {
+        if(closed)
+        {
+            return;
+        }
+        long sequence = singleProducer ? ++claimedSingle : claimed.incrementAndGet();
+        if(!waitForSpace(sequence))
+        {
+            return;
+        }
+        fill(sequence,type,senderId,messageSequence,timestamp,text,receivedNanos);
+    }
+
+    /**
+     * Publishes an event to every consumer if the ring has room for it, without ever waiting
+     * @param type- what kind of event it is
+     * @param senderId- the uniqueID of the user it is about
+     * @param messageSequence- the user's sequence number for the frame it came from
+     * @param timestamp- when it happened
+     * @param text- the message, or the user's name
+     * @param receivedNanos- when the packet it came from arrived, from System.nanoTime()
+     * @return true if it was published, false if the ring was full or the bus closed, and it was dropped
+     */
+    public boolean tryPublish(ChatEvent.Type type,long senderId,long messageSequence,long timestamp,String text,
+                              long receivedNanos)
+    {
+        if(closed)
+        {
+            return false;
+        }
+        long sequence;
+        if(singleProducer)
+        {
+            sequence = claimedSingle+1;
+            if(!hasSpace(sequence))
+            {
+                dropped.incrementAndGet();
+                return false;
+            }
+            claimedSingle = sequence;
+        }
+        else
+        {
+            //only claim the sequence once its slot is known to be free, so nothing is left unfilled
+            do
+            {
+                sequence = claimed.get()+1;
+                if(!hasSpace(sequence))
+                {
+                    dropped.incrementAndGet();
+                    return false;
+                }
+            }
+            while(!claimed.compareAndSet(sequence-1,sequence));
+        }
+        fill(sequence,type,senderId,messageSequence,timestamp,text,receivedNanos);
+        return true;
+    }
+
+    /**
+     * Fills the slot of a claimed sequence, makes it visible and wakes the consumers
+     */
+    private void fill(long sequence,ChatEvent.Type type,long senderId,long messageSequence,long timestamp,
+                      String text,long receivedNanos)
+    {
+        int index = (int)(sequence&mask);
+        slots[index].set(sequence,type,senderId,messageSequence,timestamp,text,receivedNanos);
+        published.set(index,(int)(sequence>>>shift));
+        for(Processor processor : processors)
+        {
+            if(executor!=null)
+            {
+                processor.signal();
+            }
+            else if(processor.sleeping)
+            {
+                LockSupport.unpark(processor.thread);
+            }
+        }
+    }
+
+    /**
+     * Getter for the number of events published
+     * @return events
+     */
+    public long getPublished()
+    {
+        return (singleProducer ? claimedSingle : claimed.get())+1;
+    }
+
+    /**
+     * Getter for the number of events the slowest consumer has not finished yet
+     * @return the backlog
+     */
+    public long getBacklog()
+    {
+        return processors.length==0 ? 0 : getPublished()-1-minimumProcessed();
+    }
+
+    /**
+     * Getter for the number of times a producer had to wait for the ring to have room
+     * @return waits
+     */
+    public long getFullWaits()
+    {
+        return fullWaits.get();
+    }
+
+    /**
+     * Getter for the number of events tryPublish dropped because the ring was full
+     * @return events
+     */
+    public long getDropped()
+    {
+        return dropped.get();
+    }
+
+    /**
+     * Checks if the slot for a sequence has been finished with by every consumer
+     * @return true if it has
+     */
+    private boolean hasSpace(long sequence)
+    {
+        long wrap = sequence-slots.length;
+        if(wrap<=gatingCache||processors.length==0)
+        {
+            return true;
+        }
+        long minimum = minimumProcessed();
+        gatingCache = minimum;
+        return wrap<=minimum;
+    }
+
+    /**
+     * Waits until the slot for a sequence has been finished with by every consumer
+     * @return false if the bus was closed while waiting
+     */
+    private boolean waitForSpace(long sequence)
+    {
+        long wrap = sequence-slots.length;
+        if(wrap<=gatingCache||processors.length==0)
+        {
+            return true;
+        }
+        int idle = 0;
+        while(true)
+        {
+            long minimum = minimumProcessed();
+            gatingCache = minimum;
+            if(wrap<=minimum)
+            {
+                return true;
+            }
+            if(closed)
+            {
+                return false;
+            }
+            if(idle==0)
+            {
+                fullWaits.incrementAndGet();
+            }
+            idle = idle(idle,FULL_PARK_NANOS);
+        }
+    }
+
+    private long minimumProcessed()
+    {
+        long minimum = Long.MAX_VALUE;
+        for(Processor processor : processors)
+        {
+            minimum = Math.min(minimum,processor.processed.get());
+        }
+        return minimum;
+    }
+
+    private boolean isPublished(long sequence)
+    {
+        return published.get((int)(sequence&mask))==(int)(sequence>>>shift);
+    }
+
+    /**
+     * Spins, then yields, then parks, depending on how long a thread has been waiting
+     * @return the new wait count
+     */
+    private static int idle(int count,long parkNanos)
+    {
+        if(count>=SPINS+YIELDS)
+        {
+            LockSupport.parkNanos(parkNanos);
+        }
+        else if(count>=SPINS)
+        {
+            Thread.yield();
+        }
+        return count+1;
+    }
+
+    /**
+     * Runs one consumer, on its own thread or on the bus's executor
+     */
+    private class Processor implements Runnable
+    {
+        final Consumer consumer;
+        //null if the consumer is run by the executor
+        final Thread thread;
+        //the last event this consumer finished with
+        final AtomicLong processed = new AtomicLong(-1);
+        volatile boolean sleeping = false;
+        //true while the consumer is waiting for or running on the executor
+        final AtomicBoolean scheduled = new AtomicBoolean();
+        //the next event to take, only touched by whoever is running the consumer
+        long next = 0;
+
+        Processor(String name,Consumer consumer)
+        {
+            this.consumer = consumer;
+            if(executor==null)
+            {
+                this.thread = new Thread(this,"ChatEventBus-"+name);
+                thread.setDaemon(true);
+            }
+            else
+            {
+                this.thread = null;
+            }
+        }
+
+        /**
+         * Hands the consumer to the executor, unless it is already there or the bus has not started
+         */
+        void signal()
+        {
+            if(started&&!scheduled.get()&&scheduled.compareAndSet(false,true))
+            {
+                executor.execute(this);
+            }
+        }
+
+        @Override
+        public void run()
+        {
+            if(thread==null)
+            {
+                drain();
+                return;
+            }
+            int idle = 0;
+            while(true)
+            {
+                if(!isPublished(next))
+                {
+                    if(closed)
+                    {
+                        return;
+                    }
+                    if(idle>=SPINS+YIELDS)
+                    {
+                        //producers only unpark a consumer which says it is sleeping, so look once more
+                        //after saying so
+                        sleeping = true;
+                        if(!isPublished(next)&&!closed)
+                        {
+                            LockSupport.parkNanos(IDLE_PARK_NANOS);
+                        }
+                        sleeping = false;
+                    }
+                    else
+                    {
+                        idle = idle(idle,IDLE_PARK_NANOS);
+                    }
+                    continue;
+                }
+                idle = 0;
+                consume(Integer.MAX_VALUE);
+            }
+        }
+
+        /**
+         * Takes the events which are ready, up to the budget, then gives the executor back. Producers only
+         * hand over a consumer which is not scheduled, so look once more after saying so.
+         */
+        private void drain()
+        {
+            int budget = DRAIN_BUDGET;
+            while(budget>0&&isPublished(next))
+            {
+                budget -= consume(budget);
+            }
+            scheduled.set(false);
+            if(isPublished(next))
+            {
+                signal();
+            }
+        }
+
+        /**
+         * Hands the consumer every event that is ready, in one batch
+         * @param limit- the most events to take
+         * @return the number taken
+         */
+        private int consume(int limit)
+        {
+            long last = next;
+            while(last-next+1<limit&&isPublished(last+1))
+            {
+                last++;
+            }
+            for(long sequence=next;sequence<=last;sequence++)
+            {
+                try
+                {
+                    consumer.onEvent(slots[(int)(sequence&mask)],sequence==last);
+                }
+                catch(RuntimeException e)
+                {
+                    e.printStackTrace();
+                }
+            }
+            processed.lazySet(last);
+            int taken = (int)(last-next+1);
+            next = last+1;
+            return taken;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Consumer which writes every event of a chatroom to a stream, one line each. Turned on for every
+ * chatroom by setting the mychatapp.logEvents system property to true.
+ */
+public class ChatEventLogger implements ChatEventBus.Consumer
+{
+    //system property which adds a logger writing to standard out to every model
+    public static final String LOG_PROPERTY = "mychatapp.logEvents";
+
+    private final PrintStream out;
+    //only used on the consumer's thread
+    private final SimpleDateFormat format = new SimpleDateFormat("HH:mm:ss.SSS");
+    private final Date date = new Date();
+
+    /**
+     * Constructor
+     * @param out- where the lines are written
+     */
+    public ChatEventLogger(PrintStream out)
+    {
+        this.out = out;
+    }
+
+    @Override
+    public void onEvent(ChatEvent event,boolean endOfBatch)
+    {
+        date.setTime(event.getTimestamp());
+        out.println(format.format(date)+" "+event.getType()+" "+Long.toHexString(event.getSenderId())
+                +" "+event.getText());
+        if(endOfBatch)
+        {
+            out.flush();
+        }
+    }
+}
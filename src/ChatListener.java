@@ -0,0 +1,33 @@
+/**
+ * Told about what changes in a chatroom's model, such as by a ChatView's RedrawScheduler, a bot or an
+ * archiver. Any number of listeners can be added to a model.
+ *
+ * Listeners are called on whichever thread changed the model, with the model locked, so they must return
+ * quickly and hand anything slow, or anything which calls back into the model from another thread, to a
+ * thread of their own.
+ */
+public interface ChatListener
+{
+    /**
+     * A message was added to the chat log, either received from another user or sent by this one
+     * @param room- the model of the chatroom
+     * @param index- where the message is in the chat log
+     * @param message- the message
+     */
+    void messageAdded(ChatModel room,long index,ChatMessage message);
+
+    /**
+     * A user joined or left the chatroom. A user who changes their name leaves under the old name and
+     * joins under the new one.
+     * @param room- the model of the chatroom
+     * @param change- who joined or left
+     */
+    void userChanged(ChatModel room,ChatModel.UserChange change);
+
+    /**
+     * The chat log was built again after the chat from before this user joined was merged in, so every
+     * index may have moved
+     * @param room- the model of the chatroom
+     */
+    void chatLogRebuilt(ChatModel room);
+}
@@ -0,0 +1,106 @@
+import javax.swing.AbstractListModel;
+
+/**
+ * List model that shows the chat log held by a ChatModel in a JList.
+ *
+ * The list model does not copy any messages. It remembers which range of the log is shown, and
+ * each call to update() tells the list only about the messages that were added or evicted since the
+ * last call. Together with a fixed cell size this lets the list only paint the rows on screen,
+ * no matter how long the history is.
+ */
+public class ChatLogListModel extends AbstractListModel<ChatMessage>
+{
+    private static final long serialVersionUID = 1L;
+
+    private final ChatModel model;
+
+    //the range of the log the list currently knows about
+    private long shownStart;
+    private long shownEnd;
+
+    /**
+     * Constructor
+     * @param model- the model holding the chat log
+     */
+    public ChatLogListModel(ChatModel model)
+    {
+        this.model = model;
+        this.shownStart = model.getChatLogStart();
+        this.shownEnd = model.getChatLogEnd();
+    }
+
+    @Override
+    public int getSize()
+    {
+        return (int)(shownEnd-shownStart);
+    }
+
+    /**
+     * Getter for a row of the list
+     * @param index- the row
+     * @return the message, or null if it was evicted after the last update
+     */
+    @Override
+    public ChatMessage getElementAt(int index)
+    {
+        return model.getMessage(shownStart+index);
+    }
+
+    /**
+     * Converts a row of the list to the index of the message in the chat log
+     * @param row- the row
+     * @return the index of the message shown in that row
+     */
+    public long getLogIndex(int row)
+    {
+        return shownStart+row;
+    }
+
+    /**
+     * Shows the whole chat log again, after the model built it anew. Every row is reported as changed.
+     * Must be called on the event dispatch thread.
+     */
+    public void reset()
+    {
+        int before = getSize();
+        shownStart = model.getChatLogStart();
+        shownEnd = model.getChatLogEnd();
+        fireContentsChanged(this,0,Math.max(before,getSize())-1);
+    }
+
+    /**
+     * Brings the list up to date with the model. Only the rows which changed are reported to the list.
+     * Must be called on the event dispatch thread.
+     * @return the number of rows that were added
+     */
+    public int update()
+    {
+        long start = model.getChatLogStart();
+        long end = model.getChatLogEnd();
+
+        //drop the rows for messages that were evicted from memory
+        if(start>shownStart)
+        {
+            long removed = Math.min(start,shownEnd)-shownStart;
+            shownStart = start;
+            if(shownEnd<start)
+            {
+                shownEnd = start;
+            }
+            if(removed>0)
+            {
+                fireIntervalRemoved(this,0,(int)removed-1);
+            }
+        }
+
+        //add the rows for new messages
+        if(end>shownEnd)
+        {
+            int first = getSize();
+            shownEnd = end;
+            fireIntervalAdded(this,first,getSize()-1);
+            return getSize()-first;
+        }
+        return 0;
+    }
+}
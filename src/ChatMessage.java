@@ -0,0 +1,95 @@
+/**
+ * A single line of the chat log. Stores who sent the message, the sender's sequence number for it,
+ * when it was received and the text itself. Messages are not changed once they are created, except that
+ * a message this client wrote learns its sequence number when it is sent, so they can be shared between
+ * the model and the view without copying.
+ */
+public class ChatMessage
+{
+    //id used for messages that were not sent by any user, such as the welcome line
+    public static final long SYSTEM_ID = 0;
+
+    private final long senderId;
+    //set once the message is sent, for the ones this client wrote
+    private volatile long sequence;
+    private final long timestamp;
+    private final String text;
+
+    /**
+     * Constructor
+     * @param senderId- the uniqueID of the client which sent the message
+     * @param timestamp- the time the message was received, in milliseconds
+     * @param text- the message itself
+     */
+    public ChatMessage(long senderId,long timestamp,String text)
+    {
+        this(senderId,0,timestamp,text);
+    }
+
+    /**
+     * Constructor
+     * @param senderId- the uniqueID of the client which sent the message
+     * @param sequence- the sender's sequence number for the frame which carried it, or 0 if not known
+     * @param timestamp- the time the message was received, in milliseconds
+     * @param text- the message itself
+     */
+    public ChatMessage(long senderId,long sequence,long timestamp,String text)
+    {
+        this.senderId = senderId;
+        this.sequence = sequence;
+        this.timestamp = timestamp;
+        this.text = text;
+    }
+
+    /**
+     * Getter for the sender's uniqueID
+     * @return senderId- the id of the client who sent this message
+     */
+    public long getSenderId()
+    {
+        return senderId;
+    }
+
+    /**
+     * Getter for the sender's sequence number for the message. Together with the sender's id it tells
+     * apart copies of the same message received in different ways.
+     * @return sequence- the sequence number, or 0 if not known
+     */
+    public long getSequence()
+    {
+        return sequence;
+    }
+
+    /**
+     * Records the sequence number a message written by this client was sent with. Only called by the proxy.
+     * @param sequence- the sequence number
+     */
+    void setSequence(long sequence)
+    {
+        this.sequence = sequence;
+    }
+
+    /**
+     * Getter for the time the message was received
+     * @return timestamp- milliseconds since the epoch
+     */
+    public long getTimestamp()
+    {
+        return timestamp;
+    }
+
+    /**
+     * Getter for the message text
+     * @return text- the message
+     */
+    public String getText()
+    {
+        return text;
+    }
+
+    @Override
+    public String toString()
+    {
+        return text;
+    }
+}
@@ -0,0 +1,597 @@
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counts what goes on in one chatroom, from packets on the wire to messages on screen.
+ *
+ * Every model has one, which its proxy, batcher and redraw scheduler record into. It counts packets,
+ * bytes and frames of each kind sent and received, packets which could not be decoded, and how often the
+ * event bus had to wait for the model's lock. It keeps histograms of how long that wait was, how long a
+ * redraw waited for the event dispatch thread, and how long a message took from arriving in a packet to
+ * being drawn. It also counts the messages this client held back or shed because it was sending too fast,
+ * and the messages of each other client shed because they were. Recording never locks or allocates, so
+ * it is always on, except for counting a message shed, which only happens when a sender is flooding.
+ *
+ * The metrics can be registered as an MBean, and written to a stream every so often when the
+ * mychatapp.metricsLog system property is set to the interval in milliseconds.
+ */
+public class ChatMetrics implements ChatMetricsMBean
+{
+    //system property for how often the metrics are written to standard out, in milliseconds
+    public static final String LOG_PROPERTY = "mychatapp.metricsLog";
+    //a wait for the model's lock longer than this counts as contended
+    public static final long CONTENDED_NANOS = 1000;
+    //how many arrival times of messages not drawn yet are kept
+    public static final int RENDER_QUEUE = 4096;
+    //how long after starting the metrics are registered as an MBean
+    public static final long REGISTER_DELAY = 1000;
+
+    //registers MBeans on a thread of its own, so starting the MBean server never holds up the workers
+    private static ExecutorService registrar;
+
+    private static final String[] OPCODES = {"USER_JOIN","SEND_NAME","SEND_MESSAGE","USER_EXIT","FRAGMENT",
+            "NAK","ROSTER","DIGEST","HISTORY"};
+
+    private final AtomicLong packetsSent = new AtomicLong();
+    private final AtomicLong packetsReceived = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLongArray framesSent = new AtomicLongArray(256);
+    private final AtomicLongArray framesReceived = new AtomicLongArray(256);
+    private final AtomicLong decodeFailures = new AtomicLong();
+    private final AtomicLong lockContended = new AtomicLong();
+    private final LatencyHistogram lockWait = new LatencyHistogram();
+    private final AtomicLong edtPosted = new AtomicLong();
+    private final AtomicLong edtRan = new AtomicLong();
+    private final LatencyHistogram edtLag = new LatencyHistogram();
+    private final LatencyHistogram receiveToRender = new LatencyHistogram();
+    private final AtomicLong sendsDelayed = new AtomicLong();
+    private final AtomicLong sendsShed = new AtomicLong();
+    private final AtomicLong messagesShed = new AtomicLong();
+    //messages shed for each sender, by uniqueID. Locked on itself.
+    private final LongMap<Shed> shedBySender = new LongMap<Shed>();
+
+    //when each message waiting to be drawn arrived. Filled by the model's event thread and emptied by
+    //the event dispatch thread, so each end only moves its own index. Made when the first message is
+    //queued, since only models with a view queue them.
+    private long[] arrivals;
+    private volatile long arrivalsHead = 0;
+    private volatile long arrivalsTail = 0;
+    private final AtomicLong arrivalsDropped = new AtomicLong();
+
+    private ObjectName name;
+    private boolean closed = false;
+    private ScheduledFuture<?> logTask;
+
+    /**
+     * Registers the metrics with the platform MBean server, and starts writing them to standard out if the
+     * mychatapp.metricsLog system property is set
+     * @param id- the uniqueID of the client they belong to, which names the MBean
+     */
+    public synchronized void start(final long id)
+    {
+        //the first registration starts the MBean server, which takes hundreds of milliseconds, so it is
+        //done on a thread of its own once the chatroom has been joined and the first messages are out
+        ChatTimers.shared().schedule(new Runnable()
+        {
+            public void run()
+            {
+                registrar().execute(new Runnable()
+                {
+                    public void run()
+                    {
+                        register(id);
+                    }
+                });
+            }
+        },REGISTER_DELAY,TimeUnit.MILLISECONDS);
+        long interval = Long.getLong(LOG_PROPERTY,0);
+        if(interval>0)
+        {
+            startLog(System.out,"metrics "+Long.toHexString(id),interval);
+        }
+    }
+
+    private static synchronized ExecutorService registrar()
+    {
+        if(registrar==null)
+        {
+            registrar = Executors.newSingleThreadExecutor(new ThreadFactory()
+            {
+                public Thread newThread(Runnable task)
+                {
+                    Thread thread = new Thread(task,"ChatMetrics-register");
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            });
+        }
+        return registrar;
+    }
+
+    private synchronized void register(long id)
+    {
+        if(closed)
+        {
+            return;
+        }
+        try
+        {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            name = new ObjectName("mychatapp:type=ChatMetrics,id="+Long.toHexString(id));
+            server.registerMBean(this,name);
+        }
+        catch(JMException e)
+        {
+            e.printStackTrace();
+            name = null;
+        }
+    }
+
+    /**
+     * Writes the summary to a stream every so often
+     * @param out- where it is written
+     * @param prefix- written at the start of every line
+     * @param intervalMillis- how often
+     */
+    public synchronized void startLog(final PrintStream out,final String prefix,long intervalMillis)
+    {
+        if(logTask!=null)
+        {
+            logTask.cancel(false);
+        }
+        logTask = ChatTimers.shared().scheduleAtFixedRate(new Runnable()
+        {
+            public void run()
+            {
+                out.println(prefix+" "+getSummary());
+            }
+        },intervalMillis,intervalMillis,TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops writing the metrics and removes the MBean
+     */
+    public synchronized void close()
+    {
+        closed = true;
+        if(logTask!=null)
+        {
+            logTask.cancel(false);
+            logTask = null;
+        }
+        if(name!=null)
+        {
+            try
+            {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            }
+            catch(JMException e)
+            {
+                e.printStackTrace();
+            }
+            name = null;
+        }
+    }
+
+    /**
+     * Records a packet handed to the transport
+     * @param bytes- its size
+     */
+    public void packetSent(int bytes)
+    {
+        packetsSent.incrementAndGet();
+        bytesSent.addAndGet(bytes);
+    }
+
+    /**
+     * Records a frame added to a packet, including frames sent again
+     * @param opcode- what kind of frame it is
+     */
+    public void frameSent(int opcode)
+    {
+        framesSent.incrementAndGet(opcode&0xFF);
+    }
+
+    /**
+     * Records a packet from the transport
+     * @param bytes- its size
+     */
+    public void packetReceived(int bytes)
+    {
+        packetsReceived.incrementAndGet();
+        bytesReceived.addAndGet(bytes);
+    }
+
+    /**
+     * Records a frame read from a packet
+     * @param opcode- what kind of frame it is
+     */
+    public void frameReceived(int opcode)
+    {
+        framesReceived.incrementAndGet(opcode&0xFF);
+    }
+
+    /**
+     * Records a packet, or the rest of one, which could not be decoded
+     */
+    public void decodeFailed()
+    {
+        decodeFailures.incrementAndGet();
+    }
+
+    /**
+     * Records a message this client sent which had to wait, because it was sending too fast
+     */
+    public void sendDelayed()
+    {
+        sendsDelayed.incrementAndGet();
+    }
+
+    /**
+     * Records a message this client did not send, because too many were already waiting
+     */
+    public void sendShed()
+    {
+        sendsShed.incrementAndGet();
+    }
+
+    /**
+     * Records a message from another client which was shed, because they were sending too fast
+     * @param senderId- the uniqueID of the sender
+     */
+    public void messageShed(long senderId)
+    {
+        messagesShed.incrementAndGet();
+        synchronized(shedBySender)
+        {
+            Shed shed = shedBySender.get(senderId);
+            if(shed==null)
+            {
+                shed = new Shed(senderId);
+                shedBySender.put(senderId,shed);
+            }
+            shed.count++;
+        }
+    }
+
+    /**
+     * Getter for the number of messages from one sender which were shed
+     * @param senderId- the uniqueID of the sender
+     * @return messages
+     */
+    public long getMessagesShed(long senderId)
+    {
+        synchronized(shedBySender)
+        {
+            Shed shed = shedBySender.get(senderId);
+            return shed==null ? 0 : shed.count;
+        }
+    }
+
+    /**
+     * Records how long a thread waited for the model's lock
+     * @param nanos- the wait
+     */
+    public void lockWaited(long nanos)
+    {
+        lockWait.record(nanos);
+        if(nanos>CONTENDED_NANOS)
+        {
+            lockContended.incrementAndGet();
+        }
+    }
+
+    /**
+     * Records a task posted to the event dispatch thread
+     */
+    public void edtPosted()
+    {
+        edtPosted.incrementAndGet();
+    }
+
+    /**
+     * Records a posted task being run by the event dispatch thread
+     * @param lagNanos- how long it waited
+     */
+    public void edtRan(long lagNanos)
+    {
+        edtRan.incrementAndGet();
+        edtLag.record(lagNanos);
+    }
+
+    /**
+     * Records a message which will be drawn with the next redraw. Only called by the model's event thread.
+     * @param receivedNanos- when the packet it came in arrived, from System.nanoTime()
+     */
+    public void messageQueued(long receivedNanos)
+    {
+        long head = arrivalsHead;
+        if(head-arrivalsTail>=RENDER_QUEUE)
+        {
+            arrivalsDropped.incrementAndGet();
+            return;
+        }
+        if(arrivals==null)
+        {
+            arrivals = new long[RENDER_QUEUE];
+        }
+        arrivals[(int)(head%RENDER_QUEUE)] = receivedNanos;
+        arrivalsHead = head+1;
+    }
+
+    /**
+     * Records every queued message as drawn now. Only called by the event dispatch thread.
+     */
+    public void messagesRendered()
+    {
+        long now = System.nanoTime();
+        long tail = arrivalsTail;
+        long head = arrivalsHead;
+        while(tail<head)
+        {
+            receiveToRender.record(now-arrivals[(int)(tail%RENDER_QUEUE)]);
+            tail++;
+        }
+        arrivalsTail = tail;
+    }
+
+    /**
+     * Getter for the histogram of arrival to drawing, in nanoseconds
+     * @return the histogram
+     */
+    public LatencyHistogram getReceiveToRender()
+    {
+        return receiveToRender;
+    }
+
+    /**
+     * Getter for the histogram of waits for the model's lock, in nanoseconds
+     * @return the histogram
+     */
+    public LatencyHistogram getLockWait()
+    {
+        return lockWait;
+    }
+
+    /**
+     * Getter for the histogram of waits for the event dispatch thread, in nanoseconds
+     * @return the histogram
+     */
+    public LatencyHistogram getEdtLag()
+    {
+        return edtLag;
+    }
+
+    /**
+     * Getter for the number of frames of one kind sent
+     * @param opcode- the kind
+     * @return frames
+     */
+    public long getFramesSent(int opcode)
+    {
+        return framesSent.get(opcode&0xFF);
+    }
+
+    /**
+     * Getter for the number of frames of one kind received
+     * @param opcode- the kind
+     * @return frames
+     */
+    public long getFramesReceived(int opcode)
+    {
+        return framesReceived.get(opcode&0xFF);
+    }
+
+    /**
+     * Getter for the number of messages whose drawing was not timed because too many were waiting
+     * @return messages
+     */
+    public long getRenderSamplesDropped()
+    {
+        return arrivalsDropped.get();
+    }
+
+    @Override
+    public long getPacketsSent()
+    {
+        return packetsSent.get();
+    }
+
+    @Override
+    public long getPacketsReceived()
+    {
+        return packetsReceived.get();
+    }
+
+    @Override
+    public long getBytesSent()
+    {
+        return bytesSent.get();
+    }
+
+    @Override
+    public long getBytesReceived()
+    {
+        return bytesReceived.get();
+    }
+
+    @Override
+    public String getFramesSent()
+    {
+        return byOpcode(framesSent);
+    }
+
+    @Override
+    public String getFramesReceived()
+    {
+        return byOpcode(framesReceived);
+    }
+
+    @Override
+    public long getDecodeFailures()
+    {
+        return decodeFailures.get();
+    }
+
+    @Override
+    public long getModelLockContended()
+    {
+        return lockContended.get();
+    }
+
+    @Override
+    public long getModelLockWaitP99()
+    {
+        return lockWait.getPercentile(99)/1000;
+    }
+
+    @Override
+    public long getEdtQueueDepth()
+    {
+        return edtPosted.get()-edtRan.get();
+    }
+
+    @Override
+    public long getEdtLagP99()
+    {
+        return edtLag.getPercentile(99)/1000;
+    }
+
+    @Override
+    public long getReceiveToRenderP50()
+    {
+        return receiveToRender.getPercentile(50)/1000;
+    }
+
+    @Override
+    public long getReceiveToRenderP99()
+    {
+        return receiveToRender.getPercentile(99)/1000;
+    }
+
+    @Override
+    public long getReceiveToRenderMax()
+    {
+        return receiveToRender.getMax()/1000;
+    }
+
+    @Override
+    public long getSendsDelayed()
+    {
+        return sendsDelayed.get();
+    }
+
+    @Override
+    public long getSendsShed()
+    {
+        return sendsShed.get();
+    }
+
+    @Override
+    public long getMessagesShed()
+    {
+        return messagesShed.get();
+    }
+
+    @Override
+    public String getShedBySender()
+    {
+        StringBuilder text = new StringBuilder();
+        synchronized(shedBySender)
+        {
+            for(Shed shed : shedBySender.values())
+            {
+                if(text.length()>0)
+                {
+                    text.append(' ');
+                }
+                text.append(Long.toHexString(shed.id)).append('=').append(shed.count);
+            }
+        }
+        return text.toString();
+    }
+
+    @Override
+    public String getSummary()
+    {
+        return "packets out="+getPacketsSent()+" in="+getPacketsReceived()+" bytes out="+getBytesSent()
+                +" in="+getBytesReceived()+" decodeFailures="+getDecodeFailures()
+                +" | sent "+getFramesSent()+" | received "+getFramesReceived()
+                +" | lock contended="+getModelLockContended()+" wait "+lockWait.toMicros()
+                +" | edt queued="+getEdtQueueDepth()+" lag "+edtLag.toMicros()
+                +" | render "+receiveToRender.toMicros()
+                +" | sends delayed="+getSendsDelayed()+" shed="+getSendsShed()
+                +" | shed "+getMessagesShed()+(getMessagesShed()>0 ? " "+getShedBySender() : "");
+    }
+
+    @Override
+    public void reset()
+    {
+        packetsSent.set(0);
+        packetsReceived.set(0);
+        bytesSent.set(0);
+        bytesReceived.set(0);
+        for(int i=0;i<256;i++)
+        {
+            framesSent.set(i,0);
+            framesReceived.set(i,0);
+        }
+        decodeFailures.set(0);
+        lockContended.set(0);
+        lockWait.reset();
+        edtLag.reset();
+        receiveToRender.reset();
+        arrivalsDropped.set(0);
+        sendsDelayed.set(0);
+        sendsShed.set(0);
+        messagesShed.set(0);
+        synchronized(shedBySender)
+        {
+            shedBySender.clear();
+        }
+    }
+
+    private static String byOpcode(AtomicLongArray counts)
+    {
+        StringBuilder text = new StringBuilder();
+        for(int i=0;i<256;i++)
+        {
+            long n = counts.get(i);
+            if(n>0)
+            {
+                if(text.length()>0)
+                {
+                    text.append(' ');
+                }
+                text.append(i<OPCODES.length ? OPCODES[i] : "OPCODE_"+i).append('=').append(n);
+            }
+        }
+        return text.toString();
+    }
+
+    /**
+     * How many messages of one sender were shed
+     */
+    private static class Shed
+    {
+        final long id;
+        long count = 0;
+
+        Shed(long id)
+        {
+            this.id = id;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/**
+ * What a chatroom's ChatMetrics show through JMX, such as in JConsole under mychatapp. Latencies are in
+ * microseconds.
+ */
+public interface ChatMetricsMBean
+{
+    long getPacketsSent();
+
+    long getPacketsReceived();
+
+    long getBytesSent();
+
+    long getBytesReceived();
+
+    /**
+     * @return frames sent of each kind, such as "SEND_MESSAGE=12 NAK=1"
+     */
+    String getFramesSent();
+
+    /**
+     * @return frames received of each kind, such as "SEND_MESSAGE=12 DIGEST=4"
+     */
+    String getFramesReceived();
+
+    long getDecodeFailures();
+
+    long getModelLockContended();
+
+    long getModelLockWaitP99();
+
+    long getEdtQueueDepth();
+
+    long getEdtLagP99();
+
+    long getReceiveToRenderP50();
+
+    long getReceiveToRenderP99();
+
+    long getReceiveToRenderMax();
+
+    /**
+     * @return messages this client sent which waited because it was sending too fast
+     */
+    long getSendsDelayed();
+
+    /**
+     * @return messages this client did not send because too many were waiting
+     */
+    long getSendsShed();
+
+    /**
+     * @return messages from other clients shed because they were sending too fast
+     */
+    long getMessagesShed();
+
+    /**
+     * @return messages shed for each sender, by uniqueID in hex, such as "1f3a=40"
+     */
+    String getShedBySender();
+
+    /**
+     * @return every metric on one line, as written to the log
+     */
+    String getSummary();
+
+    /**
+     * Sets every counter and histogram back to zero
+     */
+    void reset();
+}
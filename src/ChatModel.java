@@ -1,5 +1,10 @@
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Created by Austin on 1/2/2016.
@@ -7,16 +12,44 @@ import java.util.ArrayList;
  * The model for the chat application. Stores all the data associated with the application, such
  * as the chatlog or list of users. It connects the view to the proxy, which is how the different clients
  * are able to communicate with each other
+ *
+ * The proxy does not call the model directly. It publishes what happens in the chatroom on the model's
+ * event bus, and the model takes the events in order on the bus's own thread, alongside any other
+ * consumers such as a logger.
+ *
+ * A user who joins is sent the recent chat log by one of the clients already in the chatroom. Once all of
+ * it has arrived it is merged in ahead of the messages received since joining, and the chat log is built
+ * again in the new order.
+ *
+ * The model does not know about any view. Whatever shows or uses the chat, such as a ChatView through its
+ * RedrawScheduler, a bot or an archiver, adds a ChatListener, so the model runs the same with or without one.
  */
 public class ChatModel
 {
     //private variables
     private ChatProxy proxy;
-    private ChatView view;
+    private RedrawScheduler redraws;
+    private final CopyOnWriteArrayList<ChatListener> listeners = new CopyOnWriteArrayList<ChatListener>();
 
     private String myName;
-    private String chatLog="Welcome to MyChatApp";
-    private ArrayList<String> allNames= new ArrayList<String>();
+    //both are replaced when the chat log is built again, and read without locking the model
+    private volatile MessageStore chatLog;
+    //every message of the chat log, by the words in it
+    private volatile SearchIndex searchIndex = new SearchIndex();
+    //where the chat log is kept between runs, or null
+    private HistoryLog history;
+    //the newest time restored from the history, and the index of the first message of this session
+    private long restoredUntil = Long.MIN_VALUE;
+    private long liveStart;
+    //held while the chat log is built again, so only one merge runs at a time
+    private final Object merging = new Object();
+    private UserRoster users = new UserRoster();
+    //changes to the users which the view has not seen yet, or null if no view is watching
+    private ArrayList<UserChange> userChanges;
+    //what the proxy sees happen in the chatroom
+    private final ChatEventBus events;
+    //what goes on in the chatroom, from packets to redraws
+    private final ChatMetrics metrics = new ChatMetrics();
 
     /**
      * Constructor
@@ -24,70 +57,274 @@ public class ChatModel
      */
     public ChatModel(String name)
     {
-        this.myName = name;
-        allNames.add(myName);
+        this(name,new MessageStore());
+    }
+
+    /**
+     * Constructor
+     * @param name- the name of the user
+     * @param chatLog- the store the chat log is kept in. Controls how many messages are kept in memory.
+     */
+    public ChatModel(String name,MessageStore chatLog)
+    {
+        this(name,chatLog,null);
+    }
+
+    /**
+     * Constructor. The newest messages of the history are put back in the chat log before anything else.
+     * @param name- the name of the user
+     * @param chatLog- the store the chat log is kept in. Controls how many messages are kept in memory.
+     * @param history- where the chat log is kept between runs, or null to not keep it
+     */
+    public ChatModel(String name,MessageStore chatLog,HistoryLog history)
+    {
+        this(name,chatLog,history,new ChatEventBus());
     }
 
     /**
-     * Modifies the master list of names.
-     * @param name- the name which is to be added or removed
-     * @param value- A positive or 0 value will add the name to the list.
-     *               A negative value will remove the name if it exists.
-     * @return boolean- if the operation was a success.
+     * Constructor for a model whose events come through the given bus, such as one which shares its
+     * consumers' threads with other chatrooms
+     * @param name- the name of the user
+     * @param chatLog- the store the chat log is kept in. Controls how many messages are kept in memory.
+     * @param history- where the chat log is kept between runs, or null to not keep it
+     * @param events- the bus the proxy will publish to, which must not have been started
      */
-    public synchronized boolean modifyNames(String name,int value)
+    public ChatModel(String name,MessageStore chatLog,HistoryLog history,ChatEventBus events)
     {
-        //adding a name
-        if(value>=0)
+        this.myName = name;
+        this.events = events;
+        this.chatLog = chatLog;
+        this.history = history;
+        if(history!=null)
         {
-            allNames.add(name);
-            view.redraw(1);
-            return true;
+            restoreHistory();
+            chatLog.setHistory(history);
         }
-        else
+        liveStart = append(new ChatMessage(ChatMessage.SYSTEM_ID,System.currentTimeMillis(),"Welcome to MyChatApp"));
+        events.addConsumer("model",new ChatEventBus.Consumer()
         {
-            //removing a name
-            for(int i =0;i<allNames.size();i++)
+            public void onEvent(ChatEvent event,boolean endOfBatch)
             {
-                if(allNames.get(i).equals(name))
+                eventReceived(event);
+            }
+        });
+        if(Boolean.getBoolean(ChatEventLogger.LOG_PROPERTY))
+        {
+            events.addConsumer("log",new ChatEventLogger(System.out));
+        }
+    }
+
+    /**
+     * Puts the newest messages of the history back in the chat log, as many as it keeps in memory
+     */
+    private void restoreHistory()
+    {
+        long from = Math.max(history.getFirstIndex(),history.getEndIndex()-chatLog.getRetention());
+        try
+        {
+            history.replay(from,new HistoryLog.Visitor()
+            {
+                public void message(long index,ChatMessage message)
                 {
-                    allNames.remove(i);
-                    view.redraw(1);
-                    return true;
+                    append(message);
+                    restoredUntil = Math.max(restoredUntil,message.getTimestamp());
                 }
+            });
+        }
+        catch(IOException e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Getter for the bus the proxy publishes to. Other consumers can be added until the proxy is set.
+     * @return events
+     */
+    public ChatEventBus getEvents()
+    {
+        return events;
+    }
+
+    /**
+     * Getter for the metrics, which the proxy and view record into
+     * @return metrics
+     */
+    public ChatMetrics getMetrics()
+    {
+        return metrics;
+    }
+
+    /**
+     * Updates the model with an event from the proxy. Called on the bus's thread, which times how long it
+     * waits for the model's lock.
+     * @param event- the event
+     */
+    private void eventReceived(ChatEvent event)
+    {
+        long waiting = System.nanoTime();
+        synchronized(this)
+        {
+            metrics.lockWaited(System.nanoTime()-waiting);
+            switch(event.getType())
+            {
+                case MESSAGE_RECEIVED:
+                    redrawChat(event.getSenderId(),event.getMessageSequence(),event.getText());
+                    if(redraws!=null)
+                    {
+                        metrics.messageQueued(event.getReceivedNanos());
+                    }
+                    break;
+                case USER_JOINED:
+                case NAME_SYNC:
+                    addUser(event.getSenderId(),event.getText());
+                    break;
+                case USER_LEFT:
+                    removeUser(event.getSenderId());
+                    break;
             }
         }
-        return false;
     }
 
     /**
-     * Set the associated proxy for this model
+     * Removes a user from the userlist whenever someone leaves the chat
+     * @param id- the uniqueID of the user who left
+     * @return boolean- false if the user was not in the list.
+     */
+    public synchronized boolean removeUser(long id)
+    {
+        String name = users.getName(id);
+        if(name==null)
+        {
+            return false;
+        }
+        users.remove(id);
+        userChanged(new UserChange(id,name,false));
+        return true;
+    }
+
+    /**
+     * Passes a change to the users on to the view, if one is watching, and to the listeners
+     * @param change- the change
+     */
+    private void userChanged(UserChange change)
+    {
+        if(userChanges!=null)
+        {
+            userChanges.add(change);
+        }
+        for(ChatListener listener : listeners)
+        {
+            listener.userChanged(this,change);
+        }
+    }
+
+    /**
+     * Adds a listener, which is told about every change from now on
+     * @param listener- the listener
+     */
+    public void addListener(ChatListener listener)
+    {
+        listeners.add(listener);
+    }
+
+    /**
+     * Removes a listener
+     * @param listener- the listener
+     */
+    public void removeListener(ChatListener listener)
+    {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Tells the listeners about a message added to the chat log
+     */
+    private void messageAdded(long index,ChatMessage message)
+    {
+        for(ChatListener listener : listeners)
+        {
+            listener.messageAdded(this,index,message);
+        }
+    }
+
+    /**
+     * Starts passing changes to the users on to the view.
+     * @return- a change adding each user who is already here, in order
+     */
+    public synchronized List<UserChange> watchUsers()
+    {
+        userChanges = new ArrayList<UserChange>();
+        ArrayList<UserChange> current = new ArrayList<UserChange>(users.size());
+        for(int row=0;row<users.size();row++)
+        {
+            current.add(new UserChange(users.getIdAt(row),users.getNameAt(row),true));
+        }
+        return current;
+    }
+
+    /**
+     * Takes the changes to the users since the last call, oldest first
+     * @return- the changes
+     */
+    public synchronized List<UserChange> takeUserChanges()
+    {
+        if(userChanges==null||userChanges.isEmpty())
+        {
+            return Collections.emptyList();
+        }
+        List<UserChange> taken = userChanges;
+        userChanges = new ArrayList<UserChange>();
+        return taken;
+    }
+
+    /**
+     * Set the associated proxy for this model. Adds this user to the userlist under the proxy's uniqueID,
+     * and starts taking events from the bus.
      * @param proxy- associated proxy
      */
     public synchronized void setProxy(ChatProxy proxy)
     {
         this.proxy = proxy;
+        addUser(proxy.getUniqueID(),myName);
+        events.start();
     }
 
     /**
-     * Set the associated View controller for this model
+     * Set the associated View controller for this model. The view is redrawn by a RedrawScheduler, which
+     * listens to the model like any other listener.
      * @param view- associated view
      * @throws IOException- failure of sending the message that you've joined the chatroom
      */
     public synchronized void setView(ChatView view) throws IOException
     {
-        this.view = view;
+        this.redraws = new RedrawScheduler(view,RedrawScheduler.DEFAULT_FRAME_RATE,metrics);
+        addListener(redraws);
         addMessage(myName+" has joined the chatroom");
-        view.redraw(0);
     }
 
     /**
-     * Getter for name list array
-     * @return- allNames: the list of current users in the chatroom
+     * Getter for the scheduler which batches redraws of the view
+     * @return- redraws: the scheduler, or null if no view has been set
      */
-    public ArrayList<String> getAllNames()
+    public synchronized RedrawScheduler getRedrawScheduler()
     {
-        return allNames;
+        return redraws;
+    }
+
+    /**
+     * Getter for name list array. Returns a copy, so the view can read it while
+     * the proxy keeps changing the list.
+     * @return- the names of the current users in the chatroom, in order
+     */
+    public synchronized ArrayList<String> getAllNames()
+    {
+        ArrayList<String> names = new ArrayList<String>(users.size());
+        for(String name : users)
+        {
+            names.add(name);
+        }
+        return names;
     }
 
     /**
@@ -100,55 +337,386 @@ public class ChatModel
     }
 
     /**
-     * Getter for the message chat log.  The chat log only displays messages from the point after the
-     * user joins the chatroom.
-     * @return- chatLog: the chat messages
+     * Getter for a window of the message chat log. Besides the messages since the user joined the chatroom, it
+     * holds what was restored from the history, and what another client sent of the chat before they joined.
+     * @param from- index of the first message wanted
+     * @param count- the most messages to return
+     * @return- the chat messages, oldest first. Messages evicted from memory are read back from the spill file.
+     */
+    public List<ChatMessage> getChatLog(long from,int count)
+    {
+        return chatLog.window(from,count);
+    }
+
+    /**
+     * Getter for a single message of the chat log
+     * @param index- index of the message
+     * @return- the message, or null if there is none. Messages evicted from memory are read back from the
+     *          spill file.
+     */
+    public ChatMessage getMessage(long index)
+    {
+        return chatLog.get(index);
+    }
+
+    /**
+     * Iterates over the chat log, starting at the given index
+     * @param from- index of the first message
+     * @return- iterator over the chat messages
+     */
+    public Iterator<ChatMessage> chatLogIterator(long from)
+    {
+        return chatLog.iterator(from);
+    }
+
+    /**
+     * Getter for the index of the oldest message still held in memory
+     * @return- the index of the oldest message
+     */
+    public long getChatLogStart()
+    {
+        return chatLog.getFirstIndex();
+    }
+
+    /**
+     * Getter for the index that the next message will get
+     * @return- one past the index of the newest message
+     */
+    public long getChatLogEnd()
+    {
+        return chatLog.getEndIndex();
+    }
+
+    /**
+     * Finds the newest messages of the chat log which contain every word of a query
+     * @param query- the words to look for. Case and punctuation are ignored.
+     * @param sender- the uniqueID of the user the messages must be from, or 0 for anyone
+     * @param from- the earliest time, or Long.MIN_VALUE. A message's time is its timestamp, raised to the
+     *              latest timestamp before it in the chat log, as SearchIndex explains.
+     * @param to- the latest time, or Long.MAX_VALUE
+     * @param limit- the most messages to find
+     * @return- the indexes of the messages, newest first. Some may have been evicted from memory.
+     */
+    public long[] search(String query,long sender,long from,long to,int limit)
+    {
+        return searchIndex.search(query,sender,from,to,limit);
+    }
+
+    /**
+     * Finds the uniqueID of a user in the chatroom by name
+     * @param name- the name, ignoring case
+     * @return- the uniqueID, or 0 if nobody here has that name
      */
-    public String getChatLog()
+    public synchronized long findUser(String name)
     {
-        return chatLog;
+        for(int row=0;row<users.size();row++)
+        {
+            if(users.getNameAt(row).equalsIgnoreCase(name))
+            {
+                return users.getIdAt(row);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Adds a message to the chat log and the search index
+     * @param message- the message
+     * @return the index of the message
+     */
+    private long append(ChatMessage message)
+    {
+        long index = chatLog.append(message);
+        searchIndex.add(index,message);
+        return index;
+    }
+
+    /**
+     * Merges the chat from before this user joined, as sent by another client, into the chat log. The chat
+     * log and search index are built again with the messages in order, and the view is redrawn from scratch.
+     *
+     * Messages from this client, messages already restored from the history or received since joining (by
+     * sender and sequence number) and messages older than what was restored from the history are left out.
+     * The merged messages are not written to the history, since they are older than what it already holds.
+     *
+     * The new chat log and search index are built without holding the model's lock, so messages keep
+     * arriving meanwhile. Those are copied over after, and the lock is only held to copy the last of them
+     * and swap the new chat log in. The new chat log takes over the old one's spill file, so messages
+     * evicted before the merge can still be read.
+     * @param messages- the chat, oldest first
+     * @return- the number of messages merged
+     */
+    public int mergeHistory(List<ChatMessage> messages)
+    {
+        synchronized(merging)
+        {
+            MessageStore old;
+            MessageStore merged;
+            long live;
+            long ownId;
+            long restored;
+            int capacity;
+            synchronized(this)
+            {
+                old = chatLog;
+                merged = old.emptyCopy();
+                live = Math.max(liveStart,old.getFirstIndex());
+                ownId = proxy==null ? 0 : proxy.getUniqueID();
+                restored = restoredUntil;
+                capacity = searchIndex.getCapacity();
+            }
+            long first = merged.getFirstIndex();
+            long end = old.getEndIndex();
+
+            //what was restored from the history or already arrived since joining, by sender
+            LongMap<HashSet<Long>> received = new LongMap<HashSet<Long>>();
+            for(long i=first;i<end;i++)
+            {
+                ChatMessage message = old.get(i);
+                if(message!=null&&message.getSequence()!=0)
+                {
+                    HashSet<Long> sequences = received.get(message.getSenderId());
+                    if(sequences==null)
+                    {
+                        sequences = new HashSet<Long>();
+                        received.put(message.getSenderId(),sequences);
+                    }
+                    sequences.add(message.getSequence());
+                }
+            }
+            ArrayList<ChatMessage> missed = new ArrayList<ChatMessage>(messages.size());
+            for(ChatMessage message : messages)
+            {
+                HashSet<Long> sequences = received.get(message.getSenderId());
+                if(message.getSenderId()!=ownId&&message.getSenderId()!=ChatMessage.SYSTEM_ID
+                        &&message.getTimestamp()>=restored
+                        &&(sequences==null||!sequences.contains(message.getSequence())))
+                {
+                    missed.add(message);
+                }
+            }
+            if(missed.isEmpty())
+            {
+                return 0;
+            }
+
+            //the spilled messages keep their indexes, so they stay in the index
+            SearchIndex index = new SearchIndex(capacity);
+            for(long i=Math.max(first-capacity,0);i<first;i++)
+            {
+                ChatMessage message = old.get(i);
+                if(message!=null)
+                {
+                    index.add(i,message);
+                }
+            }
+            for(long i=first;i<live;i++)
+            {
+                copy(old.get(i),merged,index);
+            }
+            for(ChatMessage message : missed)
+            {
+                copy(message,merged,index);
+            }
+            long mergedLive = merged.getEndIndex();
+            //messages which arrive while this runs are copied after, the last of them while locked
+            long next = live;
+            while(next<old.getEndIndex())
+            {
+                copy(old.get(next++),merged,index);
+            }
+            synchronized(this)
+            {
+                while(next<old.getEndIndex())
+                {
+                    copy(old.get(next++),merged,index);
+                }
+                old.setHistory(null);
+                merged.setHistory(history);
+                merged.takeSpill(old);
+                chatLog = merged;
+                searchIndex = index;
+                liveStart = mergedLive;
+                for(ChatListener listener : listeners)
+                {
+                    listener.chatLogRebuilt(this);
+                }
+            }
+            return missed.size();
+        }
+    }
+
+    /**
+     * Adds a message to a chat log being built and its search index
+     * @param message- the message, or null if it could not be read back from the spill file
+     */
+    private static void copy(ChatMessage message,MessageStore store,SearchIndex index)
+    {
+        if(message!=null)
+        {
+            index.add(store.append(message),message);
+        }
     }
 
     /**
      * Function that is called from the view, after the user clicks to exit the program.
+     * The model is not locked while the exit message is sent, so messages still arriving can be added.
+     * If the proxy was never set, such as when the window is closed while still joining, the program just
+     * ends.
      * @throws IOException: if the client fails to send the exit message
      */
-    public synchronized void quit() throws IOException
+    public void quit() throws IOException
+    {
+        ChatProxy leaving = close();
+        if(leaving==null)
+        {
+            System.exit(0);
+        }
+        leaving.userLeave(myName);
+    }
+
+    /**
+     * Leaves the chatroom without ending the program, such as when the model runs without a view.
+     * If the proxy was never set the model is only closed.
+     * @throws IOException: if the client fails to send the exit message
+     */
+    public void leave() throws IOException
+    {
+        ChatProxy leaving = close();
+        if(leaving!=null)
+        {
+            leaving.leave(myName);
+        }
+    }
+
+    /**
+     * Stops redrawing, taking events, spilling the chat log and keeping the history
+     * @return the proxy, which still has to leave the chatroom
+     */
+    private ChatProxy close() throws IOException
+    {
+        ChatProxy leaving;
+        synchronized(this)
+        {
+            if(redraws!=null)
+            {
+                removeListener(redraws);
+                redraws.close();
+            }
+            leaving = proxy;
+        }
+        events.close();
+        metrics.close();
+        chatLog.close();
+        if(history!=null)
+        {
+            history.close();
+        }
+        return leaving;
+    }
+
+    /**
+     * Updates the model from the proxy and tells the listeners
+     * @param id: the uniqueID of the user who sent the message
+     * @param message: the message which was sent from another user
+     */
+    public synchronized void redrawChat(long id,String message)
     {
-        proxy.userLeave(myName);
+        redrawChat(id,0,message);
     }
 
     /**
-     * Updates the model from the proxy and refreshes the view
+     * Updates the model from the proxy and tells the listeners
+     * @param id: the uniqueID of the user who sent the message
+     * @param sequence: the sender's sequence number for the message, or 0 if not known
      * @param message: the message which was sent from another user
      */
-    public synchronized void redrawChat(String message)
+    public synchronized void redrawChat(long id,long sequence,String message)
     {
-        this.chatLog=this.chatLog+"\n"+message;
-        view.redraw(0);
+        ChatMessage added = new ChatMessage(id,sequence,System.currentTimeMillis(),message);
+        messageAdded(append(added),added);
     }
 
     /**
      * Updates this model from the view and forwards the message to the proxy so that it can be
-     * sent to other users
+     * sent to other users. The proxy only queues the message, so the model is not held up by the network.
      * @param data- the new message.
      */
     public synchronized void addMessage(String data) throws IOException
     {
-        chatLog = chatLog+"\n"+data;
-        proxy.sendMessage(data);
+        ChatMessage message = new ChatMessage(proxy.getUniqueID(),System.currentTimeMillis(),data);
+        long index = append(message);
+        proxy.sendMessage(message);
+        messageAdded(index,message);
     }
 
     /**
-     * Adds a user to the userlist whenever someone joins the chat
-     * Then, it sends the new user this client's name.
+     * Adds a user to the userlist whenever someone joins the chat, or changes their name if they are already in it.
+     * The proxy's roster makes sure the new user learns who else is in the chatroom.
      * @param id- the new users uniqueID
      * @param name- the new users name
      */
-    public synchronized void addUser(long id,String name) throws IOException
+    public synchronized void addUser(long id,String name)
     {
-        modifyNames(name,1);
-        proxy.sendName(id,myName);
+        String old = users.getName(id);
+        if(users.add(id,name))
+        {
+            if(old!=null)
+            {
+                userChanged(new UserChange(id,old,false));
+            }
+            userChanged(new UserChange(id,name,true));
+        }
+    }
+
+    /**
+     * A user joining or leaving, as seen by the view
+     */
+    public static class UserChange
+    {
+        private final long id;
+        private final String name;
+        private final boolean joined;
+
+        /**
+         * Constructor
+         * @param id- the user's uniqueID
+         * @param name- the user's name
+         * @param joined- true if the user joined, false if they left
+         */
+        public UserChange(long id,String name,boolean joined)
+        {
+            this.id = id;
+            this.name = name;
+            this.joined = joined;
+        }
+
+        /**
+         * Getter for the user's uniqueID
+         * @return id
+         */
+        public long getId()
+        {
+            return id;
+        }
+
+        /**
+         * Getter for the user's name
+         * @return name
+         */
+        public String getName()
+        {
+            return name;
+        }
+
+        /**
+         * Getter for whether the user joined or left
+         * @return true if they joined
+         */
+        public boolean isJoined()
+        {
+            return joined;
+        }
     }
 
 
@@ -1,217 +1,954 @@
-import javax.swing.*;
 import java.io.*;
-import java.net.DatagramPacket;
 import java.net.InetAddress;
-import java.net.MulticastSocket;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
 import java.security.SecureRandom;
-import java.util.Scanner;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Created by Austin Sierra on 1/2/2016.
  *
  * The chat proxy is the proxy between user clients. It
  * is in charge of sending messages between clients in addition to
- * reading message from them.
+ * reading message from them. The packets themselves are carried by a ChatTransport.
+ *
+ * Everything this client sends goes through its outbound queue, which runs on the shared ChatWorkers.
+ * So the view, the model and the receiver never wait on the network, and never send while holding a lock.
+ * The timer only hands this room's periodic work, asking for missed frames, letting in held back messages
+ * and removing members who went quiet, to its inbound queue on the same workers, so a slow room cannot hold
+ * up any other room's timers.
+ * Messages from other clients are published to the model without waiting. When a model falls behind they
+ * wait in AdmissionControl until it has room, instead of stalling the threads every room shares.
+ *
+ * Neither end lets one client flood the chatroom. Messages this client sends are spaced out by a
+ * TokenBucket, and wait in a bounded queue when it is empty. Messages other clients send go through
+ * AdmissionControl, which gives every sender their own rate and queue before the model sees them.
  */
-public class ChatProxy
+public class ChatProxy implements ChatTransport.Listener
 {
+    //system property which picks the transport, either "multicast", "nio", or "relay" or "relay-udp" to go
+    //through a ChatRelay, in which case the group is the relay's address
+    public static final String TRANSPORT_PROPERTY = "mychatapp.transport";
+
+    //how long leaving waits for the goodbye to be sent
+    public static final long LEAVE_TIMEOUT = 1000;
+
+    //system property for how many messages a second this client may send, 0 for no limit
+    public static final String SEND_RATE_PROPERTY = "mychatapp.send.rate";
+    public static final int SEND_RATE = 20;
+    //how many messages may be sent at once before they are spaced out
+    public static final int SEND_BURST = 50;
+    //the most messages waiting to be sent. Any more are not sent at all.
+    public static final int SEND_QUEUE = 1024;
+    //packets which cannot be decoded are reported at most this often, in milliseconds
+    public static final long DECODE_LOG_INTERVAL = 10000;
+
     //network details
-    private InetAddress group;
-    private int port;
-    private MulticastSocket mailbox;
+    private ChatTransport mailbox;
+    //sends this client's frames one at a time, in the order they were queued
+    private final SerialExecutor outbound = new SerialExecutor(ChatWorkers.shared());
+    //packs the frames this client sends into as few packets as possible
+    private final SendBatcher batcher;
+    //spaces out the messages this client sends, which wait in throttled for a token. Both are only
+    //touched on the outbound queue.
+    private final TokenBucket sendTokens = new TokenBucket(Integer.getInteger(SEND_RATE_PROPERTY,SEND_RATE),
+            SEND_BURST);
+    private final ArrayDeque<ChatMessage> throttled = new ArrayDeque<ChatMessage>();
+    private boolean pacing = false;
 
     //The uniqueID of this client. Used to differentiate users with the same name.
     private long uniqueID;
+    //makes the uniqueIDs of every proxy in the process
+    private static SecureRandom ids;
+    //merges history sent by other clients into the models of every room, off the shared workers
+    private static ThreadPoolExecutor merges;
+    //sequence number of the last frame this client sent
+    private final AtomicLong sequence = new AtomicLong();
 
-    //associated model
+    //associated model, and the bus that tells it what happens in the chatroom
     private ChatModel model;
+    private ChatEventBus events;
+    private ChatMetrics metrics;
+    //when the packet being handled arrived. Only used on the thread packets are handled on.
+    private long receivedAt;
+    //packets which could not be decoded since they were last reported, and when that was.
+    //Only used on the thread packets are handled on.
+    private int decodeFailures = 0;
+    private long decodeLoggedAt = 0;
+
+    //every thread that sends gets its own codec, so packets can be built without locking or allocating
+    private final ThreadLocal<PacketCodec> sendCodec = new ThreadLocal<PacketCodec>()
+    {
+        @Override
+        protected PacketCodec initialValue()
+        {
+            return new PacketCodec(PacketCodec.MTU_PAYLOAD);
+        }
+    };
+    //packets are received one at a time, in the order the transport hands them over
+    private final PacketCodec receiveCodec = new PacketCodec(PacketCodec.RECEIVE_SIZE);
+    //frames which were split into fragments are put back together, then read with their own codec
+    private final FragmentReassembler reassembler = new FragmentReassembler();
+    private final PacketCodec fragmentCodec = new PacketCodec(PacketCodec.RECEIVE_SIZE);
+
+    //reliability: frames this client sent, kept in case others missed them, and the receiver which
+    //puts other clients' frames in order and asks for the missing ones
+    private final RetransmitRing sent = new RetransmitRing(RetransmitRing.DEFAULT_CAPACITY);
+    private final ReliableReceiver receiver = new ReliableReceiver(new Delivery());
+    private ScheduledFuture<?> ticker;
+    //runs the timer's work for this room, one tick at a time, and whether a tick is waiting there
+    private final SerialExecutor inbound = new SerialExecutor(ChatWorkers.shared());
+    private final AtomicBoolean ticking = new AtomicBoolean();
+    private final Runnable tick = new Runnable()
+    {
+        public void run()
+        {
+            ticking.set(false);
+            receiver.tick();
+            admission.tick();
+        }
+    };
+    //lets each other client's messages into the model at a fair rate
+    private final AdmissionControl admission = new AdmissionControl(new Admission());
+
+    //who is in the chatroom, and which of them went quiet
+    private Membership membership;
+    private Roster roster;
+    private FailureDetector detector;
+    //sends the chat log to clients who join, and takes it in when this client joins
+    private HistoryCatchUp catchUp;
 
     //codes for certain actions
-    private static final int USER_JOIN_CODE = 0;
-    private static final int SEND_NAME_CODE = 1;
-    private static final int SEND_MESSAGE_CODE = 2;
-    private static final int USER_EXIT_CODE = 3;
+    static final int USER_JOIN_CODE = 0;
+    static final int SEND_NAME_CODE = 1;
+    static final int SEND_MESSAGE_CODE = 2;
+    static final int USER_EXIT_CODE = 3;
+    static final int FRAGMENT_CODE = 4;
+    static final int NAK_CODE = 5;
+    static final int ROSTER_CODE = 6;
+    static final int DIGEST_CODE = 7;
+    static final int HISTORY_CODE = 8;
 
     /**
-     * Constructor for the chat proxy
-     * @param group: P2P network group entered by user
+     * Constructor for the chat proxy. The transport is picked by the mychatapp.transport system property:
+     * a multicast socket unless it is set to "nio" for the shared selector loop, or to "relay" or
+     * "relay-udp" to reach a ChatRelay over TCP or UDP.
+     * @param group: P2P network group entered by user, or the address of the relay
      * @param port: Open port
      * @throws IOException: in case the connection cannot be made
      */
     public ChatProxy(InetAddress group,int port) throws IOException
     {
-        this.group = group;
-        this.port = port;
-        mailbox = new MulticastSocket(port);
-        mailbox.joinGroup(group);
+        this(openTransport(group,port));
+    }
+
+    /**
+     * Joins a chatroom with the transport picked by the mychatapp.transport system property
+     * @param group: P2P network group entered by user, or the address of the relay
+     * @param port: Open port
+     * @return the transport, which has joined the group but not started receiving
+     * @throws IOException: in case the connection cannot be made
+     */
+    public static ChatTransport openTransport(InetAddress group,int port) throws IOException
+    {
+        String transport = System.getProperty(TRANSPORT_PROPERTY);
+        if("nio".equals(transport))
+        {
+            return NioSelectorLoop.shared().join(group,port);
+        }
+        if("relay".equals(transport)||"relay-udp".equals(transport))
+        {
+            return new RelayTransport(new InetSocketAddress(group,port),"relay".equals(transport));
+        }
+        return new MulticastTransport(group,port);
+    }
 
-        uniqueID = new DataInputStream(new ByteArrayInputStream(SecureRandom.getSeed(8))).readLong();
+    /**
+     * Constructor for a chat proxy which uses the given transport
+     * @param mailbox: the transport, which has already joined the chatroom
+     * @throws IOException: if the uniqueID cannot be made
+     */
+    public ChatProxy(ChatTransport mailbox) throws IOException
+    {
+        this.mailbox = mailbox;
+        batcher = new SendBatcher(mailbox,outbound);
+        uniqueID = newUniqueID();
+    }
+
+    /**
+     * Sets up what making a uniqueID needs, which takes a while the first time, so it can be done ahead
+     * of time, such as while the user fills in the login window
+     */
+    public static void warmUp()
+    {
+        newUniqueID();
+    }
+
+    /**
+     * Makes a random uniqueID. SecureRandom.getSeed can block until the operating system has gathered
+     * enough entropy, which can take seconds just after boot, so the IDs come from a SecureRandom instead,
+     * which seeds itself without waiting. 0 is kept for the app's own messages.
+     * @return the uniqueID
+     */
+    private static synchronized long newUniqueID()
+    {
+        if(ids==null)
+        {
+            ids = new SecureRandom();
+        }
+        long id;
+        do
+        {
+            id = ids.nextLong();
+        }
+        while(id==ChatMessage.SYSTEM_ID);
+        return id;
+    }
+
+    /**
+     * Getter for the thread which merges history into models. Merging rebuilds a whole chat log and
+     * search index, which can take seconds, so it runs on a thread of its own rather than holding up the
+     * ChatWorkers every room sends and receives on. Starts it the first time it is called, and it stops
+     * when it has been idle for a minute.
+     * @return the thread
+     */
+    private static synchronized ExecutorService merges()
+    {
+        if(merges==null)
+        {
+            merges = new ThreadPoolExecutor(1,1,60,TimeUnit.SECONDS,new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory()
+            {
+                public Thread newThread(Runnable task)
+                {
+                    Thread thread = new Thread(task,"ChatProxy-merge");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            merges.allowCoreThreadTimeOut(true);
+        }
+        return merges;
     }
 
     /**
      * Set the associated model for this proxy.
-     * Also starts the Reader Thread.
+     * Starts receiving from the transport, then tells the other clients that this user has joined.
      * @param model: associated model
      */
     public void setModelListener(ChatModel model)
     {
         this.model = model;
-        new ReaderThread().start();
+        this.events = model.getEvents();
+        this.metrics = model.getMetrics();
+        batcher.setMetrics(metrics);
+        metrics.start(uniqueID);
+        membership = new Membership();
+        detector = new FailureDetector(membership,inbound);
+        roster = new Roster(uniqueID,System.currentTimeMillis(),model.getMyName(),membership);
+        catchUp = new HistoryCatchUp(uniqueID,model,outbound,new CatchUp());
+        ticker = ChatTimers.shared().scheduleWithFixedDelay(new Runnable()
+        {
+            public void run()
+            {
+                //a room still busy with its last tick only needs the one
+                if(ticking.compareAndSet(false,true))
+                {
+                    inbound.execute(tick);
+                }
+            }
+        },ReliableReceiver.NAK_DELAY,ReliableReceiver.NAK_DELAY,TimeUnit.MILLISECONDS);
+        try
+        {
+            mailbox.start(this);
+        }
+        catch(IOException e)
+        {
+            e.printStackTrace();
+        }
+        userJoined();
+        roster.start();
+        detector.start();
+    }
+
+    /**
+     * Getter for this client's uniqueID
+     * @return uniqueID
+     */
+    public long getUniqueID()
+    {
+        return uniqueID;
+    }
+
+    /**
+     * Getter for the roster of who is in the chatroom
+     * @return roster, or null until the model is set
+     */
+    public Roster getRoster()
+    {
+        return roster;
+    }
+
+    /**
+     * Getter for the admission control of other clients' messages, whose counters show how many were held
+     * back or shed
+     * @return admission
+     */
+    public AdmissionControl getAdmission()
+    {
+        return admission;
+    }
+
+    /**
+     * Changes how fast this client may send messages. Messages already waiting are sent at the new rate.
+     * @param perSecond- messages a second, or 0 for no limit
+     * @param burst- how many may be sent at once before they are spaced out
+     */
+    public void setSendRate(final double perSecond,final int burst)
+    {
+        outbound.execute(new Send()
+        {
+            void send() throws IOException
+            {
+                sendTokens.setRate(perSecond,burst);
+                sendThrottled(false);
+            }
+        });
+    }
+
+    /**
+     * Getter for the batcher, whose counters show how many frames share each packet and how long
+     * batching holds them back
+     * @return batcher
+     */
+    public SendBatcher getSendBatcher()
+    {
+        return batcher;
     }
 
     /**
      * The next several methods are similar in how they work.
-     * They all create output streams and write relevant information to the other clients
-     * when a specific action occurs.
+     * They all queue the relevant information to be encoded and sent to the other clients
+     * when a specific action occurs, and return straight away.
      *
      * This method writes a message every time a new user joins the chatroom
-     *
-     * @throws IOException- if the message fails to write
      */
-    public void userJoined() throws IOException
+    public void userJoined()
     {
-
-        //open the output stream
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        DataOutputStream out = new DataOutputStream(baos);
-        //write the specific message code, so the reader knows what kind of message this will be.
-        out.writeByte(USER_JOIN_CODE);
-        //write the uniqueID for this client. This way a client doesn't read its own messages.
-        out.writeLong(uniqueID);
-        //Write any further information needed when the task occurs. This method only needs to write
-        //the client's name.
-        out.write(model.getMyName().getBytes());
-        out.close();
-        byte[] buf = baos.toByteArray();
-        //save this output stream to a packet and send it
-        DatagramPacket packet = new DatagramPacket(buf,buf.length,group,port);
-        mailbox.send(packet);
+        outbound.execute(new Send()
+        {
+            void send() throws IOException
+            {
+                //the opcode tells the reader what kind of message this will be, and the uniqueID lets
+                //a client skip its own messages. This method only needs to write the client's name.
+                //The timestamp is the version of this client's roster entry.
+                Roster.Member me = roster.get(uniqueID);
+                ChatProxy.this.send(USER_JOIN_CODE,0,me.getName(),me.getVersion());
+            }
+        });
     }
 
     /**
      * This method sends the user's message to the other clients.
      *
      * @param message: the message the user wrote.
-     * @throws IOException: if the message fails to write
      */
-    public void sendMessage(String message) throws IOException
+    public void sendMessage(String message)
+    {
+        sendMessage(new ChatMessage(uniqueID,System.currentTimeMillis(),message));
+    }
+
+    /**
+     * This method sends a message from the user's chat log to the other clients. Once it is sent, the
+     * message is given the sequence number it was sent with.
+     * If this client is sending too fast the message waits its turn, and if SEND_QUEUE messages are
+     * already waiting it is not sent at all.
+     *
+     * @param message: the message the user wrote.
+     */
+    public void sendMessage(final ChatMessage message)
     {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        DataOutputStream out = new DataOutputStream(baos);
-        out.writeByte(SEND_MESSAGE_CODE);
-        out.writeLong(uniqueID);
-        out.write(message.getBytes());
-        out.close();
-        byte[] buf = baos.toByteArray();
-        DatagramPacket packet = new DatagramPacket(buf,buf.length,group,port);
-        mailbox.send(packet);
+        outbound.execute(new Send()
+        {
+            void send() throws IOException
+            {
+                if(throttled.isEmpty()&&sendTokens.tryTake(System.nanoTime()))
+                {
+                    message.setSequence(ChatProxy.this.send(SEND_MESSAGE_CODE,0,message.getText()));
+                }
+                else if(throttled.size()>=SEND_QUEUE)
+                {
+                    metrics.sendShed();
+                }
+                else
+                {
+                    metrics.sendDelayed();
+                    throttled.add(message);
+                    sendThrottled(false);
+                }
+            }
+        });
     }
 
     /**
-     * This method sends the user's name and ID to the other clients.
-     * It is used so that new users can collect the full list of users already in the chatroom.
-     * @param id: the user's uniqueID
-     * @param name: the user's name.
+     * Sends the messages waiting for a token while there are tokens, and if any are left, has the timer
+     * call back when the next token comes in. Runs on the outbound queue.
+     * @param all: true to send every waiting message whatever the rate, such as when leaving
      * @throws IOException: if a message fails to send
      */
-    public void sendName(long id,String name) throws IOException
+    private void sendThrottled(boolean all) throws IOException
     {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        DataOutputStream out = new DataOutputStream(baos);
-        out.writeByte(SEND_NAME_CODE);
-        out.writeLong(uniqueID);
-        out.writeLong(id);
-        out.write(name.getBytes());
-        out.close();
-        byte[] buf = baos.toByteArray();
-        DatagramPacket packet = new DatagramPacket(buf,buf.length,group,port);
-        mailbox.send(packet);
+        long now = System.nanoTime();
+        ChatMessage message;
+        while((message = throttled.peek())!=null&&(all||sendTokens.tryTake(now)))
+        {
+            throttled.poll();
+            message.setSequence(send(SEND_MESSAGE_CODE,0,message.getText()));
+        }
+        if(!throttled.isEmpty()&&!pacing)
+        {
+            pacing = true;
+            ChatTimers.shared().schedule(new Runnable()
+            {
+                public void run()
+                {
+                    outbound.execute(new Send()
+                    {
+                        void send() throws IOException
+                        {
+                            pacing = false;
+                            sendThrottled(false);
+                        }
+                    });
+                }
+            },sendTokens.nanosUntilToken(now),TimeUnit.NANOSECONDS);
+        }
     }
 
     /**
-     * This method is called everytime a user leaves the chatroom.
+     * Runs a task once everything queued to be sent before it has been handed to the batcher
+     * @param task: the task, which runs on the outbound queue so must be quick
+     */
+    public void whenSent(Runnable task)
+    {
+        outbound.execute(task);
+    }
+
+    /**
+     * This method is called everytime a user leaves the chatroom, and ends the program once the exit
+     * message is sent.
      *
      * @param name: the name of the user who left.
      * @throws IOException: if the message fails to send
      */
     public void userLeave(String name) throws IOException
     {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        DataOutputStream out = new DataOutputStream (baos);
-        out.writeByte(USER_EXIT_CODE);
-        out.writeLong(uniqueID);
-        out.write(name.getBytes());
-        out.close();
-        byte[] buf = baos.toByteArray();
-        DatagramPacket packet = new DatagramPacket (buf, buf.length, group, port);
-        mailbox.send(packet);
+        leave(name);
         System.exit(0);
     }
 
     /**
-     * This ReaderThread constantly reads in messages from the other clients.
+     * Tells the other clients this user left and closes the transport, without ending the program.
+     * It waits for everything queued before it to be sent, but no longer than LEAVE_TIMEOUT.
+     *
+     * @param name: the name of the user who left.
+     * @throws IOException: if the message fails to send
      */
-    public class ReaderThread extends Thread
+    public void leave(final String name) throws IOException
     {
-        /**
-         * Called when the thread starts.
-         */
-        public void run()
+        FutureTask<Void> goodbye = new FutureTask<Void>(new Callable<Void>()
         {
-            byte opcode;
-            long id;
-            byte[] buf = new byte[2200];
+            public Void call() throws IOException
+            {
+                roster.close();
+                detector.close();
+                catchUp.close();
+                sendThrottled(true);
+                send(USER_EXIT_CODE,0,name);
+                batcher.flush();
+                return null;
+            }
+        });
+        outbound.execute(goodbye);
+        try
+        {
+            goodbye.get(LEAVE_TIMEOUT,TimeUnit.MILLISECONDS);
+        }
+        catch(ExecutionException e)
+        {
+            e.getCause().printStackTrace();
+        }
+        catch(InterruptedException e)
+        {
+            e.printStackTrace();
+        }
+        catch(TimeoutException e)
+        {
+            e.printStackTrace();
+        }
+        ticker.cancel(false);
+        mailbox.close();
+    }
 
-            try
+    /**
+     * Encodes a frame from this client with the next sequence number, keeps it in case anyone misses it,
+     * and sends it.
+     * @param opcode: what kind of frame this is
+     * @param destination: who the frame is for, only used by SEND_NAME frames
+     * @param text: the name or message
+     * @return the frame's sequence number
+     * @throws IOException: if the frame fails to send
+     */
+    private long send(int opcode,long destination,String text) throws IOException
+    {
+        return send(opcode,destination,text,System.currentTimeMillis());
+    }
+
+    /**
+     * Encodes a frame from this client with the next sequence number and the given timestamp, keeps it
+     * in case anyone misses it, and sends it.
+     * @param opcode: what kind of frame this is
+     * @param destination: who the frame is for, only used by SEND_NAME frames
+     * @param text: the name or message
+     * @param time: the frame's timestamp
+     * @return the frame's sequence number
+     * @throws IOException: if the frame fails to send
+     */
+    private long send(int opcode,long destination,String text,long time) throws IOException
+    {
+        PacketCodec codec = sendCodec.get();
+        long seq = sequence.incrementAndGet();
+        ByteBuffer frame = codec.encodeFrame(opcode,uniqueID,seq,time,destination,text);
+        sent.store(seq,time,frame);
+        transmit(codec,frame,seq,time);
+        return seq;
+    }
+
+    /**
+     * Hands an encoded frame to the batcher, which sends it along with any other frames sent around the
+     * same time. Frames too big for one packet are split into fragments first.
+     * @param codec: the calling thread's codec
+     * @param frame: the encoded frame
+     * @param seq: the frame's sequence number
+     * @param time: the frame's timestamp
+     * @throws IOException: if a packet fails to send
+     */
+    private void transmit(PacketCodec codec,ByteBuffer frame,long seq,long time) throws IOException
+    {
+        if(frame.remaining()<=PacketCodec.MAX_PACKED_FRAME)
+        {
+            batcher.add(frame);
+            return;
+        }
+
+        int count = (frame.limit()+PacketCodec.FRAGMENT_PAYLOAD-1)/PacketCodec.FRAGMENT_PAYLOAD;
+        for(int i=0;i<count;i++)
+        {
+            int offset = i*PacketCodec.FRAGMENT_PAYLOAD;
+            codec.beginFrame();
+            codec.putFragment(uniqueID,seq,time,i,count,frame,offset,
+                    Math.min(PacketCodec.FRAGMENT_PAYLOAD,frame.limit()-offset));
+            batcher.add(codec.finishPacket());
+        }
+    }
+
+    /**
+     * Sends frames again after another client reported missing them. Runs on the outbound queue.
+     * Frames which have already dropped out of the ring are skipped.
+     * @param from: the first missed sequence number
+     * @param count: how many frames were missed
+     * @throws IOException: if a packet fails to send
+     */
+    private void retransmit(long from,int count) throws IOException
+    {
+        PacketCodec codec = sendCodec.get();
+        long end = Math.min(from+Math.min(count,RetransmitRing.DEFAULT_CAPACITY),sequence.get()+1);
+        for(long seq=from;seq<end;seq++)
+        {
+            synchronized(sent)
+            {
+                ByteBuffer frame = sent.get(seq);
+                if(frame!=null)
+                {
+                    transmit(codec,frame,seq,sent.getTimestamp(seq));
+                }
+            }
+        }
+    }
+
+    /**
+     * Called by the transport for every packet received from the other clients.
+     * Frames are passed through the reliable receiver, which hands them back in order.
+     * @param packet: the packet
+     */
+    @Override
+    public void packetReceived(ByteBuffer packet)
+    {
+        receivedAt = System.nanoTime();
+        metrics.packetReceived(packet.remaining());
+        try
+        {
+            receiveCodec.beginDecode(packet);
+            while(receiveCodec.nextFrame())
             {
-                //send a message that a new user has joined the chatroom.
-                userJoined();
-                //run continuously
-                while(true)
-                {
-                    //set up an input stream
-                    DatagramPacket packet = new DatagramPacket(buf,buf.length);
-                    mailbox.receive(packet);
-
-                    DataInputStream in = new DataInputStream
-                            (new ByteArrayInputStream(buf,0,packet.getLength()));
-                    //i only use a scanner for strings
-                    Scanner scan = new Scanner(in);
-                    opcode = in.readByte();
-                    id = in.readLong();
-                    if(id==uniqueID) continue;
-                    //depending on the code we get, do something different.
-                    switch(opcode)
+                if(receiveCodec.getSenderId()==uniqueID) continue;
+                metrics.frameReceived(receiveCodec.getOpcode());
+                detector.heard(receiveCodec.getSenderId());
+                switch(receiveCodec.getOpcode())
+                {
+                    //once every fragment has arrived, handle the frame they came from
+                    case FRAGMENT_CODE:
+                        ByteBuffer frame = reassembler.add(receiveCodec);
+                        if(frame!=null)
+                        {
+                            fragmentCodec.beginFrames(frame);
+                            if(fragmentCodec.nextFrame())
+                            {
+                                receiver.receive(fragmentCodec);
+                            }
+                        }
+                        break;
+                    //someone missed frames. Send them again if they were ours, otherwise make
+                    //sure the same frames are not asked for twice
+                    case NAK_CODE:
+                        if(receiveCodec.getDestination()==uniqueID)
+                        {
+                            final long from = receiveCodec.getRangeStart();
+                            final int count = receiveCodec.getRangeCount();
+                            outbound.execute(new Send()
+                            {
+                                void send() throws IOException
+                                {
+                                    retransmit(from,count);
+                                }
+                            });
+                        }
+                        else
+                            receiver.sawNak(receiveCodec.getDestination(),receiveCodec.getRangeStart());
+                        break;
+                    default:
+                        receiver.receive(receiveCodec);
+                        break;
+                }
+            }
+        }
+        catch(ProtocolException e)
+        {
+            metrics.decodeFailed();
+            decodeFailed(e);
+        }
+        //anything else is a bug or a failed send, not junk from the network, so it is not rate limited
+        catch(IOException e)
+        {
+            e.printStackTrace();
+        }
+        catch(RuntimeException e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Reports packets which could not be decoded with one line at most every DECODE_LOG_INTERVAL, so
+     * anyone sending junk to the chatroom cannot flood the log. Every failure is still counted by the metrics.
+     * @param e: why the last packet could not be decoded
+     */
+    private void decodeFailed(ProtocolException e)
+    {
+        decodeFailures++;
+        long now = System.currentTimeMillis();
+        if(now-decodeLoggedAt>=DECODE_LOG_INTERVAL)
+        {
+            System.err.println("ChatProxy: "+decodeFailures+" packet(s) could not be decoded, the last because of "+e);
+            decodeFailures = 0;
+            decodeLoggedAt = now;
+        }
+    }
+
+    /**
+     * Updates the model with a frame from another client.
+     * @param frame: the codec holding the decoded frame
+     * @throws IOException: if a reply fails to send
+     */
+    private void handleFrame(PacketCodec frame) throws IOException
+    {
+        long id = frame.getSenderId();
+        //depending on the code we get, do something different.
+        switch(frame.getOpcode())
+        {
+            //when a user joins the chatroom, add that user to the roster. One of the clients
+            //already in the chatroom will send them the roster.
+            case USER_JOIN_CODE:
+                roster.joined(id,frame.getTimestamp(),frame.getText());
+                break;
+            //older clients send their name to a user who joins, instead of the roster
+            case SEND_NAME_CODE:
+                if(frame.getDestination()==uniqueID)
+                {
+                    membership.syncing = true;
+                    try
                     {
-                        //when a user joins the chatroom, add that user to the list.
-                        case USER_JOIN_CODE:
-                            model.addUser(id,scan.nextLine());
-                            break;
-                        //when a user joins the chatroom, ensure that they are sent everyone's name already
-                        //in the chatroom.
-                        case SEND_NAME_CODE:
-                            long destination = in.readLong();
-                            if(destination==uniqueID)
-                                model.modifyNames(scan.nextLine(),1);
-                            break;
-                        //when a user sends a message
-                        case SEND_MESSAGE_CODE:
-                            model.redrawChat(scan.nextLine());
-                            break;
-                        //when a user leaves the chatroom
-                        case USER_EXIT_CODE:
-                            String user=scan.nextLine();
-                            model.modifyNames(user,-1);
-                            model.redrawChat(user+" left the chatroom");
-                            break;
+                        roster.merge(id,frame.getTimestamp(),frame.getText());
                     }
+                    finally
+                    {
+                        membership.syncing = false;
+                    }
+                }
+                break;
+            //part or all of another client's roster
+            case ROSTER_CODE:
+                membership.syncing = true;
+                try
+                {
+                    roster.rosterReceived(frame);
+                }
+                finally
+                {
+                    membership.syncing = false;
+                }
+                break;
+            //another client's summary of who is in the chatroom
+            //it also shows they are still here, and which frames they sent last
+            case DIGEST_CODE:
+                roster.heardFrom(id);
+                roster.digestReceived(id,frame.getMemberCount(),frame.getDigest());
+                receiver.sawLatest(id,frame.getLastSequence());
+                break;
+            //when a user sends a message
+            case SEND_MESSAGE_CODE:
+                admission.offer(id,frame.getSequence(),frame.getTimestamp(),frame.getText(),receivedAt);
+                break;
+            //when a user leaves the chatroom, after whatever they said which is still waiting
+            case USER_EXIT_CODE:
+                receiver.forget(id);
+                admission.flush(id);
+                String user=frame.getText();
+                roster.left(id,frame.getTimestamp());
+                events.publish(ChatEvent.Type.MESSAGE_RECEIVED,id,frame.getSequence(),frame.getTimestamp(),
+                        user+" left the chatroom",receivedAt);
+                break;
+            //part of the chat log, sent by whoever sent the roster to a client who joined
+            case HISTORY_CODE:
+                catchUp.chunkReceived(frame);
+                break;
+        }
+    }
+
+    /**
+     * Connects the reliable receiver to this proxy. Frames it hands back in order go to the model,
+     * and the NAKs it asks for are sent to the group.
+     */
+    private class Delivery implements ReliableReceiver.Handler
+    {
+        @Override
+        public void deliver(PacketCodec frame) throws IOException
+        {
+            handleFrame(frame);
+        }
 
+        /**
+         * Queues the NAK, since the receiver asks for it while holding its lock
+         */
+        @Override
+        public void sendNak(final long sender,final long from,final int count)
+        {
+            outbound.execute(new Send()
+            {
+                void send() throws IOException
+                {
+                    PacketCodec codec = sendCodec.get();
+                    codec.beginFrame();
+                    codec.putNak(uniqueID,System.currentTimeMillis(),sender,from,count);
+                    batcher.add(codec.finishPacket());
                 }
+            });
+        }
+    }
+
+    /**
+     * Connects admission control to this proxy. Messages it lets in go to the model, and the ones it
+     * sheds are counted. It lets them in while holding its lock, from the receiving thread or a tick, so
+     * a message the model has no room for is shed too, rather than waiting for it.
+     */
+    private class Admission implements AdmissionControl.Handler
+    {
+        @Override
+        public boolean admit(long senderId,long sequence,long timestamp,String text,long receivedNanos)
+        {
+            //a full bus keeps the message in admission control until the next tick
+            return events.tryPublish(ChatEvent.Type.MESSAGE_RECEIVED,senderId,sequence,timestamp,text,receivedNanos);
+        }
+
+        @Override
+        public void shed(long senderId)
+        {
+            metrics.messageShed(senderId);
+        }
+    }
+
+    /**
+     * A send queued on the outbound queue. Failures are printed, since nobody is waiting for them.
+     */
+    private abstract static class Send implements Runnable
+    {
+        @Override
+        public void run()
+        {
+            try
+            {
+                send();
             }
-            catch(Exception e)
+            catch(IOException e)
             {
                 e.printStackTrace();
             }
         }
+
+        abstract void send() throws IOException;
+    }
+
+    /**
+     * Connects the roster and failure detector to this proxy. Changes to the roster go to the model and
+     * the failure detector, rosters and DIGESTs are sent to the group, and members who go quiet are removed.
+     */
+    private class Membership implements Roster.Handler,FailureDetector.Handler
+    {
+        //true while the members of a ROSTER frame are merged. Only touched while handling a frame.
+        boolean syncing = false;
+
+        @Override
+        public void memberAdded(long id,String name)
+        {
+            events.publish(syncing ? ChatEvent.Type.NAME_SYNC : ChatEvent.Type.USER_JOINED,id,
+                    System.currentTimeMillis(),name);
+            detector.watch(id);
+        }
+
+        @Override
+        public void memberRemoved(long id,String name)
+        {
+            detector.forget(id);
+            events.publish(ChatEvent.Type.USER_LEFT,id,System.currentTimeMillis(),name);
+        }
+
+        @Override
+        public void peerFailed(long id)
+        {
+            Roster.Member member = roster.failed(id);
+            if(member!=null)
+            {
+                receiver.forget(id);
+                admission.flush(id);
+                events.publish(ChatEvent.Type.MESSAGE_RECEIVED,id,System.currentTimeMillis(),
+                        member.getName()+" stopped responding");
+            }
+        }
+
+        /**
+         * Queues the roster to be sent in as many ROSTER frames as it takes, each small enough for one packet
+         */
+        @Override
+        public void sendRoster(final long destination,final List<Roster.Member> members)
+        {
+            outbound.execute(new Send()
+            {
+                void send() throws IOException
+                {
+                    sendRosterFrames(destination,members);
+                }
+            });
+        }
+
+        private void sendRosterFrames(long destination,List<Roster.Member> members) throws IOException
+        {
+            PacketCodec codec = sendCodec.get();
+            int next = 0;
+            do
+            {
+                long seq = sequence.incrementAndGet();
+                long time = System.currentTimeMillis();
+                codec.beginRoster(uniqueID,seq,time,destination);
+                while(next<members.size())
+                {
+                    Roster.Member member = members.get(next);
+                    if(!codec.putMember(member.getId(),member.getVersion(),member.getName()))
+                    {
+                        break;
+                    }
+                    next++;
+                }
+                ByteBuffer frame = codec.finishRoster();
+                sent.store(seq,time,frame);
+                transmit(codec,frame,seq,time);
+            }
+            while(next<members.size());
+        }
+
+        @Override
+        public void sendHistory(long destination)
+        {
+            catchUp.serve(destination);
+        }
+
+        @Override
+        public void sendDigest(final int count,final long digest)
+        {
+            outbound.execute(new Send()
+            {
+                void send() throws IOException
+                {
+                    //read when sent, so it covers every frame queued before the DIGEST
+                    PacketCodec codec = sendCodec.get();
+                    codec.beginFrame();
+                    codec.putDigest(uniqueID,System.currentTimeMillis(),count,digest,sequence.get());
+                    batcher.add(codec.finishPacket());
+                }
+            });
+        }
+    }
+
+    /**
+     * Connects the history catch up to this proxy. Chunks are sent as sequenced HISTORY frames, and the
+     * history sent to this client is merged into the model on the merge thread.
+     */
+    private class CatchUp implements HistoryCatchUp.Handler
+    {
+        @Override
+        public void sendChunk(long destination,int index,boolean last,byte[] data,int length) throws IOException
+        {
+            PacketCodec codec = sendCodec.get();
+            long seq = sequence.incrementAndGet();
+            long time = System.currentTimeMillis();
+            ByteBuffer frame = codec.encodeHistory(uniqueID,seq,time,destination,index,last,data,length);
+            sent.store(seq,time,frame);
+            transmit(codec,frame,seq,time);
+        }
+
+        @Override
+        public void historyReceived(final List<ChatMessage> messages)
+        {
+            merges().execute(new Runnable()
+            {
+                public void run()
+                {
+                    model.mergeHistory(messages);
+                }
+            });
+        }
     }
 }
@@ -0,0 +1,818 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.MembershipKey;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * A chatroom for networks which do not route multicast. Clients connect to the relay over TCP or send to
+ * it over UDP with a RelayTransport, and every packet one of them sends is passed on, unchanged, to all
+ * of the others. The relay does not decode packets, so it works with every opcode the clients know.
+ *
+ * It can also bridge to a multicast group, so clients on the relay's own network can keep using
+ * multicast and still talk to the ones coming through the relay.
+ *
+ * Everything happens on one thread with one selector. A packet is copied once, into a direct slab shared
+ * by every packet read lately, and each TCP peer is only given a read-only view of that copy. A peer's
+ * views are written with one gathering write, however many packets are waiting for it. Every slab counts
+ * the views of it still waiting to be written, and once it is full and none are left it is kept to be
+ * filled again, so the relay stops allocating slabs once it has as many as the slowest peer holds on to. A peer which
+ * cannot keep up has at most QUEUE packets waiting, and misses any more, just as it could on a lossy
+ * network, so it asks for them again the way it always does.
+ *
+ * Over TCP every packet is sent after its length, as 2 bytes. Over UDP a packet is one datagram. Since the
+ * source of a datagram can be forged, a UDP peer first has to show it receives at the address it sends
+ * from: the relay answers anything from an address it does not know with a CHALLENGE holding a cookie made
+ * from that address, which is never bigger than what it answers, and only takes the address as a peer once
+ * it sends the cookie back in a HELLO. Nothing from an address is passed on before that. Handshake
+ * datagrams are HANDSHAKE_SIZE bytes: a 0, which no packet starts with, the type and the cookie. A UDP
+ * peer is sent packets until it has been quiet for PEER_TIMEOUT, and at most MAX_UDP_PEERS are sent
+ * packets at once.
+ */
+public class ChatRelay implements Runnable
+{
+    //the most packets waiting to be written to one TCP peer
+    public static final int QUEUE = 4096;
+    //how long a UDP peer which sends nothing keeps being sent packets
+    public static final long PEER_TIMEOUT = FailureDetector.TIMEOUT;
+    //the most UDP peers sent packets at once
+    public static final int MAX_UDP_PEERS = 4096;
+    //the size of a UDP handshake datagram, and its types
+    public static final int HANDSHAKE_SIZE = 10;
+    public static final byte HELLO = 1;
+    public static final byte CHALLENGE = 2;
+    //bytes put in front of a packet sent over TCP
+    public static final int LENGTH_SIZE = 2;
+    //the size of the slabs packets are copied into
+    private static final int SLAB = 256*1024;
+    //the most empty slabs kept to be filled again
+    private static final int SPARE_SLABS = 16;
+    //packets read from one peer before moving on to the next
+    private static final int READ_BUDGET = 64;
+
+    private final Selector selector;
+    private final Thread thread;
+    private final ServerSocketChannel server;
+    private final DatagramChannel udp;
+    //the multicast group bridged to, or nulls if there is none
+    private final DatagramChannel bridge;
+    private final MembershipKey membership;
+    private final InetSocketAddress group;
+    //the bridge sends from its own port, so packets it sends to the group are not passed on again
+    private final DatagramChannel bridgeSender;
+    private final int bridgePort;
+
+    private final ArrayList<Peer> peers = new ArrayList<Peer>();
+    private final HashMap<SocketAddress,UdpPeer> udpPeers = new HashMap<SocketAddress,UdpPeer>();
+    //TCP peers given packets since they were last written to
+    private final ArrayList<Peer> dirty = new ArrayList<Peer>();
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(PacketCodec.RECEIVE_SIZE);
+    //makes the cookie of each UDP address, with a key only the relay knows
+    private final Mac cookies;
+    private final ByteBuffer digest = ByteBuffer.allocate(32);
+    private final ByteBuffer challenge = ByteBuffer.allocateDirect(HANDSHAKE_SIZE);
+    //the slab packets are copied into, and the empty ones kept, newest last
+    private Slab slab = new Slab();
+    private final ArrayList<Slab> spare = new ArrayList<Slab>();
+    private long lastSweep = System.currentTimeMillis();
+    private volatile boolean running = true;
+
+    //counters, only written by the relay's thread
+    private volatile long packetsRelayed = 0;
+    private volatile long packetsDelivered = 0;
+    private volatile long packetsDropped = 0;
+    private volatile long packetsRefused = 0;
+    private volatile long slabsAllocated = 1;
+
+    /**
+     * Constructor for a relay which does not bridge to multicast. Starts the relay's thread.
+     * @param port- the TCP and UDP port peers connect to
+     * @throws IOException- if the port cannot be bound
+     */
+    public ChatRelay(int port) throws IOException
+    {
+        this(port,null,0,null);
+    }
+
+    /**
+     * Constructor. Starts the relay's thread.
+     * @param port- the TCP and UDP port peers connect to
+     * @param group- the multicast group to bridge to, or null for none
+     * @param groupPort- the port of the group
+     * @param networkInterface- the interface the group is joined on, or null for the one NioSelectorLoop
+     *                          would pick
+     * @throws IOException- if the port cannot be bound or the group cannot be joined
+     */
+    public ChatRelay(int port,InetAddress group,int groupPort,NetworkInterface networkInterface) throws IOException
+    {
+        byte[] key = new byte[32];
+        new SecureRandom().nextBytes(key);
+        try
+        {
+            cookies = Mac.getInstance("HmacSHA256");
+            cookies.init(new SecretKeySpec(key,"HmacSHA256"));
+        }
+        catch(GeneralSecurityException e)
+        {
+            throw new IOException("Cannot make UDP cookies",e);
+        }
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        server.setOption(StandardSocketOptions.SO_REUSEADDR,true);
+        server.bind(new InetSocketAddress(port),QUEUE);
+        server.configureBlocking(false);
+        server.register(selector,SelectionKey.OP_ACCEPT);
+        udp = DatagramChannel.open();
+        udp.bind(new InetSocketAddress(port));
+        udp.configureBlocking(false);
+        udp.register(selector,SelectionKey.OP_READ);
+        if(group!=null)
+        {
+            if(networkInterface==null)
+            {
+                networkInterface = NioSelectorLoop.multicastInterface();
+            }
+            StandardProtocolFamily family = group.getAddress().length==4 ?
+                    StandardProtocolFamily.INET : StandardProtocolFamily.INET6;
+            bridge = DatagramChannel.open(family);
+            bridge.setOption(StandardSocketOptions.SO_REUSEADDR,true);
+            bridge.bind(new InetSocketAddress(groupPort));
+            bridge.configureBlocking(false);
+            membership = bridge.join(group,networkInterface);
+            bridge.register(selector,SelectionKey.OP_READ);
+            bridgeSender = DatagramChannel.open(family);
+            bridgeSender.setOption(StandardSocketOptions.IP_MULTICAST_IF,networkInterface);
+            bridgeSender.bind(new InetSocketAddress(0));
+            bridgePort = ((InetSocketAddress)bridgeSender.getLocalAddress()).getPort();
+            this.group = new InetSocketAddress(group,groupPort);
+        }
+        else
+        {
+            bridge = null;
+            membership = null;
+            bridgeSender = null;
+            bridgePort = -1;
+            this.group = null;
+        }
+        thread = new Thread(this,"ChatRelay");
+        thread.start();
+    }
+
+    /**
+     * Runs a relay until the process is ended
+     * @param args- the port peers connect to, then optionally a multicast group and its port to bridge to
+     */
+    public static void main(String[] args)
+    {
+        if(args.length!=1&&args.length!=3)
+        {
+            System.err.println("usage: java ChatRelay <port> [<multicast group> <group port>]");
+            System.exit(1);
+        }
+        try
+        {
+            int port = Integer.parseInt(args[0]);
+            ChatRelay relay = args.length==3 ?
+                    new ChatRelay(port,InetAddress.getByName(args[1]),Integer.parseInt(args[2]),null) :
+                    new ChatRelay(port);
+            System.out.println("relaying on port "+port+(args.length==3 ? ", bridged to "+args[1]+":"+args[2] : ""));
+            relay.thread.join();
+        }
+        catch(IOException e)
+        {
+            e.printStackTrace();
+            System.exit(1);
+        }
+        catch(InterruptedException e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Called when the thread starts. Waits for peers to connect or send, passes on what they send, then
+     * writes out what each TCP peer has been given.
+     */
+    public void run()
+    {
+        while(running)
+        {
+            try
+            {
+                selector.select(PEER_TIMEOUT);
+                Iterator<SelectionKey> ready = selector.selectedKeys().iterator();
+                while(ready.hasNext())
+                {
+                    SelectionKey key = ready.next();
+                    ready.remove();
+                    try
+                    {
+                        if(!key.isValid())
+                        {
+                            continue;
+                        }
+                        if(key.isAcceptable())
+                        {
+                            accept();
+                        }
+                        else if(key.channel()==udp)
+                        {
+                            receiveUdp();
+                        }
+                        else if(key.channel()==bridge)
+                        {
+                            receiveBridge();
+                        }
+                        else
+                        {
+                            Peer peer = (Peer)key.attachment();
+                            if(key.isReadable())
+                            {
+                                peer.read();
+                            }
+                            if(key.isValid()&&key.isWritable())
+                            {
+                                peer.write();
+                            }
+                        }
+                    }
+                    catch(IOException e)
+                    {
+                        //one peer failing should not stop the others
+                        if(key.attachment() instanceof Peer)
+                        {
+                            ((Peer)key.attachment()).close();
+                        }
+                        else if(running)
+                        {
+                            e.printStackTrace();
+                        }
+                    }
+                }
+                flush();
+                sweep();
+            }
+            catch(IOException e)
+            {
+                if(running)
+                {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private void accept() throws IOException
+    {
+        SocketChannel channel;
+        while((channel = server.accept())!=null)
+        {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY,true);
+            Peer peer = new Peer(channel);
+            peer.key = channel.register(selector,SelectionKey.OP_READ,peer);
+            peers.add(peer);
+        }
+    }
+
+    private void receiveUdp() throws IOException
+    {
+        for(int i=0;i<READ_BUDGET;i++)
+        {
+            receiveBuffer.clear();
+            SocketAddress from = udp.receive(receiveBuffer);
+            if(from==null)
+            {
+                return;
+            }
+            receiveBuffer.flip();
+            UdpPeer peer = udpPeers.get(from);
+            if(peer==null)
+            {
+                handshake(from);
+                continue;
+            }
+            peer.lastHeard = System.currentTimeMillis();
+            //a HELLO sent again only keeps the peer from timing out
+            if(receiveBuffer.hasRemaining()&&receiveBuffer.get(receiveBuffer.position())!=0)
+            {
+                relay(receiveBuffer,peer);
+            }
+        }
+    }
+
+    /**
+     * Takes an address as a UDP peer if what it sent is a HELLO with its cookie, and otherwise sends it a
+     * CHALLENGE, as long as what it sent is no smaller
+     * @param from- the address, which the relay does not know yet
+     */
+    private void handshake(SocketAddress from) throws IOException
+    {
+        if(udpPeers.size()>=MAX_UDP_PEERS)
+        {
+            packetsRefused++;
+            return;
+        }
+        long cookie = cookie(from);
+        int start = receiveBuffer.position();
+        if(receiveBuffer.remaining()==HANDSHAKE_SIZE&&receiveBuffer.get(start)==0&&receiveBuffer.get(start+1)==HELLO
+                &&receiveBuffer.getLong(start+2)==cookie)
+        {
+            UdpPeer peer = new UdpPeer(from);
+            peer.lastHeard = System.currentTimeMillis();
+            udpPeers.put(from,peer);
+            return;
+        }
+        packetsRefused++;
+        if(receiveBuffer.remaining()>=HANDSHAKE_SIZE)
+        {
+            challenge.clear();
+            challenge.put((byte)0).put(CHALLENGE).putLong(cookie);
+            challenge.flip();
+            udp.send(challenge,from);
+        }
+    }
+
+    /**
+     * Makes the cookie an address has to send back
+     */
+    private long cookie(SocketAddress from)
+    {
+        InetSocketAddress address = (InetSocketAddress)from;
+        cookies.update(address.getAddress().getAddress());
+        cookies.update((byte)(address.getPort()>>8));
+        cookies.update((byte)address.getPort());
+        try
+        {
+            cookies.doFinal(digest.array(),0);
+        }
+        catch(GeneralSecurityException e)
+        {
+            throw new IllegalStateException(e);
+        }
+        return digest.getLong(0);
+    }
+
+    private void receiveBridge() throws IOException
+    {
+        for(int i=0;i<READ_BUDGET;i++)
+        {
+            receiveBuffer.clear();
+            InetSocketAddress from = (InetSocketAddress)bridge.receive(receiveBuffer);
+            if(from==null)
+            {
+                return;
+            }
+            if(from.getPort()!=bridgePort)
+            {
+                receiveBuffer.flip();
+                relay(receiveBuffer,bridge);
+            }
+        }
+    }
+
+    /**
+     * Passes a packet on to everyone but whoever sent it
+     * @param packet- the packet, from its position to its limit, which is only read before this returns
+     * @param from- the Peer, UdpPeer or bridge channel it came from
+     */
+    private void relay(ByteBuffer packet,Object from) throws IOException
+    {
+        int length = packet.remaining();
+        if(length<PacketCodec.HEADER_SIZE||length>PacketCodec.RECEIVE_SIZE)
+        {
+            return;
+        }
+        packetsRelayed++;
+        //copy the packet once, after its length, into the slab
+        if(slab.buffer.remaining()<LENGTH_SIZE+length)
+        {
+            Slab full = slab;
+            full.full = true;
+            if(spare.isEmpty())
+            {
+                slab = new Slab();
+                slabsAllocated++;
+            }
+            else
+            {
+                slab = spare.remove(spare.size()-1);
+            }
+            if(full.views==0)
+            {
+                recycle(full);
+            }
+        }
+        ByteBuffer copy = slab.buffer;
+        int start = copy.position();
+        copy.putShort((short)length);
+        copy.put(packet);
+        ByteBuffer framed = copy.duplicate();
+        framed.position(start);
+        framed.limit(copy.position());
+        framed = framed.slice().asReadOnlyBuffer();
+
+        for(int i=0;i<peers.size();i++)
+        {
+            Peer peer = peers.get(i);
+            if(peer!=from)
+            {
+                peer.give(framed.duplicate(),slab);
+            }
+        }
+        if(!udpPeers.isEmpty()||(bridge!=null&&from!=bridge))
+        {
+            ByteBuffer datagram = framed.duplicate();
+            datagram.position(LENGTH_SIZE);
+            for(UdpPeer peer : udpPeers.values())
+            {
+                if(peer!=from)
+                {
+                    datagram.position(LENGTH_SIZE);
+                    if(udp.send(datagram,peer.address)>0)
+                    {
+                        packetsDelivered++;
+                    }
+                    else
+                    {
+                        packetsDropped++;
+                    }
+                }
+            }
+            if(bridge!=null&&from!=bridge)
+            {
+                datagram.position(LENGTH_SIZE);
+                bridgeSender.send(datagram,group);
+            }
+        }
+    }
+
+    /**
+     * Lets go of a view of a slab, once it was written or will never be
+     * @param owner- the slab the view was of
+     */
+    private void release(Slab owner)
+    {
+        owner.views--;
+        if(owner.views==0&&owner.full)
+        {
+            recycle(owner);
+        }
+    }
+
+    /**
+     * Keeps a full slab which has no views left to be filled again, unless enough are kept already
+     */
+    private void recycle(Slab empty)
+    {
+        if(spare.size()<SPARE_SLABS)
+        {
+            empty.buffer.clear();
+            empty.full = false;
+            spare.add(empty);
+        }
+    }
+
+    /**
+     * Writes out what every TCP peer has been given since the last time
+     */
+    private void flush()
+    {
+        for(int i=0;i<dirty.size();i++)
+        {
+            Peer peer = dirty.get(i);
+            peer.marked = false;
+            try
+            {
+                peer.write();
+            }
+            catch(IOException e)
+            {
+                peer.close();
+            }
+        }
+        dirty.clear();
+    }
+
+    /**
+     * Forgets the UDP peers which have been quiet for PEER_TIMEOUT, at most once a second
+     */
+    private void sweep()
+    {
+        long now = System.currentTimeMillis();
+        if(now-lastSweep<1000)
+        {
+            return;
+        }
+        lastSweep = now;
+        Iterator<UdpPeer> all = udpPeers.values().iterator();
+        while(all.hasNext())
+        {
+            if(now-all.next().lastHeard>PEER_TIMEOUT)
+            {
+                all.remove();
+            }
+        }
+    }
+
+    /**
+     * Stops the relay, and disconnects every peer
+     * @throws IOException- if a channel fails to close
+     */
+    public void close() throws IOException
+    {
+        running = false;
+        selector.wakeup();
+        try
+        {
+            thread.join(1000);
+        }
+        catch(InterruptedException e)
+        {
+            e.printStackTrace();
+        }
+        for(Peer peer : new ArrayList<Peer>(peers))
+        {
+            peer.close();
+        }
+        server.close();
+        udp.close();
+        if(bridge!=null)
+        {
+            membership.drop();
+            bridge.close();
+            bridgeSender.close();
+        }
+        selector.close();
+    }
+
+    /**
+     * Getter for the number of peers connected over TCP
+     * @return the number of peers
+     */
+    public int getPeers()
+    {
+        return peers.size();
+    }
+
+    /**
+     * Getter for the number of packets passed on
+     * @return packetsRelayed
+     */
+    public long getPacketsRelayed()
+    {
+        return packetsRelayed;
+    }
+
+    /**
+     * Getter for the number of copies of packets written to peers
+     * @return packetsDelivered
+     */
+    public long getPacketsDelivered()
+    {
+        return packetsDelivered;
+    }
+
+    /**
+     * Getter for the number of copies of packets not written to a peer, because it was too far behind
+     * @return packetsDropped
+     */
+    public long getPacketsDropped()
+    {
+        return packetsDropped;
+    }
+
+    /**
+     * Getter for the number of datagrams not passed on because they came from an address which was not a
+     * UDP peer, or could not become one because there were MAX_UDP_PEERS
+     * @return packetsRefused
+     */
+    public long getPacketsRefused()
+    {
+        return packetsRefused;
+    }
+
+    /**
+     * Getter for the number of slabs made since the relay started
+     * @return slabsAllocated
+     */
+    public long getSlabsAllocated()
+    {
+        return slabsAllocated;
+    }
+
+    /**
+     * Getter for the number of peers sending over UDP
+     * @return the number of peers
+     */
+    public int getUdpPeers()
+    {
+        return udpPeers.size();
+    }
+
+    /**
+     * A peer connected over TCP
+     */
+    private class Peer
+    {
+        final SocketChannel channel;
+        SelectionKey key;
+        //holds what has been read of the next packet
+        final ByteBuffer in = ByteBuffer.allocate(LENGTH_SIZE+PacketCodec.RECEIVE_SIZE);
+        //packets waiting to be written, from head to tail, and the slab each is a view of. Grow up to QUEUE.
+        ByteBuffer[] out = new ByteBuffer[16];
+        Slab[] owners = new Slab[16];
+        int head = 0;
+        int tail = 0;
+        //whether the peer is in dirty
+        boolean marked = false;
+
+        Peer(SocketChannel channel)
+        {
+            this.channel = channel;
+        }
+
+        /**
+         * Reads what the peer has sent, and passes on every whole packet
+         */
+        void read() throws IOException
+        {
+            for(int i=0;i<READ_BUDGET;i++)
+            {
+                int read = channel.read(in);
+                if(read<0)
+                {
+                    close();
+                    return;
+                }
+                in.flip();
+                while(in.remaining()>=LENGTH_SIZE)
+                {
+                    int length = in.getShort(in.position())&0xFFFF;
+                    if(length>PacketCodec.RECEIVE_SIZE)
+                    {
+                        //no client sends one, so the stream cannot be trusted after it
+                        close();
+                        return;
+                    }
+                    if(in.remaining()<LENGTH_SIZE+length)
+                    {
+                        break;
+                    }
+                    int limit = in.limit();
+                    int start = in.position()+LENGTH_SIZE;
+                    in.position(start);
+                    in.limit(start+length);
+                    relay(in,this);
+                    //relay() leaves packets it refuses unread, so the next one is found by the length
+                    in.limit(limit);
+                    in.position(start+length);
+                }
+                in.compact();
+                if(read==0)
+                {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Queues a packet to be written, or drops it if the peer is too far behind
+         * @param packet- a view of the shared copy of the packet, after its length
+         * @param owner- the slab the copy is in
+         */
+        void give(ByteBuffer packet,Slab owner)
+        {
+            if(tail-head>=QUEUE)
+            {
+                packetsDropped++;
+                return;
+            }
+            if(tail==out.length)
+            {
+                //move what is waiting to the front, into a bigger array if it is more than half full
+                int waiting = tail-head;
+                boolean grow = waiting*2>out.length;
+                ByteBuffer[] moved = grow ? new ByteBuffer[Math.min(QUEUE,out.length*2)] : out;
+                Slab[] movedOwners = grow ? new Slab[moved.length] : owners;
+                System.arraycopy(out,head,moved,0,waiting);
+                System.arraycopy(owners,head,movedOwners,0,waiting);
+                if(!grow)
+                {
+                    Arrays.fill(out,waiting,tail,null);
+                    Arrays.fill(owners,waiting,tail,null);
+                }
+                out = moved;
+                owners = movedOwners;
+                head = 0;
+                tail = waiting;
+            }
+            owner.views++;
+            owners[tail] = owner;
+            out[tail++] = packet;
+            if(!marked)
+            {
+                marked = true;
+                dirty.add(this);
+            }
+        }
+
+        /**
+         * Writes as much of what is waiting as the socket takes, in one gathering write, and waits to be
+         * told it can write again if that is not all of it
+         */
+        void write() throws IOException
+        {
+            if(head==tail||!channel.isOpen())
+            {
+                return;
+            }
+            channel.write(out,head,tail-head);
+            while(head<tail&&!out[head].hasRemaining())
+            {
+                release(owners[head]);
+                owners[head] = null;
+                out[head++] = null;
+                packetsDelivered++;
+            }
+            if(head==tail)
+            {
+                head = 0;
+                tail = 0;
+                if((key.interestOps()&SelectionKey.OP_WRITE)!=0)
+                {
+                    key.interestOps(SelectionKey.OP_READ);
+                }
+            }
+            else if((key.interestOps()&SelectionKey.OP_WRITE)==0)
+            {
+                key.interestOps(SelectionKey.OP_READ|SelectionKey.OP_WRITE);
+            }
+        }
+
+        void close()
+        {
+            peers.remove(this);
+            packetsDropped += tail-head;
+            for(int i=head;i<tail;i++)
+            {
+                release(owners[i]);
+            }
+            head = 0;
+            tail = 0;
+            Arrays.fill(out,null);
+            Arrays.fill(owners,null);
+            try
+            {
+                channel.close();
+            }
+            catch(IOException e)
+            {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * A direct buffer packets are copied into, one after another
+     */
+    private static class Slab
+    {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(SLAB);
+        //views of it waiting in a TCP peer's queue
+        int views = 0;
+        //whether packets are no longer copied into it
+        boolean full = false;
+    }
+
+    /**
+     * A peer which sends over UDP
+     */
+    private static class UdpPeer
+    {
+        final SocketAddress address;
+        long lastHeard;
+
+        UdpPeer(SocketAddress address)
+        {
+            this.address = address;
+        }
+    }
+}
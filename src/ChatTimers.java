@@ -0,0 +1,37 @@
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The timer thread shared by every chatroom in the process. Periodic work such as asking for lost
+ * packets is scheduled here, so that the number of threads does not grow with the number of rooms.
+ * Tasks must be short, since they all run on the same thread.
+ */
+public class ChatTimers
+{
+    private static ScheduledExecutorService shared;
+
+    /**
+     * Getter for the shared timer. Starts it the first time it is called.
+     * @return the timer
+     */
+    public static synchronized ScheduledExecutorService shared()
+    {
+        if(shared==null)
+        {
+            ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1,new ThreadFactory()
+            {
+                public Thread newThread(Runnable task)
+                {
+                    Thread thread = new Thread(task,"ChatTimers");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            //cancelled tasks are dropped straight away, since rooms come and go
+            timer.setRemoveOnCancelPolicy(true);
+            shared = timer;
+        }
+        return shared;
+    }
+}
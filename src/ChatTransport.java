@@ -0,0 +1,43 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A transport moves packets between a proxy and the rest of its chatroom.
+ * The proxy only deals in encoded packets, so the same proxy can run over a plain
+ * multicast socket or a channel shared with many other rooms.
+ */
+public interface ChatTransport
+{
+    /**
+     * Called by a transport for every packet it receives.
+     */
+    interface Listener
+    {
+        /**
+         * A packet arrived. The buffer is only valid until this method returns, since the
+         * transport reuses it for the next packet.
+         * @param packet- the packet, from its position to its limit
+         */
+        void packetReceived(ByteBuffer packet);
+    }
+
+    /**
+     * Starts delivering received packets to the listener.
+     * @param listener- who packets are handed to
+     * @throws IOException- if the transport cannot start receiving
+     */
+    void start(Listener listener) throws IOException;
+
+    /**
+     * Sends a packet to everyone in the chatroom. Can be called from any thread.
+     * @param packet- the packet, from its position to its limit
+     * @throws IOException- if the packet fails to send
+     */
+    void send(ByteBuffer packet) throws IOException;
+
+    /**
+     * Leaves the chatroom and releases the transport's resources.
+     * @throws IOException- if the transport fails to close
+     */
+    void close() throws IOException;
+}
@@ -6,7 +6,8 @@ import java.awt.event.ActionListener;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
 
 /**
  * Created by Austin on 1/2/2016.
@@ -20,10 +21,29 @@ public class ChatView extends JFrame implements ActionListener
 
     //components
     private JTextField field;
-    private JTextArea messageArea;
-    private JTextArea userArea;
+    private JButton send;
+    private JList<ChatMessage> messageList;
+    private ChatLogListModel messageLog;
+    private FontMetrics messageMetrics;
+    //the widest message drawn so far
+    private int widestMessage;
+    private JList<String> userList;
+    private UserListModel users;
     private JScrollPane messageScroll;
     private JScrollPane userScroll;
+    private JTextField searchField;
+    private JLabel searchStatus;
+    private DefaultListModel<ChatMessage> searchResults;
+    //the chat log index of each search result
+    private long[] resultIndexes = new long[0];
+    //the last search, run again when the chat log is built again, or null
+    private String searchWords;
+    private long searchSender;
+    private long searchFrom;
+    private long searchTo;
+    private JDialog searchDialog;
+    //the most results a search shows
+    private static final int SEARCH_LIMIT = 200;
 
     /**
      * Constructor for the view. Builds the UI and basic parameters for the chat window
@@ -36,9 +56,10 @@ public class ChatView extends JFrame implements ActionListener
         this.setTitle("MyChatApp");
         this.setLayout(new BorderLayout());
         //build the components of the window
-        buildUserList(model.getAllNames());
+        buildUserList();
         buildMessageScreen();
         buildInputSection();
+        buildSearchBar();
         //set window parameters
         this.setPreferredSize(new Dimension(600,400));
         this.pack();
@@ -62,25 +83,30 @@ public class ChatView extends JFrame implements ActionListener
     }
 
     /**
-     * Take an ArrayList of users and arrange them on the east side
-     * of the screen.
+     * Take the users in the chatroom and arrange them on the east side
+     * of the screen, in order of name.
      *
      * Should only be called once by the constructor.
-     * @param users- arraylist of users in the chatroom
      */
-    public void buildUserList(ArrayList<String> users)
+    public void buildUserList()
     {
-        //compile the arraylist into a single string
-        StringBuilder oneString = new StringBuilder();
-        for(int i =0;i<users.size();i++)
+        //the list model follows the model's users, so later joins and leaves only touch their own row
+        users = new UserListModel(model);
+        userList = new JList<String>(users);
+        userList.setFont(new Font("Verdana", Font.BOLD, 12));
+        userList.setFocusable(false);
+        userList.setCellRenderer(new DefaultListCellRenderer()
         {
-            oneString = oneString.append(users.get(i)+"\n");
-        }
-        //create the area for the text and nest it in a scroll pane
-        userArea = new JTextArea(oneString.toString());
-        userArea.setEditable(false);
-        userArea.setFont(new Font("Verdana", Font.BOLD, 12));
-        userScroll = new JScrollPane(userArea);
+            @Override
+            public Component getListCellRendererComponent(JList<?> list, Object value, int index,
+                                                          boolean isSelected, boolean cellHasFocus)
+            {
+                return super.getListCellRendererComponent(list,value,index,false,false);
+            }
+        });
+        userList.setFixedCellHeight(userList.getFontMetrics(userList.getFont()).getHeight()+2);
+        //nest the list in a scroll pane
+        userScroll = new JScrollPane(userList);
         userScroll.setPreferredSize(new Dimension(100, 400));
         userScroll.setHorizontalScrollBarPolicy(JScrollPane.HORIZONTAL_SCROLLBAR_NEVER);
         this.add(userScroll, BorderLayout.EAST);
@@ -94,14 +120,55 @@ public class ChatView extends JFrame implements ActionListener
      */
     public void buildMessageScreen() throws IOException
     {
-        messageArea = new JTextArea(model.getChatLog());
-        messageArea.setEnabled(false);
-        messageArea.setDisabledTextColor(Color.BLACK);
-        messageArea.setFont(new Font("Verdana",Font.PLAIN, 12));
-        messageScroll = new JScrollPane(messageArea);
+        messageLog = new ChatLogListModel(model);
+        messageList = new JList<ChatMessage>(messageLog);
+        messageList.setFont(new Font("Verdana",Font.PLAIN, 12));
+        messageList.setFocusable(false);
+        messageMetrics = messageList.getFontMetrics(messageList.getFont());
+        //draw every row like the old read only text area, ignoring selection, and measure it as it is drawn
+        messageList.setCellRenderer(new DefaultListCellRenderer()
+        {
+            @Override
+            public Component getListCellRendererComponent(JList<?> list, Object value, int index,
+                                                          boolean isSelected, boolean cellHasFocus)
+            {
+                if(value!=null)
+                {
+                    measureMessage(((ChatMessage)value).getText());
+                }
+                return super.getListCellRendererComponent(list,value==null ? "" : value,index,false,false);
+            }
+        });
+        //with a fixed row size the list never measures rows which are not on screen
+        messageList.setFixedCellHeight(messageMetrics.getHeight()+2);
+        widestMessage = 0;
+        messageList.setFixedCellWidth(widestMessage+8);
+        messageScroll = new JScrollPane(messageList);
         this.add(messageScroll,BorderLayout.CENTER);
     }
 
+    /**
+     * Widens the message rows if a message being drawn is wider than any drawn before. Only the rows on
+     * screen are ever drawn, so however long the chat log is, only what is shown gets measured.
+     * @param text- the message's text
+     */
+    private void measureMessage(String text)
+    {
+        int width = messageMetrics.stringWidth(text);
+        if(width>widestMessage)
+        {
+            widestMessage = width;
+            //called while the list is being painted, so it is resized once the paint is done
+            SwingUtilities.invokeLater(new Runnable()
+            {
+                public void run()
+                {
+                    messageList.setFixedCellWidth(widestMessage+8);
+                }
+            });
+        }
+    }
+
     /**
      * Builds the south panel of the view, which contains the field
      * in which the user types their message and the button to send it.
@@ -114,7 +181,7 @@ public class ChatView extends JFrame implements ActionListener
         southPanel.setLayout(new BorderLayout());
         field = new JTextField();
         //build the send button and make it listen for when the user clicks it.
-        JButton send = new JButton("Send");
+        send = new JButton("Send");
         send.setActionCommand("SEND");
         send.addActionListener(this);
         southPanel.add(field,BorderLayout.CENTER);
@@ -122,6 +189,194 @@ public class ChatView extends JFrame implements ActionListener
         this.add(southPanel,BorderLayout.SOUTH);
     }
 
+    /**
+     * Turns sending on or off. The window opens before the chatroom has been joined, and nothing can be
+     * sent until it has.
+     * @param connected- true once the proxy has joined the chatroom
+     */
+    public void setConnected(boolean connected)
+    {
+        field.setEnabled(connected);
+        send.setEnabled(connected);
+        this.setTitle(connected ? "MyChatApp" : "MyChatApp - joining...");
+        if(connected)
+        {
+            field.requestFocusInWindow();
+        }
+    }
+
+    /**
+     * Builds the north panel of the view, a field for searching the chat log.
+     * Words are matched whole, ignoring case. "from:name" only finds messages from that user, and
+     * "after:yyyy-MM-dd" and "before:yyyy-MM-dd" limit when they were sent.
+     *
+     * Should only be called once by the constructor.
+     */
+    public void buildSearchBar()
+    {
+        JPanel northPanel = new JPanel();
+        northPanel.setLayout(new BorderLayout());
+        searchField = new JTextField();
+        searchField.setActionCommand("SEARCH");
+        searchField.addActionListener(this);
+        JButton search = new JButton("Search");
+        search.setActionCommand("SEARCH");
+        search.addActionListener(this);
+        northPanel.add(searchField,BorderLayout.CENTER);
+        northPanel.add(search,BorderLayout.EAST);
+        this.add(northPanel,BorderLayout.NORTH);
+    }
+
+    /**
+     * Occurs when the user searches. Shows the newest matching messages in the search window.
+     * Clicking a result scrolls the chat to it.
+     */
+    public void onSearch()
+    {
+        searchWords = null;
+        StringBuilder words = new StringBuilder();
+        long sender = 0;
+        long from = Long.MIN_VALUE;
+        long to = Long.MAX_VALUE;
+        SimpleDateFormat day = new SimpleDateFormat("yyyy-MM-dd");
+        try
+        {
+            for(String part : searchField.getText().trim().split("\\s+"))
+            {
+                if(part.startsWith("from:"))
+                {
+                    sender = model.findUser(part.substring(5));
+                    if(sender==0)
+                    {
+                        showResults(new long[0],part.substring(5)+" is not in the chatroom");
+                        return;
+                    }
+                }
+                else if(part.startsWith("after:"))
+                {
+                    from = day.parse(part.substring(6)).getTime();
+                }
+                else if(part.startsWith("before:"))
+                {
+                    to = day.parse(part.substring(7)).getTime()-1;
+                }
+                else
+                {
+                    words.append(part).append(' ');
+                }
+            }
+        }
+        catch(ParseException e)
+        {
+            showResults(new long[0],"Dates are written yyyy-MM-dd");
+            return;
+        }
+        searchWords = words.toString();
+        searchSender = sender;
+        searchFrom = from;
+        searchTo = to;
+        search();
+    }
+
+    /**
+     * Runs the last search and shows what it found
+     */
+    private void search()
+    {
+        long start = System.nanoTime();
+        long[] found = model.search(searchWords,searchSender,searchFrom,searchTo,SEARCH_LIMIT);
+        long micros = (System.nanoTime()-start)/1000;
+        showResults(found,found.length+(found.length==SEARCH_LIMIT ? "+" : "")+" found in "+micros+" \u00b5s");
+    }
+
+    /**
+     * Runs the last search again if its results are showing, since their indexes in the chat log are no
+     * longer right once it has been built again, or else forgets them
+     */
+    private void searchAgain()
+    {
+        if(searchDialog==null)
+        {
+            return;
+        }
+        if(searchWords!=null&&searchDialog.isVisible())
+        {
+            search();
+        }
+        else
+        {
+            searchWords = null;
+            searchResults.clear();
+            resultIndexes = new long[0];
+        }
+    }
+
+    /**
+     * Fills the search window with messages from the chat log, opening it if needed.
+     * Messages which were evicted from memory are left out.
+     * @param found- the indexes of the messages
+     * @param status- the line shown above them
+     */
+    private void showResults(final long[] found,String status)
+    {
+        if(searchDialog==null)
+        {
+            searchResults = new DefaultListModel<ChatMessage>();
+            final JList<ChatMessage> list = new JList<ChatMessage>(searchResults);
+            list.setFont(messageList.getFont());
+            list.setFixedCellHeight(messageList.getFixedCellHeight());
+            list.addListSelectionListener(new javax.swing.event.ListSelectionListener()
+            {
+                public void valueChanged(javax.swing.event.ListSelectionEvent e)
+                {
+                    int row = list.getSelectedIndex();
+                    if(!e.getValueIsAdjusting()&&row>=0)
+                    {
+                        scrollTo(resultIndexes[row]);
+                    }
+                }
+            });
+            searchStatus = new JLabel();
+            searchDialog = new JDialog(this,"Search");
+            searchDialog.add(searchStatus,BorderLayout.NORTH);
+            searchDialog.add(new JScrollPane(list),BorderLayout.CENTER);
+            searchDialog.setPreferredSize(new Dimension(400,300));
+            searchDialog.pack();
+            searchDialog.setLocationRelativeTo(this);
+        }
+        searchResults.clear();
+        resultIndexes = new long[found.length];
+        int evicted = 0;
+        for(long index : found)
+        {
+            ChatMessage message = model.getMessage(index);
+            if(message!=null)
+            {
+                resultIndexes[searchResults.size()] = index;
+                searchResults.addElement(message);
+            }
+            else
+            {
+                evicted++;
+            }
+        }
+        searchStatus.setText(evicted>0 ? status+", "+evicted+" too old to show" : status);
+        searchDialog.setVisible(true);
+    }
+
+    /**
+     * Scrolls the chat to a message, if it is still shown
+     * @param index- the message's index in the chat log
+     */
+    private void scrollTo(long index)
+    {
+        long row = index-messageLog.getLogIndex(0);
+        if(row>=0&&row<messageLog.getSize())
+        {
+            messageList.ensureIndexIsVisible((int)row);
+        }
+    }
+
     /**
      * Occurs when the user presses the send button.
      * Updates the model and redraws the view- then clears the text box.
@@ -146,38 +401,48 @@ public class ChatView extends JFrame implements ActionListener
 
     /**
      * Redraws the view without updating the model.
+     * Must be called on the event dispatch thread, other threads should go through the model's RedrawScheduler.
      * Takes in the code parameter, which tells the view which part of the window should be updated.
      * Similar in function to the build methods, but more flexible so that this method can be
      * called upon whenever a change in the UI should occur.
      * @param code - 0: new message
-     *             - 1: new username
+     *             - 1: users joined or left
+     *             - 2: the chat log was built again
      */
     public void redraw(int code)
     {
         switch(code) {
             //in the case of a new message
             case 0:
-                messageArea.setText(model.getChatLog());
-                messageScroll.setViewportView(messageArea);
-                break;
-            case 1:
-                //in the case of a new user
-                StringBuilder oneString = new StringBuilder();
-                for(int i =0;i<model.getAllNames().size();i++)
+                //only tell the list about the new rows, and follow the log if it was scrolled to the bottom
+                JScrollBar bar = messageScroll.getVerticalScrollBar();
+                boolean atBottom = bar.getValue()+bar.getVisibleAmount()>=bar.getMaximum();
+                int added = messageLog.update();
+                model.getMetrics().messagesRendered();
+                if(added>0&&atBottom)
                 {
-                    oneString = oneString.append(model.getAllNames().get(i)+"\n");
+                    messageList.ensureIndexIsVisible(messageLog.getSize()-1);
                 }
-                userArea.setText(oneString.toString());
-                userScroll.setViewportView(userArea);
-                break;
+                return;
+            case 1:
+                //in the case of a user joining or leaving, only their rows change
+                users.update();
+                return;
+            case 2:
+                //the earlier chat was merged in, so every row may have moved, and so may every search result
+                messageLog.reset();
+                model.getMetrics().messagesRendered();
+                messageList.ensureIndexIsVisible(messageLog.getSize()-1);
+                searchAgain();
+                return;
         }
         revalidate();
         repaint();
     }
 
     /**
-     * The only action which can be preformed is clicking the send message button.
-     * However, if other buttons were to be added their effect would be detailed here.
+     * The actions which can be preformed are clicking the send message button and searching.
+     * If other buttons were to be added their effect would be detailed here.
      */
     @Override
     public void actionPerformed(ActionEvent e)
@@ -193,6 +458,11 @@ public class ChatView extends JFrame implements ActionListener
                 exp.printStackTrace();
             }
         }
+        //if the search button was clicked, or enter was pressed in the search field
+        else if(action.equals("SEARCH"))
+        {
+            onSearch();
+        }
     }
 
 }
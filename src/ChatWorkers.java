@@ -0,0 +1,40 @@
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The worker threads shared by every chatroom in the process. Sending and handling received packets run
+ * here, each room through its own SerialExecutors, so a busy room does not hold up the others and the
+ * number of threads does not grow with the number of rooms.
+ */
+public class ChatWorkers
+{
+    private static ExecutorService shared;
+
+    /**
+     * Getter for the shared workers, one per processor. Starts them the first time it is called.
+     * @return the workers
+     */
+    public static synchronized ExecutorService shared()
+    {
+        if(shared==null)
+        {
+            final AtomicInteger count = new AtomicInteger();
+            int threads = Runtime.getRuntime().availableProcessors();
+            shared = new ThreadPoolExecutor(threads,threads,0,TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<Runnable>(),new ThreadFactory()
+            {
+                public Thread newThread(Runnable task)
+                {
+                    Thread thread = new Thread(task,"ChatWorkers-"+count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return shared;
+    }
+}
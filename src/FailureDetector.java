@@ -0,0 +1,183 @@
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Notices clients which crashed or were cut off without saying goodbye.
+ *
+ * Every frame from a client counts as a sign of life, and every client sends a DIGEST every few seconds
+ * even when nobody is talking, so one which goes quiet for several DIGEST intervals is taken to be gone.
+ * The clients are kept in a TimingWheel, so the cost of each tick stays the same however many clients are
+ * watched. The shared timer only hands each tick to the room's own executor, since removing a client
+ * changes the roster and tells the model, which can wait, and the timer is shared by every room. Time is
+ * measured with System.nanoTime(), so a change to the clock neither evicts everyone nor nobody.
+ */
+public class FailureDetector
+{
+    //how long a client may go without being heard from, long enough for a few DIGESTs to be lost in a row
+    public static final long TIMEOUT = 4*Roster.DIGEST_INTERVAL;
+    public static final long TICK = 250;
+    public static final int SLOTS = 128;
+
+    /**
+     * Told about clients which went quiet
+     */
+    public interface Handler
+    {
+        /**
+         * Called on the detector's executor when a client has not been heard from for the timeout.
+         * The client is no longer watched.
+         * @param id- the client's uniqueID
+         */
+        void peerFailed(long id);
+    }
+
+    private final Handler handler;
+    private final Executor executor;
+    private final TimingWheel wheel;
+    //what the wheel's times are measured from, so they stay positive
+    private final long started = System.nanoTime();
+    private ScheduledFuture<?> ticker;
+    //whether a tick is waiting on the executor
+    private final AtomicBoolean ticking = new AtomicBoolean();
+    private final Runnable tick = new Runnable()
+    {
+        public void run()
+        {
+            ticking.set(false);
+            tick();
+        }
+    };
+    private long failures = 0;
+
+    /**
+     * Constructor
+     * @param handler- told about clients which went quiet
+     * @param executor- where the wheel ticks and the handler is told, one tick at a time
+     */
+    public FailureDetector(Handler handler,Executor executor)
+    {
+        this(handler,executor,TIMEOUT);
+    }
+
+    /**
+     * Constructor
+     * @param handler- told about clients which went quiet
+     * @param executor- where the wheel ticks and the handler is told, one tick at a time
+     * @param timeout- milliseconds a client may go without being heard from
+     */
+    public FailureDetector(Handler handler,Executor executor,long timeout)
+    {
+        this.handler = handler;
+        this.executor = executor;
+        this.wheel = new TimingWheel(SLOTS,TICK,timeout,now());
+    }
+
+    /**
+     * Starts ticking, with the shared timer handing each tick to the executor
+     */
+    public synchronized void start()
+    {
+        ticker = ChatTimers.shared().scheduleWithFixedDelay(new Runnable()
+        {
+            public void run()
+            {
+                //an executor still busy with the last tick only needs the one
+                if(ticking.compareAndSet(false,true))
+                {
+                    executor.execute(tick);
+                }
+            }
+        },TICK,TICK,TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops ticking
+     */
+    public synchronized void close()
+    {
+        if(ticker!=null)
+        {
+            ticker.cancel(false);
+        }
+    }
+
+    /**
+     * Starts watching a client, as if they were just heard from
+     * @param id- their uniqueID
+     */
+    public synchronized void watch(long id)
+    {
+        wheel.add(id,now());
+    }
+
+    /**
+     * Stops watching a client, such as when they leave
+     * @param id- their uniqueID
+     */
+    public synchronized void forget(long id)
+    {
+        wheel.remove(id);
+    }
+
+    /**
+     * Notes that a client was heard from
+     * @param id- their uniqueID
+     * @return false if the client is not being watched
+     */
+    public synchronized boolean heard(long id)
+    {
+        return wheel.touch(id,now());
+    }
+
+    /**
+     * Getter for the number of clients being watched
+     * @return the number of clients
+     */
+    public synchronized int getWatched()
+    {
+        return wheel.size();
+    }
+
+    /**
+     * Getter for the number of clients which were found to have gone quiet
+     * @return failures
+     */
+    public synchronized long getFailures()
+    {
+        return failures;
+    }
+
+    /**
+     * Getter for the time the wheel is kept in
+     * @return milliseconds since the detector was made
+     */
+    private long now()
+    {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime()-started);
+    }
+
+    private void tick()
+    {
+        List<Long> failed;
+        synchronized(this)
+        {
+            failed = wheel.advance(now());
+            failures += failed.size();
+        }
+        //the handler is told without holding the lock, since it will change the roster
+        for(Long id : failed)
+        {
+            try
+            {
+                handler.peerFailed(id);
+            }
+            catch(RuntimeException e)
+            {
+                e.printStackTrace();
+            }
+        }
+    }
+}
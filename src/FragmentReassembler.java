@@ -0,0 +1,212 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * Puts frames that were split into fragments back together.
+ *
+ * When the first fragment of a frame arrives, one buffer the size of the whole frame is made and every
+ * fragment's payload is copied straight from the received packet into its place, so the frame is never
+ * copied again once it is whole.
+ *
+ * Memory is bounded in three ways. Each sender may only have a few frames being put back together at
+ * once, a frame which has not been finished within the timeout is thrown away, and if all of the
+ * unfinished frames together take more than the memory budget, the oldest are thrown away first.
+ */
+public class FragmentReassembler
+{
+    public static final int DEFAULT_PER_SENDER = 4;
+    public static final long DEFAULT_TIMEOUT = 5000;
+    public static final long DEFAULT_BUDGET = 8L*1024*1024;
+
+    private final int perSender;
+    private final long timeout;
+    private final long budget;
+
+    //unfinished frames by sender, and all unfinished frames oldest first
+    private final HashMap<Long,ArrayList<Partial>> bySender = new HashMap<Long,ArrayList<Partial>>();
+    private final ArrayDeque<Partial> byAge = new ArrayDeque<Partial>();
+    private long bufferedBytes = 0;
+    private long evicted = 0;
+
+    /**
+     * Constructor using the default limits
+     */
+    public FragmentReassembler()
+    {
+        this(DEFAULT_PER_SENDER,DEFAULT_TIMEOUT,DEFAULT_BUDGET);
+    }
+
+    /**
+     * Constructor
+     * @param perSender- the most unfinished frames one sender may have
+     * @param timeout- milliseconds a frame has to be finished in
+     * @param budget- the most bytes all unfinished frames may take together
+     */
+    public FragmentReassembler(int perSender,long timeout,long budget)
+    {
+        this.perSender = perSender;
+        this.timeout = timeout;
+        this.budget = budget;
+    }
+
+    /**
+     * Adds the fragment the codec just decoded.
+     * @param codec- the codec, whose last frame was a fragment
+     * @return the whole frame if this fragment finished it, otherwise null.
+     *         The frame starts at the buffer's position and ends at its limit.
+     */
+    public ByteBuffer add(PacketCodec codec)
+    {
+        long now = System.currentTimeMillis();
+        expire(now);
+
+        long sender = codec.getSenderId();
+        ArrayList<Partial> partials = bySender.get(sender);
+        if(partials==null)
+        {
+            partials = new ArrayList<Partial>(perSender);
+            bySender.put(sender,partials);
+        }
+        Partial partial = null;
+        for(Partial candidate : partials)
+        {
+            if(candidate.sequence==codec.getSequence())
+            {
+                partial = candidate;
+                break;
+            }
+        }
+
+        if(partial==null)
+        {
+            //drop the sender's oldest frame if they already have too many unfinished
+            if(partials.size()>=perSender)
+            {
+                remove(partials.get(0));
+                evicted++;
+            }
+            partial = new Partial(sender,codec.getSequence(),codec.getFragmentCount(),codec.getFragmentTotal(),now);
+            partials.add(partial);
+            bySender.put(sender,partials);
+            byAge.add(partial);
+            bufferedBytes += partial.data.length;
+            //make room by dropping the oldest unfinished frames from anyone
+            while(bufferedBytes>budget&&byAge.peek()!=partial)
+            {
+                remove(byAge.peek());
+                evicted++;
+            }
+        }
+        else if(partial.count!=codec.getFragmentCount()||partial.data.length!=codec.getFragmentTotal())
+        {
+            //fragments that disagree with the first one can't be part of the same frame
+            return null;
+        }
+
+        int index = codec.getFragmentIndex();
+        if(partial.received.get(index))
+        {
+            return null;
+        }
+        codec.copyPayload(partial.data,codec.getFragmentOffset());
+        partial.received.set(index);
+        partial.bytesReceived += codec.getPayloadLength();
+        if(partial.received.cardinality()<partial.count)
+        {
+            return null;
+        }
+        remove(partial);
+        if(partial.bytesReceived!=partial.data.length)
+        {
+            return null;
+        }
+        return ByteBuffer.wrap(partial.data);
+    }
+
+    /**
+     * Getter for the number of unfinished frames which were thrown away
+     * @return evicted
+     */
+    public long getEvicted()
+    {
+        return evicted;
+    }
+
+    /**
+     * Getter for the bytes held by unfinished frames
+     * @return bufferedBytes
+     */
+    public long getBufferedBytes()
+    {
+        return bufferedBytes;
+    }
+
+    /**
+     * Throws away the unfinished frames which are past the timeout.
+     * @param now- the current time in milliseconds
+     */
+    private void expire(long now)
+    {
+        Iterator<Partial> oldest = byAge.iterator();
+        while(oldest.hasNext())
+        {
+            Partial partial = oldest.next();
+            if(now-partial.started<timeout)
+            {
+                return;
+            }
+            oldest.remove();
+            removeFromSender(partial);
+            evicted++;
+        }
+    }
+
+    /**
+     * Forgets an unfinished frame
+     * @param partial- the frame
+     */
+    private void remove(Partial partial)
+    {
+        byAge.remove(partial);
+        removeFromSender(partial);
+    }
+
+    private void removeFromSender(Partial partial)
+    {
+        bufferedBytes -= partial.data.length;
+        ArrayList<Partial> partials = bySender.get(partial.sender);
+        partials.remove(partial);
+        if(partials.isEmpty())
+        {
+            bySender.remove(partial.sender);
+        }
+    }
+
+    /**
+     * A frame which is being put back together
+     */
+    private static class Partial
+    {
+        final long sender;
+        final long sequence;
+        final int count;
+        final byte[] data;
+        final BitSet received;
+        final long started;
+        int bytesReceived;
+
+        Partial(long sender,long sequence,int count,int total,long started)
+        {
+            this.sender = sender;
+            this.sequence = sequence;
+            this.count = count;
+            this.data = new byte[total];
+            this.received = new BitSet(count);
+            this.started = started;
+        }
+    }
+}
@@ -0,0 +1,570 @@
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Sends the recent chat log to clients who join, and takes it in when this client joins.
+ *
+ * The client which sends the roster to someone who joined also sends them the newest messages of its chat
+ * log, up to the catch up limit. The messages are written as records, each the sender's id, the sender's
+ * sequence number for the message, the timestamp and the text, and cut into chunks of about CHUNK_SIZE
+ * bytes. Every chunk is deflated on its own, starting from PacketCompressor's preset dictionary, and sent
+ * in a sequenced HISTORY frame, so lost pieces are asked for again like any other frame. Chunks are sent
+ * no faster than the catch up rate, on the outbound queue, so live messages are not held up behind the
+ * whole history.
+ *
+ * If two clients start sending the history to the same client, the one with the higher id stops once it
+ * sees the other's chunks, and the client catching up only takes chunks from the lower id.
+ *
+ * Once the last chunk has arrived the messages are handed to the model, which merges them with what it
+ * received since joining.
+ */
+public class HistoryCatchUp
+{
+    //system property for the most messages sent to a client who joins
+    public static final String LIMIT_PROPERTY = "mychatapp.catchUpLimit";
+    //system property for the most bytes a second spent on sending history, after deflating
+    public static final String RATE_PROPERTY = "mychatapp.catchUpRate";
+    public static final int DEFAULT_LIMIT = MessageStore.DEFAULT_RETENTION;
+    public static final int DEFAULT_RATE = 256*1024;
+    //how many bytes of records go in each chunk before deflating
+    public static final int CHUNK_SIZE = 16*1024;
+    //the most bytes of records in a chunk, which is more than CHUNK_SIZE when the last record is long
+    private static final int MAX_CHUNK = CHUNK_SIZE+64*1024;
+    //how long a history being received may go without a new chunk before it is given up on
+    public static final long TIMEOUT = 10000;
+    //how many messages are read from the chat log at a time while sending
+    private static final int PAGE = 256;
+    //the most bytes a record takes besides its text: four varints
+    private static final int RECORD_HEADER = 40;
+
+    /**
+     * How the chunks are sent, and where the history goes once it has arrived
+     */
+    public interface Handler
+    {
+        /**
+         * Sends a chunk of the history. Called on the outbound queue.
+         * @param destination- the client catching up
+         * @param index- which chunk it is, starting from 0
+         * @param last- true if no chunks follow it
+         * @param data- the deflated chunk
+         * @param length- how many bytes of data to send
+         * @throws IOException- if the chunk fails to send
+         */
+        void sendChunk(long destination,int index,boolean last,byte[] data,int length) throws IOException;
+
+        /**
+         * Called once all of the history sent to this client has arrived
+         * @param messages- the messages, oldest first
+         */
+        void historyReceived(List<ChatMessage> messages);
+    }
+
+    private final long ownId;
+    private final ChatModel model;
+    private final Executor outbound;
+    private final Handler handler;
+    private final int limit;
+    private final int rate;
+
+    //the histories being sent, by who they are for
+    private final LongMap<Stream> streams = new LongMap<Stream>();
+    private boolean closed = false;
+    //only used on the outbound queue. Made when a history starts being sent and let go once none are
+    //left, since most clients only send one now and then.
+    private Deflater deflater;
+    private ByteBuffer raw;
+    private byte[] deflated;
+
+    //the history being received: who it is from, the next chunk expected and what arrived so far.
+    //Only used while handling frames.
+    private long source = 0;
+    private int nextChunk = 0;
+    private long lastChunkTime = 0;
+    private ArrayList<ChatMessage> receiving;
+    //made when a history starts arriving and let go once it is done
+    private Inflater inflater;
+    private byte[] compressed;
+    private byte[] inflated;
+
+    //counters
+    private long historiesSent = 0;
+    private long historiesYielded = 0;
+    private long chunksSent = 0;
+    private long rawBytesSent = 0;
+    private long bytesSent = 0;
+    private long messagesReceived = 0;
+    private long messagesSkipped = 0;
+
+    /**
+     * Constructor, reading the limit and rate from the system properties
+     * @param ownId- this client's uniqueID
+     * @param model- the model whose chat log is sent
+     * @param outbound- where chunks are sent from
+     * @param handler- how chunks are sent, and where the history goes
+     */
+    public HistoryCatchUp(long ownId,ChatModel model,Executor outbound,Handler handler)
+    {
+        this(ownId,model,outbound,handler,Integer.getInteger(LIMIT_PROPERTY,DEFAULT_LIMIT),
+                Integer.getInteger(RATE_PROPERTY,DEFAULT_RATE));
+    }
+
+    /**
+     * Constructor
+     * @param ownId- this client's uniqueID
+     * @param model- the model whose chat log is sent
+     * @param outbound- where chunks are sent from
+     * @param handler- how chunks are sent, and where the history goes
+     * @param limit- the most messages sent to a client who joins
+     * @param rate- the most bytes a second spent on sending history, after deflating
+     */
+    public HistoryCatchUp(long ownId,ChatModel model,Executor outbound,Handler handler,int limit,int rate)
+    {
+        if(limit<0||rate<=0)
+        {
+            throw new IllegalArgumentException("limit must not be negative and rate must be positive");
+        }
+        this.ownId = ownId;
+        this.model = model;
+        this.outbound = outbound;
+        this.handler = handler;
+        this.limit = limit;
+        this.rate = rate;
+    }
+
+    /**
+     * Starts sending the newest messages of the chat log to a client who joined. Where the history ends is
+     * picked now, so what arrives from here on is not sent, since they receive it themselves. The messages
+     * are read from the chat log a page at a time on the outbound queue, as each chunk is written, so the
+     * caller does not wait for the whole history to be copied.
+     * @param destination- the client who joined
+     */
+    public void serve(long destination)
+    {
+        long end = model.getChatLogEnd();
+        long start = Math.max(model.getChatLogStart(),end-limit);
+        if(start>=end)
+        {
+            return;
+        }
+        Stream stream = new Stream(destination,start,end);
+        synchronized(this)
+        {
+            if(closed||streams.containsKey(destination))
+            {
+                return;
+            }
+            streams.put(destination,stream);
+            historiesSent++;
+        }
+        outbound.execute(stream);
+    }
+
+    /**
+     * Handles a HISTORY frame from another client. Chunks sent to this client are collected, and once the
+     * last one arrives the history is handed on. Chunks sent to someone this client is sending the history
+     * to stop this client's send, if the other client's id is lower.
+     * @param frame- the codec holding the decoded HISTORY frame
+     */
+    public void chunkReceived(PacketCodec frame)
+    {
+        long sender = frame.getSenderId();
+        long destination = frame.getDestination();
+        if(destination!=ownId)
+        {
+            if(Long.compareUnsigned(sender,ownId)<0)
+            {
+                synchronized(this)
+                {
+                    Stream stream = streams.remove(destination);
+                    if(stream!=null)
+                    {
+                        stream.cancelled = true;
+                        historiesYielded++;
+                    }
+                }
+            }
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        if(frame.getChunkIndex()==0&&(receiving==null||Long.compareUnsigned(sender,source)<0
+                ||now-lastChunkTime>TIMEOUT))
+        {
+            //the first history to arrive, one from a lower id, or one which replaces a history given up on
+            source = sender;
+            nextChunk = 0;
+            receiving = new ArrayList<ChatMessage>();
+            if(inflater==null)
+            {
+                inflater = new Inflater();
+                compressed = new byte[CHUNK_SIZE];
+                inflated = new byte[CHUNK_SIZE*2];
+            }
+        }
+        if(receiving==null||sender!=source||frame.getChunkIndex()!=nextChunk)
+        {
+            return;
+        }
+        lastChunkTime = now;
+        nextChunk++;
+        try
+        {
+            readChunk(frame);
+        }
+        catch(IOException e)
+        {
+            e.printStackTrace();
+            receiving = null;
+            endReceiving();
+            return;
+        }
+        if(frame.isLastChunk())
+        {
+            List<ChatMessage> messages = receiving;
+            receiving = null;
+            endReceiving();
+            synchronized(this)
+            {
+                messagesReceived += messages.size();
+            }
+            handler.historyReceived(messages);
+        }
+    }
+
+    /**
+     * Lets go of what was used to receive a history
+     */
+    private void endReceiving()
+    {
+        inflater.end();
+        inflater = null;
+        compressed = null;
+        inflated = null;
+    }
+
+    /**
+     * Lets go of what was used to send histories, if none are left. Only called on the outbound queue.
+     */
+    private void endSending()
+    {
+        synchronized(this)
+        {
+            if(!streams.isEmpty())
+            {
+                return;
+            }
+        }
+        if(deflater!=null)
+        {
+            deflater.end();
+            deflater = null;
+            raw = null;
+            deflated = null;
+        }
+    }
+
+    /**
+     * Stops every history being sent
+     */
+    public synchronized void close()
+    {
+        closed = true;
+        for(Stream stream : streams.values())
+        {
+            stream.cancelled = true;
+        }
+        streams.clear();
+    }
+
+    /**
+     * Getter for the number of clients this client started sending the history to
+     * @return histories
+     */
+    public synchronized long getHistoriesSent()
+    {
+        return historiesSent;
+    }
+
+    /**
+     * Getter for the number of histories this client stopped sending because another client was
+     * sending them too
+     * @return histories
+     */
+    public synchronized long getHistoriesYielded()
+    {
+        return historiesYielded;
+    }
+
+    /**
+     * Getter for the number of chunks sent
+     * @return chunks
+     */
+    public synchronized long getChunksSent()
+    {
+        return chunksSent;
+    }
+
+    /**
+     * Getter for the size of the records sent, before deflating
+     * @return bytes
+     */
+    public synchronized long getRawBytesSent()
+    {
+        return rawBytesSent;
+    }
+
+    /**
+     * Getter for the size of the chunks sent, after deflating
+     * @return bytes
+     */
+    public synchronized long getBytesSent()
+    {
+        return bytesSent;
+    }
+
+    /**
+     * Getter for the number of messages received from other clients' histories
+     * @return messages
+     */
+    public synchronized long getMessagesReceived()
+    {
+        return messagesReceived;
+    }
+
+    /**
+     * Getter for the number of messages left out of histories sent, because they were too big for a chunk
+     * @return messages
+     */
+    public synchronized long getMessagesSkipped()
+    {
+        return messagesSkipped;
+    }
+
+    /**
+     * Inflates a chunk and adds its records to the history being received
+     * @throws IOException- if the chunk cannot be inflated, inflates to more than a sender puts in one, or
+     *                      a record is cut off
+     */
+    private void readChunk(PacketCodec frame) throws IOException
+    {
+        int length = frame.getPayloadLength();
+        if(compressed.length<length)
+        {
+            compressed = new byte[length];
+        }
+        frame.copyPayload(compressed,0);
+        inflater.reset();
+        inflater.setInput(compressed,0,length);
+        int size = 0;
+        try
+        {
+            while(!inflater.finished())
+            {
+                if(size==inflated.length)
+                {
+                    //one byte past the most a sender puts in a chunk is enough to tell it is too long
+                    if(size>MAX_CHUNK)
+                    {
+                        throw new ProtocolException("HISTORY chunk inflates to more than "+MAX_CHUNK+" bytes");
+                    }
+                    inflated = Arrays.copyOf(inflated,Math.min(size*2,MAX_CHUNK+1));
+                }
+                int n = inflater.inflate(inflated,size,inflated.length-size);
+                if(n==0&&inflater.needsDictionary())
+                {
+                    inflater.setDictionary(PacketCompressor.DICTIONARY);
+                }
+                else if(n==0&&inflater.needsInput())
+                {
+                    throw new ProtocolException("HISTORY chunk cut off");
+                }
+                size += n;
+            }
+        }
+        catch(DataFormatException e)
+        {
+            throw new ProtocolException("Bad HISTORY chunk: "+e.getMessage());
+        }
+
+        ByteBuffer records = ByteBuffer.wrap(inflated,0,size);
+        while(records.hasRemaining())
+        {
+            long sender = PacketCodec.getVarint(records);
+            long sequence = PacketCodec.getVarint(records);
+            long timestamp = PacketCodec.getVarint(records);
+            long textLength = PacketCodec.getVarint(records);
+            if(textLength<0||textLength>records.remaining())
+            {
+                throw new ProtocolException("HISTORY record cut off");
+            }
+            String text = new String(inflated,records.position(),(int)textLength,StandardCharsets.UTF_8);
+            records.position(records.position()+(int)textLength);
+            receiving.add(new ChatMessage(sender,sequence,timestamp,text));
+        }
+    }
+
+    /**
+     * Sends one history, a chunk at a time. Each chunk runs on the outbound queue, and the next is
+     * scheduled for when the rate allows it. A message is only left out if its record is bigger than an
+     * empty chunk's buffer, which can happen with texts of more than about 80KB: it is lost to the client
+     * catching up, and counted in getMessagesSkipped().
+     */
+    private class Stream implements Runnable
+    {
+        final long destination;
+        final long end;
+        //index in the chat log of the first message not yet read into a page
+        long next;
+        //the messages read from the chat log but not yet written to a chunk
+        List<ChatMessage> page;
+        int inPage = 0;
+        int chunk = 0;
+        volatile boolean cancelled = false;
+
+        Stream(long destination,long start,long end)
+        {
+            this.destination = destination;
+            this.next = start;
+            this.end = end;
+        }
+
+        /**
+         * Getter for the next message to write, reading a page of the chat log if the last one was used up
+         * @return the message, or null if the history has been sent
+         */
+        private ChatMessage peek()
+        {
+            while(page==null||inPage==page.size())
+            {
+                if(next>=end)
+                {
+                    return null;
+                }
+                page = model.getChatLog(next,(int)Math.min(PAGE,end-next));
+                inPage = 0;
+                next = Math.min(end,next+PAGE);
+            }
+            return page.get(inPage);
+        }
+
+        @Override
+        public void run()
+        {
+            if(cancelled)
+            {
+                endSending();
+                return;
+            }
+            if(deflater==null)
+            {
+                deflater = new Deflater(Deflater.BEST_SPEED);
+                raw = ByteBuffer.allocate(MAX_CHUNK);
+                deflated = new byte[CHUNK_SIZE];
+            }
+            raw.clear();
+            ChatMessage message;
+            while(raw.position()<CHUNK_SIZE&&(message = peek())!=null)
+            {
+                if(message.getSenderId()==ChatMessage.SYSTEM_ID)
+                {
+                    inPage++;
+                    continue;
+                }
+                byte[] text = message.getText().getBytes(StandardCharsets.UTF_8);
+                if(raw.remaining()<RECORD_HEADER+text.length)
+                {
+                    if(raw.position()>0)
+                    {
+                        //it goes first in the next chunk
+                        break;
+                    }
+                    //too big for any chunk, rather than growing the buffer
+                    inPage++;
+                    synchronized(HistoryCatchUp.this)
+                    {
+                        messagesSkipped++;
+                    }
+                    continue;
+                }
+                inPage++;
+                PacketCodec.putVarint(raw,message.getSenderId());
+                PacketCodec.putVarint(raw,message.getSequence());
+                PacketCodec.putVarint(raw,message.getTimestamp());
+                PacketCodec.putVarint(raw,text.length);
+                raw.put(text);
+            }
+            boolean last = peek()==null;
+            if(last&&chunk==0&&raw.position()==0)
+            {
+                //nothing but system messages, so there is no history to send
+                synchronized(HistoryCatchUp.this)
+                {
+                    if(streams.get(destination)==this)
+                    {
+                        streams.remove(destination);
+                    }
+                }
+                endSending();
+                return;
+            }
+
+            deflater.reset();
+            deflater.setDictionary(PacketCompressor.DICTIONARY);
+            deflater.setInput(raw.array(),0,raw.position());
+            deflater.finish();
+            int length = 0;
+            while(!deflater.finished())
+            {
+                if(length==deflated.length)
+                {
+                    deflated = Arrays.copyOf(deflated,length*2);
+                }
+                length += deflater.deflate(deflated,length,deflated.length-length);
+            }
+
+            try
+            {
+                handler.sendChunk(destination,chunk++,last,deflated,length);
+            }
+            catch(IOException e)
+            {
+                e.printStackTrace();
+            }
+            boolean done = last||cancelled;
+            synchronized(HistoryCatchUp.this)
+            {
+                chunksSent++;
+                rawBytesSent += raw.position();
+                bytesSent += length;
+                if(done&&streams.get(destination)==this)
+                {
+                    streams.remove(destination);
+                }
+            }
+            if(done)
+            {
+                endSending();
+                return;
+            }
+            final Stream stream = this;
+            ChatTimers.shared().schedule(new Runnable()
+            {
+                public void run()
+                {
+                    outbound.execute(stream);
+                }
+            },length*1000L/rate,TimeUnit.MILLISECONDS);
+        }
+    }
+}
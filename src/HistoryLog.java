@@ -0,0 +1,754 @@
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps the chat history of a chatroom on disk, so it survives the application closing.
+ *
+ * Messages are appended to a log split into segment files of a fixed size, each named after the index of
+ * its first message. The segment being written is memory mapped, so appending a message is encoding it
+ * straight into memory, and the mapping is forced to disk every FLUSH_INTERVAL instead of once per
+ * message. Everything which waits for the disk runs on one I/O thread shared by every log, never on the
+ * ChatWorkers which send and deliver messages: forcing, making and mapping the next segment once the one
+ * being written is half full, and closing and deleting old segments. A segment which fills up is never
+ * changed after. Once there are more than the most segments kept, the oldest are deleted.
+ *
+ * Each record is the length of its body (int), the CRC32 of its body (int), then the body: the timestamp
+ * (long), the sender id (long), the sender's sequence number for the message (long, 0 for this client's
+ * own messages) and the UTF-8 text. Segments start out filled with zeros, so a length of 0 marks the end
+ * of a segment. After a crash, the log ends at the first record which is cut off or whose CRC does not
+ * match.
+ *
+ * Only one log may have a directory open at a time, which is enforced with a lock file.
+ */
+public class HistoryLog
+{
+    //system property which sets the directory the history of every chatroom is kept under
+    public static final String DIR_PROPERTY = "mychatapp.historyDir";
+    //system property for the most segment files kept of each chatroom
+    public static final String SEGMENTS_PROPERTY = "mychatapp.historySegments";
+    public static final int DEFAULT_SEGMENT_SIZE = 64*1024*1024;
+    public static final int DEFAULT_SEGMENTS = 16;
+    public static final long FLUSH_INTERVAL = 1000;
+    //the most clients on one machine which can keep their own history of the same chatroom
+    private static final int MAX_INSTANCES = 16;
+    private static final int RECORD_HEADER = 8;
+    private static final int BODY_HEADER = 24;
+    private static final String SUFFIX = ".log";
+    //the next segment, made ahead of time and renamed once it is used
+    private static final String SPARE = "next.tmp";
+    private static final int PAGE = 4096;
+    private static ScheduledExecutorService io;
+
+    /**
+     * Told about every message read back from the log
+     */
+    public interface Visitor
+    {
+        /**
+         * Called for each message, oldest first
+         * @param index- the message's index in the log
+         * @param message- the message
+         */
+        void message(long index,ChatMessage message);
+    }
+
+    private final File directory;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final RandomAccessFile lockFile;
+    private final FileLock lock;
+    //the first index of every segment, oldest first. The last one is being written.
+    private final ArrayList<Long> segments = new ArrayList<Long>();
+    private FileChannel channel;
+    private MappedByteBuffer mapped;
+    private final CRC32 crc = new CRC32();
+    //reused to encode the text of every message appended
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private CharBuffer chars = CharBuffer.allocate(256);
+    //the next segment, mapped on the I/O thread, or null if it is not ready
+    private FileChannel spareChannel;
+    private MappedByteBuffer spare;
+    private boolean preparing = false;
+    private final Runnable prepare = new Runnable()
+    {
+        public void run()
+        {
+            prepareSpare();
+        }
+    };
+    private long endIndex;
+    private boolean dirty = false;
+    private boolean closed = false;
+    private final ScheduledFuture<?> flushTask;
+    private final Runnable flusher = new Runnable()
+    {
+        public void run()
+        {
+            sync();
+        }
+    };
+
+    //counters
+    private long appended = 0;
+    private long syncs = 0;
+    private long pruned = 0;
+
+    /**
+     * Getter for the I/O thread shared by every log. Starts it the first time it is called.
+     * @return the I/O thread
+     */
+    private static synchronized ScheduledExecutorService io()
+    {
+        if(io==null)
+        {
+            ScheduledThreadPoolExecutor thread = new ScheduledThreadPoolExecutor(1,new ThreadFactory()
+            {
+                public Thread newThread(Runnable task)
+                {
+                    Thread thread = new Thread(task,"HistoryLog");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            thread.setRemoveOnCancelPolicy(true);
+            io = thread;
+        }
+        return io;
+    }
+
+    /**
+     * Opens the history of a chatroom, under the directory set by the mychatapp.historyDir system property,
+     * or ~/.mychatapp/history. If another client on this machine has the chatroom's history open, a
+     * directory of its own is used.
+     * @param group- the chatroom's group
+     * @param port- the chatroom's port
+     * @return the history
+     * @throws IOException- if no directory could be opened
+     */
+    public static HistoryLog forRoom(InetAddress group,int port) throws IOException
+    {
+        String base = System.getProperty(DIR_PROPERTY);
+        File root = base!=null ? new File(base) :
+                new File(new File(System.getProperty("user.home"),".mychatapp"),"history");
+        String name = group.getHostAddress().replace(':','_')+"_"+port;
+        IOException failure = null;
+        for(int i=1;i<=MAX_INSTANCES;i++)
+        {
+            try
+            {
+                return new HistoryLog(new File(root,i==1 ? name : name+"-"+i),DEFAULT_SEGMENT_SIZE);
+            }
+            catch(IOException e)
+            {
+                failure = e;
+            }
+        }
+        throw failure;
+    }
+
+    /**
+     * Constructor, keeping the number of segments set by the mychatapp.historySegments system property
+     * @param directory- where the segments are kept
+     * @param segmentSize- the size of each segment file in bytes
+     * @throws IOException- if the directory cannot be used, or another log has it open
+     */
+    public HistoryLog(File directory,int segmentSize) throws IOException
+    {
+        this(directory,segmentSize,Integer.getInteger(SEGMENTS_PROPERTY,DEFAULT_SEGMENTS));
+    }
+
+    /**
+     * Constructor. Opens the log in a directory, creating it if needed, and finds where the last
+     * segment ends.
+     * @param directory- where the segments are kept
+     * @param segmentSize- the size of each segment file in bytes
+     * @param maxSegments- the most segment files kept, counting the one being written
+     * @throws IOException- if the directory cannot be used, or another log has it open
+     */
+    public HistoryLog(File directory,int segmentSize,int maxSegments) throws IOException
+    {
+        if(maxSegments<=0)
+        {
+            throw new IllegalArgumentException("at least one segment must be kept");
+        }
+        if(!directory.isDirectory()&&!directory.mkdirs())
+        {
+            throw new IOException("cannot create "+directory);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments;
+        this.lockFile = new RandomAccessFile(new File(directory,"lock"),"rw");
+        FileLock locked;
+        try
+        {
+            locked = lockFile.getChannel().tryLock();
+        }
+        catch(OverlappingFileLockException e)
+        {
+            locked = null;
+        }
+        if(locked==null)
+        {
+            lockFile.close();
+            throw new IOException(directory+" is in use");
+        }
+        this.lock = locked;
+
+        boolean opened = false;
+        try
+        {
+            String[] names = directory.list();
+            if(names==null)
+            {
+                throw new IOException("cannot list "+directory);
+            }
+            Arrays.sort(names);
+            for(String name : names)
+            {
+                if(name.endsWith(SUFFIX))
+                {
+                    try
+                    {
+                        segments.add(Long.parseLong(name.substring(0,name.length()-SUFFIX.length())));
+                    }
+                    catch(NumberFormatException e)
+                    {
+                        //not one of ours
+                    }
+                }
+            }
+            if(segments.isEmpty())
+            {
+                openSegment(0);
+            }
+            else
+            {
+                recover(segments.get(segments.size()-1));
+            }
+            prune();
+            opened = true;
+        }
+        finally
+        {
+            if(!opened)
+            {
+                //so the directory can be opened again
+                if(channel!=null)
+                {
+                    channel.close();
+                }
+                lock.release();
+                lockFile.close();
+            }
+        }
+        flushTask = io().scheduleWithFixedDelay(flusher,FLUSH_INTERVAL,FLUSH_INTERVAL,TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Appends a message to the end of the log. It reaches the disk by the next flush.
+     * @param message- the message
+     * @return the index of the message, or -1 if the log was closed
+     * @throws IOException- if a new segment cannot be made, or the message is larger than a segment
+     */
+    public synchronized long append(ChatMessage message) throws IOException
+    {
+        if(closed)
+        {
+            return -1;
+        }
+        String text = message.getText();
+        if(chars.capacity()<text.length())
+        {
+            chars = CharBuffer.allocate(Math.max(text.length(),chars.capacity()*2));
+        }
+        chars.clear();
+        chars.put(text);
+        chars.flip();
+        int start = mapped.position();
+        if(!encode(start))
+        {
+            if(start==0)
+            {
+                throw new IOException("message is larger than a segment");
+            }
+            //the rest of the full segment stays zero, which marks its end
+            roll();
+            start = 0;
+            chars.rewind();
+            if(!encode(start))
+            {
+                throw new IOException("message is larger than a segment");
+            }
+        }
+        int length = mapped.position()-start-RECORD_HEADER;
+        mapped.putLong(start+RECORD_HEADER,message.getTimestamp());
+        mapped.putLong(start+RECORD_HEADER+8,message.getSenderId());
+        mapped.putLong(start+RECORD_HEADER+16,message.getSequence());
+        //the length goes in last, so a record is only seen once all of it has been written
+        mapped.putInt(start+4,checksum(mapped,start+RECORD_HEADER,length));
+        mapped.putInt(start,length);
+        dirty = true;
+        appended++;
+        if(spare==null&&!preparing&&mapped.position()>segmentSize/2)
+        {
+            preparing = true;
+            io().execute(prepare);
+        }
+        return endIndex++;
+    }
+
+    /**
+     * Encodes the text waiting in chars into the segment being written, after the headers of a record
+     * @param start- where the record starts
+     * @return true if the text fit, leaving the segment's position at its end. If not, whatever was
+     *         encoded is cleared and the position is left where it was.
+     */
+    private boolean encode(int start)
+    {
+        int text = start+RECORD_HEADER+BODY_HEADER;
+        if(text>segmentSize)
+        {
+            return false;
+        }
+        mapped.position(text);
+        encoder.reset();
+        CoderResult result = encoder.encode(chars,mapped,true);
+        if(!result.isOverflow())
+        {
+            result = encoder.flush(mapped);
+        }
+        if(result.isOverflow())
+        {
+            for(int i=text;i<mapped.position();i++)
+            {
+                mapped.put(i,(byte)0);
+            }
+            mapped.position(start);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Starts a new segment once the one being written is full. The full one is forced to disk and closed
+     * on the I/O thread, and the next one was made there ahead of time, so the append which filled it
+     * does not wait for the disk. If the next segment is not ready it is made here instead.
+     */
+    private void roll() throws IOException
+    {
+        final MappedByteBuffer full = mapped;
+        final FileChannel fullChannel = channel;
+        channel = null;
+        io().execute(new Runnable()
+        {
+            public void run()
+            {
+                full.force();
+                try
+                {
+                    fullChannel.close();
+                }
+                catch(IOException e)
+                {
+                    e.printStackTrace();
+                }
+            }
+        });
+        syncs++;
+        if(spare!=null&&new File(directory,SPARE).renameTo(segmentFile(endIndex)))
+        {
+            segments.add(endIndex);
+            channel = spareChannel;
+            mapped = spare;
+        }
+        else
+        {
+            if(spareChannel!=null)
+            {
+                spareChannel.close();
+            }
+            openSegment(endIndex);
+        }
+        spareChannel = null;
+        spare = null;
+        prune();
+    }
+
+    /**
+     * Makes and maps the next segment, so it is ready when the one being written fills up. Called on the
+     * I/O thread.
+     */
+    private void prepareSpare()
+    {
+        FileChannel made = null;
+        MappedByteBuffer map = null;
+        try
+        {
+            File file = new File(directory,SPARE);
+            //left behind by a log which was closed while making it
+            file.delete();
+            made = new RandomAccessFile(file,"rw").getChannel();
+            map = made.map(FileChannel.MapMode.READ_WRITE,0,segmentSize);
+        }
+        catch(IOException e)
+        {
+            e.printStackTrace();
+        }
+        synchronized(this)
+        {
+            preparing = false;
+            if(map!=null&&!closed)
+            {
+                spareChannel = made;
+                spare = map;
+                return;
+            }
+        }
+        if(made!=null)
+        {
+            try
+            {
+                made.close();
+            }
+            catch(IOException e)
+            {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Deletes the oldest segments on the I/O thread while there are more than the most kept
+     */
+    private void prune()
+    {
+        while(segments.size()>maxSegments)
+        {
+            final File file = segmentFile(segments.remove(0));
+            io().execute(new Runnable()
+            {
+                public void run()
+                {
+                    if(!file.delete()&&file.exists())
+                    {
+                        System.err.println("cannot delete "+file);
+                    }
+                }
+            });
+            pruned++;
+        }
+    }
+
+    /**
+     * Reads messages back from the log, oldest first
+     * @param from- the index of the first message wanted
+     * @param visitor- told about each message
+     * @return the number of messages read
+     * @throws IOException- if a segment cannot be read
+     */
+    public long replay(long from,Visitor visitor) throws IOException
+    {
+        List<Long> starts;
+        long end;
+        synchronized(this)
+        {
+            starts = new ArrayList<Long>(segments);
+            end = endIndex;
+        }
+        long count = 0;
+        for(int i=0;i<starts.size();i++)
+        {
+            long first = starts.get(i);
+            long next = i+1<starts.size() ? starts.get(i+1) : end;
+            if(next<=from)
+            {
+                continue;
+            }
+            RandomAccessFile file;
+            try
+            {
+                file = new RandomAccessFile(segmentFile(first),"r");
+            }
+            catch(FileNotFoundException e)
+            {
+                //pruned since replaying started
+                continue;
+            }
+            try
+            {
+                MappedByteBuffer segment = file.getChannel().map(FileChannel.MapMode.READ_ONLY,0,file.length());
+                CRC32 check = new CRC32();
+                long index = first;
+                int position = 0;
+                while(index<next)
+                {
+                    int length = recordLength(segment,position,check);
+                    if(length<0)
+                    {
+                        break;
+                    }
+                    if(index>=from)
+                    {
+                        int body = position+RECORD_HEADER;
+                        long timestamp = segment.getLong(body);
+                        long sender = segment.getLong(body+8);
+                        long sequence = segment.getLong(body+16);
+                        byte[] text = new byte[length-BODY_HEADER];
+                        segment.position(body+BODY_HEADER);
+                        segment.get(text);
+                        visitor.message(index,new ChatMessage(sender,sequence,timestamp,
+                                new String(text,StandardCharsets.UTF_8)));
+                        count++;
+                    }
+                    position += RECORD_HEADER+length;
+                    index++;
+                }
+            }
+            finally
+            {
+                file.close();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Forces the messages appended since the last flush to disk. Called every FLUSH_INTERVAL.
+     */
+    public void sync()
+    {
+        MappedByteBuffer toForce;
+        synchronized(this)
+        {
+            if(!dirty||closed)
+            {
+                return;
+            }
+            dirty = false;
+            syncs++;
+            toForce = mapped;
+        }
+        //forcing can be slow, so appends are not held up by it
+        toForce.force();
+    }
+
+    /**
+     * Forces the log to disk and closes it
+     */
+    public void close()
+    {
+        synchronized(this)
+        {
+            if(closed)
+            {
+                return;
+            }
+            closed = true;
+            flushTask.cancel(false);
+            mapped.force();
+        }
+        try
+        {
+            if(channel!=null)
+            {
+                channel.close();
+            }
+            if(spareChannel!=null)
+            {
+                spareChannel.close();
+                new File(directory,SPARE).delete();
+            }
+            lock.release();
+            lockFile.close();
+        }
+        catch(IOException e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Getter for the directory the log is kept in
+     * @return directory
+     */
+    public File getDirectory()
+    {
+        return directory;
+    }
+
+    /**
+     * Getter for the index of the oldest message in the log
+     * @return the index
+     */
+    public synchronized long getFirstIndex()
+    {
+        return segments.get(0);
+    }
+
+    /**
+     * Getter for the index the next message will get
+     * @return one past the index of the newest message
+     */
+    public synchronized long getEndIndex()
+    {
+        return endIndex;
+    }
+
+    /**
+     * Getter for the number of segment files
+     * @return segments
+     */
+    public synchronized int getSegmentCount()
+    {
+        return segments.size();
+    }
+
+    /**
+     * Getter for the number of messages appended since the log was opened
+     * @return appended
+     */
+    public synchronized long getAppended()
+    {
+        return appended;
+    }
+
+    /**
+     * Getter for the number of times the log was forced to disk
+     * @return syncs
+     */
+    public synchronized long getSyncs()
+    {
+        return syncs;
+    }
+
+    /**
+     * Getter for the number of segment files deleted since the log was opened
+     * @return pruned
+     */
+    public synchronized long getPruned()
+    {
+        return pruned;
+    }
+
+    /**
+     * Starts a new segment, which becomes the one being written
+     */
+    private void openSegment(long firstIndex) throws IOException
+    {
+        if(channel!=null)
+        {
+            channel.close();
+        }
+        if(segments.isEmpty()||segments.get(segments.size()-1)!=firstIndex)
+        {
+            segments.add(firstIndex);
+        }
+        channel = new RandomAccessFile(segmentFile(firstIndex),"rw").getChannel();
+        mapped = channel.map(FileChannel.MapMode.READ_WRITE,0,segmentSize);
+        endIndex = firstIndex;
+    }
+
+    /**
+     * Opens the last segment for writing, after the last whole record in it. Whatever follows that
+     * record, such as a record which was cut off by a crash, is cleared.
+     */
+    private void recover(long firstIndex) throws IOException
+    {
+        openSegment(firstIndex);
+        int position = 0;
+        while(true)
+        {
+            int length = recordLength(mapped,position,crc);
+            if(length<0)
+            {
+                break;
+            }
+            position += RECORD_HEADER+length;
+            endIndex++;
+        }
+        //clear pages until one is found that was never written
+        int clear = position;
+        boolean written = true;
+        while(written&&clear<segmentSize)
+        {
+            int pageEnd = Math.min(segmentSize,(clear/PAGE+1)*PAGE);
+            written = false;
+            for(int i=clear;i<pageEnd;i++)
+            {
+                if(mapped.get(i)!=0)
+                {
+                    mapped.put(i,(byte)0);
+                    written = true;
+                }
+            }
+            clear = pageEnd;
+        }
+        mapped.position(position);
+    }
+
+    /**
+     * Checks the record at a position
+     * @return the length of its body, or -1 if there is no whole record there
+     */
+    private int recordLength(ByteBuffer segment,int position,CRC32 check)
+    {
+        if(position+RECORD_HEADER>segment.limit())
+        {
+            return -1;
+        }
+        int length = segment.getInt(position);
+        if(length<BODY_HEADER||length>segment.limit()-position-RECORD_HEADER)
+        {
+            return -1;
+        }
+        if(segment.getInt(position+4)!=checksum(segment,position+RECORD_HEADER,length,check))
+        {
+            return -1;
+        }
+        return length;
+    }
+
+    private int checksum(ByteBuffer buffer,int offset,int length)
+    {
+        return checksum(buffer,offset,length,crc);
+    }
+
+    private static int checksum(ByteBuffer buffer,int offset,int length,CRC32 check)
+    {
+        ByteBuffer body = buffer.duplicate();
+        body.limit(offset+length).position(offset);
+        check.reset();
+        check.update(body);
+        return (int)check.getValue();
+    }
+
+    private File segmentFile(long firstIndex)
+    {
+        return new File(directory,String.format("%020d",firstIndex)+SUFFIX);
+    }
+}
@@ -0,0 +1,172 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts how often each latency was seen, in fixed buckets, so percentiles can be read at any time.
+ *
+ * Values below 2*SUB_BUCKETS are counted exactly. Above that every power of two is split into SUB_BUCKETS
+ * buckets of equal width, so a value is never off by more than 1/SUB_BUCKETS of itself, the same way
+ * HdrHistogram keeps a fixed number of significant digits. The buckets cover every long, so nothing is
+ * ever clipped. Recording is a bucket lookup and a few atomic adds, with no locking or allocation, and may
+ * be done from any number of threads. The buckets are only made when the first value is recorded, so a
+ * histogram which is never used, such as the drawing times of a chatroom without a view, costs nothing.
+ */
+public class LatencyHistogram
+{
+    //bits of the value kept below its highest set bit, which sets the precision
+    public static final int SUB_BITS = 5;
+    public static final int SUB_BUCKETS = 1<<SUB_BITS;
+    private static final int BUCKETS = (64-SUB_BITS)*SUB_BUCKETS;
+
+    private volatile AtomicLongArray counts;
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a value
+     * @param value- the value, such as a latency in nanoseconds. Negative values are counted as 0.
+     */
+    public void record(long value)
+    {
+        if(value<0)
+        {
+            value = 0;
+        }
+        AtomicLongArray buckets = counts;
+        if(buckets==null)
+        {
+            buckets = makeBuckets();
+        }
+        buckets.incrementAndGet(bucket(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        long highest = max.get();
+        while(value>highest&&!max.compareAndSet(highest,value))
+        {
+            highest = max.get();
+        }
+    }
+
+    /**
+     * Getter for the number of values recorded
+     * @return count
+     */
+    public long getCount()
+    {
+        return count.get();
+    }
+
+    /**
+     * Getter for the largest value recorded
+     * @return max, or 0 if nothing was recorded
+     */
+    public long getMax()
+    {
+        return max.get();
+    }
+
+    /**
+     * Getter for the mean of the values recorded
+     * @return mean, or 0 if nothing was recorded
+     */
+    public double getMean()
+    {
+        long n = count.get();
+        return n==0 ? 0 : (double)sum.get()/n;
+    }
+
+    /**
+     * Finds the value that the given share of the recorded values are at or below
+     * @param percentile- the share, from 0 to 100
+     * @return the highest value of the bucket the percentile falls in, never more than the max, or 0 if
+     *         nothing was recorded
+     */
+    public long getPercentile(double percentile)
+    {
+        AtomicLongArray counts = this.counts;
+        if(counts==null)
+        {
+            return 0;
+        }
+        long n = 0;
+        for(int i=0;i<BUCKETS;i++)
+        {
+            n += counts.get(i);
+        }
+        if(n==0)
+        {
+            return 0;
+        }
+        long rank = Math.max(1,(long)Math.ceil(Math.min(100,Math.max(0,percentile))/100*n));
+        long seen = 0;
+        for(int i=0;i<BUCKETS;i++)
+        {
+            seen += counts.get(i);
+            if(seen>=rank)
+            {
+                return Math.min(highestInBucket(i),max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Forgets every value recorded. Values recorded at the same time may be partly kept.
+     */
+    public void reset()
+    {
+        AtomicLongArray counts = this.counts;
+        for(int i=0;counts!=null&&i<BUCKETS;i++)
+        {
+            counts.set(i,0);
+        }
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    /**
+     * Sums up the histogram in microseconds, for values recorded in nanoseconds
+     * @return count, median, 99th percentile and max
+     */
+    public String toMicros()
+    {
+        return "n="+getCount()+" p50="+getPercentile(50)/1000+"us p99="+getPercentile(99)/1000
+                +"us max="+getMax()/1000+"us";
+    }
+
+    /**
+     * Makes the buckets, unless another thread just did
+     * @return the buckets
+     */
+    private synchronized AtomicLongArray makeBuckets()
+    {
+        if(counts==null)
+        {
+            counts = new AtomicLongArray(BUCKETS);
+        }
+        return counts;
+    }
+
+    private static int bucket(long value)
+    {
+        if(value<2*SUB_BUCKETS)
+        {
+            return (int)value;
+        }
+        int shift = 63-Long.numberOfLeadingZeros(value)-SUB_BITS;
+        return (shift+1)*SUB_BUCKETS+(int)(value>>>shift)-SUB_BUCKETS;
+    }
+
+    private static long highestInBucket(int bucket)
+    {
+        if(bucket<2*SUB_BUCKETS)
+        {
+            return bucket;
+        }
+        int shift = bucket/SUB_BUCKETS-1;
+        long sub = bucket%SUB_BUCKETS+SUB_BUCKETS;
+        return ((sub+1)<<shift)-1;
+    }
+}
@@ -3,7 +3,11 @@ import java.awt.*;
 import java.awt.event.ActionListener;
 import java.awt.event.ActionEvent;
 import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
 import java.net.InetAddress;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 /**
  * Created by Austin Sierra on 1/2/2016.
@@ -11,6 +15,11 @@ import java.net.InetAddress;
  * The LoginView is the window which first opens when the application starts up. It collects
  * the group, username, and port from the user. If it is able to sucessfully connect, it opens the
  * chatroom.
+ *
+ * Nothing that can block runs on the event dispatch thread. Once Enter is pressed, joining the group and
+ * making the uniqueID run on one thread while the history is read on another, and the chat window opens as
+ * soon as the history is in, with sending turned off until the proxy has joined. StartupTimer times each
+ * of these steps.
  */
 public class LoginView extends JFrame implements ActionListener
 {
@@ -19,6 +28,7 @@ public class LoginView extends JFrame implements ActionListener
     private JTextField host;
     private JTextField user;
     private JTextField port;
+    private JButton enter;
 
     /**
      * Constructor for the loginview
@@ -34,6 +44,40 @@ public class LoginView extends JFrame implements ActionListener
         this.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         this.setResizable(false);
         setVisible(true);
+        StartupTimer.mark("login shown");
+        //while the user types, get the slow part of making a uniqueID out of the way
+        Thread warmUp = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                ChatProxy.warmUp();
+                StartupTimer.mark("uniqueIDs ready");
+            }
+        },"LoginView-warmup");
+        warmUp.setDaemon(true);
+        warmUp.start();
+    }
+
+    /**
+     * Constructor for a loginview which enters the chatroom straight away, as if the user had filled in
+     * the form and pressed Enter
+     * @param name- the user's name
+     * @param group- the group
+     * @param portNumber- the port
+     */
+    public LoginView(String name,String group,String portNumber)
+    {
+        this();
+        user.setText(name);
+        host.setText(group);
+        port.setText(portNumber);
+        SwingUtilities.invokeLater(new Runnable()
+        {
+            public void run()
+            {
+                enter();
+            }
+        });
     }
 
     /**
@@ -47,7 +91,7 @@ public class LoginView extends JFrame implements ActionListener
         header.setHorizontalAlignment(SwingConstants.CENTER);
         this.add(header,BorderLayout.NORTH);
 
-        JButton enter = new JButton("Enter");
+        enter = new JButton("Enter");
         enter.setHorizontalAlignment(SwingConstants.CENTER);
         enter.addActionListener(this);
         enter.setActionCommand("ENTER");
@@ -116,36 +160,214 @@ public class LoginView extends JFrame implements ActionListener
 
         if(action.equals("ENTER"))
         {
-            //attempt connection
-            try {
-                //if name is too long or too short
-                if(user.getText().length()<3||user.getText().length()>12)
+            enter();
+        }
+    }
+
+    /**
+     * Checks the form, then starts joining the chatroom in the background
+     */
+    private void enter()
+    {
+        StartupTimer.mark(StartupTimer.ENTER);
+        //if name is too long or too short
+        final String name = user.getText();
+        if(name.length()<3||name.length()>12)
+        {
+            JOptionPane.showMessageDialog(this,"Your name must be between 3 and 12 characters.");
+            user.setText("");
+            return;
+        }
+        final String groupName = host.getText();
+        final int portNumber;
+        try
+        {
+            portNumber = Integer.parseInt(port.getText());
+        }
+        catch(NumberFormatException exception)
+        {
+            couldNotConnect();
+            return;
+        }
+        enter.setEnabled(false);
+        Thread startup = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                start(name,groupName,portNumber);
+            }
+        },"LoginView-startup");
+        startup.setDaemon(true);
+        startup.start();
+    }
+
+    /**
+     * Joins the chatroom. Runs on its own thread, and only touches the UI through the event dispatch thread.
+     * @param name- the user's name
+     * @param groupName- the group, as typed in
+     * @param portNumber- the port
+     */
+    private void start(String name,String groupName,final int portNumber)
+    {
+        final InetAddress group;
+        try
+        {
+            group = InetAddress.getByName(groupName);
+        }
+        catch(IOException exception)
+        {
+            failed(null);
+            return;
+        }
+        //joining the group and making the uniqueID, while the history is read on this thread
+        final FutureTask<ChatProxy> connecting = new FutureTask<ChatProxy>(new Callable<ChatProxy>()
+        {
+            public ChatProxy call() throws IOException
+            {
+                ChatTransport transport = ChatProxy.openTransport(group,portNumber);
+                StartupTimer.mark("group joined");
+                ChatProxy proxy = new ChatProxy(transport);
+                StartupTimer.mark("uniqueID made");
+                return proxy;
+            }
+        });
+        Thread connect = new Thread(connecting,"LoginView-connect");
+        connect.setDaemon(true);
+        connect.start();
+
+        final ChatModel m = new ChatModel(name,new MessageStore(),openHistory(group,portNumber));
+        StartupTimer.mark("history read");
+        final ChatView[] view = new ChatView[1];
+        try
+        {
+            SwingUtilities.invokeAndWait(new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        view[0] = new ChatView(m);
+                        view[0].setConnected(false);
+                        setVisible(false);
+                        StartupTimer.mark("chat window shown");
+                    }
+                    catch(IOException exception)
+                    {
+                        exception.printStackTrace();
+                    }
+                }
+            });
+        }
+        catch(InterruptedException exception)
+        {
+            exception.printStackTrace();
+        }
+        catch(InvocationTargetException exception)
+        {
+            exception.getCause().printStackTrace();
+        }
+        if(view[0]==null)
+        {
+            failed(m);
+            return;
+        }
+
+        final ChatProxy proxy;
+        try
+        {
+            proxy = connecting.get();
+        }
+        catch(ExecutionException exception)
+        {
+            exception.getCause().printStackTrace();
+            view[0].dispose();
+            failed(m);
+            return;
+        }
+        catch(InterruptedException exception)
+        {
+            exception.printStackTrace();
+            return;
+        }
+        //connect the model to the view and proxy
+        SwingUtilities.invokeLater(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    m.setProxy(proxy);
+                    m.setView(view[0]);
+                    proxy.setModelListener(m);
+                    view[0].setConnected(true);
+                    StartupTimer.mark("chatroom joined");
+                    proxy.whenSent(new Runnable()
+                    {
+                        public void run()
+                        {
+                            StartupTimer.firstMessageSent();
+                        }
+                    });
+                }
+                catch(IOException exception)
                 {
-                    throw new Exception();
+                    exception.printStackTrace();
                 }
-                //create proxy, model, view, and connect the model to the view and proxy.
-                ChatProxy proxy = new ChatProxy
-                        (InetAddress.getByName(host.getText()), Integer.parseInt(port.getText()));
-                ChatModel m = new ChatModel(user.getText());
-                m.setProxy(proxy);
-                ChatView view = new ChatView(m);
-                m.setView(view);
-                proxy.setModelListener(m);
-                //if connection success, close the login window
-                this.setVisible(false);
-
-                //catch error if cant connect
-            }catch(IOException exception){
-                JOptionPane.showMessageDialog(this,"Could not connect to a network with those parameters.");
-                host.setText("");
-                port.setText("");
             }
-            catch(Exception expp) {
-                System.out.println(expp.getClass().getName());
-                JOptionPane.showMessageDialog(this,"Your name must be between 3 and 12 characters.");
-                user.setText("");
+        });
+    }
+
+    /**
+     * Puts the login window back after the chatroom could not be joined
+     * @param m- the model made for the chatroom, which is closed, or null if none was made yet
+     */
+    private void failed(ChatModel m)
+    {
+        if(m!=null)
+        {
+            try
+            {
+                m.leave();
+            }
+            catch(IOException exception)
+            {
+                exception.printStackTrace();
             }
+        }
+        SwingUtilities.invokeLater(new Runnable()
+        {
+            public void run()
+            {
+                setVisible(true);
+                enter.setEnabled(true);
+                couldNotConnect();
+            }
+        });
+    }
 
+    private void couldNotConnect()
+    {
+        JOptionPane.showMessageDialog(this,"Could not connect to a network with those parameters.");
+        host.setText("");
+        port.setText("");
+    }
+
+    /**
+     * Opens the chatroom's history. The chat still works without one, it is just not kept.
+     * @param group- the chatroom's group
+     * @param port- the chatroom's port
+     * @return the history, or null if it could not be opened
+     */
+    private HistoryLog openHistory(InetAddress group,int port)
+    {
+        try
+        {
+            return HistoryLog.forRoom(group,port);
+        }
+        catch(IOException e)
+        {
+            e.printStackTrace();
+            return null;
         }
     }
 
@@ -0,0 +1,286 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A hash map from long keys to values, which keeps its keys in a plain long array instead of boxing them.
+ *
+ * Keys are found by linear probing in a table which is never more than half full, and removing a key
+ * shifts the keys after it back into place instead of leaving a marker behind, so lookups stay short
+ * however many keys come and go. The key 0 marks an empty slot, so it is kept on the side.
+ *
+ * Values may not be null. Not thread safe.
+ */
+public class LongMap<V>
+{
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] keys;
+    private Object[] values;
+    private int mask;
+    private int size = 0;
+    //the value of the key 0, which can't be kept in the table
+    private boolean hasZero = false;
+    private Object zeroValue;
+
+    /**
+     * Constructor for an empty map
+     */
+    public LongMap()
+    {
+        this(MIN_CAPACITY/2);
+    }
+
+    /**
+     * Constructor for an empty map with room for the given number of keys before it has to grow
+     * @param expected- the number of keys expected
+     */
+    public LongMap(int expected)
+    {
+        int capacity = MIN_CAPACITY;
+        while(capacity<expected*2)
+        {
+            capacity <<= 1;
+        }
+        keys = new long[capacity];
+        values = new Object[capacity];
+        mask = capacity-1;
+    }
+
+    /**
+     * Getter for the value of a key
+     * @param key- the key
+     * @return the value, or null if the key is not in the map
+     */
+    @SuppressWarnings("unchecked")
+    public V get(long key)
+    {
+        if(key==0)
+        {
+            return (V)zeroValue;
+        }
+        for(int i=slot(key);keys[i]!=0;i=(i+1)&mask)
+        {
+            if(keys[i]==key)
+            {
+                return (V)values[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Checks if a key is in the map
+     * @param key- the key
+     * @return true if it is
+     */
+    public boolean containsKey(long key)
+    {
+        return get(key)!=null;
+    }
+
+    /**
+     * Puts a key in the map, replacing its old value if it was already there
+     * @param key- the key
+     * @param value- the value, not null
+     * @return the old value, or null if the key was not in the map
+     */
+    @SuppressWarnings("unchecked")
+    public V put(long key,V value)
+    {
+        if(value==null)
+        {
+            throw new NullPointerException("LongMap values may not be null");
+        }
+        if(key==0)
+        {
+            V old = (V)zeroValue;
+            if(!hasZero)
+            {
+                hasZero = true;
+                size++;
+            }
+            zeroValue = value;
+            return old;
+        }
+        int i = slot(key);
+        while(keys[i]!=0)
+        {
+            if(keys[i]==key)
+            {
+                V old = (V)values[i];
+                values[i] = value;
+                return old;
+            }
+            i = (i+1)&mask;
+        }
+        keys[i] = key;
+        values[i] = value;
+        size++;
+        if(size*2>keys.length)
+        {
+            grow();
+        }
+        return null;
+    }
+
+    /**
+     * Removes a key from the map
+     * @param key- the key
+     * @return its value, or null if the key was not in the map
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(long key)
+    {
+        if(key==0)
+        {
+            V old = (V)zeroValue;
+            if(hasZero)
+            {
+                hasZero = false;
+                zeroValue = null;
+                size--;
+            }
+            return old;
+        }
+        int i = slot(key);
+        while(keys[i]!=key)
+        {
+            if(keys[i]==0)
+            {
+                return null;
+            }
+            i = (i+1)&mask;
+        }
+        V old = (V)values[i];
+        size--;
+
+        //shift back the keys after the hole which would no longer be found past it
+        int j = i;
+        while(true)
+        {
+            j = (j+1)&mask;
+            if(keys[j]==0)
+            {
+                break;
+            }
+            int home = slot(keys[j]);
+            //move keys[j] into the hole unless its home slot is after the hole, going round from the hole to j
+            if(i<=j ? (home<=i||home>j) : (home<=i&&home>j))
+            {
+                keys[i] = keys[j];
+                values[i] = values[j];
+                i = j;
+            }
+        }
+        keys[i] = 0;
+        values[i] = null;
+        return old;
+    }
+
+    /**
+     * Getter for the number of keys in the map
+     * @return size
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * Checks if the map is empty
+     * @return true if it is
+     */
+    public boolean isEmpty()
+    {
+        return size==0;
+    }
+
+    /**
+     * Removes every key from the map
+     */
+    public void clear()
+    {
+        Arrays.fill(keys,0);
+        Arrays.fill(values,null);
+        hasZero = false;
+        zeroValue = null;
+        size = 0;
+    }
+
+    /**
+     * Getter for a copy of every value in the map, in no particular order
+     * @return the values
+     */
+    @SuppressWarnings("unchecked")
+    public List<V> values()
+    {
+        ArrayList<V> copy = new ArrayList<V>(size);
+        if(hasZero)
+        {
+            copy.add((V)zeroValue);
+        }
+        for(int i=0;i<keys.length;i++)
+        {
+            if(keys[i]!=0)
+            {
+                copy.add((V)values[i]);
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * Getter for a copy of every key in the map, in no particular order
+     * @return the keys
+     */
+    public long[] keys()
+    {
+        long[] copy = new long[size];
+        int n = 0;
+        if(hasZero)
+        {
+            copy[n++] = 0;
+        }
+        for(int i=0;i<keys.length;i++)
+        {
+            if(keys[i]!=0)
+            {
+                copy[n++] = keys[i];
+            }
+        }
+        return copy;
+    }
+
+    private int slot(long key)
+    {
+        key = (key^(key>>>33))*0xFF51AFD7ED558CCDL;
+        key = (key^(key>>>33))*0xC4CEB9FE1A85EC53L;
+        return (int)(key^(key>>>33))&mask;
+    }
+
+    /**
+     * Doubles the size of the table
+     */
+    private void grow()
+    {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new long[oldKeys.length*2];
+        values = new Object[oldKeys.length*2];
+        mask = keys.length-1;
+        for(int i=0;i<oldKeys.length;i++)
+        {
+            if(oldKeys[i]!=0)
+            {
+                int j = slot(oldKeys[i]);
+                while(keys[j]!=0)
+                {
+                    j = (j+1)&mask;
+                }
+                keys[j] = oldKeys[i];
+                values[j] = oldValues[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,158 @@
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * A transport which never touches the network. Every transport joined to the same Hub receives the
+ * packets sent by the others, the same way a multicast group would, which makes it possible to run many
+ * clients in one process. The hub can drop a share of the packets on purpose, to see how the clients
+ * cope with a lossy network.
+ */
+public class LoopbackTransport implements ChatTransport
+{
+    private final Hub hub;
+    private volatile Listener listener;
+
+    /**
+     * Constructor. Use Hub.join instead.
+     * @param hub- the hub this transport belongs to
+     */
+    private LoopbackTransport(Hub hub)
+    {
+        this.hub = hub;
+    }
+
+    @Override
+    public void start(Listener listener)
+    {
+        this.listener = listener;
+        hub.members.add(this);
+    }
+
+    /**
+     * Sends a packet to every transport on the hub, including this one, unless the hub drops it.
+     */
+    @Override
+    public void send(ByteBuffer packet)
+    {
+        hub.send(packet);
+    }
+
+    @Override
+    public void close()
+    {
+        hub.members.remove(this);
+    }
+
+    /**
+     * A group of loopback transports. Packets are handed out on the hub's own thread, in the order they
+     * were sent.
+     */
+    public static class Hub implements Runnable
+    {
+        private final CopyOnWriteArrayList<LoopbackTransport> members = new CopyOnWriteArrayList<LoopbackTransport>();
+        private final LinkedBlockingQueue<byte[]> queue = new LinkedBlockingQueue<byte[]>();
+        private final Random random;
+        private volatile double lossRate;
+        private volatile long sent = 0;
+        private volatile long dropped = 0;
+
+        /**
+         * Constructor for a hub which does not lose packets
+         */
+        public Hub()
+        {
+            this(0,new Random());
+        }
+
+        /**
+         * Constructor
+         * @param lossRate- the share of packets dropped, from 0 to 1
+         * @param random- decides which packets are dropped
+         */
+        public Hub(double lossRate,Random random)
+        {
+            this.lossRate = lossRate;
+            this.random = random;
+            Thread thread = new Thread(this,"LoopbackTransport.Hub");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        /**
+         * Joins the hub
+         * @return a new transport on this hub
+         */
+        public LoopbackTransport join()
+        {
+            return new LoopbackTransport(this);
+        }
+
+        /**
+         * Changes the share of packets dropped
+         * @param lossRate- from 0 to 1
+         */
+        public void setLossRate(double lossRate)
+        {
+            this.lossRate = lossRate;
+        }
+
+        /**
+         * Getter for the number of packets sent to the hub
+         * @return sent
+         */
+        public long getSent()
+        {
+            return sent;
+        }
+
+        /**
+         * Getter for the number of packets the hub dropped
+         * @return dropped
+         */
+        public long getDropped()
+        {
+            return dropped;
+        }
+
+        private synchronized void send(ByteBuffer packet)
+        {
+            sent++;
+            if(lossRate>0&&random.nextDouble()<lossRate)
+            {
+                dropped++;
+                return;
+            }
+            byte[] copy = new byte[packet.remaining()];
+            packet.duplicate().get(copy);
+            queue.add(copy);
+        }
+
+        /**
+         * Called when the hub's thread starts. Hands every packet to every member.
+         */
+        public void run()
+        {
+            while(true)
+            {
+                try
+                {
+                    byte[] packet = queue.take();
+                    for(LoopbackTransport member : members)
+                    {
+                        member.listener.packetReceived(ByteBuffer.wrap(packet));
+                    }
+                }
+                catch(InterruptedException e)
+                {
+                    return;
+                }
+                catch(RuntimeException e)
+                {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
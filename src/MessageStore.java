@@ -0,0 +1,685 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * The message store holds the chat log for the model. Messages are appended into fixed size
+ * chunks, so adding a message never copies any of the messages that came before it.
+ *
+ * Every message gets an index when it is added. Indexes keep counting up for the whole session,
+ * even after old messages are evicted. Once more than the retention cap of messages are held, the
+ * oldest chunk is dropped from memory and written to the spill file, from where get and window
+ * still read it. The file is written on the shared ChatWorkers, so adding a message never waits for
+ * the disk, and a temporary spill file is deleted when the store is closed.
+ *
+ * The spill file is a sequence of records, each one being the timestamp (long), the sender id
+ * (long), the sender's sequence number (long), the length of the text in bytes (int) and the UTF-8 text.
+ *
+ * If the store is given a HistoryLog, every message from a user is also appended to it as it is added,
+ * so the chat survives the application closing. Lines which were not sent by any user are not kept.
+ */
+public class MessageStore implements Iterable<ChatMessage>
+{
+    public static final int DEFAULT_CHUNK_SIZE = 1024;
+    public static final int DEFAULT_RETENTION = 100000;
+
+    //store parameters
+    private final int chunkSize;
+    private final int retention;
+    private final File spillFile;
+    private HistoryLog history;
+    //where evicted chunks go, made the first time one is evicted, or null
+    private Spill spill;
+    //whether the oldest chunks are evicted once the retention cap is passed
+    private boolean evicting = true;
+    //whether the store was closed, after which evicted chunks are dropped
+    private boolean closed = false;
+
+    //chunks held in memory, oldest first. Every chunk except the last is full.
+    private final ArrayList<ChatMessage[]> chunks = new ArrayList<ChatMessage[]>();
+    //index of the first message still in memory, and one past the newest message
+    private long firstIndex = 0;
+    private long endIndex = 0;
+
+    /**
+     * Constructor for a store with the default chunk size and retention. Evicted messages are
+     * written to a temporary file.
+     */
+    public MessageStore()
+    {
+        this(DEFAULT_CHUNK_SIZE,DEFAULT_RETENTION,null);
+    }
+
+    /**
+     * Constructor
+     * @param chunkSize- the number of messages in each chunk
+     * @param retention- the fewest messages that are kept in memory before the oldest are evicted
+     * @param spillFile- where evicted messages are written, which is emptied first. If null, a temporary
+     *                 file is created the first time a chunk is evicted, and deleted when the store is closed.
+     */
+    public MessageStore(int chunkSize,int retention,File spillFile)
+    {
+        if(chunkSize<=0||retention<=0)
+        {
+            throw new IllegalArgumentException("chunk size and retention must be positive");
+        }
+        this.chunkSize = chunkSize;
+        this.retention = retention;
+        this.spillFile = spillFile;
+    }
+
+    /**
+     * Adds a message to the end of the log, evicting the oldest chunk if the retention cap
+     * has been passed.
+     * @param message- the new message
+     * @return the index of the message
+     */
+    public synchronized long append(ChatMessage message)
+    {
+        int offset = (int)((endIndex-firstIndex)%chunkSize);
+        if(offset==0)
+        {
+            chunks.add(new ChatMessage[chunkSize]);
+        }
+        chunks.get(chunks.size()-1)[offset] = message;
+        long index = endIndex++;
+        if(history!=null&&message.getSenderId()!=ChatMessage.SYSTEM_ID)
+        {
+            try
+            {
+                history.append(message);
+            }
+            catch(IOException e)
+            {
+                e.printStackTrace();
+            }
+        }
+        if(evicting)
+        {
+            evict();
+        }
+        return index;
+    }
+
+    /**
+     * Getter for a single message. Messages evicted from memory are read back from the spill file,
+     * without holding the store's lock.
+     * @param index- the index of the message
+     * @return the message, or null if it does not exist yet, or was evicted and could not be read back
+     */
+    public ChatMessage get(long index)
+    {
+        Spill spilled;
+        synchronized(this)
+        {
+            if(index>=firstIndex&&index<endIndex)
+            {
+                long offset = index-firstIndex;
+                return chunks.get((int)(offset/chunkSize))[(int)(offset%chunkSize)];
+            }
+            if(index>=endIndex||spill==null)
+            {
+                return null;
+            }
+            spilled = spill;
+        }
+        return spilled.get(index);
+    }
+
+    /**
+     * Returns a window of the log. Messages evicted from memory are read back from the spill file, and
+     * any which cannot be are skipped.
+     * @param from- the index of the first message wanted
+     * @param count- the most messages to return
+     * @return the messages in order, possibly fewer than count
+     */
+    public List<ChatMessage> window(long from,int count)
+    {
+        long start;
+        long end;
+        synchronized(this)
+        {
+            start = Math.max(from,spill==null ? firstIndex : spill.getStart());
+            end = Math.min(endIndex,from+count);
+        }
+        ArrayList<ChatMessage> result = new ArrayList<ChatMessage>((int)Math.max(0,end-start));
+        for(long i=start;i<end;i++)
+        {
+            ChatMessage message = get(i);
+            if(message!=null)
+            {
+                result.add(message);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Getter for the index of the oldest message still in memory
+     * @return firstIndex
+     */
+    public synchronized long getFirstIndex()
+    {
+        return firstIndex;
+    }
+
+    /**
+     * Getter for the index that the next message will get
+     * @return endIndex
+     */
+    public synchronized long getEndIndex()
+    {
+        return endIndex;
+    }
+
+    /**
+     * Getter for the number of messages held in memory
+     * @return the number of messages
+     */
+    public synchronized int size()
+    {
+        return (int)(endIndex-firstIndex);
+    }
+
+    /**
+     * Getter for the number of messages in each chunk
+     * @return chunkSize
+     */
+    public int getChunkSize()
+    {
+        return chunkSize;
+    }
+
+    /**
+     * Getter for the fewest messages kept in memory
+     * @return retention
+     */
+    public int getRetention()
+    {
+        return retention;
+    }
+
+    /**
+     * Sets the log messages are kept in once they are added. Messages already in the store are not
+     * written to it.
+     * @param history- the log, or null to stop keeping messages
+     */
+    public synchronized void setHistory(HistoryLog history)
+    {
+        this.history = history;
+    }
+
+    /**
+     * Getter for the spill file
+     * @return the file evicted messages are written to, or null if a temporary one was not made yet
+     */
+    public synchronized File getSpillFile()
+    {
+        return spill==null ? spillFile : spill.getFile();
+    }
+
+    /**
+     * Stops writing to the spill file, and deletes it if the store made it. Messages evicted from memory
+     * can no longer be read.
+     */
+    public synchronized void close()
+    {
+        if(spill!=null)
+        {
+            spill.close();
+            spill = null;
+        }
+        closed = true;
+    }
+
+    /**
+     * Makes an empty store with the same chunk size and retention, whose first message gets the index of
+     * this store's oldest message in memory, so the chat log can be built again in a different order. It
+     * does not evict anything until it takes over this store's spill file with takeSpill.
+     * @return the new store
+     */
+    synchronized MessageStore emptyCopy()
+    {
+        MessageStore copy = new MessageStore(chunkSize,retention,spillFile);
+        copy.firstIndex = firstIndex;
+        copy.endIndex = firstIndex;
+        copy.evicting = false;
+        return copy;
+    }
+
+    /**
+     * Takes over the spill file of the store this one was copied from, so the messages evicted before this
+     * store's first one can still be read, then evicts what is over the retention cap. Anything the other
+     * store spilled from this store's first message on is thrown away, and it spills nothing more.
+     * @param old- the store this one was made from by emptyCopy
+     */
+    void takeSpill(MessageStore old)
+    {
+        Spill taken;
+        synchronized(old)
+        {
+            taken = old.spill;
+            old.spill = null;
+            old.evicting = false;
+        }
+        synchronized(this)
+        {
+            if(taken!=null)
+            {
+                taken.truncate(firstIndex);
+            }
+            spill = taken;
+            evicting = true;
+            evict();
+        }
+    }
+
+    /**
+     * Iterates over the messages held in memory, starting from the oldest.
+     * Messages added after the iterator is created are included.
+     */
+    @Override
+    public Iterator<ChatMessage> iterator()
+    {
+        return iterator(getFirstIndex());
+    }
+
+    /**
+     * Iterates over the messages held in memory, starting from the given index.
+     * If messages are evicted while iterating, the iterator skips ahead to the oldest one left.
+     * @param from- index of the first message
+     * @return iterator over the messages
+     */
+    public Iterator<ChatMessage> iterator(final long from)
+    {
+        return new Iterator<ChatMessage>()
+        {
+            private long next = from;
+
+            @Override
+            public boolean hasNext()
+            {
+                return next<getEndIndex();
+            }
+
+            @Override
+            public ChatMessage next()
+            {
+                synchronized(MessageStore.this)
+                {
+                    next = Math.max(next,firstIndex);
+                    if(next>=endIndex)
+                    {
+                        throw new NoSuchElementException();
+                    }
+                    return get(next++);
+                }
+            }
+        };
+    }
+
+    /**
+     * Moves the oldest chunks to the spill file while that still leaves the retention cap in memory.
+     * Only whole chunks are evicted.
+     */
+    private void evict()
+    {
+        while(endIndex-firstIndex-chunkSize>=retention)
+        {
+            ChatMessage[] chunk = chunks.remove(0);
+            if(!closed)
+            {
+                if(spill==null)
+                {
+                    spill = new Spill(spillFile,firstIndex,chunkSize);
+                }
+                spill.add(chunk);
+            }
+            firstIndex += chunkSize;
+        }
+    }
+
+    /**
+     * The chunks evicted from a store. Chunks are written to the file in order on a SerialExecutor, and
+     * can be read back while they are waiting to be written as well as after. The file is only opened
+     * when the first chunk is written.
+     */
+    private static class Spill
+    {
+        private final File requested;
+        //bytes in front of the text of each record
+        private static final int RECORD_HEADER = 3*8+4;
+
+        private final long start;
+        private final int chunkSize;
+        private final SerialExecutor writer = new SerialExecutor(ChatWorkers.shared());
+        private final Runnable writeAll = new Runnable()
+        {
+            public void run()
+            {
+                writeAll();
+            }
+        };
+        private File file;
+        private FileChannel channel;
+
+        //where each chunk written so far starts in the file, and where the next one goes
+        private long[] offsets = new long[16];
+        private int written = 0;
+        //evicted chunks not written yet, oldest first
+        private final ArrayList<ChatMessage[]> unwritten = new ArrayList<ChatMessage[]>();
+        //changes whenever chunks are thrown away, so a write or read which raced it is not used
+        private long generation = 0;
+        private boolean closed = false;
+        //the chunk read from the file last, so reading a window does not read it again for every message
+        private int cachedChunk = -1;
+        private ChatMessage[] cached;
+        //only used by the writer
+        private ByteBuffer buffer = ByteBuffer.allocate(64*1024);
+
+        /**
+         * Constructor
+         * @param requested- the file to spill to, or null for a temporary one
+         * @param start- the index of the first message that will be spilled
+         * @param chunkSize- the number of messages in each chunk
+         */
+        Spill(File requested,long start,int chunkSize)
+        {
+            this.requested = requested;
+            this.start = start;
+            this.chunkSize = chunkSize;
+        }
+
+        long getStart()
+        {
+            return start;
+        }
+
+        synchronized File getFile()
+        {
+            return file;
+        }
+
+        /**
+         * Queues a chunk to be written after the ones already spilled
+         */
+        synchronized void add(ChatMessage[] chunk)
+        {
+            unwritten.add(chunk);
+            writer.execute(writeAll);
+        }
+
+        /**
+         * Reads back one spilled message
+         * @return the message, or null if it was not spilled or cannot be read
+         */
+        ChatMessage get(long index)
+        {
+            while(true)
+            {
+                int chunk;
+                long from;
+                long to;
+                long readGeneration;
+                FileChannel reading;
+                synchronized(this)
+                {
+                    if(closed||index<start)
+                    {
+                        return null;
+                    }
+                    long number = (index-start)/chunkSize;
+                    int offset = (int)((index-start)%chunkSize);
+                    if(number>=written+unwritten.size())
+                    {
+                        return null;
+                    }
+                    chunk = (int)number;
+                    if(chunk>=written)
+                    {
+                        return unwritten.get(chunk-written)[offset];
+                    }
+                    if(chunk==cachedChunk)
+                    {
+                        return cached[offset];
+                    }
+                    reading = channel;
+                    from = offsets[chunk];
+                    to = offsets[chunk+1];
+                    readGeneration = generation;
+                }
+                ChatMessage[] read = read(reading,from,to);
+                synchronized(this)
+                {
+                    if(read==null||readGeneration!=generation)
+                    {
+                        if(read==null||closed)
+                        {
+                            return null;
+                        }
+                        continue;
+                    }
+                    cachedChunk = chunk;
+                    cached = read;
+                    return read[(int)((index-start)%chunkSize)];
+                }
+            }
+        }
+
+        /**
+         * Reads a chunk from the file, without holding the lock
+         * @return the chunk's messages, or null if it cannot be read
+         */
+        private ChatMessage[] read(FileChannel reading,long from,long to)
+        {
+            try
+            {
+                ByteBuffer bytes = ByteBuffer.allocate((int)(to-from));
+                while(bytes.hasRemaining())
+                {
+                    if(reading.read(bytes,from+bytes.position())<0)
+                    {
+                        return null;
+                    }
+                }
+                bytes.flip();
+                ChatMessage[] chunk = new ChatMessage[chunkSize];
+                for(int i=0;i<chunkSize;i++)
+                {
+                    long timestamp = bytes.getLong();
+                    long senderId = bytes.getLong();
+                    long sequence = bytes.getLong();
+                    byte[] text = new byte[bytes.getInt()];
+                    bytes.get(text);
+                    chunk[i] = new ChatMessage(senderId,sequence,timestamp,new String(text,StandardCharsets.UTF_8));
+                }
+                return chunk;
+            }
+            catch(IOException e)
+            {
+                if(!isClosed())
+                {
+                    e.printStackTrace();
+                }
+                return null;
+            }
+        }
+
+        private synchronized boolean isClosed()
+        {
+            return closed;
+        }
+
+        /**
+         * Writes the waiting chunks to the file, oldest first. Runs on the writer.
+         */
+        private void writeAll()
+        {
+            while(true)
+            {
+                ChatMessage[] chunk;
+                long position;
+                long writeGeneration;
+                synchronized(this)
+                {
+                    if(closed||unwritten.isEmpty())
+                    {
+                        return;
+                    }
+                    chunk = unwritten.get(0);
+                    position = offsets[written];
+                    writeGeneration = generation;
+                }
+                try
+                {
+                    if(channel==null)
+                    {
+                        open();
+                    }
+                    encode(chunk);
+                    while(buffer.hasRemaining())
+                    {
+                        channel.write(buffer,position+buffer.position());
+                    }
+                }
+                catch(IOException e)
+                {
+                    //the chunks which cannot be written are dropped, since keeping them would let the
+                    //log grow without bound
+                    synchronized(this)
+                    {
+                        if(!closed)
+                        {
+                            e.printStackTrace();
+                            unwritten.clear();
+                        }
+                    }
+                    return;
+                }
+                synchronized(this)
+                {
+                    if(writeGeneration==generation&&!closed)
+                    {
+                        if(written+1==offsets.length)
+                        {
+                            long[] grown = new long[offsets.length*2];
+                            System.arraycopy(offsets,0,grown,0,offsets.length);
+                            offsets = grown;
+                        }
+                        offsets[written+1] = position+buffer.limit();
+                        written++;
+                        unwritten.remove(0);
+                    }
+                }
+            }
+        }
+
+        private void open() throws IOException
+        {
+            File opening = requested;
+            if(opening==null)
+            {
+                opening = File.createTempFile("mychatapp",".spill");
+                opening.deleteOnExit();
+            }
+            FileChannel opened = FileChannel.open(opening.toPath(),StandardOpenOption.CREATE,
+                    StandardOpenOption.READ,StandardOpenOption.WRITE,StandardOpenOption.TRUNCATE_EXISTING);
+            synchronized(this)
+            {
+                file = opening;
+                channel = opened;
+                if(closed)
+                {
+                    close();
+                }
+            }
+        }
+
+        private void encode(ChatMessage[] chunk)
+        {
+            buffer.clear();
+            for(ChatMessage message : chunk)
+            {
+                byte[] text = message.getText().getBytes(StandardCharsets.UTF_8);
+                if(buffer.remaining()<RECORD_HEADER+text.length)
+                {
+                    ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity()*2,
+                            buffer.position()+RECORD_HEADER+text.length));
+                    buffer.flip();
+                    grown.put(buffer);
+                    buffer = grown;
+                }
+                buffer.putLong(message.getTimestamp());
+                buffer.putLong(message.getSenderId());
+                buffer.putLong(message.getSequence());
+                buffer.putInt(text.length);
+                buffer.put(text);
+            }
+            buffer.flip();
+        }
+
+        /**
+         * Throws away every chunk from the given index on, so the next one spilled takes its place
+         * @param end- the index of the first message thrown away, which starts a chunk
+         */
+        synchronized void truncate(long end)
+        {
+            int keep = (int)Math.max(0,(end-start)/chunkSize);
+            if(keep>=written+unwritten.size())
+            {
+                return;
+            }
+            generation++;
+            if(keep<written)
+            {
+                written = keep;
+                unwritten.clear();
+            }
+            else
+            {
+                while(unwritten.size()>keep-written)
+                {
+                    unwritten.remove(unwritten.size()-1);
+                }
+            }
+            if(cachedChunk>=keep)
+            {
+                cachedChunk = -1;
+                cached = null;
+            }
+        }
+
+        /**
+         * Closes the file, and deletes it if it is a temporary one
+         */
+        synchronized void close()
+        {
+            closed = true;
+            unwritten.clear();
+            cached = null;
+            if(channel!=null)
+            {
+                try
+                {
+                    channel.close();
+                }
+                catch(IOException e)
+                {
+                    e.printStackTrace();
+                }
+                if(requested==null)
+                {
+                    file.delete();
+                }
+                channel = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,123 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.nio.ByteBuffer;
+
+/**
+ * The original transport. Uses a blocking multicast socket, and a reader thread of its own which
+ * waits for packets from the other clients.
+ */
+public class MulticastTransport implements ChatTransport
+{
+    //network details
+    private InetAddress group;
+    private int port;
+    private MulticastSocket mailbox;
+    //the interface the group was joined on
+    private NetworkInterface networkInterface;
+
+    //packet used for sending, guarded by this
+    private final DatagramPacket sendPacket = new DatagramPacket(new byte[0],0);
+
+    /**
+     * Constructor. Joins the group straight away, on the same interface the nio transport would use.
+     * @param group: P2P network group entered by user
+     * @param port: Open port
+     * @throws IOException: in case the connection cannot be made
+     */
+    public MulticastTransport(InetAddress group,int port) throws IOException
+    {
+        this(group,port,NioSelectorLoop.multicastInterface());
+    }
+
+    /**
+     * Constructor for a transport which sends and receives on one network interface only, such as the
+     * loopback interface when every client runs on the same machine. Joins the group straight away.
+     * @param group: P2P network group entered by user
+     * @param port: Open port
+     * @param networkInterface: the interface the group is joined on
+     * @throws IOException: in case the connection cannot be made
+     */
+    public MulticastTransport(InetAddress group,int port,NetworkInterface networkInterface) throws IOException
+    {
+        this.group = group;
+        this.port = port;
+        this.networkInterface = networkInterface;
+        mailbox = new MulticastSocket(port);
+        mailbox.setNetworkInterface(networkInterface);
+        mailbox.joinGroup(new InetSocketAddress(group,port),networkInterface);
+        sendPacket.setAddress(group);
+        sendPacket.setPort(port);
+    }
+
+    @Override
+    public void start(Listener listener)
+    {
+        new ReaderThread(listener).start();
+    }
+
+    @Override
+    public synchronized void send(ByteBuffer packet) throws IOException
+    {
+        sendPacket.setData(packet.array(),packet.arrayOffset()+packet.position(),packet.remaining());
+        mailbox.send(sendPacket);
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        mailbox.leaveGroup(new InetSocketAddress(group,port),networkInterface);
+        mailbox.close();
+    }
+
+    /**
+     * This ReaderThread constantly reads in messages from the other clients.
+     */
+    public class ReaderThread extends Thread
+    {
+        private final Listener listener;
+
+        /**
+         * Constructor
+         * @param listener: who the packets are handed to
+         */
+        public ReaderThread(Listener listener)
+        {
+            this.listener = listener;
+            setDaemon(true);
+        }
+
+        /**
+         * Called when the thread starts.
+         */
+        public void run()
+        {
+            //the same packet and buffer are reused for every message
+            byte[] buf = new byte[PacketCodec.RECEIVE_SIZE];
+            ByteBuffer buffer = ByteBuffer.wrap(buf);
+            DatagramPacket packet = new DatagramPacket(buf,buf.length);
+            try
+            {
+                //run continuously
+                while(true)
+                {
+                    packet.setData(buf,0,buf.length);
+                    mailbox.receive(packet);
+                    buffer.clear();
+                    buffer.limit(packet.getLength());
+                    listener.packetReceived(buffer);
+                }
+            }
+            catch(IOException e)
+            {
+                if(!mailbox.isClosed())
+                {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
@@ -23,8 +23,13 @@
  */
 public class MyChatApp
 {
+    /**
+     * Opens the login window, or enters the chatroom straight away if a name, group and port are given
+     * @param args- nothing, or the user's name, the group and the port
+     */
     public static void main(String[] args)
     {
-        LoginView run = new LoginView();
+        StartupTimer.mark("main");
+        LoginView run = args.length==3 ? new LoginView(args[0],args[1],args[2]) : new LoginView();
     }
 }
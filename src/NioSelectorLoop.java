@@ -0,0 +1,220 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.MembershipKey;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * One thread which receives the packets for any number of chatrooms.
+ *
+ * Every chatroom gets its own non-blocking DatagramChannel which has joined its group, and all of the
+ * channels are registered with a single selector. Packets are read into one direct buffer that is
+ * reused for every packet, so the number of threads and receive buffers stays the same no matter how
+ * many rooms are joined. Each packet is copied and handed to its room on the shared ChatWorkers, and
+ * only a few packets are read from a room before moving on, so one busy room can't hold up the rest.
+ */
+public class NioSelectorLoop implements Runnable
+{
+    private static NioSelectorLoop shared;
+    //packets read from one room before moving on to the next
+    private static final int READ_BUDGET = 64;
+
+    private final Selector selector;
+    private final Thread thread;
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(PacketCodec.RECEIVE_SIZE);
+    //channels waiting to be registered by the selector thread
+    private final ConcurrentLinkedQueue<NioTransport> pending = new ConcurrentLinkedQueue<NioTransport>();
+
+    /**
+     * Getter for the loop shared by the whole process. Starts it the first time it is called.
+     * @return the shared loop
+     * @throws IOException- if the selector cannot be opened
+     */
+    public static synchronized NioSelectorLoop shared() throws IOException
+    {
+        if(shared==null)
+        {
+            shared = new NioSelectorLoop();
+        }
+        return shared;
+    }
+
+    /**
+     * Constructor. Opens the selector and starts the loop's thread.
+     * @throws IOException- if the selector cannot be opened
+     */
+    public NioSelectorLoop() throws IOException
+    {
+        selector = Selector.open();
+        thread = new Thread(this,"NioSelectorLoop");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Joins a chatroom. The returned transport does not receive anything until it is started.
+     * @param group- the multicast group
+     * @param port- the port of the group
+     * @return a transport for the room
+     * @throws IOException- if the group cannot be joined
+     */
+    public NioTransport join(InetAddress group,int port) throws IOException
+    {
+        return join(group,port,multicastInterface());
+    }
+
+    /**
+     * Joins a chatroom on the given network interface, such as the loopback interface when every client
+     * runs on the same machine. The returned transport does not receive anything until it is started.
+     * @param group- the multicast group
+     * @param port- the port of the group
+     * @param networkInterface- the interface the group is joined on
+     * @return a transport for the room
+     * @throws IOException- if the group cannot be joined
+     */
+    public NioTransport join(InetAddress group,int port,NetworkInterface networkInterface) throws IOException
+    {
+        DatagramChannel channel = DatagramChannel.open(group.getAddress().length==4 ?
+                StandardProtocolFamily.INET : StandardProtocolFamily.INET6);
+        try
+        {
+            channel.setOption(StandardSocketOptions.SO_REUSEADDR,true);
+            channel.bind(new InetSocketAddress(port));
+            channel.setOption(StandardSocketOptions.IP_MULTICAST_IF,networkInterface);
+            channel.configureBlocking(false);
+            MembershipKey membership = channel.join(group,networkInterface);
+            return new NioTransport(this,channel,membership,new InetSocketAddress(group,port));
+        }
+        catch(IOException e)
+        {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Hands a started transport to the selector thread to be registered.
+     * @param transport- the transport to receive for
+     */
+    void register(NioTransport transport)
+    {
+        pending.add(transport);
+        selector.wakeup();
+    }
+
+    /**
+     * Picks the interface used for multicast. The first interface which is up and supports multicast is
+     * used, preferring ones which are not loopback. The choice can be forced with the
+     * mychatapp.interface system property.
+     * @return the interface
+     * @throws SocketException- if no interface can be used
+     */
+    static NetworkInterface multicastInterface() throws SocketException
+    {
+        String name = System.getProperty("mychatapp.interface");
+        if(name!=null)
+        {
+            return NetworkInterface.getByName(name);
+        }
+        NetworkInterface loopback = null;
+        Enumeration<NetworkInterface> all = NetworkInterface.getNetworkInterfaces();
+        while(all.hasMoreElements())
+        {
+            NetworkInterface candidate = all.nextElement();
+            if(!candidate.isUp()||!candidate.supportsMulticast())
+            {
+                continue;
+            }
+            if(!candidate.isLoopback())
+            {
+                return candidate;
+            }
+            loopback = candidate;
+        }
+        if(loopback==null)
+        {
+            throw new SocketException("No network interface supports multicast");
+        }
+        return loopback;
+    }
+
+    /**
+     * Reads packets from a room's channel until it has nothing left, or the budget runs out. Packets
+     * left behind are read on the next pass.
+     * @param transport- the room that is ready
+     * @throws IOException- if the channel fails
+     */
+    private void receive(NioTransport transport) throws IOException
+    {
+        DatagramChannel channel = transport.getChannel();
+        for(int i=0;i<READ_BUDGET;i++)
+        {
+            receiveBuffer.clear();
+            if(channel.receive(receiveBuffer)==null)
+            {
+                return;
+            }
+            receiveBuffer.flip();
+            transport.deliver(receiveBuffer);
+        }
+    }
+
+    /**
+     * Called when the thread starts. Waits for any channel to have packets, then hands every packet
+     * to its room.
+     */
+    public void run()
+    {
+        while(true)
+        {
+            try
+            {
+                selector.select();
+
+                NioTransport added;
+                while((added = pending.poll())!=null)
+                {
+                    added.getChannel().register(selector,SelectionKey.OP_READ,added);
+                }
+
+                Iterator<SelectionKey> ready = selector.selectedKeys().iterator();
+                while(ready.hasNext())
+                {
+                    SelectionKey key = ready.next();
+                    ready.remove();
+                    if(!key.isValid())
+                    {
+                        continue;
+                    }
+                    try
+                    {
+                        receive((NioTransport)key.attachment());
+                    }
+                    catch(IOException e)
+                    {
+                        //a room closing should not stop the other rooms
+                        key.cancel();
+                        if(key.channel().isOpen())
+                        {
+                            e.printStackTrace();
+                        }
+                    }
+                }
+            }
+            catch(IOException e)
+            {
+                e.printStackTrace();
+            }
+        }
+    }
+}
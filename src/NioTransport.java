@@ -0,0 +1,95 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.MembershipKey;
+
+/**
+ * Transport for one chatroom which is served by a NioSelectorLoop. Created by NioSelectorLoop.join.
+ *
+ * Packets are handed to the listener on the shared ChatWorkers, in the order they arrived, so the loop's
+ * thread goes straight back to reading and rooms are handled side by side.
+ */
+public class NioTransport implements ChatTransport
+{
+    private final NioSelectorLoop loop;
+    private final DatagramChannel channel;
+    private final MembershipKey membership;
+    private final InetSocketAddress target;
+    private volatile Listener listener;
+    private final SerialExecutor inbound = new SerialExecutor(ChatWorkers.shared());
+
+    /**
+     * Constructor
+     * @param loop- the loop which will receive for this room
+     * @param channel- the room's channel, which has already joined the group
+     * @param membership- the channel's membership of the group
+     * @param target- the group and port packets are sent to
+     */
+    NioTransport(NioSelectorLoop loop,DatagramChannel channel,MembershipKey membership,InetSocketAddress target)
+    {
+        this.loop = loop;
+        this.channel = channel;
+        this.membership = membership;
+        this.target = target;
+    }
+
+    @Override
+    public void start(Listener listener)
+    {
+        this.listener = listener;
+        loop.register(this);
+    }
+
+    /**
+     * Sends a packet. The channel is non-blocking, so if the socket's send buffer is full the packet
+     * is dropped, just as it could be anywhere else on the network.
+     */
+    @Override
+    public void send(ByteBuffer packet) throws IOException
+    {
+        channel.send(packet,target);
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        membership.drop();
+        channel.close();
+    }
+
+    /**
+     * Getter for the room's channel
+     * @return channel
+     */
+    DatagramChannel getChannel()
+    {
+        return channel;
+    }
+
+    /**
+     * Copies a packet received by the loop and queues it for the listener
+     * @param packet- the packet, which the loop reuses once this returns
+     */
+    void deliver(ByteBuffer packet)
+    {
+        final byte[] copy = new byte[packet.remaining()];
+        packet.get(copy);
+        inbound.execute(new Runnable()
+        {
+            public void run()
+            {
+                listener.packetReceived(ByteBuffer.wrap(copy));
+            }
+        });
+    }
+
+    /**
+     * Getter for the number of packets waiting for the listener
+     * @return the number of packets
+     */
+    public int getQueued()
+    {
+        return inbound.getQueued();
+    }
+}
@@ -0,0 +1,1061 @@
+import java.net.ProtocolException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Inflater;
+
+/**
+ * Encodes and decodes the packets sent between clients.
+ *
+ * A codec owns its packet buffer, scratch buffers and UTF-8 encoder and decoder, which are reused for
+ * every packet. Once it is created, encoding or decoding a packet does not allocate anything, apart from
+ * the String returned by getText(). A codec is not thread safe, so every thread that sends or receives
+ * needs its own.
+ *
+ * Wire format, version 1:
+ *
+ *   packet:  header (byte, 0xC0 | version), flags (byte), then one or more frames
+ *   flags:   DEFLATED (0x01): the frames are deflated as a whole, with PacketCompressor's preset dictionary
+ *   frame:   opcode (byte), body length (varint), body
+ *   body:    sender id, sequence number, timestamp in milliseconds (all varints),
+ *            then the fields of the opcode:
+ *              USER_JOIN, USER_EXIT, SEND_MESSAGE: text
+ *              SEND_NAME: destination id (varint), text
+ *              FRAGMENT: index, count, offset, total length (all varints), then the payload
+ *                        which runs to the end of the body
+ *              NAK: the sender whose frames were missed, the first missed sequence number and
+ *                   how many were missed (all varints)
+ *              ROSTER: destination id (varint, 0 for everyone), then members until the end of the
+ *                      body, each an id and version (varints) and a name (text)
+ *              DIGEST: how many members the sender knows of, a hash of their ids and versions,
+ *                      and the sender's last sequence number (all varints)
+ *              HISTORY: destination id, chunk index (varints), whether it is the last chunk (byte),
+ *                       then a deflated piece of the sender's chat log which runs to the end of the body
+ *   text:    length in bytes (varint), then UTF-8
+ *
+ * Sequence numbers start from 1 for each sender. Frames which are not sequenced, such as NAKs and
+ * DIGESTs, use 0.
+ *
+ * Varints are unsigned LEB128, 7 bits per byte with the high bit meaning more bytes follow. Because every
+ * frame is length prefixed, readers skip frames with opcodes they do not know and ignore any fields added
+ * to the end of a body, so new opcodes and fields can be added without changing the version. The header
+ * byte always has its two top bits set, so it can never be mistaken for an opcode of the old unframed format.
+ *
+ * Packets are kept to MTU_PAYLOAD bytes so they are never split up by IP. A frame which is too big for one
+ * packet is encoded on its own with encodeFrame() and sent as FRAGMENT frames, which carry pieces of the
+ * encoded frame and the sequence number and timestamp of the frame being split. Receivers put the pieces
+ * back together with a FragmentReassembler. Text longer than MAX_MESSAGE bytes is cut off at a character
+ * boundary.
+ */
+public class PacketCodec
+{
+    public static final int VERSION = 1;
+    //size of the buffer that packets from other clients are read into
+    public static final int RECEIVE_SIZE = 2200;
+    //largest packet sent, small enough to fit in an ethernet frame with the IP and UDP headers
+    public static final int MTU_PAYLOAD = 1400;
+    //largest frame that can be sent, once it is split into fragments
+    public static final int MAX_MESSAGE = 256*1024;
+
+    //flag for a packet whose frames are deflated
+    public static final int FLAG_DEFLATED = 0x01;
+
+    private static final int HEADER_MARK = 0xC0;
+    static final int HEADER_SIZE = 2;
+    //the most bytes a frame can need besides its text: opcode, body length, four varints and a text length
+    private static final int MAX_FRAME_OVERHEAD = 1+5+4*10+5;
+    //room left in front of a ROSTER body for the opcode and body length, which are written last
+    private static final int ROSTER_PREFIX = 1+5;
+    //the most bytes a fragment frame can need besides its payload
+    private static final int MAX_FRAGMENT_OVERHEAD = 1+5+3*10+4*5;
+    //payload carried by each fragment
+    public static final int FRAGMENT_PAYLOAD = MTU_PAYLOAD-HEADER_SIZE-MAX_FRAGMENT_OVERHEAD;
+    //largest encoded frame which fits in a packet of MTU_PAYLOAD bytes
+    public static final int MAX_PACKED_FRAME = MTU_PAYLOAD-HEADER_SIZE;
+
+    private final ByteBuffer buffer;
+    //scratch buffers, which grow when a large frame is encoded or decoded
+    private ByteBuffer frameBuffer;
+    private ByteBuffer textBytes;
+    private CharBuffer chars;
+    private final CharsetEncoder encoder;
+    private final CharsetDecoder decoder;
+
+    //the packet being decoded
+    private ByteBuffer packet;
+    private int flags;
+    //deflated packets are inflated into here, made the first time one arrives
+    private Inflater inflater;
+    private byte[] inflated;
+    private ByteBuffer inflatedFrames;
+
+    //fields of the last decoded frame
+    private int opcode;
+    private long senderId;
+    private long sequence;
+    private long timestamp;
+    private long destination;
+    private int fragmentIndex;
+    private int fragmentCount;
+    private int fragmentOffset;
+    private int fragmentTotal;
+    private int payloadPosition;
+    private int payloadLength;
+    private long rangeStart;
+    private int rangeCount;
+    private int frameStart;
+    private int frameEnd;
+    private int memberCount;
+    private long digest;
+    private long lastSequence;
+    private int chunkIndex;
+    private boolean lastChunk;
+    //the members of the last decoded ROSTER frame, read one at a time with nextMember()
+    private int memberPosition;
+    private int membersEnd;
+    private long memberId;
+    private long memberVersion;
+
+    //number of members in the ROSTER frame being encoded
+    private int membersEncoded;
+
+    /**
+     * Constructor
+     * @param capacity- the largest packet this codec can encode
+     */
+    public PacketCodec(int capacity)
+    {
+        buffer = ByteBuffer.allocate(capacity);
+        textBytes = ByteBuffer.allocate(capacity);
+        chars = CharBuffer.allocate(capacity);
+        encoder = StandardCharsets.UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    /**
+     * Encodes a packet holding a single frame.
+     * @param opcode- what kind of frame this is
+     * @param senderId- the uniqueID of this client
+     * @param sequence- the sender's sequence number for this frame
+     * @param timestamp- when the frame was sent, in milliseconds
+     * @param destination- the uniqueID of the client the frame is for. Only written for SEND_NAME frames.
+     * @param text- the name or message carried by the frame
+     * @return the packet, ready to send, or null if the frame is too big for one packet.
+     *         It is reused by the next call to this codec.
+     */
+    public ByteBuffer encode(int opcode,long senderId,long sequence,long timestamp,long destination,CharSequence text)
+    {
+        beginPacket();
+        if(!putFrame(opcode,senderId,sequence,timestamp,destination,text))
+        {
+            return null;
+        }
+        return finishPacket();
+    }
+
+    /**
+     * Starts a new packet, throwing away anything that was encoded before.
+     */
+    public void beginPacket()
+    {
+        buffer.clear();
+        buffer.put((byte)(HEADER_MARK|VERSION));
+        buffer.put((byte)0);
+    }
+
+    /**
+     * Starts encoding frames without a packet header, throwing away anything that was encoded before.
+     * Used to build frames which are packed into a packet later, such as by a SendBatcher.
+     */
+    public void beginFrame()
+    {
+        buffer.clear();
+    }
+
+    /**
+     * Adds a frame to the packet being encoded.
+     * @param opcode- what kind of frame this is
+     * @param senderId- the uniqueID of this client
+     * @param sequence- the sender's sequence number for this frame
+     * @param timestamp- when the frame was sent, in milliseconds
+     * @param destination- the uniqueID of the client the frame is for. Only written for SEND_NAME frames.
+     * @param text- the name or message carried by the frame
+     * @return false if the frame did not fit in what is left of the packet, in which case nothing is added
+     */
+    public boolean putFrame(int opcode,long senderId,long sequence,long timestamp,long destination,CharSequence text)
+    {
+        //encode the text first, so that the body length is known before it is written
+        encodeText(text);
+        return writeFrame(buffer,opcode,senderId,sequence,timestamp,destination);
+    }
+
+    /**
+     * Encodes a frame on its own, without a packet header, so that it can be split into fragments.
+     * @param opcode- what kind of frame this is
+     * @param senderId- the uniqueID of this client
+     * @param sequence- the sender's sequence number for this frame
+     * @param timestamp- when the frame was sent, in milliseconds
+     * @param destination- the uniqueID of the client the frame is for. Only written for SEND_NAME frames.
+     * @param text- the name or message carried by the frame
+     * @return the encoded frame. It is reused by the next call to this method.
+     */
+    public ByteBuffer encodeFrame(int opcode,long senderId,long sequence,long timestamp,long destination,CharSequence text)
+    {
+        encodeText(text);
+        int needed = textBytes.remaining()+MAX_FRAME_OVERHEAD;
+        if(frameBuffer==null||frameBuffer.capacity()<needed)
+        {
+            frameBuffer = ByteBuffer.allocate(needed);
+        }
+        frameBuffer.clear();
+        writeFrame(frameBuffer,opcode,senderId,sequence,timestamp,destination);
+        frameBuffer.flip();
+        return frameBuffer;
+    }
+
+    /**
+     * Adds a frame which was already encoded, such as one being sent again.
+     * @param frame- the encoded frame, from its position to its limit. Its position is not changed.
+     * @return false if the frame did not fit in what is left of the packet
+     */
+    public boolean putEncodedFrame(ByteBuffer frame)
+    {
+        if(frame.remaining()>buffer.remaining())
+        {
+            return false;
+        }
+        int position = frame.position();
+        buffer.put(frame);
+        frame.position(position);
+        return true;
+    }
+
+    /**
+     * Adds a NAK to the packet being encoded, asking a sender to send frames again.
+     * NAKs are not sequenced.
+     * @param senderId- the uniqueID of this client
+     * @param timestamp- when the NAK was sent, in milliseconds
+     * @param target- the uniqueID of the client whose frames were missed
+     * @param from- the first missed sequence number
+     * @param count- how many frames were missed
+     * @return false if the NAK did not fit in what is left of the packet
+     */
+    public boolean putNak(long senderId,long timestamp,long target,long from,int count)
+    {
+        int bodyLength = varintSize(senderId)+varintSize(0)+varintSize(timestamp)+varintSize(target)
+                +varintSize(from)+varintSize(count);
+        if(1+varintSize(bodyLength)+bodyLength>buffer.remaining())
+        {
+            return false;
+        }
+        buffer.put((byte)ChatProxy.NAK_CODE);
+        putVarint(buffer,bodyLength);
+        putVarint(buffer,senderId);
+        putVarint(buffer,0);
+        putVarint(buffer,timestamp);
+        putVarint(buffer,target);
+        putVarint(buffer,from);
+        putVarint(buffer,count);
+        return true;
+    }
+
+    /**
+     * Adds a DIGEST to the packet being encoded, summing up the members this client knows of.
+     * DIGESTs are not sequenced.
+     * @param senderId- the uniqueID of this client
+     * @param timestamp- when the DIGEST was sent, in milliseconds
+     * @param count- how many members this client knows of
+     * @param digest- the hash of the members' ids and versions
+     * @param lastSequence- the sequence number of the last frame this client sent
+     * @return false if the DIGEST did not fit in what is left of the packet
+     */
+    public boolean putDigest(long senderId,long timestamp,int count,long digest,long lastSequence)
+    {
+        int bodyLength = varintSize(senderId)+varintSize(0)+varintSize(timestamp)+varintSize(count)
+                +varintSize(digest)+varintSize(lastSequence);
+        if(1+varintSize(bodyLength)+bodyLength>buffer.remaining())
+        {
+            return false;
+        }
+        buffer.put((byte)ChatProxy.DIGEST_CODE);
+        putVarint(buffer,bodyLength);
+        putVarint(buffer,senderId);
+        putVarint(buffer,0);
+        putVarint(buffer,timestamp);
+        putVarint(buffer,count);
+        putVarint(buffer,digest);
+        putVarint(buffer,lastSequence);
+        return true;
+    }
+
+    /**
+     * Starts encoding a ROSTER frame on its own, without a packet header. Members are then added with
+     * putMember(), and the frame is finished with finishRoster().
+     * @param senderId- the uniqueID of this client
+     * @param sequence- the sender's sequence number for this frame
+     * @param timestamp- when the frame was sent, in milliseconds
+     * @param destination- the uniqueID of the client the roster is for, or 0 for everyone
+     */
+    public void beginRoster(long senderId,long sequence,long timestamp,long destination)
+    {
+        if(frameBuffer==null||frameBuffer.capacity()<MTU_PAYLOAD)
+        {
+            frameBuffer = ByteBuffer.allocate(MTU_PAYLOAD);
+        }
+        frameBuffer.clear();
+        //the body length is not known until the last member is added
+        frameBuffer.position(ROSTER_PREFIX);
+        putVarint(frameBuffer,senderId);
+        putVarint(frameBuffer,sequence);
+        putVarint(frameBuffer,timestamp);
+        putVarint(frameBuffer,destination);
+        membersEncoded = 0;
+    }
+
+    /**
+     * Adds a member to the ROSTER frame being encoded. The first member is always added, even if it
+     * makes the frame too big for one packet.
+     * @param id- the member's uniqueID
+     * @param version- the version of the member's entry
+     * @param name- the member's name
+     * @return false if the member would make the frame too big for one packet, in which case nothing is added
+     */
+    public boolean putMember(long id,long version,CharSequence name)
+    {
+        encodeText(name);
+        int memberLength = varintSize(id)+varintSize(version)+varintSize(textBytes.remaining())+textBytes.remaining();
+        int bodyLength = frameBuffer.position()-ROSTER_PREFIX+memberLength;
+        if(membersEncoded>0&&1+varintSize(bodyLength)+bodyLength>MAX_PACKED_FRAME)
+        {
+            return false;
+        }
+        if(frameBuffer.remaining()<memberLength)
+        {
+            ByteBuffer larger = ByteBuffer.allocate(frameBuffer.position()+memberLength);
+            frameBuffer.flip();
+            larger.put(frameBuffer);
+            frameBuffer = larger;
+        }
+        putVarint(frameBuffer,id);
+        putVarint(frameBuffer,version);
+        putVarint(frameBuffer,textBytes.remaining());
+        int position = textBytes.position();
+        frameBuffer.put(textBytes);
+        textBytes.position(position);
+        membersEncoded++;
+        return true;
+    }
+
+    /**
+     * Finishes the ROSTER frame being encoded.
+     * @return the encoded frame. It is reused by the next call to beginRoster() or encodeFrame().
+     */
+    public ByteBuffer finishRoster()
+    {
+        int end = frameBuffer.position();
+        int bodyLength = end-ROSTER_PREFIX;
+        int start = ROSTER_PREFIX-1-varintSize(bodyLength);
+        frameBuffer.position(start);
+        frameBuffer.put((byte)ChatProxy.ROSTER_CODE);
+        putVarint(frameBuffer,bodyLength);
+        //move the frame to the start of the buffer, where fragments expect it to be
+        frameBuffer.limit(end).position(start);
+        frameBuffer.compact();
+        frameBuffer.flip();
+        return frameBuffer;
+    }
+
+    /**
+     * Adds a fragment of an encoded frame to the packet being encoded.
+     * @param senderId- the uniqueID of this client
+     * @param sequence- the sequence number of the frame being split
+     * @param timestamp- the timestamp of the frame being split
+     * @param index- which fragment this is, starting from 0
+     * @param count- how many fragments the frame was split into
+     * @param frame- the encoded frame. The bytes from offset to offset+length are added.
+     * @param offset- where this fragment starts in the frame
+     * @param length- how many bytes this fragment carries, at most FRAGMENT_PAYLOAD
+     * @return false if the fragment did not fit in what is left of the packet
+     */
+    public boolean putFragment(long senderId,long sequence,long timestamp,int index,int count,
+                               ByteBuffer frame,int offset,int length)
+    {
+        int bodyLength = varintSize(senderId)+varintSize(sequence)+varintSize(timestamp)+varintSize(index)
+                +varintSize(count)+varintSize(offset)+varintSize(frame.limit())+length;
+        if(1+varintSize(bodyLength)+bodyLength>buffer.remaining())
+        {
+            return false;
+        }
+        buffer.put((byte)ChatProxy.FRAGMENT_CODE);
+        putVarint(buffer,bodyLength);
+        putVarint(buffer,senderId);
+        putVarint(buffer,sequence);
+        putVarint(buffer,timestamp);
+        putVarint(buffer,index);
+        putVarint(buffer,count);
+        putVarint(buffer,offset);
+        putVarint(buffer,frame.limit());
+        int limit = frame.limit();
+        frame.limit(offset+length).position(offset);
+        buffer.put(frame);
+        frame.limit(limit).position(0);
+        return true;
+    }
+
+    /**
+     * Encodes a HISTORY frame on its own, without a packet header. It may be too big for one packet, in
+     * which case it is sent as fragments like any other large frame.
+     * @param senderId- the uniqueID of this client
+     * @param sequence- the sender's sequence number for this frame
+     * @param timestamp- when the frame was sent, in milliseconds
+     * @param destination- the uniqueID of the client catching up
+     * @param index- which chunk of the history this is, starting from 0
+     * @param last- true if no chunks follow this one
+     * @param data- the deflated chunk
+     * @param length- how many bytes of data to send
+     * @return the encoded frame. It is reused by the next call to this method, encodeFrame() or beginRoster().
+     */
+    public ByteBuffer encodeHistory(long senderId,long sequence,long timestamp,long destination,int index,
+                                    boolean last,byte[] data,int length)
+    {
+        int bodyLength = varintSize(senderId)+varintSize(sequence)+varintSize(timestamp)+varintSize(destination)
+                +varintSize(index)+1+length;
+        int needed = 1+varintSize(bodyLength)+bodyLength;
+        if(frameBuffer==null||frameBuffer.capacity()<needed)
+        {
+            frameBuffer = ByteBuffer.allocate(needed);
+        }
+        frameBuffer.clear();
+        frameBuffer.put((byte)ChatProxy.HISTORY_CODE);
+        putVarint(frameBuffer,bodyLength);
+        putVarint(frameBuffer,senderId);
+        putVarint(frameBuffer,sequence);
+        putVarint(frameBuffer,timestamp);
+        putVarint(frameBuffer,destination);
+        putVarint(frameBuffer,index);
+        frameBuffer.put((byte)(last ? 1 : 0));
+        frameBuffer.put(data,0,length);
+        frameBuffer.flip();
+        return frameBuffer;
+    }
+
+    /**
+     * Writes a frame whose text is already in the scratch buffer
+     * @return false if the frame did not fit, in which case nothing is written
+     */
+    private boolean writeFrame(ByteBuffer out,int opcode,long senderId,long sequence,long timestamp,long destination)
+    {
+        boolean hasDestination = opcode==ChatProxy.SEND_NAME_CODE;
+        int bodyLength = varintSize(senderId)+varintSize(sequence)+varintSize(timestamp)
+                +(hasDestination ? varintSize(destination) : 0)
+                +varintSize(textBytes.remaining())+textBytes.remaining();
+        if(1+varintSize(bodyLength)+bodyLength>out.remaining())
+        {
+            return false;
+        }
+
+        out.put((byte)opcode);
+        putVarint(out,bodyLength);
+        putVarint(out,senderId);
+        putVarint(out,sequence);
+        putVarint(out,timestamp);
+        if(hasDestination)
+        {
+            putVarint(out,destination);
+        }
+        putVarint(out,textBytes.remaining());
+        int position = textBytes.position();
+        out.put(textBytes);
+        textBytes.position(position);
+        return true;
+    }
+
+    /**
+     * Getter for the number of bytes encoded into the current packet so far
+     * @return the packet size
+     */
+    public int packetSize()
+    {
+        return buffer.position();
+    }
+
+    /**
+     * Finishes the packet, or the frames started with beginFrame(), being encoded.
+     * @return the packet, ready to send. It is reused by the next call to this codec.
+     */
+    public ByteBuffer finishPacket()
+    {
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Encodes text into the scratch buffer, cutting it off at a character boundary if it is longer than
+     * MAX_MESSAGE bytes.
+     * @param text- the text
+     */
+    private void encodeText(CharSequence text)
+    {
+        int length = Math.min(text.length(),MAX_MESSAGE);
+        if(chars.capacity()<length)
+        {
+            chars = CharBuffer.allocate(length);
+        }
+        chars.clear();
+        for(int i=0;i<length;i++)
+        {
+            chars.put(text.charAt(i));
+        }
+        chars.flip();
+        //UTF-8 never needs more than 3 bytes for one char
+        int maxBytes = Math.min(MAX_MESSAGE,length*3);
+        if(textBytes.capacity()<maxBytes)
+        {
+            textBytes = ByteBuffer.allocate(maxBytes);
+        }
+        textBytes.clear();
+        textBytes.limit(maxBytes);
+        encoder.reset();
+        encoder.encode(chars,textBytes,true);
+        encoder.flush(textBytes);
+        textBytes.flip();
+    }
+
+    /**
+     * Starts decoding a received packet. Each frame is then read with nextFrame(). A deflated packet is
+     * inflated first, and its frames are read from the codec's own buffer.
+     * @param packet- the packet, from its position to its limit. The packet is used up.
+     * @throws ProtocolException- if the packet is not in a version of the format this codec understands,
+     *                            or cannot be inflated
+     */
+    public void beginDecode(ByteBuffer packet) throws ProtocolException
+    {
+        if(packet.remaining()<HEADER_SIZE)
+        {
+            throw new ProtocolException("Packet too short");
+        }
+        int header = packet.get()&0xFF;
+        if((header&HEADER_MARK)!=HEADER_MARK||(header&~HEADER_MARK)!=VERSION)
+        {
+            throw new ProtocolException("Unsupported packet header "+header);
+        }
+        flags = packet.get()&0xFF;
+        if((flags&FLAG_DEFLATED)!=0)
+        {
+            if(inflater==null)
+            {
+                inflater = new Inflater();
+                inflated = new byte[MTU_PAYLOAD];
+                inflatedFrames = ByteBuffer.wrap(inflated);
+            }
+            int length = packet.remaining();
+            int size;
+            if(packet.hasArray())
+            {
+                size = PacketCompressor.inflate(inflater,packet.array(),packet.arrayOffset()+packet.position(),
+                        length,inflated);
+            }
+            else
+            {
+                byte[] copy = new byte[length];
+                packet.get(copy);
+                size = PacketCompressor.inflate(inflater,copy,0,length,inflated);
+            }
+            packet.position(packet.limit());
+            inflatedFrames.clear();
+            inflatedFrames.limit(size);
+            packet = inflatedFrames;
+        }
+        this.packet = packet;
+    }
+
+    /**
+     * Starts decoding frames which have no packet header, such as a frame put back together from
+     * its fragments. Each frame is then read with nextFrame().
+     * @param frames- the frames, from its position to its limit. The buffer is used up.
+     */
+    public void beginFrames(ByteBuffer frames)
+    {
+        flags = 0;
+        this.packet = frames;
+    }
+
+    /**
+     * Getter for the flags of the packet being decoded
+     * @return flags
+     */
+    public int getFlags()
+    {
+        return flags;
+    }
+
+    /**
+     * Reads the next frame of the packet being decoded. Frames with opcodes this client does not
+     * know are skipped.
+     * @return false once there are no frames left
+     * @throws ProtocolException- if the frame is cut off or its fields do not match its length
+     */
+    public boolean nextFrame() throws ProtocolException
+    {
+        while(packet.hasRemaining())
+        {
+            int limit = packet.limit();
+            frameStart = packet.position();
+            try
+            {
+                opcode = packet.get()&0xFF;
+                long bodyLength = getVarint(packet);
+                if(bodyLength<0||bodyLength>packet.remaining())
+                {
+                    throw new ProtocolException("Frame longer than packet");
+                }
+                int end = packet.position()+(int)bodyLength;
+                frameEnd = end;
+                if(opcode>ChatProxy.HISTORY_CODE)
+                {
+                    packet.position(end);
+                    continue;
+                }
+
+                //read the body without being able to run past its end
+                packet.limit(end);
+                senderId = getVarint(packet);
+                sequence = getVarint(packet);
+                timestamp = getVarint(packet);
+                if(opcode==ChatProxy.FRAGMENT_CODE)
+                {
+                    readFragment();
+                }
+                else if(opcode==ChatProxy.NAK_CODE)
+                {
+                    destination = getVarint(packet);
+                    rangeStart = getVarint(packet);
+                    long count = getVarint(packet);
+                    if(count<0||count>Integer.MAX_VALUE)
+                    {
+                        throw new ProtocolException("Bad NAK");
+                    }
+                    rangeCount = (int)count;
+                }
+                else if(opcode==ChatProxy.ROSTER_CODE)
+                {
+                    destination = getVarint(packet);
+                    readMembers();
+                }
+                else if(opcode==ChatProxy.DIGEST_CODE)
+                {
+                    long count = getVarint(packet);
+                    if(count<0||count>Integer.MAX_VALUE)
+                    {
+                        throw new ProtocolException("Bad DIGEST");
+                    }
+                    memberCount = (int)count;
+                    digest = getVarint(packet);
+                    //added after the first DIGESTs were sent, so it may be missing
+                    lastSequence = packet.hasRemaining() ? getVarint(packet) : 0;
+                }
+                else if(opcode==ChatProxy.HISTORY_CODE)
+                {
+                    destination = getVarint(packet);
+                    long index = getVarint(packet);
+                    if(index<0||index>Integer.MAX_VALUE)
+                    {
+                        throw new ProtocolException("Bad HISTORY");
+                    }
+                    chunkIndex = (int)index;
+                    lastChunk = packet.get()!=0;
+                    payloadPosition = packet.position();
+                    payloadLength = packet.remaining();
+                }
+                else
+                {
+                    destination = opcode==ChatProxy.SEND_NAME_CODE ? getVarint(packet) : 0;
+                    readText();
+                }
+                //anything left in the body belongs to newer versions of the frame
+                packet.limit(limit);
+                packet.position(end);
+                return true;
+            }
+            catch(BufferUnderflowException e)
+            {
+                throw new ProtocolException("Frame cut off");
+            }
+            finally
+            {
+                packet.limit(limit);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Copies the last decoded frame, so it can be decoded again later with beginFrames().
+     * Must be called before the next frame is read.
+     * @return the encoded frame
+     */
+    public byte[] copyFrame()
+    {
+        byte[] copy = new byte[frameEnd-frameStart];
+        int position = packet.position();
+        packet.position(frameStart);
+        packet.get(copy);
+        packet.position(position);
+        return copy;
+    }
+
+    /**
+     * Reads a text field into the char buffer
+     * @throws ProtocolException- if the text runs past the end of the frame
+     */
+    private void readText() throws ProtocolException
+    {
+        long textLength = getVarint(packet);
+        if(textLength<0||textLength>packet.remaining())
+        {
+            throw new ProtocolException("Text longer than frame");
+        }
+        if(chars.capacity()<textLength)
+        {
+            chars = CharBuffer.allocate((int)textLength);
+        }
+        chars.clear();
+        decoder.reset();
+        packet.limit(packet.position()+(int)textLength);
+        decoder.decode(packet,chars,true);
+        decoder.flush(chars);
+        chars.flip();
+    }
+
+    /**
+     * Checks the members of a ROSTER frame, leaving them to be read by nextMember()
+     * @throws ProtocolException- if a member runs past the end of the frame
+     */
+    private void readMembers() throws ProtocolException
+    {
+        memberPosition = packet.position();
+        membersEnd = packet.limit();
+        while(packet.hasRemaining())
+        {
+            getVarint(packet);
+            getVarint(packet);
+            long nameLength = getVarint(packet);
+            if(nameLength<0||nameLength>packet.remaining())
+            {
+                throw new ProtocolException("Member longer than frame");
+            }
+            packet.position(packet.position()+(int)nameLength);
+        }
+    }
+
+    /**
+     * Reads the next member of the last decoded ROSTER frame. The member's name is then returned by
+     * getText(). Must be called before the next frame is read.
+     * @return false once there are no members left
+     * @throws ProtocolException- if the member is cut off
+     */
+    public boolean nextMember() throws ProtocolException
+    {
+        if(memberPosition>=membersEnd)
+        {
+            return false;
+        }
+        int position = packet.position();
+        int limit = packet.limit();
+        try
+        {
+            packet.limit(membersEnd).position(memberPosition);
+            memberId = getVarint(packet);
+            memberVersion = getVarint(packet);
+            readText();
+            memberPosition = packet.position();
+            return true;
+        }
+        catch(BufferUnderflowException e)
+        {
+            throw new ProtocolException("Member cut off");
+        }
+        finally
+        {
+            packet.limit(limit).position(position);
+        }
+    }
+
+    /**
+     * Getter for the uniqueID of the member last read by nextMember()
+     * @return the member's id
+     */
+    public long getMemberId()
+    {
+        return memberId;
+    }
+
+    /**
+     * Getter for the version of the member last read by nextMember()
+     * @return the member's version
+     */
+    public long getMemberVersion()
+    {
+        return memberVersion;
+    }
+
+    /**
+     * Getter for the number of members in the last decoded DIGEST
+     * @return the member count
+     */
+    public int getMemberCount()
+    {
+        return memberCount;
+    }
+
+    /**
+     * Getter for the hash of the members in the last decoded DIGEST
+     * @return the digest
+     */
+    public long getDigest()
+    {
+        return digest;
+    }
+
+    /**
+     * Getter for the sender's last sequence number in the last decoded DIGEST
+     * @return the sequence number, or 0 if the DIGEST did not say
+     */
+    public long getLastSequence()
+    {
+        return lastSequence;
+    }
+
+    /**
+     * Reads the fields of a fragment frame. The payload is left where it is in the packet.
+     * @throws ProtocolException- if the fields do not describe a piece of a frame
+     */
+    private void readFragment() throws ProtocolException
+    {
+        long index = getVarint(packet);
+        long count = getVarint(packet);
+        long offset = getVarint(packet);
+        long total = getVarint(packet);
+        payloadPosition = packet.position();
+        payloadLength = packet.remaining();
+        if(count<=0||count>Math.max(total,1)||index<0||index>=count||total<0||total>MAX_MESSAGE+MAX_FRAME_OVERHEAD
+                ||offset<0||offset+payloadLength>total)
+        {
+            throw new ProtocolException("Bad fragment");
+        }
+        fragmentIndex = (int)index;
+        fragmentCount = (int)count;
+        fragmentOffset = (int)offset;
+        fragmentTotal = (int)total;
+    }
+
+    /**
+     * Copies the payload of the last decoded fragment or HISTORY frame straight into where it belongs.
+     * Must be called before the next frame is read.
+     * @param destination- the buffer the frame is being put back together in
+     * @param offset- where in the buffer the payload goes
+     */
+    public void copyPayload(byte[] destination,int offset)
+    {
+        int position = packet.position();
+        packet.position(payloadPosition);
+        packet.get(destination,offset,payloadLength);
+        packet.position(position);
+    }
+
+    /**
+     * Getter for which fragment the last decoded frame is
+     * @return the fragment index
+     */
+    public int getFragmentIndex()
+    {
+        return fragmentIndex;
+    }
+
+    /**
+     * Getter for the number of fragments the frame was split into
+     * @return the fragment count
+     */
+    public int getFragmentCount()
+    {
+        return fragmentCount;
+    }
+
+    /**
+     * Getter for where the last decoded fragment starts in the frame
+     * @return the offset in bytes
+     */
+    public int getFragmentOffset()
+    {
+        return fragmentOffset;
+    }
+
+    /**
+     * Getter for the size of the frame which was split into fragments
+     * @return the size in bytes
+     */
+    public int getFragmentTotal()
+    {
+        return fragmentTotal;
+    }
+
+    /**
+     * Getter for which chunk of the history the last decoded HISTORY frame is
+     * @return the chunk index
+     */
+    public int getChunkIndex()
+    {
+        return chunkIndex;
+    }
+
+    /**
+     * Getter for whether the last decoded HISTORY frame is the last chunk of the history
+     * @return true if no chunks follow it
+     */
+    public boolean isLastChunk()
+    {
+        return lastChunk;
+    }
+
+    /**
+     * Getter for the size of the last decoded fragment's or HISTORY frame's payload
+     * @return the size in bytes
+     */
+    public int getPayloadLength()
+    {
+        return payloadLength;
+    }
+
+    /**
+     * Getter for the opcode of the last decoded frame
+     * @return opcode
+     */
+    public int getOpcode()
+    {
+        return opcode;
+    }
+
+    /**
+     * Getter for the uniqueID of the client that sent the last decoded frame
+     * @return senderId
+     */
+    public long getSenderId()
+    {
+        return senderId;
+    }
+
+    /**
+     * Getter for the sender's sequence number of the last decoded frame
+     * @return sequence
+     */
+    public long getSequence()
+    {
+        return sequence;
+    }
+
+    /**
+     * Getter for the time the last decoded frame was sent
+     * @return timestamp, in milliseconds
+     */
+    public long getTimestamp()
+    {
+        return timestamp;
+    }
+
+    /**
+     * Getter for the first sequence number asked for by the last decoded NAK
+     * @return rangeStart
+     */
+    public long getRangeStart()
+    {
+        return rangeStart;
+    }
+
+    /**
+     * Getter for the number of frames asked for by the last decoded NAK
+     * @return rangeCount
+     */
+    public int getRangeCount()
+    {
+        return rangeCount;
+    }
+
+    /**
+     * Getter for the destination of the last decoded frame. Set for SEND_NAME, ROSTER and HISTORY frames, and
+     * for NAKs where it is the client whose frames were missed.
+     * @return destination
+     */
+    public long getDestination()
+    {
+        return destination;
+    }
+
+    /**
+     * Getter for the text of the last decoded frame, or the name of the member last read by nextMember()
+     * @return the text
+     */
+    public String getText()
+    {
+        return new String(chars.array(),0,chars.limit());
+    }
+
+    /**
+     * Writes an unsigned varint
+     * @param out- where to write it
+     * @param value- the value, treated as unsigned
+     */
+    static void putVarint(ByteBuffer out,long value)
+    {
+        while((value&~0x7FL)!=0)
+        {
+            out.put((byte)((value&0x7F)|0x80));
+            value >>>= 7;
+        }
+        out.put((byte)value);
+    }
+
+    /**
+     * Reads an unsigned varint
+     * @param in- where to read it from
+     * @return the value
+     * @throws ProtocolException- if the varint is longer than 64 bits
+     */
+    static long getVarint(ByteBuffer in) throws ProtocolException
+    {
+        long value = 0;
+        for(int shift=0;shift<64;shift+=7)
+        {
+            byte b = in.get();
+            value |= (long)(b&0x7F)<<shift;
+            if(b>=0)
+            {
+                return value;
+            }
+        }
+        throw new ProtocolException("Varint too long");
+    }
+
+    /**
+     * Getter for the number of bytes a varint takes
+     * @param value- the value, treated as unsigned
+     * @return the size in bytes, 1 to 10
+     */
+    static int varintSize(long value)
+    {
+        int size = 1;
+        while((value&~0x7FL)!=0)
+        {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+}
@@ -0,0 +1,198 @@
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflates packets before they are sent, and inflates them when they arrive.
+ *
+ * A packet whose frames take up at least MIN_SIZE bytes is deflated as a whole, and sent with the DEFLATED
+ * flag in its header if that made it smaller. Smaller packets, and packets which do not shrink, such as
+ * fragments of a deflated HISTORY frame, are sent as they are. Receivers look at the flag of every packet,
+ * so clients which compress and clients which do not can share a chatroom, as long as every client
+ * understands the flag. Sending compressed packets is turned on by the mychatapp.compress system property.
+ *
+ * A packet holds at most a few lines of chat, which is too little for deflate to find much to repeat. So
+ * both ends start from the same preset dictionary of text which is common in chat, and most words are
+ * found in it. The Deflater and Inflater are made once and reset for every packet.
+ */
+public class PacketCompressor
+{
+    //system property which turns on compressing the packets this client sends
+    public static final String COMPRESS_PROPERTY = "mychatapp.compress";
+    //packets whose frames are smaller than this are not worth deflating
+    public static final int MIN_SIZE = 96;
+
+    //text which often turns up in chat, the most common last since deflate finds nearer matches cheaper
+    static final byte[] DICTIONARY = (
+            "https://www.youtube.com/watch?v= https://github.com/ http://www. .com/ .org .html .png "
+            + "stopped responding has joined the chatroom left the chatroom "
+            + "Monday Tuesday Wednesday Thursday Friday Saturday Sunday tomorrow yesterday tonight weekend "
+            + "morning afternoon evening minutes hours o'clock meeting lunch dinner coffee office home "
+            + "because though through thought something anything everything nothing someone everyone "
+            + "should would could might must actually probably definitely basically literally really "
+            + "about after again before being between during without within around against "
+            + "problem question answer issue error build test code server client working works broken "
+            + "please thanks thank you sorry welcome awesome great good nice cool sure okay yeah yes no "
+            + "haha lol lmao omg btw idk imo tbh brb np ty thx :) :( :D ;) <3 ... ?? !! "
+            + "I'm I'll I've I'd you're you'll you've we're they're it's that's there's what's don't "
+            + "doesn't didn't can't won't isn't aren't wasn't haven't let's "
+            + "hello hi hey everyone guys how are you doing what do you think does anyone know "
+            + "going to want to have to need to got to able to trying to "
+            + "just like know think about have that this with what when where which your from they "
+            + "will would there their been were more some time than then them only also "
+            + "the and for are but not you all any can had her was one our out day get has him his how "
+            + "in on at to of is it be as or if so do we me my up an by go ").getBytes(StandardCharsets.UTF_8);
+
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+    private final byte[] input = new byte[PacketCodec.MTU_PAYLOAD];
+    private final byte[] output = new byte[PacketCodec.MTU_PAYLOAD];
+    private final ByteBuffer compressed = ByteBuffer.wrap(output);
+
+    //counters
+    private long packets = 0;
+    private long deflatedPackets = 0;
+    private long bytesIn = 0;
+    private long bytesOut = 0;
+    private long deflateNanos = 0;
+
+    /**
+     * Deflates a packet, if it is big enough and gets smaller
+     * @param packet- the packet, with its header, from its position to its limit. Its position is not changed.
+     * @return the packet to send, either the deflated one, which is reused by the next call, or the
+     *         packet that was passed in
+     */
+    public synchronized ByteBuffer compress(ByteBuffer packet)
+    {
+        int length = packet.remaining();
+        packets++;
+        bytesIn += length;
+        if(length-PacketCodec.HEADER_SIZE<MIN_SIZE||length>input.length)
+        {
+            bytesOut += length;
+            return packet;
+        }
+
+        long start = System.nanoTime();
+        int position = packet.position();
+        packet.get(input,0,length);
+        packet.position(position);
+        deflater.reset();
+        deflater.setDictionary(DICTIONARY);
+        deflater.setInput(input,PacketCodec.HEADER_SIZE,length-PacketCodec.HEADER_SIZE);
+        deflater.finish();
+        //the deflated frames must come out smaller than the packet, or it is sent as it is
+        int size = PacketCodec.HEADER_SIZE;
+        while(!deflater.finished()&&size<length)
+        {
+            size += deflater.deflate(output,size,length-size);
+        }
+        deflateNanos += System.nanoTime()-start;
+        if(!deflater.finished())
+        {
+            bytesOut += length;
+            return packet;
+        }
+
+        output[0] = input[0];
+        output[1] = (byte)(input[1]|PacketCodec.FLAG_DEFLATED);
+        deflatedPackets++;
+        bytesOut += size;
+        compressed.clear();
+        compressed.limit(size);
+        return compressed;
+    }
+
+    /**
+     * Inflates the frames of a packet sent with the DEFLATED flag
+     * @param inflater- the receiver's inflater, which is reset first
+     * @param input- the deflated frames
+     * @param offset- where they start
+     * @param length- how many bytes there are
+     * @param output- where the frames are inflated to
+     * @return how many bytes the frames take up
+     * @throws ProtocolException- if the frames cannot be inflated, or would not fit in the output
+     */
+    static int inflate(Inflater inflater,byte[] input,int offset,int length,byte[] output) throws ProtocolException
+    {
+        inflater.reset();
+        inflater.setInput(input,offset,length);
+        int size = 0;
+        try
+        {
+            while(!inflater.finished())
+            {
+                int n = inflater.inflate(output,size,output.length-size);
+                if(n==0)
+                {
+                    if(inflater.needsDictionary())
+                    {
+                        inflater.setDictionary(DICTIONARY);
+                    }
+                    else if(inflater.needsInput()||size==output.length)
+                    {
+                        throw new ProtocolException("Deflated packet cut off or too long");
+                    }
+                }
+                size += n;
+            }
+        }
+        catch(DataFormatException e)
+        {
+            throw new ProtocolException("Bad deflated packet: "+e.getMessage());
+        }
+        catch(IllegalArgumentException e)
+        {
+            //the packet asked for a dictionary other than ours
+            throw new ProtocolException("Bad deflated packet: wrong dictionary");
+        }
+        return size;
+    }
+
+    /**
+     * Getter for the number of packets passed through
+     * @return packets
+     */
+    public synchronized long getPackets()
+    {
+        return packets;
+    }
+
+    /**
+     * Getter for the number of packets which were sent deflated
+     * @return packets
+     */
+    public synchronized long getDeflatedPackets()
+    {
+        return deflatedPackets;
+    }
+
+    /**
+     * Getter for the size of the packets passed through
+     * @return bytes
+     */
+    public synchronized long getBytesIn()
+    {
+        return bytesIn;
+    }
+
+    /**
+     * Getter for the size of the packets sent, after deflating the ones which were
+     * @return bytes
+     */
+    public synchronized long getBytesOut()
+    {
+        return bytesOut;
+    }
+
+    /**
+     * Getter for the time spent deflating
+     * @return nanoseconds
+     */
+    public synchronized long getDeflateNanos()
+    {
+        return deflateNanos;
+    }
+}
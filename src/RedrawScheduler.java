@@ -0,0 +1,197 @@
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Moves redraw requests from the network thread onto the Swing event dispatch thread.
+ *
+ * Requests can be made from any thread. They are not run right away, instead each redraw code is
+ * marked as pending and all pending codes are drawn together in one batch on the event dispatch
+ * thread. Batches are run at most once per frame, so a burst of messages only causes a handful of
+ * repaints no matter how many packets arrive. It listens to the model, and turns each change into a request.
+ */
+public class RedrawScheduler implements ActionListener,ChatListener
+{
+    public static final int DEFAULT_FRAME_RATE = 30;
+
+    private final ChatView view;
+    private final long frameMillis;
+    private final ChatMetrics metrics;
+    private final Timer timer;
+
+    //one bit for every redraw code waiting to be drawn
+    private final AtomicInteger pending = new AtomicInteger();
+    private volatile boolean closed = false;
+    //only touched on the event dispatch thread
+    private long lastBatch = 0;
+
+    //counters
+    private final AtomicLong queued = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+
+    /**
+     * Constructor for a scheduler using the default frame rate
+     * @param view- the view which will be redrawn
+     */
+    public RedrawScheduler(ChatView view)
+    {
+        this(view,DEFAULT_FRAME_RATE);
+    }
+
+    /**
+     * Constructor
+     * @param view- the view which will be redrawn
+     * @param frameRate- the most batches that will be drawn each second
+     */
+    public RedrawScheduler(ChatView view,int frameRate)
+    {
+        this(view,frameRate,new ChatMetrics());
+    }
+
+    /**
+     * Constructor
+     * @param view- the view which will be redrawn
+     * @param frameRate- the most batches that will be drawn each second
+     * @param metrics- where the time each batch waits for the event dispatch thread is recorded
+     */
+    public RedrawScheduler(ChatView view,int frameRate,ChatMetrics metrics)
+    {
+        this.view = view;
+        this.metrics = metrics;
+        this.frameMillis = 1000/Math.max(1,frameRate);
+        this.timer = new Timer(0,this);
+        timer.setRepeats(false);
+    }
+
+    /**
+     * Asks for part of the view to be redrawn. Can be called from any thread.
+     * If the same code is already waiting to be drawn, the request is merged into it.
+     * @param code- the redraw code, see ChatView.redraw
+     */
+    public void request(int code)
+    {
+        queued.incrementAndGet();
+        if(closed||!view.isDisplayable())
+        {
+            dropped.incrementAndGet();
+            return;
+        }
+        int bit = 1<<code;
+        int before;
+        do
+        {
+            before = pending.get();
+        }
+        while(!pending.compareAndSet(before,before|bit));
+
+        if((before&bit)!=0)
+        {
+            coalesced.incrementAndGet();
+        }
+        //the first pending request schedules the next batch
+        if(before==0)
+        {
+            final long posted = System.nanoTime();
+            metrics.edtPosted();
+            SwingUtilities.invokeLater(new Runnable()
+            {
+                public void run()
+                {
+                    metrics.edtRan(System.nanoTime()-posted);
+                    long wait = lastBatch+frameMillis-System.currentTimeMillis();
+                    timer.setInitialDelay((int)Math.max(0,wait));
+                    timer.restart();
+                }
+            });
+        }
+    }
+
+    @Override
+    public void messageAdded(ChatModel room,long index,ChatMessage message)
+    {
+        request(0);
+    }
+
+    @Override
+    public void userChanged(ChatModel room,ChatModel.UserChange change)
+    {
+        request(1);
+    }
+
+    @Override
+    public void chatLogRebuilt(ChatModel room)
+    {
+        request(2);
+    }
+
+    /**
+     * Stops drawing. Any later requests are counted as dropped.
+     */
+    public void close()
+    {
+        closed = true;
+    }
+
+    /**
+     * Draws every pending code. Called by the timer on the event dispatch thread.
+     */
+    @Override
+    public void actionPerformed(ActionEvent e)
+    {
+        lastBatch = System.currentTimeMillis();
+        int codes = pending.getAndSet(0);
+        if(codes==0||closed)
+        {
+            return;
+        }
+        batches.incrementAndGet();
+        for(int code=0;codes!=0;code++,codes>>>=1)
+        {
+            if((codes&1)!=0)
+            {
+                view.redraw(code);
+            }
+        }
+    }
+
+    /**
+     * Getter for the number of redraw requests made
+     * @return queued
+     */
+    public long getQueued()
+    {
+        return queued.get();
+    }
+
+    /**
+     * Getter for the number of requests which were merged into one that was already pending
+     * @return coalesced
+     */
+    public long getCoalesced()
+    {
+        return coalesced.get();
+    }
+
+    /**
+     * Getter for the number of requests ignored because the view was closed
+     * @return dropped
+     */
+    public long getDropped()
+    {
+        return dropped.get();
+    }
+
+    /**
+     * Getter for the number of batches drawn
+     * @return batches
+     */
+    public long getBatches()
+    {
+        return batches.get();
+    }
+}
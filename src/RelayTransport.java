@@ -0,0 +1,193 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Transport for a chatroom served by a ChatRelay, for networks which do not route multicast. Every packet
+ * is sent to the relay, which passes it on to the rest of the chatroom, over TCP or UDP.
+ *
+ * Over TCP every packet is sent after its length, as 2 bytes, and the chat keeps working through
+ * firewalls which only let connections out. Over UDP packets are sent as they are, which is lighter but
+ * can lose packets the same way multicast can. Either way a reader thread of its own waits for packets
+ * from the relay.
+ *
+ * Over UDP the relay only passes on packets from an address which answered its CHALLENGE, so the transport
+ * sends a HELLO as soon as it is made, to be challenged, and answers every CHALLENGE with a HELLO holding
+ * the relay's cookie. A relay which forgot this client, such as after a restart, challenges it again.
+ */
+public class RelayTransport implements ChatTransport
+{
+    private final ByteChannel channel;
+    private final boolean tcp;
+    //the length put in front of each packet sent over TCP, guarded by this
+    private final ByteBuffer length = ByteBuffer.allocate(ChatRelay.LENGTH_SIZE);
+    private final ByteBuffer[] framed = new ByteBuffer[2];
+    //the HELLO sent to the relay over UDP, guarded by this
+    private final ByteBuffer hello = ByteBuffer.allocate(ChatRelay.HANDSHAKE_SIZE);
+
+    /**
+     * Constructor. Connects to the relay straight away.
+     * @param relay- the address and port of the relay
+     * @param tcp- whether to connect over TCP, rather than send over UDP
+     * @throws IOException- if the relay cannot be reached
+     */
+    public RelayTransport(InetSocketAddress relay,boolean tcp) throws IOException
+    {
+        this.tcp = tcp;
+        if(tcp)
+        {
+            SocketChannel socket = SocketChannel.open(relay);
+            socket.setOption(StandardSocketOptions.TCP_NODELAY,true);
+            channel = socket;
+        }
+        else
+        {
+            channel = DatagramChannel.open().connect(relay);
+        }
+        framed[0] = length;
+        if(!tcp)
+        {
+            //any cookie gets this client challenged
+            sendHello(0);
+        }
+    }
+
+    /**
+     * Sends a HELLO to the relay over UDP
+     * @param cookie- the cookie from the relay's CHALLENGE
+     */
+    private synchronized void sendHello(long cookie) throws IOException
+    {
+        hello.clear();
+        hello.put((byte)0).put(ChatRelay.HELLO).putLong(cookie);
+        hello.flip();
+        channel.write(hello);
+    }
+
+    @Override
+    public void start(Listener listener)
+    {
+        new ReaderThread(listener).start();
+    }
+
+    /**
+     * Sends a packet to the relay. Over TCP this waits until the socket has taken all of it.
+     */
+    @Override
+    public synchronized void send(ByteBuffer packet) throws IOException
+    {
+        if(!tcp)
+        {
+            channel.write(packet);
+            return;
+        }
+        length.clear();
+        length.putShort((short)packet.remaining());
+        length.flip();
+        framed[1] = packet;
+        SocketChannel socket = (SocketChannel)channel;
+        while(packet.hasRemaining())
+        {
+            socket.write(framed);
+        }
+        framed[1] = null;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        channel.close();
+    }
+
+    /**
+     * This ReaderThread constantly reads in packets from the relay.
+     */
+    public class ReaderThread extends Thread
+    {
+        private final Listener listener;
+
+        /**
+         * Constructor
+         * @param listener- who the packets are handed to
+         */
+        public ReaderThread(Listener listener)
+        {
+            super("RelayTransport");
+            this.listener = listener;
+            setDaemon(true);
+        }
+
+        /**
+         * Called when the thread starts.
+         */
+        public void run()
+        {
+            //the same buffer is reused for every packet
+            ByteBuffer buffer = ByteBuffer.allocate(ChatRelay.LENGTH_SIZE+PacketCodec.RECEIVE_SIZE);
+            try
+            {
+                while(true)
+                {
+                    if(tcp)
+                    {
+                        readFramed(buffer);
+                    }
+                    else
+                    {
+                        buffer.clear();
+                        channel.read(buffer);
+                        buffer.flip();
+                        if(buffer.remaining()==ChatRelay.HANDSHAKE_SIZE&&buffer.get(0)==0
+                                &&buffer.get(1)==ChatRelay.CHALLENGE)
+                        {
+                            sendHello(buffer.getLong(2));
+                            continue;
+                        }
+                        listener.packetReceived(buffer);
+                    }
+                }
+            }
+            catch(IOException e)
+            {
+                if(channel.isOpen())
+                {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        /**
+         * Reads from the relay, and hands every whole packet read to the listener
+         * @param buffer- holds what has been read of the next packet, from its start to its position
+         */
+        private void readFramed(ByteBuffer buffer) throws IOException
+        {
+            if(channel.read(buffer)<0)
+            {
+                throw new EOFException("The relay closed the connection");
+            }
+            buffer.flip();
+            while(buffer.remaining()>=ChatRelay.LENGTH_SIZE)
+            {
+                int size = buffer.getShort(buffer.position())&0xFFFF;
+                if(buffer.remaining()<ChatRelay.LENGTH_SIZE+size)
+                {
+                    break;
+                }
+                int limit = buffer.limit();
+                int start = buffer.position()+ChatRelay.LENGTH_SIZE;
+                buffer.position(start);
+                buffer.limit(start+size);
+                listener.packetReceived(buffer);
+                buffer.limit(limit);
+                buffer.position(start+size);
+            }
+            buffer.compact();
+        }
+    }
+}
@@ -0,0 +1,364 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Hands frames to the proxy in the order each sender sent them, and asks for the ones that got lost.
+ *
+ * Every client numbers the frames it sends. For each sender the receiver remembers the next number it
+ * expects. A frame with that number is handed over straight away, without being copied. A frame from
+ * further ahead means some were lost, so it is copied and held until the gap is filled. If the gap is
+ * still open after a short delay, a negative acknowledgement (NAK) is sent for each run of missing numbers,
+ * and the sender sends those frames again from its RetransmitRing. NAKs are repeated a few times, then the
+ * gap is given up on and the held frames are handed over anyway.
+ *
+ * A frame lost at the end of a burst leaves no later frame to show the gap, so clients also say what
+ * their last sequence number is in every DIGEST. If that is past what has arrived, the missing frames
+ * are asked for the same way.
+ *
+ * The first frame seen from a sender sets where its numbering starts, so a client that joins late does
+ * not ask for everything that was said before it arrived. Frames numbered 0 are not sequenced and are
+ * always handed over straight away.
+ *
+ * Every method is synchronized, and frames are only handed to the handler while holding the lock, so
+ * frames are handed over one at a time even though gaps are checked on the timer thread.
+ */
+public class ReliableReceiver
+{
+    //how long a gap may be open before the first NAK, and between NAKs
+    public static final long NAK_DELAY = 20;
+    public static final long NAK_INTERVAL = 100;
+    //NAKs sent for a gap before it is given up on
+    public static final int MAX_NAKS = 5;
+    //the most frames held for one sender while waiting for a gap to be filled
+    public static final int MAX_HELD = RetransmitRing.DEFAULT_CAPACITY;
+    //the most runs of missing frames asked for at once
+    public static final int MAX_RANGES = 16;
+
+    /**
+     * Where frames go once they are in order, and how NAKs are sent.
+     */
+    public interface Handler
+    {
+        /**
+         * Handles a frame which is now in order.
+         * @param frame- the codec holding the decoded frame
+         * @throws IOException- if handling the frame fails
+         */
+        void deliver(PacketCodec frame) throws IOException;
+
+        /**
+         * Asks a sender to send frames again.
+         * @param sender- the uniqueID of the sender
+         * @param from- the first missing sequence number
+         * @param count- how many frames are missing
+         * @throws IOException- if the NAK fails to send
+         */
+        void sendNak(long sender,long from,int count) throws IOException;
+    }
+
+    private final Handler handler;
+    private final HashMap<Long,SenderState> senders = new HashMap<Long,SenderState>();
+    //decodes frames which were held while waiting for a gap
+    private final PacketCodec heldCodec = new PacketCodec(PacketCodec.RECEIVE_SIZE);
+
+    //counters
+    private long delivered = 0;
+    private long duplicates = 0;
+    private long naksSent = 0;
+    private long framesLost = 0;
+
+    /**
+     * Constructor
+     * @param handler- where frames go once they are in order
+     */
+    public ReliableReceiver(Handler handler)
+    {
+        this.handler = handler;
+    }
+
+    /**
+     * Takes a frame from another client.
+     * @param frame- the codec holding the decoded frame
+     * @throws IOException- if handling the frame fails
+     */
+    public synchronized void receive(PacketCodec frame) throws IOException
+    {
+        long sequence = frame.getSequence();
+        if(sequence==0)
+        {
+            handler.deliver(frame);
+            return;
+        }
+        SenderState sender = senders.get(frame.getSenderId());
+        if(sender==null)
+        {
+            sender = new SenderState(sequence);
+            senders.put(frame.getSenderId(),sender);
+        }
+
+        if(sequence<sender.expected||sender.held.containsKey(sequence))
+        {
+            duplicates++;
+        }
+        else if(sequence==sender.expected)
+        {
+            sender.expected++;
+            delivered++;
+            handler.deliver(frame);
+            deliverHeld(sender);
+        }
+        else
+        {
+            if(!sender.hasGap())
+            {
+                sender.gapOpened = System.currentTimeMillis();
+                sender.naks = 0;
+                sender.lastNak = 0;
+            }
+            sender.latest = Math.max(sender.latest,sequence);
+            sender.held.put(sequence,frame.copyFrame());
+            //too far behind to wait any longer
+            if(sender.held.size()>MAX_HELD)
+            {
+                skipGap(sender);
+            }
+        }
+    }
+
+    /**
+     * Notes the last sequence number a sender says they sent. If frames up to it are missing, they are
+     * asked for like any other gap.
+     * @param sender- the sender's uniqueID
+     * @param latest- their last sequence number
+     */
+    public synchronized void sawLatest(long sender,long latest)
+    {
+        SenderState state = senders.get(sender);
+        if(state==null||latest<state.expected||latest<=state.latest)
+        {
+            return;
+        }
+        if(!state.hasGap())
+        {
+            state.gapOpened = System.currentTimeMillis();
+            state.naks = 0;
+            state.lastNak = 0;
+        }
+        state.latest = latest;
+    }
+
+    /**
+     * Notes a NAK another client sent for a sender, so that the same frames are not asked for twice.
+     * @param sender- the sender the NAK was for
+     * @param from- the first sequence number asked for
+     */
+    public synchronized void sawNak(long sender,long from)
+    {
+        SenderState state = senders.get(sender);
+        if(state!=null&&state.hasGap()&&from<=state.expected)
+        {
+            state.lastNak = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Forgets a sender, such as when they leave the chatroom.
+     * @param sender- the sender's uniqueID
+     */
+    public synchronized void forget(long sender)
+    {
+        senders.remove(sender);
+    }
+
+    /**
+     * Checks every open gap, sending NAKs or giving up on the ones which have been open too long.
+     * Called regularly by the proxy's timer.
+     */
+    public synchronized void tick()
+    {
+        long now = System.currentTimeMillis();
+        //handing over frames can make the proxy forget a sender, so work from a list of the open gaps
+        ArrayList<Map.Entry<Long,SenderState>> open = null;
+        for(Map.Entry<Long,SenderState> entry : senders.entrySet())
+        {
+            if(entry.getValue().hasGap())
+            {
+                if(open==null)
+                {
+                    open = new ArrayList<Map.Entry<Long,SenderState>>();
+                }
+                open.add(entry);
+            }
+        }
+        if(open==null)
+        {
+            return;
+        }
+        for(Map.Entry<Long,SenderState> entry : open)
+        {
+            SenderState sender = entry.getValue();
+            if(!sender.hasGap()||now-sender.gapOpened<NAK_DELAY||now-sender.lastNak<NAK_INTERVAL)
+            {
+                continue;
+            }
+            try
+            {
+                if(sender.naks>=MAX_NAKS)
+                {
+                    skipGap(sender);
+                }
+                else
+                {
+                    sender.naks++;
+                    sender.lastNak = now;
+                    sendNaks(entry.getKey(),sender);
+                }
+            }
+            catch(IOException e)
+            {
+                e.printStackTrace();
+            }
+            catch(RuntimeException e)
+            {
+                //keep the timer running for the other gaps
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Sends a NAK for every run of missing frames between the next expected frame and the last one
+     * known of, up to MAX_RANGES of them.
+     */
+    private void sendNaks(long id,SenderState sender) throws IOException
+    {
+        long from = sender.expected;
+        int ranges = 0;
+        for(Long held : sender.held.keySet())
+        {
+            if(held>from)
+            {
+                naksSent++;
+                handler.sendNak(id,from,(int)Math.min(held-from,Integer.MAX_VALUE));
+                if(++ranges>=MAX_RANGES)
+                {
+                    return;
+                }
+            }
+            from = held+1;
+        }
+        //frames after the last held one, known of from a DIGEST
+        if(sender.latest>=from)
+        {
+            naksSent++;
+            handler.sendNak(id,from,(int)Math.min(sender.latest-from+1,Integer.MAX_VALUE));
+        }
+    }
+
+    /**
+     * Gives up on the first gap, and hands over the held frames which come after it.
+     */
+    private void skipGap(SenderState sender) throws IOException
+    {
+        long next = sender.held.isEmpty() ? sender.latest+1 : sender.held.firstKey();
+        framesLost += next-sender.expected;
+        sender.expected = next;
+        sender.gapOpened = System.currentTimeMillis();
+        sender.naks = 0;
+        sender.lastNak = 0;
+        deliverHeld(sender);
+    }
+
+    /**
+     * Hands over every held frame which is now in order.
+     */
+    private void deliverHeld(SenderState sender) throws IOException
+    {
+        byte[] next;
+        while((next = sender.held.remove(sender.expected))!=null)
+        {
+            sender.expected++;
+            heldCodec.beginFrames(ByteBuffer.wrap(next));
+            if(heldCodec.nextFrame())
+            {
+                delivered++;
+                handler.deliver(heldCodec);
+            }
+        }
+        if(sender.hasGap())
+        {
+            sender.gapOpened = System.currentTimeMillis();
+            sender.naks = 0;
+            sender.lastNak = 0;
+        }
+    }
+
+    /**
+     * Getter for the number of frames handed over in order
+     * @return delivered
+     */
+    public synchronized long getDelivered()
+    {
+        return delivered;
+    }
+
+    /**
+     * Getter for the number of frames received more than once
+     * @return duplicates
+     */
+    public synchronized long getDuplicates()
+    {
+        return duplicates;
+    }
+
+    /**
+     * Getter for the number of NAKs sent
+     * @return naksSent
+     */
+    public synchronized long getNaksSent()
+    {
+        return naksSent;
+    }
+
+    /**
+     * Getter for the number of frames which were given up on
+     * @return framesLost
+     */
+    public synchronized long getFramesLost()
+    {
+        return framesLost;
+    }
+
+    /**
+     * What the receiver knows about one sender
+     */
+    private static class SenderState
+    {
+        long expected;
+        //the highest sequence number known to have been sent
+        long latest;
+        final TreeMap<Long,byte[]> held = new TreeMap<Long,byte[]>();
+        long gapOpened;
+        long lastNak;
+        int naks;
+
+        SenderState(long first)
+        {
+            this.expected = first;
+            this.latest = first-1;
+        }
+
+        /**
+         * Checks if any frames are missing
+         * @return true if frames before the last one known of have not arrived
+         */
+        boolean hasGap()
+        {
+            return latest>=expected;
+        }
+    }
+}
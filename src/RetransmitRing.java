@@ -0,0 +1,81 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Keeps the most recent frames this client sent, so that they can be sent again when another client
+ * reports it missed them. Holds a fixed number of frames, and each slot's buffer is reused once it has
+ * grown to the size of the frames being sent, so storing a frame does not allocate. Buffers are only kept
+ * for frames of up to PacketCodec.MTU_PAYLOAD bytes. A larger frame, such as a HISTORY chunk, gets a buffer
+ * of its own which the next frame in its slot replaces, so one large frame does not pin its memory.
+ */
+public class RetransmitRing
+{
+    public static final int DEFAULT_CAPACITY = 1024;
+    //the size of the buffers kept for reuse
+    private static final int REUSED_SIZE = PacketCodec.MTU_PAYLOAD;
+
+    private final long[] sequences;
+    private final long[] timestamps;
+    private final byte[][] frames;
+    private final int[] lengths;
+
+    /**
+     * Constructor
+     * @param capacity- the number of frames kept
+     */
+    public RetransmitRing(int capacity)
+    {
+        sequences = new long[capacity];
+        timestamps = new long[capacity];
+        frames = new byte[capacity][];
+        lengths = new int[capacity];
+    }
+
+    /**
+     * Stores a frame, replacing the oldest one if the ring is full.
+     * @param sequence- the frame's sequence number
+     * @param timestamp- the frame's timestamp
+     * @param frame- the encoded frame, from its position to its limit. Its position is not changed.
+     */
+    public synchronized void store(long sequence,long timestamp,ByteBuffer frame)
+    {
+        int slot = (int)(sequence%sequences.length);
+        int length = frame.remaining();
+        if(frames[slot]==null||frames[slot].length<length||frames[slot].length>REUSED_SIZE)
+        {
+            frames[slot] = new byte[length];
+        }
+        int position = frame.position();
+        frame.get(frames[slot],0,length);
+        frame.position(position);
+        sequences[slot] = sequence;
+        timestamps[slot] = timestamp;
+        lengths[slot] = length;
+    }
+
+    /**
+     * Looks up a frame which was sent before.
+     * @param sequence- the frame's sequence number
+     * @return the frame, or null if it is no longer held. The buffer is only valid while this ring is
+     *         locked by the caller.
+     */
+    public synchronized ByteBuffer get(long sequence)
+    {
+        int slot = (int)(sequence%sequences.length);
+        if(sequence<=0||sequences[slot]!=sequence)
+        {
+            return null;
+        }
+        return ByteBuffer.wrap(frames[slot],0,lengths[slot]);
+    }
+
+    /**
+     * Getter for the timestamp of a frame which was sent before
+     * @param sequence- the frame's sequence number
+     * @return the timestamp, or 0 if the frame is no longer held
+     */
+    public synchronized long getTimestamp(long sequence)
+    {
+        int slot = (int)(sequence%sequences.length);
+        return sequences[slot]==sequence ? timestamps[slot] : 0;
+    }
+}
@@ -0,0 +1,575 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps track of who is in the chatroom, and keeps every client's list in step with the others.
+ *
+ * Members are kept by uniqueID, so two users with the same name are still two members. Each entry has a
+ * version, which is the time its owner joined, and a newer version of an entry always replaces an older
+ * one. When a member leaves, a tombstone stops old copies of their entry from bringing them back. A member
+ * who went quiet gets a tombstone too, which is lifted as soon as they are heard from again, so that the
+ * next roster they are part of brings them back.
+ *
+ * Instead of every client sending its name to someone who joins, the clients take turns to send the whole
+ * roster, and give up once anyone has sent it. The order of the turns is picked by hashing each client's
+ * id with the id of whoever the roster is for, so every client works out the same order without talking,
+ * and the job is spread over everyone. Usually only one client answers however big the chatroom is, and
+ * a slow network only adds the few clients whose turns come up before the first answer arrives. The
+ * roster is sent in ROSTER frames, which every client merges, not just the one it was sent to.
+ *
+ * Every client also broadcasts a small DIGEST from time to time, which holds how many members it knows of
+ * and a hash of their ids and versions. When two DIGESTs in a row from a client differ from this client's,
+ * and this client knows of at least as many members, it answers with its roster in the same way, so
+ * lists which drifted apart are put right without anyone asking. A single DIGEST which differs is not
+ * answered, since it may just be old news from a busy network. Once anyone has sent the roster to a
+ * client, their DIGESTs are not answered again for a while, which gives them time to catch up.
+ *
+ * Whoever sends the roster to a client who just joined also sends them the recent chat log, so a single
+ * client does that too, and the same turns spread the job over the chatroom.
+ */
+public class Roster
+{
+    //time between DIGESTs, which each client spreads out by up to a quarter either way
+    public static final long DIGEST_INTERVAL = 5000;
+    //time between the turns of the clients answering with their roster
+    public static final long REPLY_STEP = 100;
+    //how long the tombstone of a member who left is kept
+    public static final long TOMBSTONE_TTL = 60000;
+
+    /**
+     * Where changes to the roster go, and how the roster is sent to the other clients.
+     */
+    public interface Handler
+    {
+        /**
+         * Called when a member joins, or when a newer version of their entry replaces the old one
+         * @param id- the member's uniqueID
+         * @param name- the member's name
+         */
+        void memberAdded(long id,String name);
+
+        /**
+         * Called when a member leaves, or just before a newer version of their entry is added
+         * @param id- the member's uniqueID
+         * @param name- the member's name
+         */
+        void memberRemoved(long id,String name);
+
+        /**
+         * Sends every member of the roster to the chatroom
+         * @param destination- the client the roster is for, or 0 for everyone
+         * @param members- the members to send
+         * @throws IOException- if the roster fails to send
+         */
+        void sendRoster(long destination,List<Member> members) throws IOException;
+
+        /**
+         * Broadcasts this client's DIGEST
+         * @param count- how many members this client knows of
+         * @param digest- the hash of the members' ids and versions
+         * @throws IOException- if the DIGEST fails to send
+         */
+        void sendDigest(int count,long digest) throws IOException;
+
+        /**
+         * Sends the recent chat log to a client who just joined. Called after their roster was sent.
+         * @param destination- the client who joined
+         */
+        void sendHistory(long destination);
+    }
+
+    /**
+     * An entry of the roster
+     */
+    public static class Member
+    {
+        private final long id;
+        private final long version;
+        private final String name;
+
+        /**
+         * Constructor
+         * @param id- the member's uniqueID
+         * @param version- the version of the entry
+         * @param name- the member's name
+         */
+        public Member(long id,long version,String name)
+        {
+            this.id = id;
+            this.version = version;
+            this.name = name;
+        }
+
+        /**
+         * Getter for the member's uniqueID
+         * @return id
+         */
+        public long getId()
+        {
+            return id;
+        }
+
+        /**
+         * Getter for the version of the entry
+         * @return version
+         */
+        public long getVersion()
+        {
+            return version;
+        }
+
+        /**
+         * Getter for the member's name
+         * @return name
+         */
+        public String getName()
+        {
+            return name;
+        }
+    }
+
+    private final long ownId;
+    private final Handler handler;
+    private final Random random = new Random();
+    private final HashMap<Long,Member> members = new HashMap<Long,Member>();
+    //version, time of leaving, and 1 if they went quiet rather than leaving, for members who left
+    private final HashMap<Long,long[]> tombstones = new HashMap<Long,long[]>();
+    //sum of the hashes of every member, kept up to date as members come and go
+    private long digest = 0;
+    //the rosters this client is waiting to send, by who they are for
+    private final HashMap<Long,ScheduledFuture<?>> pendingReplies = new HashMap<Long,ScheduledFuture<?>>();
+    //when the roster was last sent to a client, by anyone
+    private final HashMap<Long,Long> answered = new HashMap<Long,Long>();
+    //clients whose last DIGEST differed from this client's
+    private final HashSet<Long> differing = new HashSet<Long>();
+    //clients who just joined and are waiting for their roster, who get the chat log along with it
+    private final HashSet<Long> joiners = new HashSet<Long>();
+    private ScheduledFuture<?> digestTask;
+    private boolean closed = false;
+
+    //counters
+    private long rostersSent = 0;
+    private long repliesSuppressed = 0;
+
+    /**
+     * Constructor
+     * @param ownId- this client's uniqueID
+     * @param ownVersion- the version of this client's entry, the time it joined
+     * @param ownName- this client's name
+     * @param handler- where changes go, and how the roster is sent
+     */
+    public Roster(long ownId,long ownVersion,String ownName,Handler handler)
+    {
+        this.ownId = ownId;
+        this.handler = handler;
+        put(new Member(ownId,ownVersion,ownName));
+    }
+
+    /**
+     * Starts broadcasting DIGESTs
+     */
+    public synchronized void start()
+    {
+        scheduleDigest();
+    }
+
+    /**
+     * Stops broadcasting DIGESTs and drops any rosters waiting to be sent
+     */
+    public synchronized void close()
+    {
+        closed = true;
+        if(digestTask!=null)
+        {
+            digestTask.cancel(false);
+        }
+        for(ScheduledFuture<?> reply : pendingReplies.values())
+        {
+            reply.cancel(false);
+        }
+        pendingReplies.clear();
+        joiners.clear();
+    }
+
+    /**
+     * Adds a client who just joined, and arranges for the roster to be sent to them
+     * @param id- their uniqueID
+     * @param version- the version of their entry, the time they joined
+     * @param name- their name
+     */
+    public synchronized void joined(long id,long version,String name)
+    {
+        merge(id,version,name);
+        if(!closed)
+        {
+            joiners.add(id);
+        }
+        scheduleReply(id);
+    }
+
+    /**
+     * Removes a client who left
+     * @param id- their uniqueID
+     * @param version- when they left. Copies of their entry from before then are ignored from now on.
+     */
+    public synchronized void left(long id,long version)
+    {
+        cancelReply(id);
+        differing.remove(id);
+        tombstones.put(id,new long[]{version,System.currentTimeMillis(),0});
+        Member member = members.get(id);
+        if(member!=null&&member.version<=version)
+        {
+            remove(member);
+            handler.memberRemoved(id,member.name);
+        }
+    }
+
+    /**
+     * Removes a member who went quiet without leaving
+     * @param id- their uniqueID
+     * @return the member, or null if they were not in the roster
+     */
+    public synchronized Member failed(long id)
+    {
+        Member member = members.get(id);
+        if(member==null)
+        {
+            return null;
+        }
+        cancelReply(id);
+        differing.remove(id);
+        tombstones.put(id,new long[]{member.version,System.currentTimeMillis(),1});
+        remove(member);
+        handler.memberRemoved(id,member.name);
+        return member;
+    }
+
+    /**
+     * Notes that a client was heard from. If they had been removed for going quiet, their entry is
+     * accepted again the next time it is received.
+     * @param id- their uniqueID
+     */
+    public synchronized void heardFrom(long id)
+    {
+        long[] tombstone = tombstones.get(id);
+        if(tombstone!=null&&tombstone[2]==1)
+        {
+            tombstones.remove(id);
+        }
+    }
+
+    /**
+     * Adds a member, unless this client already has the same or a newer version of their entry
+     * @param id- their uniqueID
+     * @param version- the version of their entry
+     * @param name- their name
+     */
+    public synchronized void merge(long id,long version,String name)
+    {
+        if(id==ownId)
+        {
+            return;
+        }
+        long[] tombstone = tombstones.get(id);
+        if(tombstone!=null&&version<=tombstone[0])
+        {
+            return;
+        }
+        Member old = members.get(id);
+        if(old!=null)
+        {
+            if(old.version>=version)
+            {
+                return;
+            }
+            remove(old);
+            handler.memberRemoved(id,old.name);
+        }
+        put(new Member(id,version,name));
+        handler.memberAdded(id,name);
+    }
+
+    /**
+     * Merges every member of a ROSTER frame from another client. If it was sent to someone this client
+     * was waiting to send the roster to, this client's roster is not sent.
+     * @param frame- the codec holding the decoded ROSTER frame
+     * @throws IOException- if a member is cut off
+     */
+    public synchronized void rosterReceived(PacketCodec frame) throws IOException
+    {
+        long destination = frame.getDestination();
+        if(destination!=0)
+        {
+            answered.put(destination,System.currentTimeMillis());
+            if(cancelReply(destination))
+            {
+                repliesSuppressed++;
+            }
+        }
+        while(frame.nextMember())
+        {
+            merge(frame.getMemberId(),frame.getMemberVersion(),frame.getText());
+        }
+    }
+
+    /**
+     * Compares another client's DIGEST with this one, and arranges for the roster to be sent to them if
+     * their last two DIGESTs differ from this one, this client knows of at least as many members, and
+     * nobody sent them the roster lately.
+     * @param sender- the uniqueID of the client who sent the DIGEST
+     * @param count- how many members they know of
+     * @param theirDigest- the hash of the members they know of
+     */
+    public synchronized void digestReceived(long sender,int count,long theirDigest)
+    {
+        if(theirDigest==digest)
+        {
+            //they caught up some other way
+            differing.remove(sender);
+            cancelReply(sender);
+            return;
+        }
+        if(differing.add(sender))
+        {
+            return;
+        }
+        Long lastAnswered = answered.get(sender);
+        if(members.size()>=count&&(lastAnswered==null||System.currentTimeMillis()-lastAnswered>DIGEST_INTERVAL))
+        {
+            scheduleReply(sender);
+        }
+    }
+
+    /**
+     * Getter for a member
+     * @param id- the member's uniqueID
+     * @return the member, or null if they are not in the roster
+     */
+    public synchronized Member get(long id)
+    {
+        return members.get(id);
+    }
+
+    /**
+     * Getter for a copy of every member, this client included
+     * @return the members
+     */
+    public synchronized List<Member> getMembers()
+    {
+        return new ArrayList<Member>(members.values());
+    }
+
+    /**
+     * Getter for the number of members, this client included
+     * @return the size
+     */
+    public synchronized int size()
+    {
+        return members.size();
+    }
+
+    /**
+     * Getter for the hash of every member's id and version
+     * @return the digest
+     */
+    public synchronized long getDigest()
+    {
+        return digest;
+    }
+
+    /**
+     * Getter for the number of times this client sent the roster
+     * @return rostersSent
+     */
+    public synchronized long getRostersSent()
+    {
+        return rostersSent;
+    }
+
+    /**
+     * Getter for the number of times this client did not send the roster, because another client did first
+     * @return repliesSuppressed
+     */
+    public synchronized long getRepliesSuppressed()
+    {
+        return repliesSuppressed;
+    }
+
+    private void put(Member member)
+    {
+        members.put(member.id,member);
+        digest += hash(member);
+    }
+
+    private void remove(Member member)
+    {
+        members.remove(member.id);
+        digest -= hash(member);
+    }
+
+    /**
+     * Mixes a member's id and version, so that the digest of a roster does not depend on the order its
+     * members were added in
+     */
+    private static long hash(Member member)
+    {
+        return mix(member.id*0x9E3779B97F4A7C15L+member.version);
+    }
+
+    /**
+     * Scrambles the bits of a number, so that numbers which are close together hash far apart
+     */
+    private static long mix(long h)
+    {
+        h = (h^(h>>>30))*0xBF58476D1CE4E5B9L;
+        h = (h^(h>>>27))*0x94D049BB133111EBL;
+        return h^(h>>>31);
+    }
+
+    /**
+     * Waits for this client's turn to send the roster to a client, unless a send to them is already waiting.
+     *
+     * Turns go in order of each member's id hashed with the target's id, lowest first, one every REPLY_STEP.
+     */
+    private void scheduleReply(final long target)
+    {
+        if(closed||pendingReplies.containsKey(target))
+        {
+            return;
+        }
+        long mine = mix(ownId^target);
+        int turn = 0;
+        for(Long id : members.keySet())
+        {
+            if(id!=target&&id!=ownId&&mix(id^target)<mine)
+            {
+                turn++;
+            }
+        }
+        long delay = turn*REPLY_STEP;
+        pendingReplies.put(target,ChatTimers.shared().schedule(new Runnable()
+        {
+            public void run()
+            {
+                sendReply(target);
+            }
+        },delay,TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Cancels the roster waiting to be sent to a client
+     * @return true if one was waiting
+     */
+    private boolean cancelReply(long target)
+    {
+        joiners.remove(target);
+        ScheduledFuture<?> reply = pendingReplies.remove(target);
+        if(reply==null)
+        {
+            return false;
+        }
+        reply.cancel(false);
+        return true;
+    }
+
+    /**
+     * Sends the roster to a client, unless it was cancelled in the meantime, followed by the chat log if
+     * they just joined
+     */
+    private void sendReply(long target)
+    {
+        List<Member> snapshot;
+        boolean joiner;
+        synchronized(this)
+        {
+            if(pendingReplies.remove(target)==null)
+            {
+                return;
+            }
+            rostersSent++;
+            answered.put(target,System.currentTimeMillis());
+            snapshot = getMembers();
+            joiner = joiners.remove(target);
+        }
+        try
+        {
+            handler.sendRoster(target,snapshot);
+        }
+        catch(IOException e)
+        {
+            e.printStackTrace();
+        }
+        if(joiner)
+        {
+            handler.sendHistory(target);
+        }
+    }
+
+    private void scheduleDigest()
+    {
+        if(closed)
+        {
+            return;
+        }
+        long delay = DIGEST_INTERVAL*3/4+(long)(random.nextDouble()*DIGEST_INTERVAL/2);
+        digestTask = ChatTimers.shared().schedule(new Runnable()
+        {
+            public void run()
+            {
+                sendDigest();
+            }
+        },delay,TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Broadcasts this client's DIGEST, forgets old tombstones and answers, and schedules the next DIGEST
+     */
+    private void sendDigest()
+    {
+        int count;
+        long current;
+        synchronized(this)
+        {
+            long now = System.currentTimeMillis();
+            Iterator<long[]> tombstone = tombstones.values().iterator();
+            while(tombstone.hasNext())
+            {
+                if(now-tombstone.next()[1]>TOMBSTONE_TTL)
+                {
+                    tombstone.remove();
+                }
+            }
+            Iterator<Long> lastAnswered = answered.values().iterator();
+            while(lastAnswered.hasNext())
+            {
+                if(now-lastAnswered.next()>DIGEST_INTERVAL)
+                {
+                    lastAnswered.remove();
+                }
+            }
+            count = members.size();
+            current = digest;
+            scheduleDigest();
+        }
+        try
+        {
+            handler.sendDigest(count,current);
+        }
+        catch(IOException e)
+        {
+            e.printStackTrace();
+        }
+        catch(RuntimeException e)
+        {
+            e.printStackTrace();
+        }
+    }
+}
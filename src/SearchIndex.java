@@ -0,0 +1,609 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * Full text index over the chat log, built as messages are added.
+ *
+ * Messages are split into terms, lower case runs of letters and digits. For every term, and for every
+ * sender, the index keeps a posting list of the messages it appears in. Posting lists are stored in
+ * blocks of up to BLOCK messages: the first message of each block is kept in an int array, and the rest as
+ * varint gaps from the message before, so most postings take a single byte. A search walks the lists
+ * from the newest message back, jumping straight to the right block, so finding the newest matches does
+ * not depend on how long the lists are.
+ *
+ * Messages are numbered by their index in the chat log, and must be added in order. Their timestamps are
+ * set by the clocks of whoever sent them, so they need not rise with the index, such as when a clock is
+ * off or history from before this user joined is merged in. The time a range is matched against is the
+ * message's timestamp, raised to the latest timestamp of any message before it in the chat log. Those
+ * times never fall, so a time range can be found by binary search, and a message is found by the time
+ * it appeared in the chat log rather than by a sender's clock running behind.
+ *
+ * The index holds at most its capacity of messages, so its size is bounded however long the chat runs.
+ * When a message would go past it, the oldest quarter is dropped: the messages before the cut are removed
+ * from every list, lists with nothing left are forgotten, and the rest are numbered again from the new
+ * oldest message. Inside the index messages are numbered from that one, so the numbers always fit in an
+ * int however many messages the chat log has seen. Dropped messages are never found again.
+ */
+public class SearchIndex
+{
+    public static final int BLOCK = 128;
+    //longer runs are cut to this many characters
+    public static final int MAX_TERM = 32;
+    public static final int DEFAULT_CAPACITY = 1000000;
+    //system property for the most messages that can be searched
+    public static final String CAPACITY_PROPERTY = "mychatapp.searchCapacity";
+
+    private final HashMap<String,Postings> terms = new HashMap<String,Postings>();
+    private final LongMap<Postings> senders = new LongMap<Postings>();
+    private final int capacity;
+    //the chat log index of the message numbered 0
+    private long base = 0;
+    //the time every message is searched by, by number: its timestamp, but never earlier than the last one
+    private long[] timestamps = new long[1024];
+    private int documents = 0;
+    private long dropped = 0;
+    private long postingBytes = 0;
+    //reused while splitting a message
+    private final StringBuilder term = new StringBuilder();
+
+    /**
+     * Constructor for an index holding the capacity set by the mychatapp.searchCapacity property, or
+     * DEFAULT_CAPACITY messages
+     */
+    public SearchIndex()
+    {
+        this(Integer.getInteger(CAPACITY_PROPERTY,DEFAULT_CAPACITY));
+    }
+
+    /**
+     * Constructor
+     * @param capacity- the most messages held, after which the oldest are dropped
+     */
+    public SearchIndex(int capacity)
+    {
+        if(capacity<=0)
+        {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.capacity = capacity;
+    }
+
+    /**
+     * Adds a message to the index
+     * @param index- the message's index in the chat log, after the last message added. Messages which
+     *               were skipped are never found. If the index is full, the oldest messages are dropped.
+     * @param message- the message
+     */
+    public synchronized void add(long index,ChatMessage message)
+    {
+        if(index<base+documents)
+        {
+            throw new IllegalArgumentException("expected message "+(base+documents)+" or later but got "+index);
+        }
+        if(index-base>=capacity)
+        {
+            //keep three quarters of the capacity, counting this message
+            trim(index+1-(capacity-capacity/4));
+        }
+        long time = documents>0 ? Math.max(message.getTimestamp(),timestamps[documents-1]) : message.getTimestamp();
+        while(documents<=index-base)
+        {
+            if(documents==timestamps.length)
+            {
+                timestamps = Arrays.copyOf(timestamps,Math.min(documents*2,capacity));
+            }
+            timestamps[documents++] = time;
+        }
+        int doc = (int)(index-base);
+
+        Postings sender = senders.get(message.getSenderId());
+        if(sender==null)
+        {
+            sender = new Postings();
+            senders.put(message.getSenderId(),sender);
+        }
+        post(sender,doc);
+
+        String text = message.getText();
+        int i = 0;
+        while(i<text.length())
+        {
+            i = nextTerm(text,i);
+            if(term.length()>0)
+            {
+                String word = term.toString();
+                Postings postings = terms.get(word);
+                if(postings==null)
+                {
+                    postings = new Postings();
+                    terms.put(word,postings);
+                }
+                //a word used twice in one message is only posted once
+                if(postings.last!=doc)
+                {
+                    post(postings,doc);
+                }
+            }
+        }
+    }
+
+    /**
+     * Finds the newest messages which contain every term of a query
+     * @param query- the words to look for. Case and punctuation are ignored. If empty, every message matches.
+     * @param sender- the uniqueID of the sender the messages must be from, or 0 for anyone
+     * @param from- the earliest time, or Long.MIN_VALUE. Messages are matched by their timestamp, raised to
+     *              the latest timestamp before them in the chat log.
+     * @param to- the latest time, or Long.MAX_VALUE
+     * @param limit- the most messages to return
+     * @return the indexes of the messages found, newest first. Messages dropped from the index are not found.
+     */
+    public synchronized long[] search(String query,long sender,long from,long to,int limit)
+    {
+        //the lists to walk, shortest first so the others can skip ahead
+        Postings[] lists = new Postings[0];
+        int i = 0;
+        while(i<query.length())
+        {
+            i = nextTerm(query,i);
+            if(term.length()>0)
+            {
+                Postings postings = terms.get(term.toString());
+                if(postings==null)
+                {
+                    return new long[0];
+                }
+                if(!Arrays.asList(lists).contains(postings))
+                {
+                    lists = Arrays.copyOf(lists,lists.length+1);
+                    lists[lists.length-1] = postings;
+                }
+            }
+        }
+        if(sender!=0)
+        {
+            Postings postings = senders.get(sender);
+            if(postings==null)
+            {
+                return new long[0];
+            }
+            lists = Arrays.copyOf(lists,lists.length+1);
+            lists[lists.length-1] = postings;
+        }
+        Cursor[] cursors = new Cursor[lists.length];
+        for(int k=0;k<lists.length;k++)
+        {
+            cursors[k] = new Cursor(lists[k]);
+        }
+        Arrays.sort(cursors);
+
+        long[] found = new long[Math.min(limit,documents)];
+        int count = 0;
+        int lowest = firstAtOrAfter(from);
+        int target = firstAtOrAfter(to==Long.MAX_VALUE ? to : to+1)-1;
+        while(target>=lowest&&count<found.length)
+        {
+            //every list must have the same message at or before the target
+            int doc = cursors.length==0 ? target : cursors[0].floor(target);
+            boolean agreed = true;
+            for(int k=1;k<cursors.length&&doc>=lowest;k++)
+            {
+                int other = cursors[k].floor(doc);
+                if(other<doc)
+                {
+                    doc = other;
+                    agreed = false;
+                    break;
+                }
+            }
+            if(doc<lowest)
+            {
+                break;
+            }
+            if(agreed)
+            {
+                if(timestamps[doc]>=from&&timestamps[doc]<=to)
+                {
+                    found[count++] = base+doc;
+                }
+                target = doc-1;
+            }
+            else
+            {
+                target = doc;
+            }
+        }
+        return Arrays.copyOf(found,count);
+    }
+
+    /**
+     * Getter for the number of messages held, including any skipped
+     * @return documents
+     */
+    public synchronized int getDocuments()
+    {
+        return documents;
+    }
+
+    /**
+     * Getter for the chat log index of the oldest message which can be found
+     * @return the index
+     */
+    public synchronized long getStart()
+    {
+        return base;
+    }
+
+    /**
+     * Getter for the capacity
+     * @return the most messages held
+     */
+    public int getCapacity()
+    {
+        return capacity;
+    }
+
+    /**
+     * Getter for the number of messages dropped to stay within the capacity
+     * @return dropped
+     */
+    public synchronized long getDropped()
+    {
+        return dropped;
+    }
+
+    /**
+     * Getter for the number of distinct terms
+     * @return terms
+     */
+    public synchronized int getTerms()
+    {
+        return terms.size();
+    }
+
+    /**
+     * Getter for the size of the encoded posting lists
+     * @return bytes
+     */
+    public synchronized long getPostingBytes()
+    {
+        return postingBytes;
+    }
+
+    /**
+     * Reads the next term of a text into the term builder
+     * @param text- the text
+     * @param start- where to start reading
+     * @return where the next term starts. The builder is empty if there were no more terms.
+     */
+    private int nextTerm(String text,int start)
+    {
+        term.setLength(0);
+        int i = start;
+        while(i<text.length()&&!Character.isLetterOrDigit(text.charAt(i)))
+        {
+            i++;
+        }
+        while(i<text.length()&&Character.isLetterOrDigit(text.charAt(i)))
+        {
+            if(term.length()<MAX_TERM)
+            {
+                term.append(Character.toLowerCase(text.charAt(i)));
+            }
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * The first message at or after a time, found by binary search
+     */
+    private int firstAtOrAfter(long time)
+    {
+        int low = 0;
+        int high = documents;
+        while(low<high)
+        {
+            int middle = (low+high)>>>1;
+            if(timestamps[middle]<time)
+            {
+                low = middle+1;
+            }
+            else
+            {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Drops every message before a chat log index, and numbers the rest from it
+     * @param start- the index of the oldest message to keep
+     */
+    private void trim(long start)
+    {
+        if(start-base>=documents)
+        {
+            dropped += documents;
+            terms.clear();
+            senders.clear();
+            postingBytes = 0;
+            documents = 0;
+            base = start;
+            return;
+        }
+        int cut = (int)(start-base);
+        System.arraycopy(timestamps,cut,timestamps,0,documents-cut);
+        documents -= cut;
+        dropped += cut;
+        base = start;
+        Iterator<Postings> lists = terms.values().iterator();
+        while(lists.hasNext())
+        {
+            Postings postings = lists.next();
+            postingBytes -= postings.trim(cut);
+            if(postings.count==0)
+            {
+                lists.remove();
+            }
+        }
+        for(long sender : senders.keys())
+        {
+            Postings postings = senders.get(sender);
+            postingBytes -= postings.trim(cut);
+            if(postings.count==0)
+            {
+                senders.remove(sender);
+            }
+        }
+    }
+
+    private void post(Postings postings,int doc)
+    {
+        int before = postings.size;
+        postings.add(doc);
+        postingBytes += postings.size-before;
+    }
+
+    /**
+     * The messages a term or sender appears in, oldest first
+     */
+    private static class Postings
+    {
+        //where each block starts, and the message it starts with
+        int[] blockFirst = new int[1];
+        int[] blockOffset = new int[1];
+        int blocks = 0;
+        //the gaps between the other messages of each block, as varints
+        byte[] data = new byte[8];
+        int size = 0;
+        int count = 0;
+        //the messages in the last block
+        int inLast = 0;
+        int last = -1;
+
+        void add(int doc)
+        {
+            if(blocks==0||inLast==BLOCK)
+            {
+                if(blocks==blockFirst.length)
+                {
+                    blockFirst = Arrays.copyOf(blockFirst,blocks*2);
+                    blockOffset = Arrays.copyOf(blockOffset,blocks*2);
+                }
+                blockFirst[blocks] = doc;
+                blockOffset[blocks] = size;
+                blocks++;
+                inLast = 0;
+            }
+            else
+            {
+                if(size+5>data.length)
+                {
+                    data = Arrays.copyOf(data,data.length*2);
+                }
+                size = putGap(data,size,doc-last);
+            }
+            last = doc;
+            count++;
+            inLast++;
+        }
+
+        /**
+         * Drops the messages before a cut, and numbers the rest from it. Whole blocks before the cut are
+         * dropped, and the block the cut falls in is encoded again without the messages before it.
+         * @param cut- the number of the first message kept, which becomes 0
+         * @return the bytes of gaps dropped
+         */
+        int trim(int cut)
+        {
+            int before = size;
+            if(last<cut)
+            {
+                blockFirst = new int[1];
+                blockOffset = new int[1];
+                blocks = 0;
+                data = new byte[8];
+                size = 0;
+                count = 0;
+                inLast = 0;
+                last = -1;
+                return before;
+            }
+            if(blockFirst[0]<cut)
+            {
+                //the last block starting before the cut, and what is kept of it
+                int cutBlock = 0;
+                while(cutBlock+1<blocks&&blockFirst[cutBlock+1]<=cut)
+                {
+                    cutBlock++;
+                }
+                boolean wasLast = cutBlock==blocks-1;
+                int[] docs = new int[BLOCK];
+                int n = decode(cutBlock,docs);
+                int from = 0;
+                while(from<n&&docs[from]<cut)
+                {
+                    from++;
+                }
+                byte[] kept = new byte[5*BLOCK];
+                int length = 0;
+                for(int i=from+1;i<n;i++)
+                {
+                    length = putGap(kept,length,docs[i]-docs[i-1]);
+                }
+                //every block starts with one message, and every gap ends with a byte under 0x80
+                int dropped = cutBlock+from;
+                for(int i=0;i<blockOffset[cutBlock];i++)
+                {
+                    if(data[i]>=0)
+                    {
+                        dropped++;
+                    }
+                }
+
+                //put the block kept, if anything is, in place of every block up to the cut
+                int end = wasLast ? size : blockOffset[cutBlock+1];
+                int keptBlocks = from<n ? 1 : 0;
+                int shift = end-length;
+                System.arraycopy(data,end,data,length,size-end);
+                System.arraycopy(kept,0,data,0,length);
+                size -= shift;
+                System.arraycopy(blockFirst,cutBlock+1,blockFirst,keptBlocks,blocks-cutBlock-1);
+                System.arraycopy(blockOffset,cutBlock+1,blockOffset,keptBlocks,blocks-cutBlock-1);
+                blocks -= cutBlock+1-keptBlocks;
+                if(keptBlocks==1)
+                {
+                    blockFirst[0] = docs[from];
+                    blockOffset[0] = 0;
+                }
+                for(int b=keptBlocks;b<blocks;b++)
+                {
+                    blockOffset[b] -= shift;
+                }
+                count -= dropped;
+                if(wasLast)
+                {
+                    inLast = n-from;
+                }
+                if(data.length>64&&size<data.length/4)
+                {
+                    data = Arrays.copyOf(data,Math.max(64,size*2));
+                }
+            }
+            for(int b=0;b<blocks;b++)
+            {
+                blockFirst[b] -= cut;
+            }
+            last -= cut;
+            return before-size;
+        }
+
+        /**
+         * Writes a gap as a varint
+         * @return where the next byte goes
+         */
+        static int putGap(byte[] data,int at,int gap)
+        {
+            while((gap&~0x7F)!=0)
+            {
+                data[at++] = (byte)((gap&0x7F)|0x80);
+                gap >>>= 7;
+            }
+            data[at++] = (byte)gap;
+            return at;
+        }
+
+        /**
+         * Decodes a block
+         * @return the number of messages in it
+         */
+        int decode(int block,int[] out)
+        {
+            int position = blockOffset[block];
+            int end = block+1<blocks ? blockOffset[block+1] : size;
+            int n = 0;
+            int doc = blockFirst[block];
+            out[n++] = doc;
+            while(position<end)
+            {
+                int gap = 0;
+                int shift = 0;
+                byte b;
+                do
+                {
+                    b = data[position++];
+                    gap |= (b&0x7F)<<shift;
+                    shift += 7;
+                }
+                while(b<0);
+                doc += gap;
+                out[n++] = doc;
+            }
+            return n;
+        }
+    }
+
+    /**
+     * Walks a posting list backwards, keeping the block it decoded last and its place in it. The
+     * messages it is asked for must never rise, so within a block it only ever steps back.
+     */
+    private static class Cursor implements Comparable<Cursor>
+    {
+        final Postings postings;
+        final int[] block = new int[BLOCK];
+        int decoded = -1;
+        //the place in the decoded block of the last message returned
+        int position;
+
+        Cursor(Postings postings)
+        {
+            this.postings = postings;
+        }
+
+        /**
+         * The newest message in the list at or before a message
+         * @param target- the message, no later than the one asked for last time
+         * @return the message, or -1 if there is none
+         */
+        int floor(int target)
+        {
+            if(target<0||postings.blocks==0||target<postings.blockFirst[0])
+            {
+                return -1;
+            }
+            if(decoded<0||target<postings.blockFirst[decoded])
+            {
+                //the last block starting at or before the target
+                int low = 0;
+                int high = decoded<0 ? postings.blocks-1 : decoded-1;
+                while(low<high)
+                {
+                    int middle = (low+high+1)>>>1;
+                    if(postings.blockFirst[middle]<=target)
+                    {
+                        low = middle;
+                    }
+                    else
+                    {
+                        high = middle-1;
+                    }
+                }
+                position = postings.decode(low,block)-1;
+                decoded = low;
+            }
+            while(block[position]>target)
+            {
+                position--;
+            }
+            return block[position];
+        }
+
+        @Override
+        public int compareTo(Cursor other)
+        {
+            return Integer.compare(postings.count,other.postings.count);
+        }
+    }
+}
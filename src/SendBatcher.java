@@ -0,0 +1,238 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Packs the frames a client sends into as few packets as possible.
+ *
+ * Frames are added to a pending packet instead of being sent one by one. The packet is sent once it is
+ * full, or once the batching window has passed since its first frame was added, whichever comes first.
+ * So a burst of frames, such as a reply naming everyone in the chatroom, goes out in a handful of packets,
+ * and no frame waits longer than the window. A window of 0 sends every frame straight away.
+ * The shared timer only notices that the window has passed. The packet itself is sent by the executor the
+ * batcher was given, so a slow send does not hold up every other chatroom's timers.
+ *
+ * Receivers need nothing special, since they already read every frame in a packet.
+ *
+ * If the mychatapp.compress system property is set, every packet goes through a PacketCompressor on its
+ * way out, which deflates it if it is big enough.
+ */
+public class SendBatcher
+{
+    //system property which sets the batching window in milliseconds
+    public static final String WINDOW_PROPERTY = "mychatapp.batchWindow";
+    public static final long DEFAULT_WINDOW = 2;
+
+    private final ChatTransport mailbox;
+    private final long windowMillis;
+    private final Executor executor;
+    //deflates packets before they are sent, or null to send them as they are
+    private final PacketCompressor compressor;
+    private ChatMetrics metrics = new ChatMetrics();
+    //the packet being filled, guarded by this
+    private final PacketCodec codec = new PacketCodec(PacketCodec.MTU_PAYLOAD);
+    private int pendingFrames = 0;
+    private long firstQueued;
+    private ScheduledFuture<?> flushTask;
+    private final Runnable timeout = new Runnable()
+    {
+        public void run()
+        {
+            executor.execute(flusher);
+        }
+    };
+    private final Runnable flusher = new Runnable()
+    {
+        public void run()
+        {
+            try
+            {
+                flush();
+            }
+            catch(IOException e)
+            {
+                e.printStackTrace();
+            }
+        }
+    };
+
+    //counters
+    private long packets = 0;
+    private long frames = 0;
+    private long totalDelay = 0;
+    private long maxDelay = 0;
+
+    /**
+     * Constructor using the window from the mychatapp.batchWindow system property, or the default
+     * @param mailbox- where the packets are sent
+     */
+    public SendBatcher(ChatTransport mailbox)
+    {
+        this(mailbox,Long.getLong(WINDOW_PROPERTY,DEFAULT_WINDOW));
+    }
+
+    /**
+     * Constructor
+     * @param mailbox- where the packets are sent
+     * @param windowMillis- the longest a frame waits for others to share its packet
+     */
+    public SendBatcher(ChatTransport mailbox,long windowMillis)
+    {
+        this(mailbox,windowMillis,new Executor()
+        {
+            public void execute(Runnable task)
+            {
+                task.run();
+            }
+        });
+    }
+
+    /**
+     * Constructor using the window from the mychatapp.batchWindow system property, or the default
+     * @param mailbox- where the packets are sent
+     * @param executor- where packets whose window has passed are sent
+     */
+    public SendBatcher(ChatTransport mailbox,Executor executor)
+    {
+        this(mailbox,Long.getLong(WINDOW_PROPERTY,DEFAULT_WINDOW),executor);
+    }
+
+    /**
+     * Constructor
+     * @param mailbox- where the packets are sent
+     * @param windowMillis- the longest a frame waits for others to share its packet
+     * @param executor- where packets whose window has passed are sent
+     */
+    public SendBatcher(ChatTransport mailbox,long windowMillis,Executor executor)
+    {
+        this.mailbox = mailbox;
+        this.windowMillis = windowMillis;
+        this.executor = executor;
+        this.compressor = Boolean.getBoolean(PacketCompressor.COMPRESS_PROPERTY) ? new PacketCompressor() : null;
+    }
+
+    /**
+     * Adds a frame to the pending packet. If it does not fit, the pending packet is sent first.
+     * @param frame- the encoded frame, at most PacketCodec.MAX_PACKED_FRAME bytes. Its position is not changed.
+     * @throws IOException- if a packet fails to send
+     */
+    public synchronized void add(ByteBuffer frame) throws IOException
+    {
+        metrics.frameSent(frame.get(frame.position()));
+        if(pendingFrames>0&&!codec.putEncodedFrame(frame))
+        {
+            flush();
+        }
+        if(pendingFrames==0)
+        {
+            codec.beginPacket();
+            codec.putEncodedFrame(frame);
+            firstQueued = System.nanoTime();
+        }
+        pendingFrames++;
+
+        if(windowMillis<=0)
+        {
+            flush();
+        }
+        else if(flushTask==null)
+        {
+            flushTask = ChatTimers.shared().schedule(timeout,windowMillis,TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Sends the pending packet, if there is one.
+     * @throws IOException- if the packet fails to send
+     */
+    public synchronized void flush() throws IOException
+    {
+        if(flushTask!=null)
+        {
+            flushTask.cancel(false);
+            flushTask = null;
+        }
+        if(pendingFrames==0)
+        {
+            return;
+        }
+        long delay = System.nanoTime()-firstQueued;
+        packets++;
+        frames += pendingFrames;
+        totalDelay += delay;
+        maxDelay = Math.max(maxDelay,delay);
+        pendingFrames = 0;
+        ByteBuffer packet = codec.finishPacket();
+        if(compressor!=null)
+        {
+            packet = compressor.compress(packet);
+        }
+        metrics.packetSent(packet.remaining());
+        mailbox.send(packet);
+    }
+
+    /**
+     * Sets where the frames and packets sent are counted
+     * @param metrics- the metrics
+     */
+    public synchronized void setMetrics(ChatMetrics metrics)
+    {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Getter for the compressor, whose counters show how much deflating saved and what it cost
+     * @return compressor, or null if packets are sent as they are
+     */
+    public PacketCompressor getCompressor()
+    {
+        return compressor;
+    }
+
+    /**
+     * Getter for the number of packets sent
+     * @return packets
+     */
+    public synchronized long getPackets()
+    {
+        return packets;
+    }
+
+    /**
+     * Getter for the number of frames sent
+     * @return frames
+     */
+    public synchronized long getFrames()
+    {
+        return frames;
+    }
+
+    /**
+     * Getter for the average number of frames in each packet
+     * @return frames per packet
+     */
+    public synchronized double getFramesPerPacket()
+    {
+        return packets==0 ? 0 : (double)frames/packets;
+    }
+
+    /**
+     * Getter for the average time the first frame of a packet waited before it was sent
+     * @return the added latency in nanoseconds
+     */
+    public synchronized long getAverageDelay()
+    {
+        return packets==0 ? 0 : totalDelay/packets;
+    }
+
+    /**
+     * Getter for the longest time a frame waited before it was sent
+     * @return the added latency in nanoseconds
+     */
+    public synchronized long getMaxDelay()
+    {
+        return maxDelay;
+    }
+}
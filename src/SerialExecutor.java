@@ -0,0 +1,88 @@
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs tasks one at a time, in the order they were given, on a shared pool of threads.
+ *
+ * Each room keeps its own SerialExecutors, so its work stays in order without it needing a thread of its
+ * own. Only one task of a SerialExecutor is ever running, and after a batch of tasks it goes to the back
+ * of the pool's queue, so a room with a lot of work can't keep the others waiting.
+ */
+public class SerialExecutor implements Executor
+{
+    //tasks run before making way for other rooms
+    public static final int BATCH = 64;
+
+    private final Executor pool;
+    private final ArrayDeque<Runnable> tasks = new ArrayDeque<Runnable>();
+    private boolean running = false;
+    private final Runnable drainer = new Runnable()
+    {
+        public void run()
+        {
+            drain();
+        }
+    };
+
+    /**
+     * Constructor
+     * @param pool- the threads the tasks run on
+     */
+    public SerialExecutor(Executor pool)
+    {
+        this.pool = pool;
+    }
+
+    /**
+     * Queues a task to run after the ones already given
+     * @param task- the task
+     */
+    @Override
+    public synchronized void execute(Runnable task)
+    {
+        tasks.add(task);
+        if(!running)
+        {
+            running = true;
+            pool.execute(drainer);
+        }
+    }
+
+    /**
+     * Getter for the number of tasks waiting to run
+     * @return the number of tasks
+     */
+    public synchronized int getQueued()
+    {
+        return tasks.size();
+    }
+
+    /**
+     * Runs up to a batch of tasks, then hands the rest back to the pool
+     */
+    private void drain()
+    {
+        for(int i=0;i<BATCH;i++)
+        {
+            Runnable task;
+            synchronized(this)
+            {
+                task = tasks.poll();
+                if(task==null)
+                {
+                    running = false;
+                    return;
+                }
+            }
+            try
+            {
+                task.run();
+            }
+            catch(RuntimeException e)
+            {
+                e.printStackTrace();
+            }
+        }
+        pool.execute(drainer);
+    }
+}
@@ -0,0 +1,100 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+
+/**
+ * Times how long the app takes to start, phase by phase, from main() to the user's first message being
+ * sent. The time that matters most is from the user pressing Enter on the login window to their first
+ * message leaving, which should stay under GOAL_MILLIS.
+ *
+ * Phases are marked in the order they finish, by whichever thread finishes them. Once the first message
+ * is sent the phases are written to standard out if the mychatapp.startupLog system property is true, and
+ * the program ends if mychatapp.exitAfterStartup is true, which is how a class data sharing archive of the
+ * classes loaded at startup is made.
+ */
+public class StartupTimer
+{
+    //system properties for writing the phases out, and for ending the program once they are done
+    public static final String LOG_PROPERTY = "mychatapp.startupLog";
+    public static final String EXIT_PROPERTY = "mychatapp.exitAfterStartup";
+    //what the time from pressing Enter to the first message being sent should stay under
+    public static final long GOAL_MILLIS = 300;
+    //the phases the goal is measured between
+    public static final String ENTER = "enter";
+    public static final String FIRST_MESSAGE = "first message sent";
+
+    //when main() started, which is when this class is first used
+    private static final long started = System.nanoTime();
+    private static final ArrayList<String> phases = new ArrayList<String>();
+    private static final ArrayList<Long> times = new ArrayList<Long>();
+
+    /**
+     * Notes that a phase has just finished. A phase marked again is timed again.
+     * @param phase- names the phase
+     */
+    public static synchronized void mark(String phase)
+    {
+        phases.add(phase);
+        times.add(System.nanoTime()-started);
+    }
+
+    /**
+     * Getter for when a phase last finished
+     * @param phase- names the phase
+     * @return milliseconds since main() started, or -1 if it has not finished
+     */
+    public static synchronized long getMillis(String phase)
+    {
+        int i = phases.lastIndexOf(phase);
+        return i<0 ? -1 : times.get(i)/1000000;
+    }
+
+    /**
+     * Getter for the time from pressing Enter to the first message being sent
+     * @return milliseconds, or -1 until the first message is sent
+     */
+    public static synchronized long getTimeToFirstMessage()
+    {
+        long enter = getMillis(ENTER);
+        long sent = getMillis(FIRST_MESSAGE);
+        return enter<0||sent<0 ? -1 : sent-enter;
+    }
+
+    /**
+     * Sums up every phase
+     * @return each phase with its time since main() started, then the time to the first message
+     */
+    public static synchronized String getSummary()
+    {
+        StringBuilder text = new StringBuilder("startup");
+        for(int i=0;i<phases.size();i++)
+        {
+            text.append(i==0 ? " " : ", ").append(phases.get(i)).append(' ').append(times.get(i)/1000000)
+                    .append("ms");
+        }
+        long toFirst = getTimeToFirstMessage();
+        if(toFirst>=0)
+        {
+            text.append(" | enter to first message ").append(toFirst).append("ms, goal ").append(GOAL_MILLIS)
+                    .append("ms").append(toFirst>GOAL_MILLIS ? " MISSED" : "");
+        }
+        return text.toString();
+    }
+
+    /**
+     * Marks the first message as sent, then writes the phases out or ends the program if asked to
+     */
+    public static void firstMessageSent()
+    {
+        mark(FIRST_MESSAGE);
+        if(Boolean.getBoolean(LOG_PROPERTY))
+        {
+            //the management classes are only loaded here, so they do not slow down starting
+            long toMain = ManagementFactory.getRuntimeMXBean().getUptime()-(System.nanoTime()-started)/1000000;
+            System.out.println("jvm to main "+toMain+"ms, "+getSummary());
+        }
+        if(Boolean.getBoolean(EXIT_PROPERTY))
+        {
+            System.exit(0);
+        }
+    }
+}
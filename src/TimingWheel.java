@@ -0,0 +1,215 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A hashed timing wheel which notices ids that have not been heard from for a while.
+ *
+ * Each id sits in one of a fixed number of slots, picked by the tick its time runs out on. Every tick
+ * only the ids in one slot are looked at, so the work per tick does not grow with the number of ids.
+ * Hearing from an id only writes down the time, it does not move the id. When the id's slot comes round,
+ * an id which was heard from in the meantime is moved to the slot of its new deadline, and one which was
+ * not is removed and reported. That way an id which is heard from often costs one move per timeout,
+ * however many times it was heard from.
+ *
+ * Not thread safe.
+ */
+public class TimingWheel
+{
+    private final long tickMillis;
+    private final long timeout;
+    private final Entry[] slots;
+    private final int mask;
+    private final LongMap<Entry> entries = new LongMap<Entry>();
+    //the last tick which was processed
+    private long currentTick;
+
+    /**
+     * Constructor
+     * @param slotCount- the number of slots, a power of two
+     * @param tickMillis- milliseconds between ticks
+     * @param timeout- milliseconds an id may go without being heard from
+     * @param now- the current time in milliseconds
+     */
+    public TimingWheel(int slotCount,long tickMillis,long timeout,long now)
+    {
+        if(Integer.bitCount(slotCount)!=1)
+        {
+            throw new IllegalArgumentException("slotCount must be a power of two");
+        }
+        this.tickMillis = tickMillis;
+        this.timeout = timeout;
+        this.slots = new Entry[slotCount];
+        this.mask = slotCount-1;
+        this.currentTick = now/tickMillis;
+    }
+
+    /**
+     * Starts watching an id, as if it was just heard from
+     * @param id- the id
+     * @param now- the current time in milliseconds
+     * @return false if it was already being watched
+     */
+    public boolean add(long id,long now)
+    {
+        Entry entry = entries.get(id);
+        if(entry!=null)
+        {
+            entry.lastHeard = Math.max(entry.lastHeard,now);
+            return false;
+        }
+        entry = new Entry(id,now);
+        entries.put(id,entry);
+        link(entry,deadline(entry));
+        return true;
+    }
+
+    /**
+     * Notes that an id was heard from
+     * @param id- the id
+     * @param now- the current time in milliseconds
+     * @return false if the id is not being watched
+     */
+    public boolean touch(long id,long now)
+    {
+        Entry entry = entries.get(id);
+        if(entry==null)
+        {
+            return false;
+        }
+        if(now>entry.lastHeard)
+        {
+            entry.lastHeard = now;
+        }
+        return true;
+    }
+
+    /**
+     * Stops watching an id
+     * @param id- the id
+     * @return false if it was not being watched
+     */
+    public boolean remove(long id)
+    {
+        Entry entry = entries.remove(id);
+        if(entry==null)
+        {
+            return false;
+        }
+        unlink(entry);
+        return true;
+    }
+
+    /**
+     * Getter for the number of ids being watched
+     * @return size
+     */
+    public int size()
+    {
+        return entries.size();
+    }
+
+    /**
+     * Processes every tick up to the current time. Ids which ran out of time are no longer watched.
+     * @param now- the current time in milliseconds
+     * @return the ids which ran out of time
+     */
+    public List<Long> advance(long now)
+    {
+        long target = now/tickMillis;
+        if(target<=currentTick)
+        {
+            return Collections.emptyList();
+        }
+        List<Long> expired = null;
+        //after a long pause every slot is looked at once, not once per missed tick
+        long first = Math.max(currentTick+1,target-mask);
+        for(long tick=first;tick<=target;tick++)
+        {
+            Entry entry = slots[(int)(tick&mask)];
+            while(entry!=null)
+            {
+                Entry next = entry.next;
+                if(entry.deadlineTick<=target)
+                {
+                    if(entry.lastHeard+timeout<=now)
+                    {
+                        unlink(entry);
+                        entries.remove(entry.id);
+                        if(expired==null)
+                        {
+                            expired = new ArrayList<Long>();
+                        }
+                        expired.add(entry.id);
+                    }
+                    else
+                    {
+                        //heard from since it was put here, so move it to its new deadline
+                        unlink(entry);
+                        link(entry,Math.max(deadline(entry),target+1));
+                    }
+                }
+                entry = next;
+            }
+        }
+        currentTick = target;
+        return expired==null ? Collections.<Long>emptyList() : expired;
+    }
+
+    /**
+     * The tick on which an entry runs out of time, rounded up
+     */
+    private long deadline(Entry entry)
+    {
+        return (entry.lastHeard+timeout+tickMillis-1)/tickMillis;
+    }
+
+    private void link(Entry entry,long deadlineTick)
+    {
+        int slot = (int)(deadlineTick&mask);
+        entry.deadlineTick = deadlineTick;
+        entry.prev = null;
+        entry.next = slots[slot];
+        if(entry.next!=null)
+        {
+            entry.next.prev = entry;
+        }
+        slots[slot] = entry;
+    }
+
+    private void unlink(Entry entry)
+    {
+        if(entry.prev!=null)
+        {
+            entry.prev.next = entry.next;
+        }
+        else
+        {
+            slots[(int)(entry.deadlineTick&mask)] = entry.next;
+        }
+        if(entry.next!=null)
+        {
+            entry.next.prev = entry.prev;
+        }
+        entry.prev = null;
+        entry.next = null;
+    }
+
+    /**
+     * An id being watched, and its place in its slot's list
+     */
+    private static class Entry
+    {
+        final long id;
+        long lastHeard;
+        long deadlineTick;
+        Entry prev;
+        Entry next;
+
+        Entry(long id,long lastHeard)
+        {
+            this.id = id;
+            this.lastHeard = lastHeard;
+        }
+    }
+}
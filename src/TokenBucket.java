@@ -0,0 +1,93 @@
+/**
+ * Lets things happen at a steady rate, with bursts allowed up to a limit.
+ *
+ * The bucket holds up to burst tokens and gains rate of them every second. Each thing that happens takes
+ * one, and when the bucket is empty the caller has to wait until the next one comes in. Tokens are worked
+ * out from the time whenever the bucket is looked at, so nothing has to run in the background. A rate of
+ * 0 or less means there is no limit.
+ *
+ * Not thread safe.
+ */
+public class TokenBucket
+{
+    private double perNano;
+    private double burst;
+    private double tokens;
+    private long refilled;
+
+    /**
+     * Constructor for a full bucket
+     * @param perSecond- tokens gained every second, or 0 for no limit
+     * @param burst- the most tokens the bucket holds, at least 1
+     */
+    public TokenBucket(double perSecond,int burst)
+    {
+        setRate(perSecond,burst);
+        refilled = System.nanoTime();
+    }
+
+    /**
+     * Changes the rate. The bucket is filled up to the new burst.
+     * @param perSecond- tokens gained every second, or 0 for no limit
+     * @param burst- the most tokens the bucket holds, at least 1
+     */
+    public void setRate(double perSecond,int burst)
+    {
+        this.perNano = perSecond/1e9;
+        this.burst = Math.max(1,burst);
+        this.tokens = this.burst;
+    }
+
+    /**
+     * Getter for the rate
+     * @return tokens gained every second, 0 or less if there is no limit
+     */
+    public double getRate()
+    {
+        return perNano*1e9;
+    }
+
+    /**
+     * Takes a token if there is one
+     * @param now- the time, from System.nanoTime()
+     * @return true if one was taken, false if the caller has to wait
+     */
+    public boolean tryTake(long now)
+    {
+        if(perNano<=0)
+        {
+            return true;
+        }
+        refill(now);
+        if(tokens>=1)
+        {
+            tokens--;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Works out how long until a token comes in
+     * @param now- the time, from System.nanoTime()
+     * @return nanoseconds, 0 if there is a token now
+     */
+    public long nanosUntilToken(long now)
+    {
+        if(perNano<=0)
+        {
+            return 0;
+        }
+        refill(now);
+        return tokens>=1 ? 0 : (long)Math.ceil((1-tokens)/perNano);
+    }
+
+    private void refill(long now)
+    {
+        if(now>refilled)
+        {
+            tokens = Math.min(burst,tokens+(now-refilled)*perNano);
+            refilled = now;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+import javax.swing.AbstractListModel;
+import java.util.List;
+
+/**
+ * List model that shows the users in a ChatModel's chatroom in a JList, in order of name.
+ *
+ * The list model keeps its own UserRoster, which only changes on the event dispatch thread. Each call to
+ * update() takes the joins and leaves the model saw since the last call and applies them one by one,
+ * telling the list only about the rows which were added or removed.
+ */
+public class UserListModel extends AbstractListModel<String> implements UserRoster.Listener
+{
+    private static final long serialVersionUID = 1L;
+
+    private final ChatModel model;
+    private final UserRoster users = new UserRoster();
+
+    /**
+     * Constructor. Fills the list with the users already in the chatroom.
+     * @param model- the model holding the users
+     */
+    public UserListModel(ChatModel model)
+    {
+        this.model = model;
+        apply(model.watchUsers());
+        users.setListener(this);
+    }
+
+    @Override
+    public int getSize()
+    {
+        return users.size();
+    }
+
+    @Override
+    public String getElementAt(int index)
+    {
+        return users.getNameAt(index);
+    }
+
+    /**
+     * Converts a row of the list to the user shown in it
+     * @param row- the row
+     * @return the uniqueID of the user
+     */
+    public long getUserId(int row)
+    {
+        return users.getIdAt(row);
+    }
+
+    /**
+     * Brings the list up to date with the model. Only the rows which changed are reported to the list.
+     * Must be called on the event dispatch thread.
+     * @return the number of changes applied
+     */
+    public int update()
+    {
+        List<ChatModel.UserChange> changes = model.takeUserChanges();
+        apply(changes);
+        return changes.size();
+    }
+
+    private void apply(List<ChatModel.UserChange> changes)
+    {
+        for(ChatModel.UserChange change : changes)
+        {
+            if(change.isJoined())
+            {
+                users.add(change.getId(),change.getName());
+            }
+            else
+            {
+                users.remove(change.getId());
+            }
+        }
+    }
+
+    @Override
+    public void userAdded(int row)
+    {
+        fireIntervalAdded(this,row,row);
+    }
+
+    @Override
+    public void userRemoved(int row)
+    {
+        fireIntervalRemoved(this,row,row);
+    }
+}
@@ -0,0 +1,204 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+
+/**
+ * The users in the chatroom, kept by uniqueID and in order of name.
+ *
+ * Finding a user by id takes constant time, through a LongMap. The users are also kept in a list sorted
+ * by name, then id, whose row for a user is found by binary search, so joins and leaves only move the rows
+ * after the one which changed. Every change is reported to the listener with the row it happened at, so
+ * a view only has to redraw that row.
+ *
+ * Not thread safe.
+ */
+public class UserRoster implements Iterable<String>
+{
+    /**
+     * Told about every row which is added or removed
+     */
+    public interface Listener
+    {
+        /**
+         * Called after a user is added
+         * @param row- the row they were added at
+         */
+        void userAdded(int row);
+
+        /**
+         * Called after a user is removed
+         * @param row- the row they were removed from
+         */
+        void userRemoved(int row);
+    }
+
+    //order of the rows, by name ignoring case, then by id so that users with the same name keep a fixed order
+    private static final Comparator<User> ORDER = new Comparator<User>()
+    {
+        public int compare(User a,User b)
+        {
+            int order = String.CASE_INSENSITIVE_ORDER.compare(a.name,b.name);
+            if(order==0)
+            {
+                order = a.name.compareTo(b.name);
+            }
+            return order!=0 ? order : Long.compare(a.id,b.id);
+        }
+    };
+
+    private final LongMap<User> byId = new LongMap<User>();
+    private final ArrayList<User> rows = new ArrayList<User>();
+    private Listener listener;
+
+    /**
+     * Sets who is told about changes
+     * @param listener- the listener, or null for nobody
+     */
+    public void setListener(Listener listener)
+    {
+        this.listener = listener;
+    }
+
+    /**
+     * Adds a user, or changes the name of one who is already here
+     * @param id- their uniqueID
+     * @param name- their name
+     * @return false if they were already here with that name
+     */
+    public boolean add(long id,String name)
+    {
+        User old = byId.get(id);
+        if(old!=null)
+        {
+            if(old.name.equals(name))
+            {
+                return false;
+            }
+            removeRow(old);
+        }
+        User user = new User(id,name);
+        byId.put(id,user);
+        int row = -Collections.binarySearch(rows,user,ORDER)-1;
+        rows.add(row,user);
+        if(listener!=null)
+        {
+            listener.userAdded(row);
+        }
+        return true;
+    }
+
+    /**
+     * Removes a user
+     * @param id- their uniqueID
+     * @return false if they were not here
+     */
+    public boolean remove(long id)
+    {
+        User user = byId.remove(id);
+        if(user==null)
+        {
+            return false;
+        }
+        removeRow(user);
+        return true;
+    }
+
+    /**
+     * Getter for the number of users
+     * @return size
+     */
+    public int size()
+    {
+        return rows.size();
+    }
+
+    /**
+     * Getter for the name of a user by id
+     * @param id- their uniqueID
+     * @return the name, or null if they are not here
+     */
+    public String getName(long id)
+    {
+        User user = byId.get(id);
+        return user==null ? null : user.name;
+    }
+
+    /**
+     * Getter for the name in a row
+     * @param row- the row
+     * @return the name
+     */
+    public String getNameAt(int row)
+    {
+        return rows.get(row).name;
+    }
+
+    /**
+     * Getter for the id in a row
+     * @param row- the row
+     * @return the uniqueID
+     */
+    public long getIdAt(int row)
+    {
+        return rows.get(row).id;
+    }
+
+    /**
+     * Getter for the row of a user
+     * @param id- their uniqueID
+     * @return the row, or -1 if they are not here
+     */
+    public int indexOf(long id)
+    {
+        User user = byId.get(id);
+        return user==null ? -1 : Collections.binarySearch(rows,user,ORDER);
+    }
+
+    /**
+     * Iterates over the names in order
+     * @return the iterator
+     */
+    @Override
+    public Iterator<String> iterator()
+    {
+        final Iterator<User> users = rows.iterator();
+        return new Iterator<String>()
+        {
+            public boolean hasNext()
+            {
+                return users.hasNext();
+            }
+
+            public String next()
+            {
+                return users.next().name;
+            }
+        };
+    }
+
+    private void removeRow(User user)
+    {
+        int row = Collections.binarySearch(rows,user,ORDER);
+        rows.remove(row);
+        if(listener!=null)
+        {
+            listener.userRemoved(row);
+        }
+    }
+
+    /**
+     * A user and their row
+     */
+    private static class User
+    {
+        final long id;
+        final String name;
+
+        User(long id,String name)
+        {
+            this.id = id;
+            this.name = name;
+        }
+    }
+}